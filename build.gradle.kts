@@ -59,6 +59,7 @@ java.targetCompatibility = JavaVersion.VERSION_1_8
 val versions = mapOf(
   "awaitility" to "4.0.3",
   "jdatepicker" to "1.3.4",
+  "jmh" to "1.29",
   "jmockit" to "1.49",
   "junit" to "5.7.1",
   "spotbugs" to "4.2.2",
@@ -93,6 +94,32 @@ sourceSets {
   }
 }
 
+// JMH benchmarks. These only need the plugin and JOSM, not the JOSM test setup.
+val jmh: SourceSet by sourceSets.creating {
+  java {
+    setSrcDirs(listOf("test/jmh"))
+  }
+  compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+  runtimeClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+}
+
+dependencies {
+  "jmhImplementation"("org.openjdk.jmh:jmh-core:${versions["jmh"]}")
+  "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:${versions["jmh"]}")
+}
+
+tasks.register<JavaExec>("jmh") {
+  description = "Runs the JMH benchmarks. Pass JMH options with -PjmhArgs=\"...\"."
+  group = "verification"
+  classpath = jmh.runtimeClasspath
+  mainClass.set("org.openjdk.jmh.Main")
+  // Keep the results, so that runs before and after a change can be compared
+  val results = File(buildDir, "reports/jmh/results.json")
+  doFirst { results.parentFile.mkdirs() }
+  args(listOf("-rf", "json", "-rff", results.absolutePath) +
+    (findProperty("jmhArgs") as String? ?: "").split(" ").filter { it.isNotBlank() })
+}
+
 val md2html by tasks.creating(MarkdownToHtml::class) {
   destDir = File(buildDir, "md2html")
   source(projectDir)
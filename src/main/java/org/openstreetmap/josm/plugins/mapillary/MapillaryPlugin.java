@@ -31,12 +31,15 @@ import org.openstreetmap.josm.plugins.mapillary.actions.MapPointObjectLayerActio
 import org.openstreetmap.josm.plugins.mapillary.actions.MapillaryDownloadAction;
 import org.openstreetmap.josm.plugins.mapillary.actions.MapillaryExportAction;
 import org.openstreetmap.josm.plugins.mapillary.actions.MapillaryImportAction;
+import org.openstreetmap.josm.plugins.mapillary.actions.MapillaryOfflineAreaAction;
 import org.openstreetmap.josm.plugins.mapillary.actions.MapillaryWalkAction;
 import org.openstreetmap.josm.plugins.mapillary.actions.MapillaryZoomAction;
 import org.openstreetmap.josm.plugins.mapillary.data.mapillary.VectorDataSelectionListener;
 import org.openstreetmap.josm.plugins.mapillary.gui.DataMouseListener;
+import org.openstreetmap.josm.plugins.mapillary.gui.DeveloperToggleAction;
 import org.openstreetmap.josm.plugins.mapillary.gui.MapillaryMainDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.MapillaryPreferenceSetting;
+import org.openstreetmap.josm.plugins.mapillary.gui.dialog.MapillaryCacheStatisticsDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.dialog.MapillaryExpertFilterDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.dialog.MapillaryFilterDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.imageinfo.ImageInfoPanel;
@@ -93,6 +96,11 @@ public class MapillaryPlugin extends Plugin implements Destroyable {
     MainMenu.add(menu.imagerySubMenu, mapillaryDownloadAction, false);
     destroyables.add(mapillaryDownloadAction);
 
+    MapillaryOfflineAreaAction mapillaryOfflineAreaAction = new MapillaryOfflineAreaAction();
+    mapillaryOfflineAreaAction.updateEnabledState();
+    MainMenu.add(menu.imagerySubMenu, mapillaryOfflineAreaAction, false);
+    destroyables.add(mapillaryOfflineAreaAction);
+
     MapillaryImportAction mapillaryImportAction = new MapillaryImportAction();
     MainMenu.add(menu.fileMenu, mapillaryImportAction, false, 14);
     destroyables.add(mapillaryImportAction);
@@ -152,6 +160,10 @@ public class MapillaryPlugin extends Plugin implements Destroyable {
       toggleDialog.add(MapillaryExpertFilterDialog.getInstance());
       newFrame.addToggleDialog(ImageInfoPanel.getInstance());
       toggleDialog.add(ImageInfoPanel.getInstance());
+      // Only useful when working on the plugin (e.g., sizing caches)
+      DeveloperToggleAction
+        .addVisibilitySwitcher(newFrame.addToggleDialog(MapillaryCacheStatisticsDialog.getInstance(), false));
+      toggleDialog.add(MapillaryCacheStatisticsDialog.getInstance());
 
       // This fixes a UI issue -- for whatever reason, the tab pane is occasionally unusable when the expert filter
       // dialog is added.
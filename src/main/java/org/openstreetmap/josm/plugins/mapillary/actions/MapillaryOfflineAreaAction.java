@@ -0,0 +1,114 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.actions;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.awt.GridBagLayout;
+import java.awt.event.ActionEvent;
+
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.plugins.mapillary.MapillaryPlugin;
+import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
+import org.openstreetmap.josm.plugins.mapillary.io.download.OfflineAreaDownloader;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.tools.GBC;
+import org.openstreetmap.josm.tools.ImageProvider;
+import org.openstreetmap.josm.tools.ImageProvider.ImageSizes;
+
+/**
+ * Downloads the Mapillary data for the visible area, so that it can be used offline
+ *
+ * @see OfflineAreaDownloader
+ */
+public class MapillaryOfflineAreaAction extends JosmAction {
+  private static final long serialVersionUID = 4106271437513262814L;
+  private static final int DEFAULT_MIN_ZOOM = 12;
+
+  /**
+   * Create a new action
+   */
+  public MapillaryOfflineAreaAction() {
+    super(tr("Prepare Mapillary area for offline use"),
+      new ImageProvider(MapillaryPlugin.LOGO).setSize(ImageSizes.DEFAULT),
+      tr("Download the Mapillary images in the visible area, so that they can be used offline"), null, false,
+      "mapillaryOfflineArea", true);
+  }
+
+  @Override
+  public void actionPerformed(ActionEvent e) {
+    if (!MapillaryLayer.hasInstance() || !MainApplication.isDisplayingMapView()) {
+      return;
+    }
+    final OfflineAreaDownloader.Area pending = OfflineAreaDownloader.getPendingArea();
+    if (pending != null) {
+      final int answer = JOptionPane.showConfirmDialog(MainApplication.getMainFrame(),
+        tr("The last offline download did not finish. Resume it?"), tr("Prepare area for offline use"),
+        JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+      if (answer == JOptionPane.YES_OPTION) {
+        download(pending, false);
+        return;
+      } else if (answer != JOptionPane.NO_OPTION) {
+        return;
+      }
+      MapillaryProperties.OFFLINE_AREA_PENDING.put(null);
+    }
+
+    final Bounds bounds = MainApplication.getMap().mapView.getRealBounds();
+    final SpinnerNumberModel minZoom = new SpinnerNumberModel(DEFAULT_MIN_ZOOM, 0,
+      OfflineAreaDownloader.MAX_TILE_ZOOM, 1);
+    final SpinnerNumberModel maxZoom = new SpinnerNumberModel(OfflineAreaDownloader.MAX_TILE_ZOOM, 0,
+      OfflineAreaDownloader.MAX_TILE_ZOOM, 1);
+    final JCheckBox fullImages = new JCheckBox(tr("Download full size images (much larger)"));
+    final JCheckBox workOffline = new JCheckBox(tr("Work offline when the download is finished"), true);
+    final JPanel panel = new JPanel(new GridBagLayout());
+    panel.add(new JLabel(tr("Minimum zoom")), GBC.std().insets(0, 0, 5, 0));
+    panel.add(new JSpinner(minZoom), GBC.eol());
+    panel.add(new JLabel(tr("Maximum zoom")), GBC.std().insets(0, 0, 5, 0));
+    panel.add(new JSpinner(maxZoom), GBC.eol());
+    panel.add(fullImages, GBC.eol());
+    panel.add(workOffline, GBC.eol());
+    if (JOptionPane.showConfirmDialog(MainApplication.getMainFrame(), panel, tr("Prepare area for offline use"),
+      JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+      return;
+    }
+    final OfflineAreaDownloader.Area area = new OfflineAreaDownloader.Area(bounds, minZoom.getNumber().intValue(),
+      maxZoom.getNumber().intValue(), fullImages.isSelected());
+    final long tiles = area.getTileCount();
+    if (tiles > OfflineAreaDownloader.MAX_TILES) {
+      JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+        trn("The area needs {0} tile, but at most {1} tiles can be downloaded. Zoom in or raise the minimum zoom.",
+          "The area needs {0} tiles, but at most {1} tiles can be downloaded. Zoom in or raise the minimum zoom.",
+          tiles, tiles, OfflineAreaDownloader.MAX_TILES),
+        tr("Prepare area for offline use"), JOptionPane.WARNING_MESSAGE);
+      return;
+    }
+    download(area, workOffline.isSelected());
+  }
+
+  private static void download(OfflineAreaDownloader.Area area, boolean workOffline) {
+    MainApplication.worker.submit(new OfflineAreaDownloader(area));
+    if (workOffline) {
+      // The worker runs one task at a time, so this runs after the download
+      MainApplication.worker.submit(() -> {
+        if (OfflineAreaDownloader.getPendingArea() == null) {
+          MapillaryProperties.OFFLINE.put(true);
+        }
+      });
+    }
+  }
+
+  @Override
+  public void updateEnabledState() {
+    setEnabled(MainApplication.isDisplayingMapView() && MapillaryLayer.hasInstance());
+  }
+}
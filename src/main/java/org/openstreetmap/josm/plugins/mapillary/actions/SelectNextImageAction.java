@@ -14,6 +14,7 @@ import org.openstreetmap.josm.actions.JosmAction;
 import org.openstreetmap.josm.data.osm.INode;
 import org.openstreetmap.josm.data.osm.IWay;
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.plugins.mapillary.cache.PrefetchController;
 import org.openstreetmap.josm.plugins.mapillary.gui.MapillaryMainDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
@@ -165,6 +166,12 @@ public class SelectNextImageAction extends JosmAction {
   public void actionPerformed(ActionEvent e) {
     final INode newSelectedImage = this.getDestinationImageSupplier().get();
     if (newSelectedImage != null) {
+      // Record the step before selecting the image, so that the prefetch for the new image can use it
+      if (this == NEXT_ACTION) {
+        PrefetchController.getInstance().recordStep(MapillarySequenceUtils.NextOrPrevious.NEXT);
+      } else if (this == PREVIOUS_ACTION) {
+        PrefetchController.getInstance().recordStep(MapillarySequenceUtils.NextOrPrevious.PREVIOUS);
+      }
       MapillaryLayer.getInstance().setSelected(newSelectedImage);
       // TODO remove if it turns out to be unneeded -- due to ids, unintended images
       // may be selected.
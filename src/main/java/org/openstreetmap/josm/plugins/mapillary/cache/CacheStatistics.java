@@ -0,0 +1,447 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Hit/miss counters and load latencies for a cache. Statistics are kept per cache name, so that they can be shown
+ * (and exported) for all of the Mapillary caches at once.
+ */
+public final class CacheStatistics {
+  /** The CSV header for {@link #writeCsv(Writer)} */
+  static final String CSV_HEADER = "cache,hits,misses,hit_ratio,loads,load_failures,entries,bytes,evictions,"
+    + "load_mean_ms,load_p50_ms,load_p90_ms,load_p99_ms,load_max_ms,compression_ratio,decode_mean_us,"
+    + "merges,merge_mean_ms,merge_contention,merge_wait_mean_ms";
+  private static final LongSupplier UNKNOWN = () -> -1;
+  private static final Map<String, CacheStatistics> STATISTICS = new ConcurrentSkipListMap<>();
+
+  private final String name;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder loadFailures = new LongAdder();
+  private final LatencyHistogram loadLatency = new LatencyHistogram();
+  private final LongAdder uncompressedBytes = new LongAdder();
+  private final LongAdder compressedBytes = new LongAdder();
+  private final LongAdder decodes = new LongAdder();
+  private final LongAdder decodeNanos = new LongAdder();
+  private final LatencyHistogram mergeLatency = new LatencyHistogram();
+  private final LongAdder contendedMerges = new LongAdder();
+  private final LongAdder mergeWaitNanos = new LongAdder();
+  private volatile LongSupplier entries = UNKNOWN;
+  private volatile LongSupplier bytes = UNKNOWN;
+  private volatile LongSupplier evictions = UNKNOWN;
+
+  /**
+   * A histogram of latencies, with buckets that double in size (under 1 ms, under 2 ms, under 4 ms, ...)
+   */
+  public static final class LatencyHistogram {
+    private static final int BUCKETS = 20;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+
+    /**
+     * Record a latency
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+      final long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+      final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+      this.counts.incrementAndGet(bucket);
+      this.totalNanos.add(Math.max(0, nanos));
+    }
+
+    /**
+     * Get the number of recorded latencies
+     *
+     * @return The count
+     */
+    public long getCount() {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        count += this.counts.get(i);
+      }
+      return count;
+    }
+
+    /**
+     * Get the mean latency
+     *
+     * @return The mean latency in milliseconds, or {@code 0} if nothing was recorded
+     */
+    public double getMean() {
+      final long count = this.getCount();
+      return count == 0 ? 0 : this.totalNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Get a percentile. Since the buckets double in size, this is only an upper bound.
+     *
+     * @param percentile The percentile (0-100)
+     * @return The upper bound of the bucket holding the percentile, in milliseconds ({@code 0} if nothing was
+     *         recorded)
+     */
+    public long getPercentile(double percentile) {
+      final long count = this.getCount();
+      if (count == 0) {
+        return 0;
+      }
+      final long target = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += this.counts.get(i);
+        if (seen >= target) {
+          return 1L << i;
+        }
+      }
+      return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * Clear the histogram
+     */
+    public void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        this.counts.set(i, 0);
+      }
+      this.totalNanos.reset();
+    }
+  }
+
+  private CacheStatistics(@Nonnull String name) {
+    this.name = name;
+  }
+
+  /**
+   * Get the statistics for a cache, creating them if needed
+   *
+   * @param name The name of the cache (usually the JCS region)
+   * @return The statistics for the cache
+   */
+  @Nonnull
+  public static CacheStatistics forCache(@Nonnull String name) {
+    return STATISTICS.computeIfAbsent(name, CacheStatistics::new);
+  }
+
+  /**
+   * Get the statistics for all caches
+   *
+   * @return The statistics, sorted by cache name
+   */
+  @Nonnull
+  public static List<CacheStatistics> getAll() {
+    return new ArrayList<>(STATISTICS.values());
+  }
+
+  /**
+   * Reset the counters of all caches. The cache sizes are not affected.
+   */
+  public static void resetAll() {
+    STATISTICS.values().forEach(CacheStatistics::reset);
+  }
+
+  /**
+   * Write the statistics for all caches as CSV
+   *
+   * @param writer The writer to write to
+   * @throws IOException If the writer throws
+   */
+  public static void writeCsv(@Nonnull Writer writer) throws IOException {
+    writer.write(CSV_HEADER);
+    writer.write('\n');
+    for (CacheStatistics statistics : getAll()) {
+      writer.write(statistics.toCsv());
+      writer.write('\n');
+    }
+  }
+
+  /**
+   * Set the functions used to get the current size of the cache. Use {@code null} for unknown values.
+   *
+   * @param entries The number of entries
+   * @param bytes The number of bytes stored
+   * @param evictions The number of evictions
+   * @return This, for easy chaining
+   */
+  @Nonnull
+  public CacheStatistics setSizes(@Nullable LongSupplier entries, @Nullable LongSupplier bytes,
+    @Nullable LongSupplier evictions) {
+    this.entries = entries != null ? entries : UNKNOWN;
+    this.bytes = bytes != null ? bytes : UNKNOWN;
+    this.evictions = evictions != null ? evictions : UNKNOWN;
+    return this;
+  }
+
+  /**
+   * Record a cache hit
+   */
+  public void recordHit() {
+    this.hits.increment();
+  }
+
+  /**
+   * Record a cache miss
+   */
+  public void recordMiss() {
+    this.misses.increment();
+  }
+
+  /**
+   * Record a load (after a miss)
+   *
+   * @param nanos The time the load took, in nanoseconds
+   * @param success {@code true} if something was loaded
+   */
+  public void recordLoad(long nanos, boolean success) {
+    this.loadLatency.record(nanos);
+    if (!success) {
+      this.loadFailures.increment();
+    }
+  }
+
+  /**
+   * Load a value, and record the time it took
+   *
+   * @param loader The loader
+   * @param <T> The value type
+   * @return The loaded value
+   */
+  @Nullable
+  public <T> T load(@Nonnull Supplier<T> loader) {
+    final long start = System.nanoTime();
+    boolean success = false;
+    try {
+      final T value = loader.get();
+      success = value != null;
+      return value;
+    } finally {
+      this.recordLoad(System.nanoTime() - start, success);
+    }
+  }
+
+  /**
+   * Record that an entry was compressed before it was stored
+   *
+   * @param uncompressed The size of the entry
+   * @param compressed The size of the compressed entry
+   */
+  public void recordCompression(long uncompressed, long compressed) {
+    this.uncompressedBytes.add(uncompressed);
+    this.compressedBytes.add(compressed);
+  }
+
+  /**
+   * Record that a compressed entry was decompressed
+   *
+   * @param nanos The time the decompression took, in nanoseconds
+   */
+  public void recordDecode(long nanos) {
+    this.decodes.increment();
+    this.decodeNanos.add(Math.max(0, nanos));
+  }
+
+  /**
+   * Record that a batch of entries was merged into shared data
+   *
+   * @param waitNanos The time spent waiting for the merge lock, in nanoseconds
+   * @param mergeNanos The time the merge lock was held, in nanoseconds
+   * @param contended {@code true} if the merge lock was held by someone else
+   */
+  public void recordMerge(long waitNanos, long mergeNanos, boolean contended) {
+    this.mergeLatency.record(mergeNanos);
+    this.mergeWaitNanos.add(Math.max(0, waitNanos));
+    if (contended) {
+      this.contendedMerges.increment();
+    }
+  }
+
+  /**
+   * Reset the counters
+   */
+  public void reset() {
+    this.hits.reset();
+    this.misses.reset();
+    this.loadFailures.reset();
+    this.loadLatency.reset();
+    this.uncompressedBytes.reset();
+    this.compressedBytes.reset();
+    this.decodes.reset();
+    this.decodeNanos.reset();
+    this.mergeLatency.reset();
+    this.contendedMerges.reset();
+    this.mergeWaitNanos.reset();
+  }
+
+  /**
+   * Get the name of the cache
+   *
+   * @return The cache name
+   */
+  @Nonnull
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * Get the number of hits
+   *
+   * @return The hits
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Get the number of misses
+   *
+   * @return The misses
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Get the hit ratio
+   *
+   * @return The fraction of lookups that were hits, or {@link Double#NaN} if there were no lookups
+   */
+  public double getHitRatio() {
+    final long hitCount = this.getHits();
+    final long total = hitCount + this.getMisses();
+    return total == 0 ? Double.NaN : hitCount / (double) total;
+  }
+
+  /**
+   * Get the number of loads that didn't return anything
+   *
+   * @return The failed loads
+   */
+  public long getLoadFailures() {
+    return this.loadFailures.sum();
+  }
+
+  /**
+   * Get the load latencies
+   *
+   * @return The latency histogram
+   */
+  @Nonnull
+  public LatencyHistogram getLoadLatency() {
+    return this.loadLatency;
+  }
+
+  /**
+   * Get the number of entries in the cache
+   *
+   * @return The entries, or {@code -1} if unknown
+   */
+  public long getEntries() {
+    return this.entries.getAsLong();
+  }
+
+  /**
+   * Get the number of bytes stored in the cache
+   *
+   * @return The bytes, or {@code -1} if unknown
+   */
+  public long getBytes() {
+    return this.bytes.getAsLong();
+  }
+
+  /**
+   * Get the number of evictions
+   *
+   * @return The evictions, or {@code -1} if unknown
+   */
+  public long getEvictions() {
+    return this.evictions.getAsLong();
+  }
+
+  /**
+   * Get the compression ratio of the entries that were stored
+   *
+   * @return The uncompressed size divided by the compressed size, or {@link Double#NaN} if nothing was compressed
+   */
+  public double getCompressionRatio() {
+    final long compressed = this.compressedBytes.sum();
+    return compressed == 0 ? Double.NaN : this.uncompressedBytes.sum() / (double) compressed;
+  }
+
+  /**
+   * Get the mean time it took to decompress an entry
+   *
+   * @return The mean time in microseconds, or {@link Double#NaN} if nothing was decompressed
+   */
+  public double getDecodeMean() {
+    final long count = this.decodes.sum();
+    return count == 0 ? Double.NaN : this.decodeNanos.sum() / (double) count / TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  /**
+   * Get the merge latencies (the time the merge lock was held)
+   *
+   * @return The latency histogram
+   */
+  @Nonnull
+  public LatencyHistogram getMergeLatency() {
+    return this.mergeLatency;
+  }
+
+  /**
+   * Get the fraction of merges that had to wait for the merge lock
+   *
+   * @return The fraction of contended merges, or {@link Double#NaN} if there were no merges
+   */
+  public double getMergeContention() {
+    final long count = this.mergeLatency.getCount();
+    return count == 0 ? Double.NaN : this.contendedMerges.sum() / (double) count;
+  }
+
+  /**
+   * Get the mean time spent waiting for the merge lock
+   *
+   * @return The mean wait in milliseconds, or {@link Double#NaN} if there were no merges
+   */
+  public double getMergeWaitMean() {
+    final long count = this.mergeLatency.getCount();
+    return count == 0 ? Double.NaN : this.mergeWaitNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Nonnull
+  String toCsv() {
+    final double hitRatio = this.getHitRatio();
+    return String.join(",", this.name, Long.toString(this.getHits()), Long.toString(this.getMisses()),
+      Double.isNaN(hitRatio) ? "" : String.format(Locale.ROOT, "%.4f", hitRatio),
+      Long.toString(this.loadLatency.getCount()), Long.toString(this.getLoadFailures()),
+      unknownToEmpty(this.getEntries()), unknownToEmpty(this.getBytes()), unknownToEmpty(this.getEvictions()),
+      String.format(Locale.ROOT, "%.2f", this.loadLatency.getMean()),
+      Long.toString(this.loadLatency.getPercentile(50)), Long.toString(this.loadLatency.getPercentile(90)),
+      Long.toString(this.loadLatency.getPercentile(99)), Long.toString(this.loadLatency.getPercentile(100)),
+      nanToEmpty(this.getCompressionRatio()), nanToEmpty(this.getDecodeMean()),
+      Long.toString(this.mergeLatency.getCount()),
+      this.mergeLatency.getCount() == 0 ? "" : String.format(Locale.ROOT, "%.2f", this.mergeLatency.getMean()),
+      nanToEmpty(this.getMergeContention()), nanToEmpty(this.getMergeWaitMean()));
+  }
+
+  private static String nanToEmpty(double value) {
+    return Double.isNaN(value) ? "" : String.format(Locale.ROOT, "%.2f", value);
+  }
+
+  private static String unknownToEmpty(long value) {
+    return value < 0 ? "" : Long.toString(value);
+  }
+}
@@ -25,10 +25,12 @@ public final class CacheUtils {
   public static final byte MAPILLARY_DEFAULT_KEY_LENGTH = (byte) Stream
     .of("captured_at", "id", "sequence_id", "organization_id", "is_pano").count();
   private static final IgnoreDownload IGNORE_DOWNLOAD = new IgnoreDownload();
+  /** Image URLs that failed to download recently */
+  private static final NegativeCache FAILED_DOWNLOADS = new NegativeCache();
 
   /** Picture quality */
   public enum PICTURE {
-    /** Thumbnail quality picture (320 p) */
+    /** Thumbnail quality picture (256 p) */
     THUMBNAIL,
     /** Full quality picture (2048 p) */
     FULL_IMAGE,
@@ -62,16 +64,71 @@ public final class CacheUtils {
    *        both.)
    */
   public static void downloadPicture(INode img, PICTURE pic) {
+    downloadPicture(img, pic, ImageDownloadExecutor.Priority.NEAR_PREFETCH);
+  }
+
+  /**
+   * Downloads the picture of the given image. Does nothing when it is already
+   * in cache.
+   *
+   * @param img
+   *        The image to be downloaded.
+   * @param pic
+   *        The picture type to be downloaded (full quality, thumbnail or
+   *        both.)
+   * @param priority
+   *        The download priority
+   */
+  public static void downloadPicture(INode img, PICTURE pic, ImageDownloadExecutor.Priority priority) {
     if (img.getNumKeys() <= MAPILLARY_DEFAULT_KEY_LENGTH) {
-      MapillaryDownloader.downloadImages(MapillaryImageUtils.getKey(img));
+      MapillaryDownloader.requestImage(MapillaryImageUtils.getKey(img)).join();
       if (img.getNumKeys() <= MAPILLARY_DEFAULT_KEY_LENGTH) {
         return;
       }
-      downloadPicture(img, pic);
+      downloadPicture(img, pic, priority);
       return;
     }
-    if (new MapillaryCache(img).get() == null)
-      submit(img, IGNORE_DOWNLOAD);
+    if ((pic == PICTURE.THUMBNAIL || pic == PICTURE.BOTH)
+      && new MapillaryCache(img, MapillaryCache.Type.THUMBNAIL).get() == null) {
+      submit(img, MapillaryCache.Type.THUMBNAIL, priority, IGNORE_DOWNLOAD);
+    }
+    if ((pic == PICTURE.FULL_IMAGE || pic == PICTURE.BOTH) && new MapillaryCache(img).get() == null) {
+      submit(img, MapillaryCache.Type.FULL_IMAGE, priority, IGNORE_DOWNLOAD);
+    }
+  }
+
+  /**
+   * Downloads and decodes the picture of the given image in the background, so that it can be shown without waiting
+   * when the user selects it.
+   *
+   * @param img The image to be downloaded and decoded
+   * @return The download job, or {@code null} if nothing had to be downloaded
+   */
+  public static MapillaryCache downloadAndDecodePicture(INode img) {
+    final MapillaryCache cache = new MapillaryCache(img).setPriority(ImageDownloadExecutor.Priority.NEAR_PREFETCH);
+    if (cache.get() != null) {
+      decodePicture(cache);
+    } else if (cache.getUrl() != null) {
+      try {
+        cache.submit((data, attributes, result) -> {
+          if (result == ICachedLoaderListener.LoadResult.SUCCESS) {
+            decodePicture(cache);
+          }
+        }, false);
+        return cache;
+      } catch (IOException e) {
+        Logging.error(e);
+      }
+    }
+    return null;
+  }
+
+  private static void decodePicture(MapillaryCache cache) {
+    try {
+      cache.getImage();
+    } catch (IOException e) {
+      Logging.error(e);
+    }
   }
 
   /**
@@ -86,10 +143,52 @@ public final class CacheUtils {
    *        The listener that is going to receive the picture.
    */
   public static void submit(INode image, ICachedLoaderListener lis) {
+    submit(image, MapillaryCache.Type.FULL_IMAGE, ImageDownloadExecutor.Priority.VISIBLE, lis);
+  }
+
+  /**
+   * Requests the picture with the given key and quality and uses the given
+   * listener.
+   *
+   * @param image
+   *        The picture to be requested.
+   * @param type
+   *        The quality of the picture to be requested.
+   * @param lis
+   *        The listener that is going to receive the picture.
+   */
+  public static void submit(INode image, MapillaryCache.Type type, ICachedLoaderListener lis) {
+    submit(image, type, ImageDownloadExecutor.Priority.VISIBLE, lis);
+  }
+
+  /**
+   * Requests the picture with the given key and quality and uses the given
+   * listener.
+   *
+   * @param image
+   *        The picture to be requested.
+   * @param type
+   *        The quality of the picture to be requested.
+   * @param priority
+   *        The download priority
+   * @param lis
+   *        The listener that is going to receive the picture.
+   * @return The download job, or {@code null} if the picture won't be downloaded
+   */
+  public static MapillaryCache submit(INode image, MapillaryCache.Type type, ImageDownloadExecutor.Priority priority,
+    ICachedLoaderListener lis) {
     try {
-      final MapillaryCache cache = new MapillaryCache(image);
-      if (cache.getUrl() != null) {
-        cache.submit(lis != null ? lis : IGNORE_DOWNLOAD, false);
+      final MapillaryCache cache = new MapillaryCache(image, type).setPriority(priority);
+      final String url = cache.getUrl() != null ? cache.getUrl().toExternalForm() : null;
+      if (url != null && FAILED_DOWNLOADS.get(url) != null) {
+        Logging.debug("Mapillary: Not downloading {0}, since it failed recently", url);
+      } else if (url != null) {
+        final ICachedLoaderListener listener = lis != null ? lis : IGNORE_DOWNLOAD;
+        cache.submit((data, attributes, result) -> {
+          rememberFailure(url, attributes, result);
+          listener.loadingFinished(data, attributes, result);
+        }, false);
+        return cache;
       } else {
         Logging.error("Mapillary: {0} has no url. Maybe API limits have been reached?",
           MapillaryImageUtils.getKey(image));
@@ -97,6 +196,29 @@ public final class CacheUtils {
     } catch (IOException e) {
       Logging.error(e);
     }
+    return null;
+  }
+
+  /**
+   * Get the image downloads that failed recently
+   *
+   * @return The negative cache for image downloads
+   */
+  public static NegativeCache getFailedDownloads() {
+    return FAILED_DOWNLOADS;
+  }
+
+  private static void rememberFailure(String url, CacheEntryAttributes attributes,
+    ICachedLoaderListener.LoadResult result) {
+    if (result == ICachedLoaderListener.LoadResult.SUCCESS) {
+      FAILED_DOWNLOADS.remove(url);
+    } else if (result == ICachedLoaderListener.LoadResult.FAILURE && attributes != null) {
+      // Timeouts and connection problems have no response, JOSM reports them as HTTP 599 (a TIMEOUT failure)
+      final NegativeCache.Failure failure = NegativeCache.Failure.forResponseCode(attributes.getResponseCode());
+      if (failure != null) {
+        FAILED_DOWNLOADS.put(url, failure);
+      }
+    }
   }
 
   static class IgnoreDownload implements ICachedLoaderListener {
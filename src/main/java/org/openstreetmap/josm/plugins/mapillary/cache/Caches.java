@@ -5,22 +5,31 @@ import static org.openstreetmap.josm.tools.I18n.marktr;
 import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.json.Json;
-import javax.json.JsonObject;
+import javax.json.JsonException;
 import javax.json.JsonReader;
 import javax.json.JsonValue;
 import javax.swing.ImageIcon;
@@ -34,7 +43,9 @@ import org.openstreetmap.josm.data.cache.BufferedImageCacheEntry;
 import org.openstreetmap.josm.data.cache.JCSCacheManager;
 import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mapillary.io.download.RateLimitGovernor;
 import org.openstreetmap.josm.plugins.mapillary.model.UserProfile;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Logging;
 
@@ -65,31 +76,132 @@ public final class Caches {
   public static final MapillaryCacheAccess<BufferedImage> metaImages = new MapillaryCacheAccess<>(
     JCSCacheManager.getCache("mapillary:metaImages", 5, 1000, getCacheDirectory().getPath()));
 
+  /** The JCS region for metadata records (also the name of the metadata cache statistics) */
+  private static final String METADATA_CACHE_NAME = "mapillary:metadata:binary";
+  /** The number of metadata records to keep */
+  private static final int MAX_METADATA_RECORDS = 100_000;
+  /** The time to keep metadata records for */
+  private static final long METADATA_MAX_LIFE_DAYS = 90;
+
   /** The cache for metadata objects */
-  public static final MapillaryCacheAccess<String> metaDataCache = new MapillaryCacheAccess<>(
-    JCSCacheManager.getCache("mapillary:metadata", 100, 100000, getCacheDirectory().getPath()), string -> {
-      try (JsonReader reader = Json.createReader(new ByteArrayInputStream(string.getBytes(StandardCharsets.UTF_8)))) {
-        JsonObject object = reader.readObject();
-        if (object.containsKey("error") || object.containsKey("call_volume") || object.containsKey("call_count")) {
-          Logging.error(object.toString());
-          return false;
-        }
-        return true;
+  public static final MetadataCacheAccess metaDataCache = new MetadataCacheAccess(
+    JCSCacheManager.getCache(METADATA_CACHE_NAME, 100, MAX_METADATA_RECORDS, getCacheDirectory().getPath()),
+    openMetadataStore(), record -> {
+      // Only the top level keys are needed, so don't convert the whole record to JSON
+      final List<String> keys = record.getKeys();
+      if (!record.isCurrentVersion() || keys.contains("error") || keys.contains("call_volume")
+        || keys.contains("call_count")) {
+        Logging.error(String.valueOf(record.toJson()));
+        return false;
       }
+      return true;
     });
 
+  /** The ordered image ids of sequences. The disk tier (~10 MB) holds about a million image ids. */
+  public static final SequenceIndex SEQUENCE_INDEX = new SequenceIndex(
+    JCSCacheManager.getCache("mapillary:sequences:index", 100, 10_000, getCacheDirectory().getPath()));
+
   private static final int MAX_DISK_IMAGES_SIZE = 100_000; // kb, ~500 full size images (average ~200 kb/image)
+  /** The JCS memory tier is count based, so keep it small. {@link #FULL_IMAGE_MEMORY_CACHE} is the real memory tier. */
   private static final byte MAX_MEMORY_OBJECTS = 4;
 
   /** The cache for full size images */
   public static final MapillaryCacheAccess<BufferedImageCacheEntry> FULL_IMAGE_CACHE = new MapillaryCacheAccess<>(
     JCSCacheManager.getCache("mapillary:image:fullImage", MAX_MEMORY_OBJECTS, MAX_DISK_IMAGES_SIZE,
       getCacheDirectory().getPath()));
+
+  /**
+   * The in-memory tier for {@link #FULL_IMAGE_CACHE}. This is sized by the encoded and decoded size of the images, as
+   * a fraction of the maximum heap.
+   */
+  public static final WeightedLruCache<String, BufferedImageCacheEntry> FULL_IMAGE_MEMORY_CACHE =
+    new WeightedLruCache<>("mapillary:image:fullImage:memory", Caches::getImageWeight,
+      () -> (long) (Runtime.getRuntime().maxMemory() * MapillaryProperties.IMAGE_MEMORY_CACHE_HEAP_FRACTION.get()));
+
+  /**
+   * The decoded images, keyed by the image cache key (image id and resolution). This is a third of the size of
+   * {@link #FULL_IMAGE_MEMORY_CACHE}, so it only holds the images around the current image.
+   */
+  public static final WeightedLruCache<String, BufferedImage> DECODED_IMAGE_CACHE = new WeightedLruCache<>(
+    "mapillary:image:decoded", Caches::getDecodedImageWeight, () -> FULL_IMAGE_MEMORY_CACHE.getMaxWeight() / 3);
   static {
     final IElementAttributes userProfileCacheAttributes = userProfileCache.getDefaultElementAttributes();
     userProfileCacheAttributes.setMaxLife(604_800_000);
     userProfileCache.setDefaultElementAttributes(userProfileCacheAttributes);
-    metaDataCache.setDefaultElementAttributes(userProfileCacheAttributes);
+    // Metadata freshness depends upon the endpoint (see MetadataCacheAccess.Endpoint). Stale metadata is still used
+    // while it is revalidated, so it is kept much longer. JCS max life is in seconds.
+    final IElementAttributes metaDataCacheAttributes = metaDataCache.getDefaultElementAttributes();
+    metaDataCacheAttributes.setMaxLife(TimeUnit.DAYS.toSeconds(METADATA_MAX_LIFE_DAYS));
+    metaDataCache.setDefaultElementAttributes(metaDataCacheAttributes);
+  }
+
+  /**
+   * Open the on-disk store for metadata records. It is closed when JOSM exits.
+   *
+   * @return The store, or {@code null} if it could not be opened (the JCS region is used instead)
+   */
+  @Nullable
+  private static MetadataStore openMetadataStore() {
+    final MetadataStore store = MetadataStore.open(new File(getCacheDirectory(), "metadata"), MAX_METADATA_RECORDS,
+      TimeUnit.DAYS.toMillis(METADATA_MAX_LIFE_DAYS), CacheStatistics.forCache(METADATA_CACHE_NAME));
+    if (store != null) {
+      Runtime.getRuntime().addShutdownHook(new Thread(store::close, "Mapillary-metadata-store"));
+    }
+    return store;
+  }
+
+  /**
+   * Get the size of the on-disk image cache. Older images are evicted when it is full.
+   *
+   * @return The maximum size of {@link #FULL_IMAGE_CACHE} on disk, in bytes
+   */
+  public static long getImageDiskCacheSize() {
+    return MAX_DISK_IMAGES_SIZE * 1024L;
+  }
+
+  /**
+   * Get the weight of an image in memory. This is the size of the encoded image plus the size of the decoded image,
+   * since {@link BufferedImageCacheEntry} keeps the decoded image once it has been decoded.
+   *
+   * @param entry The image entry
+   * @return The (approximate) number of bytes the entry will use
+   */
+  static long getImageWeight(@Nonnull BufferedImageCacheEntry entry) {
+    final byte[] content = entry.getContent();
+    if (content == null || content.length == 0) {
+      return 0;
+    }
+    // Read the dimensions from the image header, which doesn't decode the image
+    try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+      final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+      if (readers.hasNext()) {
+        final ImageReader reader = readers.next();
+        try {
+          reader.setInput(stream, true, true);
+          // Decoded JPEGs are 3 or 4 bytes/pixel, depending upon the image type. Assume the worst.
+          return content.length + 4L * reader.getWidth(0) * reader.getHeight(0);
+        } finally {
+          reader.dispose();
+        }
+      }
+    } catch (IOException e) {
+      Logging.trace(e);
+    }
+    // Assume the largest image we download
+    final int width = MapillaryCache.Type.FULL_IMAGE.getWidth();
+    return content.length + 4L * width * width;
+  }
+
+  /**
+   * Get the weight of a decoded image in memory
+   *
+   * @param image The decoded image
+   * @return The number of bytes used by the image data
+   */
+  static long getDecodedImageWeight(@Nonnull BufferedImage image) {
+    final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+    return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+      * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / Byte.SIZE;
   }
 
   /**
@@ -106,8 +218,10 @@ public final class Caches {
     private final List<Predicate<V>> validators;
     @Nullable
     private Supplier<V> defaultSupplier;
-
-    private boolean rateLimited;
+    /** The URLs currently being loaded, so that concurrent callers for the same URL share a single load */
+    private final ConcurrentHashMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    @Nonnull
+    private final CacheStatistics statistics;
 
     public MapillaryCacheAccess(CacheAccess<String, V> cacheAccess, Predicate<V>... validators) {
       this.cacheAccess = cacheAccess;
@@ -116,6 +230,8 @@ public final class Caches {
       } else {
         this.validators = Collections.emptyList();
       }
+      this.statistics = CacheStatistics.forCache(cacheAccess.getCacheControl().getCacheName())
+        .setSizes(() -> cacheAccess.getCacheControl().getSize(), null, null);
     }
 
     /**
@@ -176,6 +292,7 @@ public final class Caches {
 
     /**
      * Given a URL, get and cache the response if not already present.
+     * Concurrent calls for the same URL share a single load, while different URLs load in parallel.
      *
      * @param url The URL to get
      * @param supplier The method to get the response
@@ -183,68 +300,229 @@ public final class Caches {
      */
     @Nullable
     public V get(@Nonnull String url, @Nonnull Supplier<V> supplier) {
-      if (this.cacheAccess.get(url) != null) {
-        return this.cacheAccess.get(url);
+      final V cached = this.getCached(url);
+      if (cached != null) {
+        this.statistics.recordHit();
+        return cached;
       }
-      if (rateLimited) {
+      this.statistics.recordMiss();
+      if (RateLimitGovernor.getInstance().isBackingOff()) {
         return null;
       }
-      final V returnObject;
-      synchronized (this) {
-        returnObject = this.cacheAccess.get(url) == null ? supplier.get() : this.cacheAccess.get(url);
-        if (returnObject != null && this.validators.stream().allMatch(p -> p.test(returnObject))) {
-          this.cacheAccess.put(url, returnObject);
-        } else if (returnObject != null) {
-          final String message;
-          if (returnObject instanceof String) {
-            try (JsonReader reader = Json
-              .createReader(new ByteArrayInputStream(((String) returnObject).getBytes(StandardCharsets.UTF_8)))) {
-              final JsonValue jsonValue = reader.readValue();
-              if (jsonValue.getValueType() == JsonValue.ValueType.OBJECT
-                && jsonValue.asJsonObject().containsKey("error")
-                && jsonValue.asJsonObject().get("error").getValueType() == JsonValue.ValueType.OBJECT
-                && jsonValue.asJsonObject().getJsonObject("error").containsKey("message")) {
-                if ("Application request limit reached"
-                  .equals(jsonValue.asJsonObject().getJsonObject("error").getString("message"))) {
-                  this.rateLimited = true;
-                  message = marktr(
-                    "We have reached the Mapillary API limit. Disabling Mapillary networking until JOSM restart. Sorry.\n"
-                      + "Logging in after the rate limit subsides may help prevent this in the future.\n{0}");
-                } else {
-                  message = UNKNOWN_MAPILLARY_EXCEPTION;
-                }
-              } else {
-                message = UNKNOWN_MAPILLARY_EXCEPTION;
-              }
-            }
-          } else {
-            message = UNKNOWN_MAPILLARY_EXCEPTION;
-          }
+      final CompletableFuture<V> future = new CompletableFuture<>();
+      final CompletableFuture<V> inFlightFuture = this.inFlight.putIfAbsent(url, future);
+      if (inFlightFuture != null) {
+        return join(inFlightFuture);
+      }
+      return this.load(url, supplier, future);
+    }
+
+    /**
+     * Load a URL without caching the response, for responses that the caller caches under a different key.
+     * Concurrent calls for the same URL share a single load, like {@link #get(String, Supplier)}.
+     *
+     * @param url The URL to load
+     * @param supplier The method to get the response
+     * @return The type the supplier returns
+     */
+    @Nullable
+    protected V loadShared(@Nonnull String url, @Nonnull Supplier<V> supplier) {
+      final CompletableFuture<V> future = new CompletableFuture<>();
+      final CompletableFuture<V> inFlightFuture = this.inFlight.putIfAbsent(url, future);
+      if (inFlightFuture != null) {
+        return join(inFlightFuture);
+      }
+      try {
+        final V returnObject = this.statistics.load(supplier);
+        future.complete(returnObject);
+        return returnObject;
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+        throw e;
+      } finally {
+        this.inFlight.remove(url, future);
+      }
+    }
+
+    @Nullable
+    private static <V> V join(@Nonnull CompletableFuture<V> future) {
+      try {
+        return future.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Given a URL, get and cache the response if not already present in a non-blocking manner
+     *
+     * @param url The url to get
+     * @param pool The ForkJoinPool to use
+     * @param supplier The supplier to get the object with
+     * @return A future with the object, when it completes. If the URL is already being loaded, the future for that
+     *         load is returned.
+     */
+    public Future<V> get(@Nonnull String url, @Nonnull ForkJoinPool pool, @Nonnull Supplier<V> supplier) {
+      final V cached = this.getCached(url);
+      if (cached != null) {
+        this.statistics.recordHit();
+        return CompletableFuture.completedFuture(cached);
+      }
+      this.statistics.recordMiss();
+      if (RateLimitGovernor.getInstance().isBackingOff()) {
+        return CompletableFuture.completedFuture(null);
+      }
+      final CompletableFuture<V> future = new CompletableFuture<>();
+      final CompletableFuture<V> inFlightFuture = this.inFlight.putIfAbsent(url, future);
+      if (inFlightFuture != null) {
+        return inFlightFuture;
+      }
+      pool.execute(() -> this.load(url, supplier, future));
+      return future;
+    }
+
+    /**
+     * Load a URL that this thread has claimed in the in-flight table, and complete the shared future.
+     *
+     * @param url The URL to load
+     * @param supplier The supplier to get the object with
+     * @param future The future registered for the URL in {@link #inFlight}
+     * @return The loaded object
+     */
+    @Nullable
+    private V load(@Nonnull String url, @Nonnull Supplier<V> supplier, @Nonnull CompletableFuture<V> future) {
+      try {
+        // Another thread may have finished loading between our cache check and claiming the URL
+        final V cached = this.getCached(url);
+        final V returnObject = cached == null ? this.statistics.load(supplier) : cached;
+        if (cached == null) {
+          this.cacheOrNotify(url, returnObject);
+        }
+        future.complete(returnObject);
+        return returnObject;
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+        throw e;
+      } finally {
+        this.inFlight.remove(url, future);
+      }
+    }
+
+    /**
+     * Check if an object passes all of the validators, and may be cached
+     *
+     * @param object The object to check
+     * @return {@code true} if the object is valid
+     */
+    boolean isValid(@Nonnull V object) {
+      return this.validators.stream().allMatch(p -> p.test(object));
+    }
+
+    /**
+     * Cache a freshly loaded object if it is valid, or notify the user about the error if it is not
+     *
+     * @param url The URL the object was loaded from
+     * @param returnObject The loaded object
+     */
+    private void cacheOrNotify(@Nonnull String url, @Nullable V returnObject) {
+      if (returnObject != null && this.isValid(returnObject)) {
+        this.putCached(url, returnObject);
+      } else if (returnObject != null) {
+        final String message;
+        final JsonValue jsonValue = toJson(returnObject);
+        if (jsonValue != null && jsonValue.getValueType() == JsonValue.ValueType.OBJECT
+          && jsonValue.asJsonObject().containsKey("error")
+          && jsonValue.asJsonObject().get("error").getValueType() == JsonValue.ValueType.OBJECT
+          && jsonValue.asJsonObject().getJsonObject("error").containsKey("message")
+          && "Application request limit reached"
+            .equals(jsonValue.asJsonObject().getJsonObject("error").getString("message"))) {
+          // The governor tells the user about this, and resumes networking after backing off
+          RateLimitGovernor.getInstance().reportRateLimited(0);
+          message = null;
+        } else {
+          message = UNKNOWN_MAPILLARY_EXCEPTION;
+        }
+        if (message != null) {
+          final Object shownObject = jsonValue != null ? jsonValue : returnObject;
           GuiHelper.runInEDT(() -> {
             Notification notification = new Notification();
-            notification.setContent(tr(message, returnObject));
+            notification.setContent(tr(message, shownObject));
             notification.setDuration(Notification.TIME_LONG);
             notification.setIcon(JOptionPane.ERROR_MESSAGE);
             notification.show();
           });
         }
       }
-      return returnObject;
     }
 
     /**
-     * Given a URL, get and cache the response if not already present in a non-blocking manner
+     * Get the JSON for a cached object, if it has a JSON representation
      *
-     * @param url The url to get
-     * @param pool The ForkJoinPool to use
-     * @param supplier The supplier to get the object with
-     * @return A future with the object, when it completes.
+     * @param object The object
+     * @return The JSON, or {@code null} if the object isn't JSON
      */
-    public Future<V> get(@Nonnull String url, @Nonnull ForkJoinPool pool, @Nonnull Supplier<V> supplier) {
-      if (this.cacheAccess.get(url) != null) {
-        return CompletableFuture.completedFuture(this.cacheAccess.get(url));
+    @Nullable
+    private static JsonValue toJson(@Nonnull Object object) {
+      if (object instanceof MetadataRecord) {
+        return ((MetadataRecord) object).toJson();
+      } else if (object instanceof String) {
+        try (JsonReader reader = Json.createReader(new StringReader((String) object))) {
+          return reader.readValue();
+        } catch (JsonException e) {
+          Logging.trace(e);
+        }
       }
-      return pool.submit(() -> get(url, supplier));
+      return null;
+    }
+
+    /**
+     * Get a cached object
+     *
+     * @param key The cache key
+     * @return The cached object, or {@code null} if it isn't cached
+     */
+    @Nullable
+    protected V getCached(@Nonnull String key) {
+      return this.cacheAccess.get(key);
+    }
+
+    /**
+     * Cache an object
+     *
+     * @param key The cache key
+     * @param object The object to cache
+     */
+    protected void putCached(@Nonnull String key, @Nonnull V object) {
+      this.cacheAccess.put(key, object);
+    }
+
+    /**
+     * Remove a cached object
+     *
+     * @param key The cache key
+     */
+    protected void removeCached(@Nonnull String key) {
+      this.cacheAccess.remove(key);
+    }
+
+    /**
+     * Remove all cached objects
+     */
+    public void clear() {
+      this.cacheAccess.clear();
+    }
+
+    /**
+     * Get the statistics for this cache
+     *
+     * @return The hit/miss counters and load latencies
+     */
+    @Nonnull
+    public CacheStatistics getStatistics() {
+      return this.statistics;
     }
 
     /**
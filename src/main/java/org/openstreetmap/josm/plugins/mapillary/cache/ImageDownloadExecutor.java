@@ -0,0 +1,330 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * An executor for image downloads that runs queued jobs by priority instead of in submission order.
+ * <p>
+ * Each priority class may only use part of the threads, so that (for example) an export can't keep the image that the
+ * user is looking at from downloading. Together, the classes below {@link Priority#VISIBLE} may use all but one of the
+ * threads, so there is always a thread for the visible image (unless there is only one thread). Queued jobs of a
+ * higher class always run before queued jobs of a lower class. Running downloads are never interrupted.
+ * <p>
+ * Jobs that can't run yet (e.g. while we are rate limited) are put back with {@link #requeue(Runnable, long)}
+ * instead of waiting on a download thread.
+ * <p>
+ * Jobs that are not {@link MapillaryCache}s are run with {@link Priority#VISIBLE}.
+ */
+public final class ImageDownloadExecutor extends ThreadPoolExecutor {
+  /** The priority classes, highest first */
+  public enum Priority {
+    /** The image the user is looking at */
+    VISIBLE(1),
+    /** Images the user will probably look at next */
+    NEAR_PREFETCH(0.75),
+    /** Images the user might look at */
+    FAR_PREFETCH(0.5),
+    /** Bulk downloads, like exports */
+    BULK(0.5);
+
+    private final double threadShare;
+
+    Priority(double threadShare) {
+      this.threadShare = threadShare;
+    }
+
+    /**
+     * Get the maximum number of jobs of this class that may run at the same time
+     *
+     * @param threads The number of threads in the executor
+     * @return The number of threads this class may use (at least one)
+     */
+    int getThreadLimit(int threads) {
+      return Math.max(1, (int) Math.floor(threads * this.threadShare));
+    }
+  }
+
+  private final int threads;
+  private final Map<Priority, ArrayDeque<Runnable>> pending = new EnumMap<>(Priority.class);
+  private final Map<Priority, Integer> running = new EnumMap<>(Priority.class);
+  private int totalRunning;
+  /** The number of running jobs below {@link Priority#VISIBLE}. Guarded by {@code this}. */
+  private int backgroundRunning;
+  /** Jobs waiting to be put back in the queue. Guarded by {@code this}. */
+  private final Map<Runnable, ScheduledFuture<?>> delayed = new HashMap<>();
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  /**
+   * Create a new executor
+   *
+   * @param nameFormat The format for thread names, see {@link Utils#newThreadFactory(String, int)}
+   * @param threads The number of download threads
+   */
+  public ImageDownloadExecutor(@Nonnull String nameFormat, int threads) {
+    super(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+      Utils.newThreadFactory(nameFormat, Thread.NORM_PRIORITY));
+    this.allowCoreThreadTimeOut(true);
+    this.threads = threads;
+    for (Priority priority : Priority.values()) {
+      this.pending.put(priority, new ArrayDeque<>());
+      this.running.put(priority, 0);
+    }
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+      Utils.newThreadFactory(nameFormat.replace("%d", "requeue-%d"), Thread.NORM_PRIORITY));
+    this.scheduler.setKeepAliveTime(1, TimeUnit.SECONDS);
+    this.scheduler.allowCoreThreadTimeOut(true);
+    this.scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    this.execute(command,
+      command instanceof MapillaryCache ? ((MapillaryCache) command).getPriority() : Priority.VISIBLE);
+  }
+
+  /**
+   * Queue a job with a priority
+   *
+   * @param command The job to run
+   * @param priority The priority of the job
+   */
+  void execute(@Nonnull Runnable command, @Nonnull Priority priority) {
+    Objects.requireNonNull(command);
+    synchronized (this) {
+      this.pending.get(priority).add(command);
+    }
+    this.dispatch();
+  }
+
+  /**
+   * Put a job back in the queue after a delay. The job does not hold a download thread while it waits, and it can
+   * still be removed or promoted.
+   *
+   * @param command The job to run later
+   * @param delayNanos The time to wait, in nanoseconds
+   */
+  public void requeue(@Nonnull Runnable command, long delayNanos) {
+    Objects.requireNonNull(command);
+    synchronized (this) {
+      if (this.isShutdown()) {
+        return;
+      }
+      this.delayed.put(command, this.scheduler.schedule(() -> {
+        synchronized (this) {
+          if (this.delayed.remove(command) == null) {
+            // Removed while waiting
+            return;
+          }
+        }
+        this.execute(command);
+      }, Math.max(0, delayNanos), TimeUnit.NANOSECONDS));
+    }
+  }
+
+  /**
+   * Move a queued download for the same image to a higher priority class. This is needed since only one job per URL
+   * is queued; later jobs for the same URL just wait for the queued job.
+   *
+   * @param job The job that was just submitted
+   */
+  void promote(@Nonnull MapillaryCache job) {
+    if (job.getCacheKey() == null) {
+      return;
+    }
+    synchronized (this) {
+      for (Runnable waiting : this.delayed.keySet()) {
+        if (waiting instanceof MapillaryCache && job.getCacheKey().equals(((MapillaryCache) waiting).getCacheKey())
+          && ((MapillaryCache) waiting).getPriority().compareTo(job.getPriority()) > 0) {
+          // It goes back in the queue with the new priority
+          ((MapillaryCache) waiting).setPriority(job.getPriority());
+          return;
+        }
+      }
+      for (Priority priority : Priority.values()) {
+        if (priority.compareTo(job.getPriority()) <= 0) {
+          continue;
+        }
+        final Iterator<Runnable> iterator = this.pending.get(priority).iterator();
+        while (iterator.hasNext()) {
+          final Runnable queued = iterator.next();
+          if (queued instanceof MapillaryCache && job.getCacheKey().equals(((MapillaryCache) queued).getCacheKey())) {
+            iterator.remove();
+            ((MapillaryCache) queued).setPriority(job.getPriority());
+            this.pending.get(job.getPriority()).add(queued);
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Move a queued job to another priority class, e.g. when the jobs that wanted it sooner were cancelled. Jobs that
+   * are already running are left alone.
+   *
+   * @param job The queued job
+   * @param priority The new priority
+   */
+  void reprioritize(@Nonnull MapillaryCache job, @Nonnull Priority priority) {
+    synchronized (this) {
+      if (this.delayed.containsKey(job)) {
+        // It goes back in the queue with the new priority
+        job.setPriority(priority);
+        return;
+      }
+      if (job.getPriority() == priority || !this.pending.get(job.getPriority()).remove(job)) {
+        return;
+      }
+      job.setPriority(priority);
+      this.pending.get(priority).add(job);
+    }
+    // The new class may have a free thread
+    this.dispatch();
+  }
+
+  /**
+   * Get the jobs that are waiting to run. This is a copy; use {@link #remove(Runnable)} to remove jobs.
+   * {@link org.openstreetmap.josm.data.cache.JCSCachedTileLoaderJob#cancelOutstandingTasks()} depends on this.
+   *
+   * @return The queued jobs, highest priority first, followed by the jobs waiting to be put back in the queue
+   */
+  @Override
+  public synchronized BlockingQueue<Runnable> getQueue() {
+    final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    this.pending.values().forEach(queue::addAll);
+    queue.addAll(this.delayed.keySet());
+    return queue;
+  }
+
+  @Override
+  public boolean remove(Runnable task) {
+    synchronized (this) {
+      final ScheduledFuture<?> waiting = this.delayed.remove(task);
+      if (waiting != null) {
+        waiting.cancel(false);
+        return true;
+      }
+      for (ArrayDeque<Runnable> queue : this.pending.values()) {
+        if (queue.remove(task)) {
+          return true;
+        }
+      }
+    }
+    return super.remove(task);
+  }
+
+  /**
+   * Get the number of queued jobs in a priority class
+   *
+   * @param priority The priority class
+   * @return The number of jobs waiting to run
+   */
+  public synchronized int getQueuedCount(@Nonnull Priority priority) {
+    return this.pending.get(priority).size();
+  }
+
+  /**
+   * Get the number of jobs waiting to be put back in the queue
+   *
+   * @return The number of requeued jobs
+   */
+  public synchronized int getRequeuedCount() {
+    return this.delayed.size();
+  }
+
+  /**
+   * Get the number of running jobs in a priority class
+   *
+   * @param priority The priority class
+   * @return The number of running jobs
+   */
+  public synchronized int getRunningCount(@Nonnull Priority priority) {
+    return this.running.get(priority);
+  }
+
+  /**
+   * Get the number of running jobs below {@link Priority#VISIBLE}
+   *
+   * @return The number of running background jobs
+   */
+  public synchronized int getBackgroundRunningCount() {
+    return this.backgroundRunning;
+  }
+
+  /**
+   * Start as many queued jobs as the thread limits allow, highest priority first
+   */
+  private void dispatch() {
+    final List<Runnable> toRun = new ArrayList<>();
+    synchronized (this) {
+      while (!this.isShutdown() && this.totalRunning < this.threads) {
+        final Priority next = this.getNextPriority();
+        if (next == null) {
+          break;
+        }
+        final Runnable job = this.pending.get(next).poll();
+        this.running.merge(next, 1, Integer::sum);
+        this.totalRunning++;
+        if (next != Priority.VISIBLE) {
+          this.backgroundRunning++;
+        }
+        toRun.add(() -> {
+          try {
+            job.run();
+          } finally {
+            this.finished(next);
+          }
+        });
+      }
+    }
+    toRun.forEach(super::execute);
+  }
+
+  @Override
+  protected void terminated() {
+    this.scheduler.shutdownNow();
+    super.terminated();
+  }
+
+  private Priority getNextPriority() {
+    // The limits of the lower classes add up to more than the threads, so they also share a limit
+    final boolean backgroundFull = this.backgroundRunning >= Math.max(1, this.threads - 1);
+    for (Priority priority : Priority.values()) {
+      if (!this.pending.get(priority).isEmpty()
+        && this.running.get(priority) < priority.getThreadLimit(this.threads)
+        && (priority == Priority.VISIBLE || !backgroundFull)) {
+        return priority;
+      }
+    }
+    return null;
+  }
+
+  private void finished(@Nonnull Priority priority) {
+    synchronized (this) {
+      this.running.merge(priority, -1, Integer::sum);
+      this.totalRunning--;
+      if (priority != Priority.VISIBLE) {
+        this.backgroundRunning--;
+      }
+    }
+    this.dispatch();
+  }
+}
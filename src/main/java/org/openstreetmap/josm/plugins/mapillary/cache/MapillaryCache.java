@@ -1,29 +1,32 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.mapillary.cache;
 
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
 
 import org.openstreetmap.josm.data.cache.BufferedImageCacheEntry;
+import org.openstreetmap.josm.data.cache.ICachedLoaderListener;
 import org.openstreetmap.josm.data.cache.JCSCachedTileLoaderJob;
-import org.openstreetmap.josm.data.imagery.TMSCachedTileLoader;
 import org.openstreetmap.josm.data.imagery.TileJobOptions;
 import org.openstreetmap.josm.data.osm.INode;
 import org.openstreetmap.josm.data.vector.VectorNode;
 import org.openstreetmap.josm.plugins.mapillary.io.download.MapillaryDownloader;
+import org.openstreetmap.josm.plugins.mapillary.io.download.RateLimitGovernor;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
-import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils;
-import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryUtils;
 import org.openstreetmap.josm.tools.JosmRuntimeException;
 import org.openstreetmap.josm.tools.Logging;
 
@@ -36,9 +39,28 @@ public class MapillaryCache extends JCSCachedTileLoaderJob<String, BufferedImage
 
   private final URL url;
   private final String key;
+  private final Type type;
+  private volatile ImageDownloadExecutor.Priority priority = ImageDownloadExecutor.Priority.VISIBLE;
+
+  private static final ImageDownloadExecutor DEFAULT_JOB_EXECUTOR = new ImageDownloadExecutor(
+    "Mapillary-image-downloader-%d", THREAD_LIMIT.get());
+  /** The jobs submitted for each URL that is being downloaded. Guarded by itself. */
+  private static final Map<String, Submissions> SUBMISSIONS = new HashMap<>();
+
+  /**
+   * The jobs that were submitted for a URL. Only the first job is queued, the others just add their listener to it
+   * (see {@link JCSCachedTileLoaderJob#submit(ICachedLoaderListener, boolean)}), so the queued job must not be
+   * cancelled while another job still wants the download.
+   */
+  private static final class Submissions {
+    final MapillaryCache queued;
+    /** The jobs that want the download, with the priority they were submitted with */
+    final Map<MapillaryCache, ImageDownloadExecutor.Priority> jobs = new IdentityHashMap<>();
 
-  private static final ThreadPoolExecutor DEFAULT_JOB_EXECUTOR = TMSCachedTileLoader
-    .getNewThreadPoolExecutor("Mapillary-image-downloader-%d", THREAD_LIMIT.get(), THREAD_LIMIT.get());
+    Submissions(MapillaryCache queued) {
+      this.queued = queued;
+    }
+  }
 
   /**
    * Types of images.
@@ -48,6 +70,8 @@ public class MapillaryCache extends JCSCachedTileLoaderJob<String, BufferedImage
   public enum Type {
     /** Full quality image */
     FULL_IMAGE(MapillaryImageUtils.ImageProperties.BEST_IMAGE),
+    /** Medium quality image */
+    MEDIUM(MapillaryImageUtils.ImageProperties.THUMB_1024_URL),
     /** Low quality image */
     THUMBNAIL(MapillaryImageUtils.ImageProperties.WORST_IMAGE);
 
@@ -94,75 +118,20 @@ public class MapillaryCache extends JCSCachedTileLoaderJob<String, BufferedImage
    * Cache images. The caching function is run in a separate thread.
    *
    * @param currentImage The image to cache around
+   * @see PrefetchController#prefetch(INode)
    */
   public static void cacheSurroundingImages(INode currentImage) {
-    MapillaryUtils.getForkJoinPool(MapillaryCache.class).execute(() -> runnableCacheSurroundingImages(currentImage));
-  }
-
-  private static void runnableCacheSurroundingImages(INode currentImage) {
-    final ForkJoinPool pool = MapillaryUtils.getForkJoinPool(MapillaryCache.class);
-    final int prefetchCount = MapillaryProperties.PRE_FETCH_IMAGE_COUNT.get();
-    final long freeMemory = Runtime.getRuntime().freeMemory();
-    final Caches.MapillaryCacheAccess<BufferedImageCacheEntry> imageCache = Caches.FULL_IMAGE_CACHE;
-    // 3 bytes for RGB (jpg doesn't support the Alpha channel). I'm using 4 bytes instead of 3 for a buffer.
-    long estimatedImageSize = Stream.of(MapillaryCache.Type.values())
-      .mapToLong(v -> (long) v.getHeight() * v.getWidth() * 4).sum();
-
-    INode nextImage = MapillarySequenceUtils.getNextOrPrevious(currentImage,
-      MapillarySequenceUtils.NextOrPrevious.NEXT);
-    INode prevImage = MapillarySequenceUtils.getNextOrPrevious(currentImage,
-      MapillarySequenceUtils.NextOrPrevious.PREVIOUS);
-    for (int i = 0; i < prefetchCount; i++) {
-      if (freeMemory - estimatedImageSize < 0) {
-        break; // It doesn't make sense to try to cache images that won't be kept.
-      }
-      if (nextImage != null) {
-        if (MapillaryImageUtils.getKey(nextImage) != null) {
-          INode current = nextImage;
-          pool.execute(() -> CacheUtils.downloadPicture(current, CacheUtils.PICTURE.THUMBNAIL));
-        }
-        nextImage = MapillarySequenceUtils.getNextOrPrevious(nextImage, MapillarySequenceUtils.NextOrPrevious.NEXT);
-      }
-      if (prevImage != null) {
-        if (MapillaryImageUtils.getKey(prevImage) != null) {
-          INode current = prevImage;
-          pool.execute(() -> CacheUtils.downloadPicture(current, CacheUtils.PICTURE.THUMBNAIL));
-        }
-        prevImage = MapillarySequenceUtils.getNextOrPrevious(prevImage, MapillarySequenceUtils.NextOrPrevious.PREVIOUS);
-      }
-    }
-    prefetchImageDetails(2 * prefetchCount, currentImage);
+    PrefetchController.getInstance().prefetch(currentImage);
   }
 
   /**
-   * Prefetch image details forward and behind
+   * Create a cache job for the full quality image
    *
-   * @param prefetchCount The number of images to prefetch ahead and behind
-   * @param currentImage The current image
+   * @param image
+   *        The image.
    */
-  private static void prefetchImageDetails(final int prefetchCount, final INode currentImage) {
-    // Prefetch
-    final ForkJoinPool pool = MapillaryUtils.getForkJoinPool();
-    INode nextImage = MapillarySequenceUtils.getNextOrPrevious(currentImage,
-      MapillarySequenceUtils.NextOrPrevious.NEXT);
-    INode prevImage = MapillarySequenceUtils.getNextOrPrevious(currentImage,
-      MapillarySequenceUtils.NextOrPrevious.PREVIOUS);
-    for (int i = 0; i < prefetchCount; i++) {
-      if (nextImage != null) {
-        if (MapillaryImageUtils.getKey(nextImage) != null) {
-          INode current = nextImage;
-          pool.execute(() -> MapillaryDownloader.downloadImages(MapillaryImageUtils.getKey(current)));
-        }
-        nextImage = MapillarySequenceUtils.getNextOrPrevious(nextImage, MapillarySequenceUtils.NextOrPrevious.NEXT);
-      }
-      if (prevImage != null) {
-        if (MapillaryImageUtils.getKey(prevImage) != null) {
-          INode current = prevImage;
-          pool.execute(() -> MapillaryDownloader.downloadImages(MapillaryImageUtils.getKey(current)));
-        }
-        prevImage = MapillarySequenceUtils.getNextOrPrevious(prevImage, MapillarySequenceUtils.NextOrPrevious.PREVIOUS);
-      }
-    }
+  public MapillaryCache(final INode image) {
+    this(image, Type.FULL_IMAGE);
   }
 
   /**
@@ -171,10 +140,10 @@ public class MapillaryCache extends JCSCachedTileLoaderJob<String, BufferedImage
    * @param image
    *        The image.
    * @param type
-   *        The type of image that must be downloaded (THUMBNAIL or
+   *        The type of image that must be downloaded (THUMBNAIL, MEDIUM, or
    *        FULL_IMAGE).
    */
-  public MapillaryCache(final INode image) {
+  public MapillaryCache(final INode image, final Type type) {
     super(Caches.FULL_IMAGE_CACHE.getICacheAccess(),
       new TileJobOptions(50_000, 50_000, new HashMap<>(), TimeUnit.HOURS.toSeconds(4)), DEFAULT_JOB_EXECUTOR);
     if (image instanceof VectorNode) {
@@ -182,7 +151,7 @@ public class MapillaryCache extends JCSCachedTileLoaderJob<String, BufferedImage
     } else {
       MapillaryDownloader.downloadImages(MapillaryImageUtils.getKey(image));
     }
-    final Type type = Type.FULL_IMAGE;
+    this.type = type;
     try {
       if (image == null || type == null) {
         this.key = null;
@@ -211,6 +180,102 @@ public class MapillaryCache extends JCSCachedTileLoaderJob<String, BufferedImage
     }
   }
 
+  /**
+   * Get the type of image this job is for
+   *
+   * @return The image type
+   */
+  public Type getType() {
+    return this.type;
+  }
+
+  /**
+   * Get the download priority of this job
+   *
+   * @return The priority
+   */
+  public ImageDownloadExecutor.Priority getPriority() {
+    return this.priority;
+  }
+
+  /**
+   * Set the download priority of this job. This must be set before the job is submitted.
+   *
+   * @param priority The priority
+   * @return This job, for easy chaining
+   */
+  public MapillaryCache setPriority(final ImageDownloadExecutor.Priority priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  /**
+   * Get the executor used for image downloads
+   *
+   * @return The download executor
+   */
+  public static ImageDownloadExecutor getDownloadExecutor() {
+    return DEFAULT_JOB_EXECUTOR;
+  }
+
+  /**
+   * Cancel this job if it hasn't started downloading yet. If other jobs were submitted for the same image (e.g. an
+   * export joined a prefetch), the download is kept, at the highest priority that the other jobs asked for.
+   * Otherwise, the listeners get {@link ICachedLoaderListener.LoadResult#CANCELED}.
+   *
+   * @return {@code true} if the download was cancelled
+   */
+  public boolean cancelIfQueued() {
+    MapillaryCache queued = this;
+    ImageDownloadExecutor.Priority wanted = null;
+    synchronized (SUBMISSIONS) {
+      final Submissions submissions = this.url != null ? SUBMISSIONS.get(this.url.toString()) : null;
+      if (submissions != null) {
+        submissions.jobs.remove(this);
+        queued = submissions.queued;
+        if (!submissions.jobs.isEmpty()) {
+          wanted = Collections.min(submissions.jobs.values());
+        }
+      }
+    }
+    if (wanted != null) {
+      DEFAULT_JOB_EXECUTOR.reprioritize(queued, wanted);
+      return false;
+    }
+    if (DEFAULT_JOB_EXECUTOR.remove(queued)) {
+      queued.forgetSubmissions();
+      queued.handleJobCancellation();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void submit(ICachedLoaderListener listener, boolean force) throws IOException {
+    if (this.url != null) {
+      synchronized (SUBMISSIONS) {
+        SUBMISSIONS.computeIfAbsent(this.url.toString(), k -> new Submissions(this)).jobs.put(this, this.priority);
+      }
+    }
+    // If a lower priority job for this image is already queued, it is the one that will run
+    DEFAULT_JOB_EXECUTOR.promote(this);
+    super.submit(listener, force);
+  }
+
+  /**
+   * Forget the jobs that were submitted for the URL of this job, once this job is no longer queued
+   */
+  private void forgetSubmissions() {
+    if (this.url != null) {
+      synchronized (SUBMISSIONS) {
+        final Submissions submissions = SUBMISSIONS.get(this.url.toString());
+        if (submissions != null && submissions.queued == this) {
+          SUBMISSIONS.remove(this.url.toString());
+        }
+      }
+    }
+  }
+
   @Override
   public String getCacheKey() {
     return this.key;
@@ -221,9 +286,91 @@ public class MapillaryCache extends JCSCachedTileLoaderJob<String, BufferedImage
     return this.url;
   }
 
+  @Override
+  public BufferedImageCacheEntry get() {
+    final String cacheKey = this.getCacheKey();
+    if (cacheKey != null) {
+      final BufferedImageCacheEntry memoryEntry = Caches.FULL_IMAGE_MEMORY_CACHE.get(cacheKey);
+      if (memoryEntry != null) {
+        return memoryEntry;
+      }
+    }
+    final BufferedImageCacheEntry entry = super.get();
+    if (entry != null && cacheKey != null && entry.getContent() != null && entry.getContent().length > 0) {
+      Caches.FULL_IMAGE_MEMORY_CACHE.put(cacheKey, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Get the decoded image. Decoded images are kept in {@link Caches#DECODED_IMAGE_CACHE}, so that stepping back and
+   * forth through a sequence doesn't decode the same image over and over.
+   *
+   * @return The decoded image, or {@code null} if it hasn't been downloaded yet
+   * @throws IOException If the image could not be decoded
+   */
+  @Nullable
+  public BufferedImage getImage() throws IOException {
+    final String cacheKey = this.getCacheKey();
+    if (cacheKey != null) {
+      final BufferedImage decoded = Caches.DECODED_IMAGE_CACHE.get(cacheKey);
+      if (decoded != null) {
+        return decoded;
+      }
+    }
+    final BufferedImageCacheEntry entry = this.get();
+    if (entry == null) {
+      return null;
+    }
+    final BufferedImage image = entry.getImage();
+    if (image != null && cacheKey != null) {
+      Caches.DECODED_IMAGE_CACHE.put(cacheKey, image);
+    }
+    return image;
+  }
+
+  @Override
+  public void run() {
+    final boolean cached = this.get() != null;
+    if (!cached && Boolean.TRUE.equals(MapillaryProperties.OFFLINE.get())) {
+      // Only cached images are used when working offline
+      this.forgetSubmissions();
+      this.handleJobCancellation();
+      return;
+    }
+    // Only network requests count against the rate limit. Waiting for a token here would keep a download thread
+    // (which the image the user is looking at may need) busy for the whole backoff, so the job waits in the queue.
+    final RateLimitGovernor governor = RateLimitGovernor.getInstance();
+    if (!cached && !governor.tryAcquire()) {
+      DEFAULT_JOB_EXECUTOR.requeue(this, governor.getNanosUntilAvailable());
+      return;
+    }
+    try {
+      super.run();
+    } finally {
+      this.forgetSubmissions();
+    }
+  }
+
+  @Override
+  protected boolean isCacheElementValid() {
+    // There is nothing to check the cached image against when working offline
+    return Boolean.TRUE.equals(MapillaryProperties.OFFLINE.get()) || super.isCacheElementValid();
+  }
+
+  @Override
+  protected boolean isResponseLoadable(Map<String, List<String>> headerFields, int responseCode, byte[] raw) {
+    RateLimitGovernor.getInstance().reportResponse(responseCode, headerFields);
+    return super.isResponseLoadable(headerFields, responseCode, raw);
+  }
+
   @Override
   protected BufferedImageCacheEntry createCacheEntry(byte[] content) {
-    return new BufferedImageCacheEntry(content);
+    final BufferedImageCacheEntry entry = new BufferedImageCacheEntry(content);
+    if (this.key != null && content != null && content.length > 0) {
+      Caches.FULL_IMAGE_MEMORY_CACHE.put(this.key, entry);
+    }
+    return entry;
   }
 
   @Override
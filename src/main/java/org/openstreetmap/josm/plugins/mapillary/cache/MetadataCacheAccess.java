@@ -0,0 +1,567 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+
+import org.apache.commons.jcs3.access.CacheAccess;
+
+import org.openstreetmap.josm.data.cache.JCSCacheManager;
+import org.openstreetmap.josm.data.preferences.LongProperty;
+import org.openstreetmap.josm.plugins.mapillary.io.download.RateLimitGovernor;
+import org.openstreetmap.josm.plugins.mapillary.oauth.OAuthUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryUtils;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A cache for Mapillary metadata responses. The responses are stored as {@link MetadataRecord}s, so that cache hits
+ * don't have to parse JSON text.
+ * <p>
+ * Stale responses are returned immediately, and are revalidated in the background. Endpoints that send an
+ * {@code ETag} or {@code Last-Modified} header are revalidated with a conditional request.
+ * <p>
+ * Image information is also cached by image id, together with the fields that were requested (see
+ * {@link #getImageInformation(String, MapillaryImageUtils.ImageProperties...)}). A request for fewer fields is answered
+ * from a cached entry with more fields, and a request for more fields only fetches the missing fields.
+ * <p>
+ * Failed lookups are remembered for a short time (see {@link NegativeCache}), so that missing or broken resources
+ * aren't requested over and over. Nothing is fetched when working offline ({@link MapillaryProperties#OFFLINE}).
+ * <p>
+ * Records are kept in a {@link MetadataStore} when one is given. Responses cached by older versions (as JSON strings
+ * in the {@value #LEGACY_CACHE_NAME} region, or as records in the JCS region) are moved over when they are first
+ * requested.
+ */
+public class MetadataCacheAccess extends Caches.MapillaryCacheAccess<MetadataRecord> {
+  /** The JCS region that held the metadata as JSON strings */
+  static final String LEGACY_CACHE_NAME = "mapillary:metadata";
+
+  /** The metadata endpoints, each with its own expiry */
+  public enum Endpoint {
+    /** Image information */
+    IMAGES(MapillaryProperties.METADATA_MAX_AGE_IMAGES),
+    /** The images in a sequence */
+    SEQUENCES(MapillaryProperties.METADATA_MAX_AGE_SEQUENCES),
+    /** Detections for an image */
+    DETECTIONS(MapillaryProperties.METADATA_MAX_AGE_DETECTIONS),
+    /** Map feature information */
+    MAP_FEATURES(MapillaryProperties.METADATA_MAX_AGE_MAP_FEATURES);
+
+    private final LongProperty maxAge;
+
+    Endpoint(LongProperty maxAge) {
+      this.maxAge = maxAge;
+    }
+
+    /**
+     * Get the time that a response from this endpoint is considered fresh
+     *
+     * @return The maximum age in milliseconds
+     */
+    public long getMaxAge() {
+      return TimeUnit.SECONDS.toMillis(this.maxAge.get());
+    }
+  }
+
+  /** The prefix for image information keys (image information is keyed by image id, not by URL) */
+  static final String IMAGE_KEY_PREFIX = "image:";
+
+  /** Only open the legacy region if something actually needs it */
+  private static final class LegacyCache {
+    static final CacheAccess<String, String> CACHE = JCSCacheManager.getCache(LEGACY_CACHE_NAME, 1, 100000,
+      Caches.getCacheDirectory().getPath());
+
+    private LegacyCache() {
+      // Hide constructor
+    }
+  }
+
+  /** The on-disk store for records, or {@code null} to store records in the JCS region */
+  @Nullable
+  private final MetadataStore store;
+  /** The URLs currently being revalidated */
+  private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+  /** Recently failed lookups */
+  private final NegativeCache negativeCache = new NegativeCache();
+  private LongSupplier clock = System::currentTimeMillis;
+
+  /**
+   * Create a new metadata cache
+   *
+   * @param cacheAccess The cache to store records in
+   * @param validators The validators for new records
+   */
+  @SafeVarargs
+  public MetadataCacheAccess(CacheAccess<String, MetadataRecord> cacheAccess,
+    Predicate<MetadataRecord>... validators) {
+    this(cacheAccess, null, validators);
+  }
+
+  /**
+   * Create a new metadata cache
+   *
+   * @param cacheAccess The cache that held records before the store was used. Records are moved to the store when
+   *        they are first requested.
+   * @param store The store to keep records in, or {@code null} to keep records in {@code cacheAccess}
+   * @param validators The validators for new records
+   */
+  @SafeVarargs
+  public MetadataCacheAccess(CacheAccess<String, MetadataRecord> cacheAccess, @Nullable MetadataStore store,
+    Predicate<MetadataRecord>... validators) {
+    super(cacheAccess, validators);
+    this.store = store;
+    if (store != null) {
+      this.getStatistics().setSizes(store::size, store::getDataSize, null);
+    }
+  }
+
+  /**
+   * Given a URL, get and cache the response if not already present. If the cached response is stale, it is returned
+   * anyway, and revalidated in the background.
+   *
+   * @param url The URL to get
+   * @param endpoint The endpoint the URL is for
+   * @return The response, or {@code null} if it could not be loaded (or failed to load recently)
+   * @see #getRecord(String, Endpoint)
+   */
+  @Nullable
+  public JsonObject getJson(@Nonnull String url, @Nonnull Endpoint endpoint) {
+    final MetadataRecord record = this.getRecord(url, endpoint);
+    return record != null ? record.toJson() : null;
+  }
+
+  /**
+   * Given a URL, get and cache the response if not already present. This is {@link #getJson(String, Endpoint)}
+   * without converting the response to JSON, for callers that read the record directly.
+   *
+   * @param url The URL to get
+   * @param endpoint The endpoint the URL is for
+   * @return The response, or {@code null} if it could not be loaded (or failed to load recently)
+   */
+  @Nullable
+  public MetadataRecord getRecord(@Nonnull String url, @Nonnull Endpoint endpoint) {
+    final MetadataRecord cached = this.getCached(url);
+    if (cached != null && cached.isCurrentVersion()) {
+      this.getStatistics().recordHit();
+      if (this.clock.getAsLong() - cached.getFetchedAt() > endpoint.getMaxAge()) {
+        this.revalidate(url, url, cached);
+      }
+      return cached;
+    } else if (cached != null) {
+      // Written by a different version of the plugin
+      this.removeCached(url);
+    }
+    if (this.negativeCache.get(url) != null) {
+      return null;
+    }
+    return this.get(url, () -> {
+      final JsonObject legacy = getLegacy(url);
+      // We don't know how old the legacy response is, so revalidate it the next time it is used
+      return legacy != null ? MetadataRecord.of(legacy, 0, null, null) : this.fetch(url, null);
+    });
+  }
+
+  /**
+   * Fetch a URL without caching the response. This is for responses that are only requested once, such as the
+   * information for a particular set of images; the caller caches the parts that will be requested again (see
+   * {@link #putImageInformation(String, JsonObject, MapillaryImageUtils.ImageProperties...)}). Failed lookups are
+   * remembered as usual.
+   *
+   * @param url The URL to fetch
+   * @return The response, or {@code null} if it could not be loaded (or failed to load recently)
+   */
+  @Nullable
+  public MetadataRecord fetchRecord(@Nonnull String url) {
+    this.getStatistics().recordMiss();
+    if (this.negativeCache.get(url) != null || RateLimitGovernor.getInstance().isBackingOff()) {
+      return null;
+    }
+    return this.getStatistics().load(() -> this.fetch(url, null));
+  }
+
+  /**
+   * Cache a response
+   *
+   * @param url The URL the response is for
+   * @param json The response
+   */
+  public void putJson(@Nonnull String url, @Nonnull JsonObject json) {
+    this.putCached(url, MetadataRecord.of(json, this.clock.getAsLong(), null, null));
+    this.negativeCache.remove(url);
+  }
+
+  /**
+   * Get information for an image. If the cached information for the image covers the requested fields, it is used (even
+   * if it has more fields). Otherwise, only the missing fields are fetched, and merged with the cached fields.
+   *
+   * @param id The image id
+   * @param properties The fields to get. The default fields are used if none are given.
+   * @return The image information (this may have more fields than requested). If the missing fields could not be
+   *         fetched, this is the cached information, or {@code null} if nothing is cached.
+   * @see #getImageRecord(String, MapillaryImageUtils.ImageProperties...)
+   */
+  @Nullable
+  public JsonObject getImageInformation(@Nonnull String id,
+    @Nullable MapillaryImageUtils.ImageProperties... properties) {
+    final MetadataRecord record = this.getImageRecord(id, properties);
+    return record != null ? record.toJson() : null;
+  }
+
+  /**
+   * Get information for an image, without converting it to JSON (see
+   * {@link #getImageInformation(String, MapillaryImageUtils.ImageProperties...)}). Only a partial hit, where the
+   * cached and fetched fields are merged, goes through JSON.
+   *
+   * @param id The image id
+   * @param properties The fields to get. The default fields are used if none are given.
+   * @return The image information, or {@code null} if nothing could be fetched and nothing is cached
+   */
+  @Nullable
+  public MetadataRecord getImageRecord(@Nonnull String id,
+    @Nullable MapillaryImageUtils.ImageProperties... properties) {
+    final Set<MapillaryImageUtils.ImageProperties> requested = getRequestedFields(properties);
+    final String key = getImageKey(id);
+    MetadataRecord cached = this.getCached(key);
+    if (cached != null && !cached.isCurrentVersion()) {
+      // Written by a different version of the plugin
+      this.removeCached(key);
+      cached = null;
+    }
+    final Set<MapillaryImageUtils.ImageProperties> cachedFields = cached != null ? getFields(cached)
+      : EnumSet.noneOf(MapillaryImageUtils.ImageProperties.class);
+    if (cached != null && cachedFields.containsAll(requested)) {
+      this.getStatistics().recordHit();
+      if (this.clock.getAsLong() - cached.getFetchedAt() > Endpoint.IMAGES.getMaxAge()) {
+        this.revalidate(key, getImageInformationUrl(id, cachedFields), cached);
+      }
+      return cached;
+    }
+    this.getStatistics().recordMiss();
+    final Set<MapillaryImageUtils.ImageProperties> missing = EnumSet.copyOf(requested);
+    missing.removeAll(cachedFields);
+    missing.add(MapillaryImageUtils.ImageProperties.ID);
+    final String url = getImageInformationUrl(id, missing);
+    // Concurrent requests for the same fields of the same image share one fetch
+    final MetadataRecord fetched = this.negativeCache.get(url) != null
+      || RateLimitGovernor.getInstance().isBackingOff() ? null : this.loadShared(url, () -> this.fetch(url, null));
+    if (fetched == null || !fetched.isCurrentVersion() || !this.isValid(fetched)) {
+      return cached;
+    }
+    final MetadataRecord merged;
+    if (cached != null) {
+      final JsonObjectBuilder builder = Json.createObjectBuilder();
+      cached.toJson().forEach(builder::add);
+      fetched.toJson().forEach(builder::add);
+      // The merged entry is only as fresh as its oldest part
+      merged = MetadataRecord.of(builder.build(), Math.min(cached.getFetchedAt(), fetched.getFetchedAt()), null,
+        null);
+    } else {
+      merged = fetched;
+    }
+    cachedFields.addAll(missing);
+    this.putImageInformation(id, merged, cachedFields);
+    return merged;
+  }
+
+  /**
+   * Get the cached information for an image, without fetching anything
+   *
+   * @param id The image id
+   * @param properties The fields to get. The default fields are used if none are given.
+   * @return The cached image information, or {@code null} if nothing is cached or some of the fields are missing
+   * @see #getCachedImageRecord(String, MapillaryImageUtils.ImageProperties...)
+   */
+  @Nullable
+  public JsonObject getCachedImageInformation(@Nonnull String id,
+    @Nullable MapillaryImageUtils.ImageProperties... properties) {
+    final MetadataRecord record = this.getCachedImageRecord(id, properties);
+    return record != null ? record.toJson() : null;
+  }
+
+  /**
+   * Get the cached information for an image, without fetching anything or converting it to JSON
+   *
+   * @param id The image id
+   * @param properties The fields to get. The default fields are used if none are given.
+   * @return The cached image information, or {@code null} if nothing is cached or some of the fields are missing
+   */
+  @Nullable
+  public MetadataRecord getCachedImageRecord(@Nonnull String id,
+    @Nullable MapillaryImageUtils.ImageProperties... properties) {
+    final String key = getImageKey(id);
+    final MetadataRecord cached = this.getCached(key);
+    if (cached == null || !cached.isCurrentVersion()
+      || !getFields(cached).containsAll(getRequestedFields(properties))) {
+      return null;
+    }
+    this.getStatistics().recordHit();
+    if (this.clock.getAsLong() - cached.getFetchedAt() > Endpoint.IMAGES.getMaxAge()) {
+      this.revalidate(key, getImageInformationUrl(id, getFields(cached)), cached);
+    }
+    return cached;
+  }
+
+  /**
+   * Cache information for an image (e.g., from a response for multiple images)
+   *
+   * @param id The image id
+   * @param json The image information
+   * @param properties The fields that were requested for the image information
+   */
+  public void putImageInformation(@Nonnull String id, @Nonnull JsonObject json,
+    @Nonnull MapillaryImageUtils.ImageProperties... properties) {
+    this.putImageInformation(id, MetadataRecord.of(json, this.clock.getAsLong(), null, null),
+      getRequestedFields(properties));
+  }
+
+  /**
+   * Remove the information for an image from the cache (e.g., when the image URLs have become stale)
+   *
+   * @param id The image id
+   */
+  public void removeImageInformation(@Nonnull String id) {
+    this.removeCached(getImageKey(id));
+  }
+
+  /**
+   * Get the failed lookups that are currently remembered
+   *
+   * @return The negative cache
+   */
+  @Nonnull
+  public NegativeCache getNegativeCache() {
+    return this.negativeCache;
+  }
+
+  /**
+   * Remove a response from the cache (e.g., when it has become stale)
+   *
+   * @param url The URL to remove
+   */
+  public void remove(@Nonnull String url) {
+    this.removeCached(url);
+    LegacyCache.CACHE.remove(url);
+  }
+
+  @Override
+  @Nullable
+  protected MetadataRecord getCached(@Nonnull String key) {
+    if (this.store == null) {
+      return super.getCached(key);
+    }
+    final MetadataRecord record = this.store.get(key);
+    if (record != null) {
+      return record;
+    }
+    // Cached in the JCS region by an older version of the plugin
+    final MetadataRecord old = super.getCached(key);
+    if (old != null) {
+      super.removeCached(key);
+      this.store.put(key, old);
+    }
+    return old;
+  }
+
+  @Override
+  protected void putCached(@Nonnull String key, @Nonnull MetadataRecord record) {
+    if (this.store != null) {
+      this.store.put(key, record);
+    } else {
+      super.putCached(key, record);
+    }
+  }
+
+  @Override
+  protected void removeCached(@Nonnull String key) {
+    if (this.store != null) {
+      this.store.remove(key);
+    }
+    super.removeCached(key);
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    if (this.store != null) {
+      this.store.clear();
+    }
+  }
+
+  /**
+   * Set the clock used to check if responses are stale
+   *
+   * @param clock The clock (epoch milliseconds)
+   */
+  void setClock(@Nonnull LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  private void putImageInformation(@Nonnull String id, @Nonnull MetadataRecord record,
+    @Nonnull Set<MapillaryImageUtils.ImageProperties> fields) {
+    this.putCached(getImageKey(id), record
+      .withFields(fields.stream().map(MapillaryImageUtils.ImageProperties::toString).collect(Collectors.toList())));
+    // Failures are remembered by URL. This is the URL that a lookup of these fields would have failed for.
+    this.negativeCache.remove(getImageInformationUrl(id, fields));
+  }
+
+  /**
+   * Revalidate a stale record in the background. Only one revalidation per key runs at a time.
+   *
+   * @param key The cache key of the record
+   * @param url The URL to revalidate the record with
+   * @param stale The stale record
+   */
+  private void revalidate(@Nonnull String key, @Nonnull String url, @Nonnull MetadataRecord stale) {
+    if (Boolean.TRUE.equals(MapillaryProperties.OFFLINE.get()) || RateLimitGovernor.getInstance().isBackingOff()
+      || !this.revalidating.add(key)) {
+      return;
+    }
+    MapillaryUtils.getForkJoinPool(MetadataCacheAccess.class).execute(() -> {
+      try {
+        final MetadataRecord fresh = this.fetch(url, stale);
+        if (fresh == stale) {
+          // 304 Not Modified
+          this.putCached(key, stale.revalidated(this.clock.getAsLong()));
+        } else if (fresh != null && this.isValid(fresh)) {
+          this.putCached(key, fresh.hasSameContent(stale) ? stale.revalidated(fresh.getFetchedAt())
+            : fresh.withFields(stale.getFields()));
+        }
+      } finally {
+        this.revalidating.remove(key);
+      }
+    });
+  }
+
+  /**
+   * Fetch a URL
+   *
+   * @param url The URL to fetch
+   * @param stale The stale record to revalidate, if any
+   * @return The new record, {@code stale} if the server told us it was not modified, or {@code null} on error
+   */
+  @Nullable
+  private MetadataRecord fetch(@Nonnull String url, @Nullable MetadataRecord stale) {
+    if (Boolean.TRUE.equals(MapillaryProperties.OFFLINE.get())) {
+      return null;
+    }
+    try {
+      final OAuthUtils.ConditionalResponse response = OAuthUtils.getWithHeader(new URL(url),
+        stale != null ? stale.getETag() : null, stale != null ? stale.getLastModified() : null);
+      if (response.isNotModified()) {
+        return stale;
+      }
+      final NegativeCache.Failure failure = NegativeCache.Failure.forResponseCode(response.getResponseCode());
+      // A failed revalidation keeps the stale record around, so only remember failures for new lookups
+      if (failure != null && stale == null) {
+        this.negativeCache.put(url, failure);
+      }
+      if (response.getRecord() == null) {
+        Logging.error("Mapillary: HTTP {0} for {1}", response.getResponseCode(), url);
+        return null;
+      }
+      // The response was read straight into a record. Use our clock for the fetch time.
+      return response.getRecord().revalidated(this.clock.getAsLong());
+    } catch (MalformedURLException e) {
+      Logging.error(e);
+    } catch (IOException e) {
+      final NegativeCache.Failure failure = NegativeCache.Failure.forException(e);
+      if (stale == null) {
+        if (failure != null) {
+          this.negativeCache.put(url, failure);
+        }
+        Logging.error(e);
+      } else {
+        Logging.trace(e);
+      }
+    }
+    return null;
+  }
+
+  @Nonnull
+  private static String getImageKey(@Nonnull String id) {
+    return IMAGE_KEY_PREFIX + id;
+  }
+
+  @Nonnull
+  private static String getImageInformationUrl(@Nonnull String id,
+    @Nonnull Set<MapillaryImageUtils.ImageProperties> fields) {
+    return MapillaryURL.APIv4.getImageInformation(id,
+      fields.toArray(new MapillaryImageUtils.ImageProperties[0]));
+  }
+
+  /**
+   * Get the fields to request
+   *
+   * @param properties The requested properties, may be empty
+   * @return The requested properties (or the default properties) and the image id
+   */
+  @Nonnull
+  private static Set<MapillaryImageUtils.ImageProperties> getRequestedFields(
+    @Nullable MapillaryImageUtils.ImageProperties... properties) {
+    final Set<MapillaryImageUtils.ImageProperties> requested = EnumSet.of(MapillaryImageUtils.ImageProperties.ID);
+    requested.addAll(Arrays.asList(properties == null || properties.length == 0
+      ? MapillaryURL.APIv4.getDefaultImageInformation() : properties));
+    return requested;
+  }
+
+  /**
+   * Get the fields that a record holds
+   *
+   * @param record The record
+   * @return The fields (fields from other versions of the plugin are ignored)
+   */
+  @Nonnull
+  private static Set<MapillaryImageUtils.ImageProperties> getFields(@Nonnull MetadataRecord record) {
+    final Set<MapillaryImageUtils.ImageProperties> fields = EnumSet.noneOf(MapillaryImageUtils.ImageProperties.class);
+    for (String field : record.getFields()) {
+      try {
+        fields.add(MapillaryImageUtils.ImageProperties.valueOf(field.toUpperCase(Locale.ROOT)));
+      } catch (IllegalArgumentException e) {
+        Logging.trace(e);
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Get (and remove) a response from the legacy cache region
+   *
+   * @param url The URL to get
+   * @return The response, if it was in the legacy cache
+   */
+  @Nullable
+  private static JsonObject getLegacy(@Nonnull String url) {
+    final String legacy = LegacyCache.CACHE.get(url);
+    if (legacy == null) {
+      return null;
+    }
+    LegacyCache.CACHE.remove(url);
+    try (JsonReader reader = Json.createReader(new StringReader(legacy))) {
+      return reader.readObject();
+    } catch (JsonException e) {
+      Logging.trace(e);
+      return null;
+    }
+  }
+}
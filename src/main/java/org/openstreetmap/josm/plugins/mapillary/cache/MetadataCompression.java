@@ -0,0 +1,189 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Compression for stored metadata. This uses deflate with a preset dictionary made of encoded sample records (see
+ * {@link MetadataRecord}), so that it has the field names, tags and common values in the same binary form as the
+ * records that are compressed. Most responses are small, so without the dictionary there is little earlier in the
+ * response for deflate to refer back to.
+ * <p>
+ * The first byte of the compressed form says how the rest was encoded. The dictionary must never change once it has
+ * been used: add a new dictionary with a new encoding instead, and keep the old one for reading. Raw deflate has no
+ * checksum, so data that was compressed with another dictionary would be inflated into the wrong bytes.
+ * <p>
+ * Each thread gets its own {@link Deflater} and {@link Inflater}. They hold native memory, so {@link #end()} must be
+ * called once the instance is no longer used.
+ */
+final class MetadataCompression {
+  /** The data is stored as is */
+  static final byte UNCOMPRESSED = 0;
+  /** The data is compressed with {@link #DICTIONARY_1} */
+  static final byte DEFLATE_DICTIONARY_1 = 1;
+  /** Smaller data isn't worth compressing */
+  private static final int MIN_COMPRESSION_SIZE = 64;
+
+  /**
+   * The dictionary for {@link #DEFLATE_DICTIONARY_1}: the {@link MetadataRecord}s (format version 1, fetched at 0,
+   * without headers or fields) of an error response, the image ids of a sequence, two detections, a list of images
+   * and the information for one image, one after the other. Deflate refers back to the end of the dictionary with
+   * shorter codes, so the most common responses (image information) are at the end.
+   * <p>
+   * This is a constant (Base64), so that it doesn't change when the record encoding does.
+   */
+  private static final byte[] DICTIONARY_1 = Base64.getDecoder().decode(
+    "mQEBCgEABWVycm9yCgYBB21lc3NhZ2UGIUFwcGxpY2F0aW9uIHJlcXVlc3QgbGltaXQgcmVhY2hlZAIEdHlwZQYPTUxZQXBpRXhj"
+    + "ZXB0aW9uAwRjb2RlAwgEDGlzX3RyYW5zaWVudAEFCmVycm9yX2RhdGEKAAYKZmJ0cmFjZV9pZAYXQU1ONVFmc0NFQlpnMUxOVkZB"
+    + "NGJwdnkAAAAAAAAAAAAAADABCgEABGRhdGEJAwoBAQJpZAf31JqTsNchCgEBB9aT45XH8kYKAQEH9ouN2ID6wgcAAAAAAAAAAAAA"
+    + "AOQCAQoBAARkYXRhCQIKBQEKY3JlYXRlZF9hdAYYMjAyMS0wNS0yMlQxNToyMDo0NSswMDAwAghnZW9tZXRyeQYgR2pnS0JtMXdl"
+    + "UzF2Y2hJWUVnSUFBQmdESWhBSmtDYXcDBWltYWdlCgICCgIEBHR5cGUGBVBvaW50BQtjb29yZGluYXRlcwkCBMBbJIg/ty4KBEBD"
+    + "iL/bERsyBgJpZAeP2IaT9eceBwV2YWx1ZQYdb2JqZWN0LS1zdXBwb3J0LS11dGlsaXR5LXBvbGUGB+yt+uHpuB8KBQEGGDIwMjEt"
+    + "MDUtMjNUMDA6NDA6NTUrMDAwMAIGJEduWjRBZ29HYlhCNUxXOXlLSUFnRW1jSUFSZ0RJbUVKNUN5UwMKAgIKAgQGBVBvaW50BQkC"
+    + "BMBbJIg/ty4KBEBDiL/bERsyBgeP2IaT9eceBwYUcmVndWxhdG9yeS0tc3RvcC0tZzEGB93Lx7X7wB8AAAAAAAAAAAAAAOgBAQoB"
+    + "AARkYXRhCQEKCAELY2FwdHVyZWRfYXQD8PjP0IJbAg1jb21wYXNzX2FuZ2xlBEB1C9cKPXCkAwhnZW9tZXRyeQoCBAR0eXBlBgVQ"
+    + "b2ludAULY29vcmRpbmF0ZXMJAgTAWySIP7cuCgRAQ4i/2xEbMgYHaXNfcGFubwIHCHNlcXVlbmNlBhY3bmZjd2Z2amR0cGh6N3lq"
+    + "NnphdDZhCA9vcmdhbml6YXRpb25faWQHkr+gk5HOmgMJB2NyZWF0b3IKAgoIdXNlcm5hbWUGCW1hcGlsbGFyeQsCaWQHZAsHj9iG"
+    + "k/XnHgAAAAAAAAAAAAAAwggBChgACGFsdGl0dWRlBECVUnfO2RaHAQxhdG9taWNfc2NhbGUEP+9TPXu7yr0CEWNhbWVyYV9wYXJh"
+    + "bWV0ZXJzCQMEP+s+X3d4Eg0EvxFut6+8F5cEvwP1W5fxdMsDC2NhbWVyYV90eXBlBgtwZXJzcGVjdGl2ZQQLY2FwdHVyZWRfYXQD"
+    + "8PjP0IJbBQ1jb21wYXNzX2FuZ2xlBEB1C9cKPXCkBhFjb21wdXRlZF9hbHRpdHVkZQRAld4EabsvlgcWY29tcHV0ZWRfY29tcGFz"
+    + "c19hbmdsZQQ/9JXX+kxhrggRY29tcHV0ZWRfZ2VvbWV0cnkKAgkEdHlwZQYFUG9pbnQKC2Nvb3JkaW5hdGVzCQIEwFskiD+1tXUE"
+    + "QEOIv9qP/a4LEWNvbXB1dGVkX3JvdGF0aW9uCQMEP/XT2dQP9psEv1/2/S7fQoMEP6IVGhCgStcMEGV4aWZfb3JpZW50YXRpb24D"
+    + "Ag0IZ2VvbWV0cnkKAgkGBVBvaW50CgkCBMBbJIg/ty4KBEBDiL/bERsyDgZoZWlnaHQD4DAPDXRodW1iXzI1Nl91cmwGXmh0dHBz"
+    + "Oi8vc2NvbnRlbnQtaWFkMy0xLnh4LmZiY2RuLm5ldC9tMS92L3Q2L0FuOF8yNTY/Y2NiPTEwLTUmb2g9MDBfQVQ4Jm9lPTYyRjIm"
+    + "X25jX3NpZD0xMjJhYjEQDnRodW1iXzEwMjRfdXJsBl9odHRwczovL3Njb250ZW50LWlhZDMtMS54eC5mYmNkbi5uZXQvbTEvdi90"
+    + "Ni9BbjhfMTAyND9jY2I9MTAtNSZvaD0wMF9BVDgmb2U9NjJGMiZfbmNfc2lkPTEyMmFiMREOdGh1bWJfMjA0OF91cmwGX2h0dHBz"
+    + "Oi8vc2NvbnRlbnQtaWFkMy0xLnh4LmZiY2RuLm5ldC9tMS92L3Q2L0FuOF8yMDQ4P2NjYj0xMC01Jm9oPTAwX0FUOCZvZT02MkYy"
+    + "Jl9uY19zaWQ9MTIyYWIxEghtZXJnZV9jYwOAj7KDu9qTmH4TBG1lc2gKAhQCaWQHyZG61L7FzQEVA3VybAZaaHR0cHM6Ly9zY29u"
+    + "dGVudC1pYWQzLTEueHguZmJjZG4ubmV0L20xL3YvdDYvQW45P2NjYj0xMC01Jm9oPTAwX0FUOCZvZT02MkYyJl9uY19zaWQ9MTIy"
+    + "YWIxFg1xdWFsaXR5X3Njb3JlBD/oMjnNjsZ4FwhzZXF1ZW5jZQYWN25mY3dmdmpkdHBoejd5ajZ6YXQ2YRgLc2ZtX2NsdXN0ZXIK"
+    + "AhQHr7bnpLvlRRUGWmh0dHBzOi8vc2NvbnRlbnQtaWFkMy0xLnh4LmZiY2RuLm5ldC9tMS92L3Q2L0FuOT9jY2I9MTAtNSZvaD0w"
+    + "MF9BVDgmb2U9NjJGMiZfbmNfc2lkPTEyMmFiMRkFd2lkdGgDgEEaB2lzX3Bhbm8CFAeP2IaT9eceAAAAAAAAAAAAAAA=");
+
+  private final List<Deflater> deflaters = new ArrayList<>();
+  private final List<Inflater> inflaters = new ArrayList<>();
+  private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> this.add(this.deflaters,
+    new Deflater(6, true)));
+  private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> this.add(this.inflaters,
+    new Inflater(true)));
+
+  /**
+   * Get the dictionary that is used for compression
+   *
+   * @return A copy of the dictionary
+   */
+  @Nonnull
+  static byte[] getDictionary() {
+    return DICTIONARY_1.clone();
+  }
+
+  private synchronized <T> T add(@Nonnull List<T> list, @Nonnull T item) {
+    list.add(item);
+    return item;
+  }
+
+  /**
+   * Compress data
+   *
+   * @param data The data to compress
+   * @param statistics The statistics to record the compression ratio in, if any
+   * @return The compressed form of the data (this may be uncompressed, if compression doesn't help)
+   */
+  @Nonnull
+  byte[] compress(@Nonnull byte[] data, @Nullable CacheStatistics statistics) {
+    byte[] compressed = null;
+    if (data.length >= MIN_COMPRESSION_SIZE) {
+      final Deflater deflater = this.deflater.get();
+      deflater.reset();
+      deflater.setDictionary(DICTIONARY_1);
+      deflater.setInput(data);
+      deflater.finish();
+      final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 1);
+      output.write(DEFLATE_DICTIONARY_1);
+      final byte[] buffer = new byte[Math.min(data.length, 8192)];
+      while (!deflater.finished() && output.size() <= data.length) {
+        output.write(buffer, 0, deflater.deflate(buffer));
+      }
+      if (deflater.finished() && output.size() <= data.length) {
+        compressed = output.toByteArray();
+      }
+      // Don't keep the data
+      deflater.reset();
+    }
+    if (compressed == null) {
+      compressed = new byte[data.length + 1];
+      compressed[0] = UNCOMPRESSED;
+      System.arraycopy(data, 0, compressed, 1, data.length);
+    }
+    if (statistics != null) {
+      statistics.recordCompression(data.length, compressed.length);
+    }
+    return compressed;
+  }
+
+  /**
+   * Decompress data
+   *
+   * @param compressed The data from {@link #compress(byte[], CacheStatistics)}
+   * @param statistics The statistics to record the decompression time in, if any
+   * @return The original data
+   * @throws IOException If the data is corrupt, or uses an unknown encoding
+   */
+  @Nonnull
+  byte[] decompress(@Nonnull byte[] compressed, @Nullable CacheStatistics statistics) throws IOException {
+    if (compressed.length == 0) {
+      throw new IOException("Missing compressed metadata encoding");
+    } else if (compressed[0] == UNCOMPRESSED) {
+      return Arrays.copyOfRange(compressed, 1, compressed.length);
+    } else if (compressed[0] != DEFLATE_DICTIONARY_1) {
+      throw new IOException("Unknown compressed metadata encoding: " + compressed[0]);
+    }
+    final long start = System.nanoTime();
+    final Inflater inflater = this.inflater.get();
+    inflater.reset();
+    // Raw deflate streams don't ask for the dictionary, so it has to be set up front
+    inflater.setDictionary(DICTIONARY_1);
+    inflater.setInput(compressed, 1, compressed.length - 1);
+    final ByteArrayOutputStream output = new ByteArrayOutputStream(compressed.length * 4);
+    final byte[] buffer = new byte[8192];
+    try {
+      while (!inflater.finished()) {
+        final int inflated = inflater.inflate(buffer);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated compressed metadata");
+        }
+        output.write(buffer, 0, inflated);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      // Don't keep the compressed data
+      inflater.reset();
+    }
+    if (statistics != null) {
+      statistics.recordDecode(System.nanoTime() - start);
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Free the native memory of the deflaters and inflaters. The instance must not be used afterwards.
+   */
+  synchronized void end() {
+    this.deflaters.forEach(Deflater::end);
+    this.deflaters.clear();
+    this.inflaters.forEach(Inflater::end);
+    this.inflaters.clear();
+  }
+}
@@ -0,0 +1,1002 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A pre-parsed, compact binary form of a Mapillary metadata response (images, sequences, detections, ...).
+ * Numeric ids are stored as longs, numbers (coordinates, angles, ...) as longs or doubles, and timestamps as epoch
+ * milliseconds. Object keys are only written once per record.
+ * <p>
+ * The first byte is the format version. Records with an unknown version are treated as cache misses.
+ */
+public final class MetadataRecord implements Serializable {
+  private static final long serialVersionUID = 3155488230471955734L;
+  /** The current format version. Increment this whenever the format changes. */
+  static final byte FORMAT_VERSION = 1;
+
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_TRUE = 1;
+  private static final byte TAG_FALSE = 2;
+  private static final byte TAG_LONG = 3;
+  private static final byte TAG_DOUBLE = 4;
+  private static final byte TAG_BIG_NUMBER = 5;
+  private static final byte TAG_STRING = 6;
+  /** A string with a (positive) numeric id, e.g. {@code "135511895288847"} */
+  private static final byte TAG_ID_STRING = 7;
+  /** An ISO-8601 timestamp string, stored as epoch milliseconds */
+  private static final byte TAG_INSTANT_STRING = 8;
+  private static final byte TAG_ARRAY = 9;
+  private static final byte TAG_OBJECT = 10;
+
+  /** Ids are only stored as longs if they convert back to the same string (no leading zeros, fits in a long) */
+  private static final Pattern ID_PATTERN = Pattern.compile("0|[1-9][0-9]{0,17}");
+  private static final String DATA = "data";
+  private static final String ID = MapillaryImageUtils.ImageProperties.ID.toString();
+  private static final String GEOMETRY = MapillaryImageUtils.ImageProperties.GEOMETRY.toString();
+  private static final String COMPUTED_GEOMETRY = MapillaryImageUtils.ImageProperties.COMPUTED_GEOMETRY.toString();
+
+  private final byte[] data;
+  /** The time the response was fetched (or last revalidated), in epoch milliseconds */
+  private final long fetchedAt;
+  private final String eTag;
+  private final String lastModified;
+  /** The fields that were requested for this record, or {@code null} if the record is a complete response */
+  private final String[] fields;
+
+  /**
+   * The top level values of an image object, read straight from a record. This is what is needed to create or update
+   * an image node, so images can be decoded without converting the record back to JSON.
+   */
+  public static final class ImageValues {
+    private final String id;
+    private final Map<String, String> tags;
+    private final Map<String, String> structured;
+    private final LatLon geometry;
+    private final LatLon computedGeometry;
+
+    ImageValues(@Nullable String id, @Nonnull Map<String, String> tags, @Nonnull Map<String, String> structured,
+      @Nullable LatLon geometry, @Nullable LatLon computedGeometry) {
+      this.id = id;
+      this.tags = Collections.unmodifiableMap(tags);
+      this.structured = Collections.unmodifiableMap(structured);
+      this.geometry = geometry;
+      this.computedGeometry = computedGeometry;
+    }
+
+    /**
+     * Get the image id
+     *
+     * @return The id, or {@code null} if the image has no id string
+     */
+    @Nullable
+    public String getId() {
+      return this.id;
+    }
+
+    /**
+     * Get the strings, numbers and booleans of the image, as tag values
+     *
+     * @return The values, in record order
+     */
+    @Nonnull
+    public Map<String, String> getTags() {
+      return this.tags;
+    }
+
+    /**
+     * Get a value as it is stored on an image node. Strings, numbers and booleans are the same as in
+     * {@link #getTags()}; objects, arrays and nulls are JSON text.
+     *
+     * @param key The key of the value
+     * @return The value, or {@code null} if the image doesn't have it
+     */
+    @Nullable
+    public String getValue(@Nonnull String key) {
+      final String tag = this.tags.get(key);
+      return tag != null ? tag : this.structured.get(key);
+    }
+
+    /**
+     * Get the location of the image
+     *
+     * @param computed {@code true} for the location after image processing, {@code false} for the original location
+     * @return The location, or {@code null} if the image doesn't have it
+     */
+    @Nullable
+    public LatLon getGeometry(boolean computed) {
+      return computed ? this.computedGeometry : this.geometry;
+    }
+  }
+
+  private MetadataRecord(@Nonnull byte[] data, long fetchedAt, @Nullable String eTag, @Nullable String lastModified,
+    @Nullable String[] fields) {
+    this.data = data;
+    this.fetchedAt = fetchedAt;
+    this.eTag = eTag;
+    this.lastModified = lastModified;
+    this.fields = fields;
+  }
+
+  /**
+   * Create a record from a JSON response that was just fetched
+   *
+   * @param json The JSON response
+   * @return The record
+   */
+  @Nonnull
+  public static MetadataRecord of(@Nonnull JsonObject json) {
+    return of(json, System.currentTimeMillis(), null, null);
+  }
+
+  /**
+   * Create a record from a JSON response
+   *
+   * @param json The JSON response
+   * @param fetchedAt The time the response was fetched, in epoch milliseconds
+   * @param eTag The {@code ETag} header of the response, if any
+   * @param lastModified The {@code Last-Modified} header of the response, if any
+   * @return The record
+   */
+  @Nonnull
+  public static MetadataRecord of(@Nonnull JsonObject json, long fetchedAt, @Nullable String eTag,
+    @Nullable String lastModified) {
+    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(byteArrayOutputStream)) {
+      output.writeByte(FORMAT_VERSION);
+      new Writer(output).write(json);
+    } catch (IOException e) {
+      // ByteArrayOutputStream doesn't throw IOExceptions
+      throw new UncheckedIOException(e);
+    }
+    return new MetadataRecord(byteArrayOutputStream.toByteArray(), fetchedAt, eTag, lastModified, null);
+  }
+
+  /**
+   * Create a record straight from a JSON response, without building a {@link JsonObject} first
+   *
+   * @param parser The parser for the response
+   * @param fetchedAt The time the response was fetched, in epoch milliseconds
+   * @param eTag The {@code ETag} header of the response, if any
+   * @param lastModified The {@code Last-Modified} header of the response, if any
+   * @return The record
+   * @throws JsonException If the response is not a JSON object
+   */
+  @Nonnull
+  public static MetadataRecord read(@Nonnull JsonParser parser, long fetchedAt, @Nullable String eTag,
+    @Nullable String lastModified) {
+    if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+      throw new JsonException("Mapillary: The response is not a JSON object");
+    }
+    final RecordBuffer buffer = new RecordBuffer();
+    try (DataOutputStream output = new DataOutputStream(buffer)) {
+      output.writeByte(FORMAT_VERSION);
+      new Writer(output).write(parser, JsonParser.Event.START_OBJECT, buffer);
+    } catch (IOException e) {
+      // RecordBuffer doesn't throw IOExceptions
+      throw new UncheckedIOException(e);
+    }
+    return new MetadataRecord(buffer.toByteArray(), fetchedAt, eTag, lastModified, null);
+  }
+
+  /**
+   * Get a copy of this record that holds the given fields. A field that was requested may still be missing from the
+   * JSON, if the API has no value for it.
+   *
+   * @param fields The fields that were requested for this record
+   * @return The record with the fields
+   */
+  @Nonnull
+  public MetadataRecord withFields(@Nonnull Collection<String> fields) {
+    return new MetadataRecord(this.data, this.fetchedAt, this.eTag, this.lastModified,
+      fields.isEmpty() ? null : fields.stream().sorted().distinct().toArray(String[]::new));
+  }
+
+  /**
+   * Get a copy of this record that was revalidated at the given time
+   *
+   * @param revalidatedAt The time the record was revalidated, in epoch milliseconds
+   * @return The revalidated record
+   */
+  @Nonnull
+  public MetadataRecord revalidated(long revalidatedAt) {
+    return new MetadataRecord(this.data, revalidatedAt, this.eTag, this.lastModified, this.fields);
+  }
+
+  /**
+   * Get the time the record was fetched or last revalidated
+   *
+   * @return The time in epoch milliseconds ({@code 0} if unknown)
+   */
+  public long getFetchedAt() {
+    return this.fetchedAt;
+  }
+
+  /**
+   * Get the {@code ETag} of the response
+   *
+   * @return The ETag, if the server sent one
+   */
+  @Nullable
+  public String getETag() {
+    return this.eTag;
+  }
+
+  /**
+   * Get the {@code Last-Modified} date of the response
+   *
+   * @return The last modified date, if the server sent one
+   */
+  @Nullable
+  public String getLastModified() {
+    return this.lastModified;
+  }
+
+  /**
+   * Get the fields that were requested for this record
+   *
+   * @return The fields, or an empty set if the record is a complete response
+   * @see #withFields(Collection)
+   */
+  @Nonnull
+  public Set<String> getFields() {
+    return this.fields == null ? Collections.emptySet()
+      : Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(this.fields)));
+  }
+
+  /**
+   * Check if this record has the same content as another record. This is used to detect unchanged responses when
+   * the server doesn't support conditional requests.
+   *
+   * @param other The other record
+   * @return {@code true} if both records hold the same response
+   */
+  public boolean hasSameContent(@Nonnull MetadataRecord other) {
+    return Arrays.equals(this.data, other.data);
+  }
+
+  /**
+   * Check if this record was written with the current format
+   *
+   * @return {@code true} if {@link #toJson()} can read this record
+   */
+  public boolean isCurrentVersion() {
+    return this.data.length > 0 && this.data[0] == FORMAT_VERSION;
+  }
+
+  /**
+   * Get the number of bytes used by this record
+   *
+   * @return The size of the record
+   */
+  public int size() {
+    return this.data.length;
+  }
+
+  /**
+   * Convert the record back to JSON
+   *
+   * @return The JSON object, or {@code null} if this record was written with a different format version or is
+   *         corrupt
+   */
+  @Nullable
+  public JsonObject toJson() {
+    if (!this.isCurrentVersion()) {
+      return null;
+    }
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(this.data, 1, this.data.length - 1))) {
+      final JsonValue value = new Reader(input).read();
+      return value.getValueType() == JsonValue.ValueType.OBJECT ? value.asJsonObject() : null;
+    } catch (IOException e) {
+      // The record is corrupt. Treat it as a cache miss.
+      Logging.error(e);
+      return null;
+    }
+  }
+
+  /**
+   * Get a top level value, without converting the rest of the record back to JSON
+   *
+   * @param key The key of the value
+   * @return The value, or {@code null} if there is no such value (or the record can't be read)
+   */
+  @Nullable
+  public JsonValue get(@Nonnull String key) {
+    if (!this.isCurrentVersion()) {
+      return null;
+    }
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(this.data, 1, this.data.length - 1))) {
+      final Reader reader = new Reader(input);
+      if (input.readByte() != TAG_OBJECT) {
+        return null;
+      }
+      final long size = readVarLong(input);
+      for (long i = 0; i < size; i++) {
+        if (key.equals(reader.readKey())) {
+          return reader.read();
+        }
+        reader.skip();
+      }
+    } catch (IOException e) {
+      Logging.error(e);
+    }
+    return null;
+  }
+
+  /**
+   * Get the top level keys, without converting the record back to JSON
+   *
+   * @return The keys, in order (empty if the record can't be read)
+   */
+  @Nonnull
+  public List<String> getKeys() {
+    if (!this.isCurrentVersion()) {
+      return Collections.emptyList();
+    }
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(this.data, 1, this.data.length - 1))) {
+      final Reader reader = new Reader(input);
+      if (input.readByte() != TAG_OBJECT) {
+        return Collections.emptyList();
+      }
+      final long size = readVarLong(input);
+      final List<String> keys = new ArrayList<>((int) Math.min(size, 16));
+      for (long i = 0; i < size; i++) {
+        keys.add(reader.readKey());
+        reader.skip();
+      }
+      return keys;
+    } catch (IOException e) {
+      Logging.error(e);
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Get the images in this record, without converting the record back to JSON. The images are the objects in the
+   * {@code data} value if there is one (responses for several images), or the record itself (responses for one image).
+   *
+   * @return The images (empty if the record can't be read)
+   */
+  @Nonnull
+  public List<ImageValues> getImages() {
+    if (!this.isCurrentVersion()) {
+      return Collections.emptyList();
+    }
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(this.data, 1, this.data.length - 1))) {
+      final Reader reader = new Reader(input);
+      final byte tag = seekData(input, reader);
+      if (tag == TAG_OBJECT) {
+        return Collections.singletonList(reader.readImage());
+      } else if (tag == TAG_ARRAY) {
+        final long size = readVarLong(input);
+        final List<ImageValues> images = new ArrayList<>((int) Math.min(size, 1024));
+        for (long i = 0; i < size; i++) {
+          final byte itemTag = input.readByte();
+          if (itemTag == TAG_OBJECT) {
+            images.add(reader.readImage());
+          } else {
+            reader.skip(itemTag);
+          }
+        }
+        return images;
+      }
+    } catch (IOException e) {
+      Logging.error(e);
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Get the ids of the objects in the {@code data} array (e.g. the images of a sequence), without converting the
+   * record back to JSON
+   *
+   * @return The ids that are strings or numbers, in order (empty if there is no such array, or the record can't be
+   *         read)
+   */
+  @Nonnull
+  public List<String> getDataIds() {
+    if (!this.isCurrentVersion()) {
+      return Collections.emptyList();
+    }
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(this.data, 1, this.data.length - 1))) {
+      final Reader reader = new Reader(input);
+      if (seekData(input, reader) != TAG_ARRAY) {
+        return Collections.emptyList();
+      }
+      final long size = readVarLong(input);
+      final List<String> ids = new ArrayList<>((int) Math.min(size, 1024));
+      for (long i = 0; i < size; i++) {
+        final byte itemTag = input.readByte();
+        if (itemTag != TAG_OBJECT) {
+          reader.skip(itemTag);
+          continue;
+        }
+        final long objectSize = readVarLong(input);
+        for (long j = 0; j < objectSize; j++) {
+          final String key = reader.readKey();
+          final byte valueTag = input.readByte();
+          if (ID.equals(key) && valueTag != TAG_NULL && valueTag != TAG_TRUE && valueTag != TAG_FALSE
+            && valueTag != TAG_ARRAY && valueTag != TAG_OBJECT) {
+            ids.add(reader.readScalar(valueTag));
+          } else {
+            reader.skip(valueTag);
+          }
+        }
+      }
+      return ids;
+    } catch (IOException e) {
+      Logging.error(e);
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Move to the {@code data} value of a record, or to the record itself if it has no {@code data} value
+   *
+   * @param input The input, at the start of the record (after the version)
+   * @param reader The reader for the input
+   * @return The tag of the value, which has been read
+   * @throws IOException If the record can't be read
+   */
+  private byte seekData(@Nonnull DataInputStream input, @Nonnull Reader reader) throws IOException {
+    input.mark(this.data.length);
+    if (input.readByte() != TAG_OBJECT) {
+      return TAG_NULL;
+    }
+    final long size = readVarLong(input);
+    for (long i = 0; i < size; i++) {
+      if (DATA.equals(reader.readKey())) {
+        return input.readByte();
+      }
+      reader.skip();
+    }
+    // Not a response with a data value, so read the record itself with a fresh key table
+    input.reset();
+    input.readByte();
+    reader.keys.clear();
+    return TAG_OBJECT;
+  }
+
+  /**
+   * Get the coordinates of a GeoJSON point
+   *
+   * @param geometry The geometry object
+   * @return The coordinates, or {@code null} if the geometry doesn't have a longitude and latitude
+   */
+  @Nullable
+  private static LatLon getCoordinates(@Nonnull JsonValue geometry) {
+    if (geometry.getValueType() != JsonValue.ValueType.OBJECT) {
+      return null;
+    }
+    final JsonValue coordinates = geometry.asJsonObject().get("coordinates");
+    if (coordinates == null || coordinates.getValueType() != JsonValue.ValueType.ARRAY) {
+      return null;
+    }
+    final JsonArray array = coordinates.asJsonArray();
+    if (array.size() == 2 && array.get(0) instanceof JsonNumber && array.get(1) instanceof JsonNumber) {
+      return new LatLon(array.getJsonNumber(1).doubleValue(), array.getJsonNumber(0).doubleValue());
+    }
+    return null;
+  }
+
+  /**
+   * Write the record, including its headers and fields
+   *
+   * @param output The output to write to
+   * @throws IOException If the output could not be written to
+   * @see #readFrom(DataInput)
+   */
+  void writeTo(@Nonnull DataOutput output) throws IOException {
+    writeVarLong(output, this.data.length);
+    output.write(this.data);
+    output.writeLong(this.fetchedAt);
+    writeNullableUtf8(output, this.eTag);
+    writeNullableUtf8(output, this.lastModified);
+    writeVarLong(output, this.fields == null ? 0 : this.fields.length);
+    if (this.fields != null) {
+      for (String field : this.fields) {
+        writeUtf8(output, field);
+      }
+    }
+  }
+
+  /**
+   * Read a record written by {@link #writeTo(DataOutput)}
+   *
+   * @param input The input to read from
+   * @return The record
+   * @throws IOException If the input could not be read, or is not a record
+   */
+  @Nonnull
+  static MetadataRecord readFrom(@Nonnull DataInput input) throws IOException {
+    final byte[] data = new byte[(int) readVarLong(input)];
+    input.readFully(data);
+    final long fetchedAt = input.readLong();
+    final String eTag = readNullableUtf8(input);
+    final String lastModified = readNullableUtf8(input);
+    final int fieldCount = (int) readVarLong(input);
+    final String[] fields = fieldCount == 0 ? null : new String[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      fields[i] = readUtf8(input);
+    }
+    return new MetadataRecord(data, fetchedAt, eTag, lastModified, fields);
+  }
+
+  private static final class Writer {
+    private final DataOutput output;
+    private final Map<String, Integer> keys = new HashMap<>();
+
+    Writer(DataOutput output) {
+      this.output = output;
+    }
+
+    void write(JsonValue value) throws IOException {
+      switch (value.getValueType()) {
+      case NULL:
+        this.output.writeByte(TAG_NULL);
+        break;
+      case TRUE:
+        this.output.writeByte(TAG_TRUE);
+        break;
+      case FALSE:
+        this.output.writeByte(TAG_FALSE);
+        break;
+      case NUMBER:
+        this.writeNumber(((JsonNumber) value).bigDecimalValue());
+        break;
+      case STRING:
+        this.writeString(((JsonString) value).getString());
+        break;
+      case ARRAY:
+        final JsonArray array = value.asJsonArray();
+        this.output.writeByte(TAG_ARRAY);
+        writeVarLong(this.output, array.size());
+        for (JsonValue item : array) {
+          this.write(item);
+        }
+        break;
+      case OBJECT:
+        final JsonObject object = value.asJsonObject();
+        this.output.writeByte(TAG_OBJECT);
+        writeVarLong(this.output, object.size());
+        for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+          this.writeKey(entry.getKey());
+          this.write(entry.getValue());
+        }
+        break;
+      default:
+        throw new IllegalArgumentException(value.getValueType().toString());
+      }
+    }
+
+    /**
+     * Write the value that the parser just returned. This gives the same bytes as {@link #write(JsonValue)}. Since
+     * the size of an array or object comes before its content, one byte is reserved for the size, and the size is
+     * written there once the content has been written (see {@link RecordBuffer#patchVarLong(int, long)}).
+     *
+     * @param parser The parser
+     * @param event The event for the value
+     * @param buffer The buffer that {@link #output} writes to
+     */
+    void write(JsonParser parser, JsonParser.Event event, RecordBuffer buffer) throws IOException {
+      switch (event) {
+      case VALUE_NULL:
+        this.output.writeByte(TAG_NULL);
+        break;
+      case VALUE_TRUE:
+        this.output.writeByte(TAG_TRUE);
+        break;
+      case VALUE_FALSE:
+        this.output.writeByte(TAG_FALSE);
+        break;
+      case VALUE_NUMBER:
+        this.writeNumber(parser.getBigDecimal());
+        break;
+      case VALUE_STRING:
+        this.writeString(parser.getString());
+        break;
+      case START_ARRAY:
+        this.output.writeByte(TAG_ARRAY);
+        final int arraySizePosition = buffer.reserve();
+        long arraySize = 0;
+        for (JsonParser.Event next = parser.next(); next != JsonParser.Event.END_ARRAY; next = parser.next()) {
+          this.write(parser, next, buffer);
+          arraySize++;
+        }
+        buffer.patchVarLong(arraySizePosition, arraySize);
+        break;
+      case START_OBJECT:
+        this.output.writeByte(TAG_OBJECT);
+        final int objectSizePosition = buffer.reserve();
+        long objectSize = 0;
+        for (JsonParser.Event next = parser.next(); next != JsonParser.Event.END_OBJECT; next = parser.next()) {
+          this.writeKey(parser.getString());
+          this.write(parser, parser.next(), buffer);
+          objectSize++;
+        }
+        buffer.patchVarLong(objectSizePosition, objectSize);
+        break;
+      default:
+        throw new JsonException("Mapillary: Unexpected JSON event " + event);
+      }
+    }
+
+    private void writeNumber(BigDecimal number) throws IOException {
+      if (number.scale() == 0 && number.unscaledValue().bitLength() < Long.SIZE) {
+        this.output.writeByte(TAG_LONG);
+        writeVarLong(this.output, zigZag(number.longValue()));
+        return;
+      }
+      final double doubleValue = number.doubleValue();
+      if (!Double.isInfinite(doubleValue) && BigDecimal.valueOf(doubleValue).equals(number)) {
+        this.output.writeByte(TAG_DOUBLE);
+        this.output.writeDouble(doubleValue);
+      } else {
+        this.output.writeByte(TAG_BIG_NUMBER);
+        writeUtf8(this.output, number.toString());
+      }
+    }
+
+    private void writeString(String string) throws IOException {
+      if (ID_PATTERN.matcher(string).matches()) {
+        this.output.writeByte(TAG_ID_STRING);
+        writeVarLong(this.output, Long.parseLong(string));
+        return;
+      }
+      final Instant instant = parseInstant(string);
+      if (instant != null) {
+        this.output.writeByte(TAG_INSTANT_STRING);
+        writeVarLong(this.output, zigZag(instant.toEpochMilli()));
+        return;
+      }
+      this.output.writeByte(TAG_STRING);
+      writeUtf8(this.output, string);
+    }
+
+    /**
+     * Write an object key. The first time a key is seen, the key is written after its index. Afterwards, only the
+     * index is written.
+     */
+    private void writeKey(String key) throws IOException {
+      final Integer index = this.keys.get(key);
+      if (index != null) {
+        writeVarLong(this.output, index);
+      } else {
+        final int newIndex = this.keys.size();
+        this.keys.put(key, newIndex);
+        writeVarLong(this.output, newIndex);
+        writeUtf8(this.output, key);
+      }
+    }
+  }
+
+  /**
+   * The buffer for a record that is read from a parser. Sizes that are only known after the content has been written
+   * are written into a byte that was reserved for them, so nested arrays and objects don't need their own buffers.
+   */
+  private static final class RecordBuffer extends ByteArrayOutputStream {
+    RecordBuffer() {
+      super(1024);
+    }
+
+    /**
+     * Reserve one byte for a size
+     *
+     * @return The position of the reserved byte
+     */
+    int reserve() {
+      this.write(0);
+      return this.count - 1;
+    }
+
+    /**
+     * Write a variable length number into a reserved byte. Numbers of 128 and more need more than one byte, so the
+     * bytes after the reserved byte are moved for them.
+     *
+     * @param position The position of the reserved byte
+     * @param value The number to write
+     */
+    void patchVarLong(int position, long value) {
+      int length = 1;
+      for (long remaining = value >>> 7; remaining != 0; remaining >>>= 7) {
+        length++;
+      }
+      if (length > 1) {
+        final int contentStart = position + 1;
+        final int contentLength = this.count - contentStart;
+        // Grow the buffer by the extra bytes, and move the content behind them
+        this.write(new byte[length - 1], 0, length - 1);
+        System.arraycopy(this.buf, contentStart, this.buf, position + length, contentLength);
+      }
+      long remaining = value;
+      for (int i = 0; i < length - 1; i++) {
+        this.buf[position + i] = (byte) ((remaining & 0x7F) | 0x80);
+        remaining >>>= 7;
+      }
+      this.buf[position + length - 1] = (byte) remaining;
+    }
+  }
+
+  private static final class Reader {
+    private final DataInput input;
+    private final List<String> keys = new ArrayList<>();
+
+    Reader(DataInput input) {
+      this.input = input;
+    }
+
+    JsonValue read() throws IOException {
+      return this.read(this.input.readByte());
+    }
+
+    JsonValue read(byte tag) throws IOException {
+      switch (tag) {
+      case TAG_NULL:
+        return JsonValue.NULL;
+      case TAG_TRUE:
+        return JsonValue.TRUE;
+      case TAG_FALSE:
+        return JsonValue.FALSE;
+      case TAG_LONG:
+        return Json.createValue(unZigZag(readVarLong(this.input)));
+      case TAG_DOUBLE:
+        return Json.createValue(this.input.readDouble());
+      case TAG_BIG_NUMBER:
+        return Json.createValue(new BigDecimal(readUtf8(this.input)));
+      case TAG_STRING:
+        return Json.createValue(readUtf8(this.input));
+      case TAG_ID_STRING:
+        return Json.createValue(Long.toString(readVarLong(this.input)));
+      case TAG_INSTANT_STRING:
+        return Json.createValue(Instant.ofEpochMilli(unZigZag(readVarLong(this.input))).toString());
+      case TAG_ARRAY:
+        final long arraySize = readVarLong(this.input);
+        final JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+        for (long i = 0; i < arraySize; i++) {
+          arrayBuilder.add(this.read());
+        }
+        return arrayBuilder.build();
+      case TAG_OBJECT:
+        final long objectSize = readVarLong(this.input);
+        final JsonObjectBuilder objectBuilder = Json.createObjectBuilder();
+        for (long i = 0; i < objectSize; i++) {
+          final String key = this.readKey();
+          objectBuilder.add(key, this.read());
+        }
+        return objectBuilder.build();
+      default:
+        throw new IOException("Unknown metadata record tag: " + tag);
+      }
+    }
+
+    /**
+     * Read a string, number or boolean as the text it has in a tag. This is the same text as the JSON decoders use.
+     *
+     * @param tag The tag of the value, which has already been read
+     * @return The text
+     */
+    String readScalar(byte tag) throws IOException {
+      switch (tag) {
+      case TAG_TRUE:
+        return Boolean.TRUE.toString();
+      case TAG_FALSE:
+        return Boolean.FALSE.toString();
+      case TAG_LONG:
+        return Long.toString(unZigZag(readVarLong(this.input)));
+      case TAG_DOUBLE:
+        return BigDecimal.valueOf(this.input.readDouble()).toString();
+      case TAG_BIG_NUMBER:
+        return new BigDecimal(readUtf8(this.input)).toString();
+      case TAG_STRING:
+        return readUtf8(this.input);
+      case TAG_ID_STRING:
+        return Long.toString(readVarLong(this.input));
+      case TAG_INSTANT_STRING:
+        return Instant.ofEpochMilli(unZigZag(readVarLong(this.input))).toString();
+      default:
+        throw new IOException("Not a scalar metadata record tag: " + tag);
+      }
+    }
+
+    /**
+     * Read the top level values of an image object
+     *
+     * @return The values of the image
+     */
+    ImageValues readImage() throws IOException {
+      final long size = readVarLong(this.input);
+      final Map<String, String> tags = new LinkedHashMap<>();
+      final Map<String, String> structured = new HashMap<>();
+      String id = null;
+      LatLon geometry = null;
+      LatLon computedGeometry = null;
+      for (long i = 0; i < size; i++) {
+        final String key = this.readKey();
+        final byte tag = this.input.readByte();
+        if (tag == TAG_OBJECT || tag == TAG_ARRAY || tag == TAG_NULL) {
+          // These are small (geometries, camera parameters), and they are kept as JSON text anyway
+          final JsonValue value = this.read(tag);
+          structured.put(key, value.toString());
+          if (GEOMETRY.equals(key)) {
+            geometry = getCoordinates(value);
+          } else if (COMPUTED_GEOMETRY.equals(key)) {
+            computedGeometry = getCoordinates(value);
+          }
+        } else {
+          final String text = this.readScalar(tag);
+          tags.put(key, text);
+          if (ID.equals(key) && (tag == TAG_STRING || tag == TAG_ID_STRING)) {
+            id = text;
+          }
+        }
+      }
+      return new ImageValues(id, tags, structured, geometry, computedGeometry);
+    }
+
+    /**
+     * Skip a value. Keys that are seen for the first time are still remembered, since later keys refer to them.
+     */
+    void skip() throws IOException {
+      this.skip(this.input.readByte());
+    }
+
+    void skip(byte tag) throws IOException {
+      switch (tag) {
+      case TAG_NULL:
+      case TAG_TRUE:
+      case TAG_FALSE:
+        break;
+      case TAG_LONG:
+      case TAG_ID_STRING:
+      case TAG_INSTANT_STRING:
+        readVarLong(this.input);
+        break;
+      case TAG_DOUBLE:
+        this.input.readDouble();
+        break;
+      case TAG_BIG_NUMBER:
+      case TAG_STRING:
+        this.input.skipBytes((int) readVarLong(this.input));
+        break;
+      case TAG_ARRAY:
+        final long arraySize = readVarLong(this.input);
+        for (long i = 0; i < arraySize; i++) {
+          this.skip();
+        }
+        break;
+      case TAG_OBJECT:
+        final long objectSize = readVarLong(this.input);
+        for (long i = 0; i < objectSize; i++) {
+          this.readKey();
+          this.skip();
+        }
+        break;
+      default:
+        throw new IOException("Unknown metadata record tag: " + tag);
+      }
+    }
+
+    String readKey() throws IOException {
+      final int index = (int) readVarLong(this.input);
+      if (index < this.keys.size()) {
+        return this.keys.get(index);
+      }
+      final String key = readUtf8(this.input);
+      this.keys.add(key);
+      return key;
+    }
+  }
+
+  /**
+   * Parse an ISO-8601 timestamp, if it can be written back exactly as it was
+   *
+   * @param string The string to parse
+   * @return The instant, or {@code null} if the string is not a (round-trippable) timestamp
+   */
+  @Nullable
+  private static Instant parseInstant(String string) {
+    // Cheap check first: 2021-01-01T00:00:00Z
+    if (string.length() < 20 || string.length() > 24 || string.charAt(4) != '-' || string.charAt(10) != 'T') {
+      return null;
+    }
+    try {
+      final Instant instant = Instant.parse(string);
+      return Instant.ofEpochMilli(instant.toEpochMilli()).toString().equals(string) ? instant : null;
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  private static void writeUtf8(DataOutput output, String string) throws IOException {
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(output, bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readUtf8(DataInput input) throws IOException {
+    final byte[] bytes = new byte[(int) readVarLong(input)];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeNullableUtf8(DataOutput output, @Nullable String string) throws IOException {
+    output.writeBoolean(string != null);
+    if (string != null) {
+      writeUtf8(output, string);
+    }
+  }
+
+  @Nullable
+  private static String readNullableUtf8(DataInput input) throws IOException {
+    return input.readBoolean() ? readUtf8(input) : null;
+  }
+
+  private static void writeVarLong(DataOutput output, long value) throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      output.writeByte((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    output.writeByte((int) remaining);
+  }
+
+  private static long readVarLong(DataInput input) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      final byte b = input.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length number");
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,874 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * An on-disk store for {@link MetadataRecord}s. Records are appended to a data file, and are found with an open
+ * addressing hash index that is memory mapped. The index doesn't use heap, and opening the store doesn't read it.
+ * Records are compressed (see {@link MetadataCompression}).
+ * <p>
+ * The index is keyed by 64-bit ids. Image information keys use the image id, and other keys (e.g. sequence URLs) are
+ * hashed. The full key is stored with each record, so records for colliding keys are treated as misses.
+ * <p>
+ * The data file is the source of truth. The index remembers how much of the data file it covered at the last
+ * checkpoint, and whether it was closed cleanly. If it wasn't, the records written since the checkpoint are replayed,
+ * and an incomplete record at the end of the data file is cut off. An index that doesn't belong to the data file is
+ * rebuilt from the data file.
+ * <p>
+ * Replaced and removed records stay in the data file until it is compacted. Compaction also drops expired records,
+ * and the oldest records if there are too many.
+ * <p>
+ * Only one store can have the files open at a time (e.g. when several JOSM instances share a cache directory). The
+ * store holds a lock on a lock file until it is closed, and opening a store whose files are locked fails.
+ */
+public final class MetadataStore implements Closeable {
+  static final String DATA_FILE = "metadata.dat";
+  static final String INDEX_FILE = "metadata.idx";
+  static final String LOCK_FILE = "metadata.lock";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  private static final int DATA_MAGIC = 0x4d4c4d44;
+  private static final int INDEX_MAGIC = 0x4d4c4d49;
+  /** The format version of both files. Increment this whenever the format changes. */
+  private static final int VERSION = 4;
+  /** Magic, version and generation */
+  private static final int DATA_HEADER_SIZE = 16;
+  /** Payload length and checksum */
+  private static final int RECORD_HEADER_SIZE = 8;
+  /** Anything larger than this is a corrupt length */
+  private static final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+  private static final byte TYPE_PUT = 1;
+  private static final byte TYPE_REMOVE = 2;
+
+  private static final int INDEX_MAGIC_OFFSET = 0;
+  private static final int INDEX_VERSION_OFFSET = 4;
+  /** The generation of the data file that the index belongs to */
+  private static final int INDEX_GENERATION_OFFSET = 8;
+  private static final int INDEX_CAPACITY_OFFSET = 16;
+  /** The number of live entries */
+  private static final int INDEX_SIZE_OFFSET = 20;
+  /** The number of live and deleted slots */
+  private static final int INDEX_USED_OFFSET = 24;
+  private static final int INDEX_CLEAN_OFFSET = 28;
+  /** The length of the data file at the last checkpoint */
+  private static final int INDEX_CHECKPOINT_OFFSET = 32;
+  /** The number of bytes used by live records (approximate after a crash) */
+  private static final int INDEX_LIVE_BYTES_OFFSET = 40;
+  private static final int INDEX_HEADER_SIZE = 64;
+  /** Id and data file offset */
+  private static final int SLOT_SIZE = 16;
+  private static final long EMPTY = 0;
+  private static final long DELETED = -1;
+  private static final double MAX_LOAD = 0.7;
+  private static final int DEFAULT_CAPACITY = 1 << 17;
+  private static final int MAX_CAPACITY = 1 << 26;
+
+  /** The number of writes between checkpoints */
+  private static final int CHECKPOINT_INTERVAL = 1000;
+  /** Don't bother compacting small data files */
+  private static final long MIN_COMPACTION_SIZE = 16L * 1024 * 1024;
+  /** Mapillary image ids are numeric */
+  private static final Pattern NUMERIC_ID = Pattern.compile("[0-9]{1,18}");
+
+  private final Path directory;
+  private final int maxEntries;
+  private final long maxAge;
+  private final LongSupplier clock;
+  @Nullable
+  private final CacheStatistics statistics;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final MetadataCompression compression = new MetadataCompression();
+  private final FileChannel lockChannel;
+  private final FileLock fileLock;
+  private FileChannel data;
+  private final FileChannel indexChannel;
+  private MappedByteBuffer index;
+  private long dataLength;
+  private long generation;
+  private int writesSinceCheckpoint;
+  private boolean closed;
+
+  /**
+   * A record read from the data file
+   */
+  private static final class Entry {
+    private final long storedAt;
+    private final String key;
+    private final MetadataRecord record;
+
+    Entry(long storedAt, String key, MetadataRecord record) {
+      this.storedAt = storedAt;
+      this.key = key;
+      this.record = record;
+    }
+  }
+
+  /**
+   * Create a new store
+   *
+   * @param directory The directory for the store files
+   * @param initialCapacity The initial number of index slots (a power of two)
+   * @param maxEntries The number of entries to keep when compacting
+   * @param maxAge The time to keep entries for, in milliseconds
+   * @param clock The clock to use (epoch milliseconds)
+   * @param statistics The statistics to record the compression ratio and decompression time in, if any
+   * @throws IOException If the store could not be opened, or its files are in use by another store
+   */
+  MetadataStore(@Nonnull File directory, int initialCapacity, int maxEntries, long maxAge,
+    @Nonnull LongSupplier clock, @Nullable CacheStatistics statistics) throws IOException {
+    this.directory = directory.toPath();
+    this.maxEntries = maxEntries;
+    this.maxAge = maxAge;
+    this.clock = clock;
+    this.statistics = statistics;
+    Files.createDirectories(this.directory);
+    this.lockChannel = FileChannel.open(this.getPath(LOCK_FILE), StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE);
+    this.fileLock = tryLock(this.lockChannel);
+    if (this.fileLock == null) {
+      Utils.close(this.lockChannel);
+      throw new IOException("The metadata store in " + directory + " is in use");
+    }
+    // Left over from an interrupted compaction
+    FileChannel openedIndex = null;
+    try {
+      Files.deleteIfExists(this.getPath(DATA_FILE + TEMPORARY_SUFFIX));
+      this.data = FileChannel.open(this.getPath(DATA_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+      openedIndex = FileChannel.open(this.getPath(INDEX_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.indexChannel = openedIndex;
+      this.openData();
+      this.openIndex(initialCapacity);
+      this.checkpoint();
+    } catch (IOException | RuntimeException e) {
+      Utils.close(this.data);
+      Utils.close(openedIndex);
+      this.compression.end();
+      this.releaseLock();
+      throw e;
+    }
+  }
+
+  /**
+   * Lock the lock file of a store
+   *
+   * @param channel The lock file
+   * @return The lock, or {@code null} if another store holds it
+   * @throws IOException If the lock file could not be locked
+   */
+  @Nullable
+  private static FileLock tryLock(@Nonnull FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Held by another store in this JVM
+      Logging.trace(e);
+      return null;
+    }
+  }
+
+  private void releaseLock() {
+    try {
+      this.fileLock.release();
+    } catch (IOException e) {
+      Logging.trace(e);
+    }
+    Utils.close(this.lockChannel);
+  }
+
+  /**
+   * Open a store
+   *
+   * @param directory The directory for the store files
+   * @param maxEntries The number of entries to keep when compacting
+   * @param maxAge The time to keep entries for, in milliseconds
+   * @param statistics The statistics to record the compression ratio and decompression time in, if any
+   * @return The store, or {@code null} if it could not be opened
+   */
+  @Nullable
+  public static MetadataStore open(@Nonnull File directory, int maxEntries, long maxAge,
+    @Nullable CacheStatistics statistics) {
+    try {
+      return new MetadataStore(directory, DEFAULT_CAPACITY, maxEntries, maxAge, System::currentTimeMillis,
+        statistics);
+    } catch (IOException e) {
+      Logging.error(e);
+      return null;
+    } catch (RuntimeException e) {
+      // A corrupt file shouldn't break the metadata cache, which can use the JCS region instead
+      Logging.error(e);
+      return null;
+    }
+  }
+
+  /**
+   * Get a record
+   *
+   * @param key The key of the record
+   * @return The record, or {@code null} if it isn't in the store or has expired
+   */
+  @Nullable
+  public MetadataRecord get(@Nonnull String key) {
+    final long id = getId(key);
+    this.lock.readLock().lock();
+    try {
+      if (this.closed) {
+        return null;
+      }
+      final int slot = this.findSlot(id);
+      if (slot < 0) {
+        return null;
+      }
+      final Entry entry = this.readEntry(this.getSlotOffset(slot));
+      if (entry == null || entry.record == null || !key.equals(entry.key) || this.isExpired(entry.storedAt)) {
+        return null;
+      }
+      return entry.record;
+    } catch (IOException e) {
+      Logging.error(e);
+      return null;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Store a record, replacing any record with the same key
+   *
+   * @param key The key of the record
+   * @param record The record
+   */
+  public void put(@Nonnull String key, @Nonnull MetadataRecord record) {
+    this.write(key, TYPE_PUT, record);
+  }
+
+  /**
+   * Remove a record
+   *
+   * @param key The key of the record
+   */
+  public void remove(@Nonnull String key) {
+    this.write(key, TYPE_REMOVE, null);
+  }
+
+  /**
+   * Remove all records
+   */
+  public void clear() {
+    this.lock.writeLock().lock();
+    try {
+      if (this.closed) {
+        return;
+      }
+      this.generation = newGeneration(this.generation);
+      writeDataHeader(this.data, this.generation);
+      this.dataLength = DATA_HEADER_SIZE;
+      this.rebuildIndex(this.getCapacity());
+      this.checkpoint();
+    } catch (IOException e) {
+      Logging.error(e);
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Rewrite the data file with only the current records, and rebuild the index. Expired records are dropped, as are
+   * the oldest records if there are too many.
+   * <p>
+   * This is done automatically when most of the data file is old records, or the index is full.
+   */
+  public void compact() {
+    this.lock.writeLock().lock();
+    try {
+      if (!this.closed) {
+        this.compactLocked();
+      }
+    } catch (IOException e) {
+      Logging.error(e);
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Get the number of records
+   *
+   * @return The number of records (including expired records that haven't been compacted away yet)
+   */
+  public long size() {
+    this.lock.readLock().lock();
+    try {
+      return this.closed ? 0 : this.index.getInt(INDEX_SIZE_OFFSET);
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the size of the data file
+   *
+   * @return The size in bytes
+   */
+  public long getDataSize() {
+    this.lock.readLock().lock();
+    try {
+      return this.dataLength;
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Close the store. Records are not available afterwards.
+   */
+  @Override
+  public void close() {
+    this.lock.writeLock().lock();
+    try {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      this.checkpoint();
+      this.index.putInt(INDEX_CLEAN_OFFSET, 1);
+      this.index.force();
+    } catch (IOException e) {
+      Logging.error(e);
+    } finally {
+      Utils.close(this.data);
+      Utils.close(this.indexChannel);
+      this.compression.end();
+      this.releaseLock();
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Get the index id for a key
+   *
+   * @param key The key
+   * @return The image id for image information keys, or a 64-bit hash of the key
+   */
+  static long getId(@Nonnull String key) {
+    if (key.startsWith(MetadataCacheAccess.IMAGE_KEY_PREFIX)) {
+      final String id = key.substring(MetadataCacheAccess.IMAGE_KEY_PREFIX.length());
+      if (NUMERIC_ID.matcher(id).matches()) {
+        return Long.parseLong(id);
+      }
+    }
+    // FNV-1a
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private void write(@Nonnull String key, byte type, @Nullable MetadataRecord record) {
+    final long id = getId(key);
+    this.lock.writeLock().lock();
+    try {
+      if (this.closed || (type == TYPE_REMOVE && this.findSlot(id) < 0)) {
+        return;
+      }
+      if (this.index.getInt(INDEX_USED_OFFSET) + 1 > this.getCapacity() * MAX_LOAD) {
+        this.compactLocked();
+      }
+      final ByteBuffer buffer = this.encode(id, this.clock.getAsLong(), type, key, record);
+      final long offset = this.dataLength;
+      writeFully(this.data, buffer, offset);
+      this.dataLength += buffer.capacity();
+      if (!this.apply(id, offset, type, buffer.capacity())) {
+        Logging.warn("Mapillary: The metadata index is full");
+      }
+      if (++this.writesSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+        this.checkpoint();
+      }
+      if (this.dataLength > MIN_COMPACTION_SIZE
+        && this.dataLength - DATA_HEADER_SIZE > 2 * this.index.getLong(INDEX_LIVE_BYTES_OFFSET)) {
+        this.compactLocked();
+      }
+    } catch (IOException e) {
+      Logging.error(e);
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  private boolean isExpired(long storedAt) {
+    return this.clock.getAsLong() - storedAt > this.maxAge;
+  }
+
+  private Path getPath(@Nonnull String name) {
+    return this.directory.resolve(name);
+  }
+
+  /**
+   * Read the data file header, or start a new data file if it is missing or unreadable
+   */
+  private void openData() throws IOException {
+    this.dataLength = this.data.size();
+    final ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+    if (this.dataLength >= DATA_HEADER_SIZE && readFully(this.data, header, 0) && header.getInt(0) == DATA_MAGIC
+      && header.getInt(4) == VERSION) {
+      this.generation = header.getLong(8);
+    } else {
+      this.generation = newGeneration(0);
+      writeDataHeader(this.data, this.generation);
+      this.dataLength = DATA_HEADER_SIZE;
+    }
+  }
+
+  /**
+   * Map the index. If it doesn't belong to the data file, it is rebuilt. If it wasn't closed cleanly, the records
+   * written since the last checkpoint are replayed.
+   */
+  private void openIndex(int initialCapacity) throws IOException {
+    final long size = this.indexChannel.size();
+    if (size >= INDEX_HEADER_SIZE) {
+      this.index = this.indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      final int capacity = this.index.getInt(INDEX_CAPACITY_OFFSET);
+      final long checkpoint = this.index.getLong(INDEX_CHECKPOINT_OFFSET);
+      if (this.index.getInt(INDEX_MAGIC_OFFSET) == INDEX_MAGIC && this.index.getInt(INDEX_VERSION_OFFSET) == VERSION
+        && this.index.getLong(INDEX_GENERATION_OFFSET) == this.generation && capacity > 0
+        && capacity <= MAX_CAPACITY && Integer.bitCount(capacity) == 1 && getIndexSize(capacity) <= size
+        && checkpoint >= DATA_HEADER_SIZE && checkpoint <= this.dataLength) {
+        if ((this.index.getInt(INDEX_CLEAN_OFFSET) == 0 || checkpoint != this.dataLength)
+          && !this.replay(checkpoint)) {
+          this.rebuildIndex(capacity * 2);
+        }
+        return;
+      }
+      // Nothing in the rejected index can be trusted, including its capacity
+      this.index = null;
+    }
+    this.rebuildIndex(initialCapacity);
+  }
+
+  /**
+   * Rebuild the index from the data file
+   *
+   * @param initialCapacity The smallest capacity to use (up to {@link #MAX_CAPACITY}). This is doubled until all
+   * records fit.
+   */
+  private void rebuildIndex(int initialCapacity) throws IOException {
+    int capacity = Math.min(MAX_CAPACITY, Math.max(initialCapacity, this.index != null ? this.getCapacity() : 0));
+    while (true) {
+      this.mapIndex(capacity);
+      if (this.replay(DATA_HEADER_SIZE) || capacity >= MAX_CAPACITY) {
+        return;
+      }
+      capacity *= 2;
+    }
+  }
+
+  /**
+   * Map an empty index. The index file is never shrunk, since some platforms can't truncate mapped files.
+   */
+  private void mapIndex(int capacity) throws IOException {
+    final long size = getIndexSize(capacity);
+    this.index = this.indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    for (int position = 0; position < size; position += Long.BYTES) {
+      this.index.putLong(position, 0);
+    }
+    this.index.putInt(INDEX_MAGIC_OFFSET, INDEX_MAGIC);
+    this.index.putInt(INDEX_VERSION_OFFSET, VERSION);
+    this.index.putLong(INDEX_GENERATION_OFFSET, this.generation);
+    this.index.putInt(INDEX_CAPACITY_OFFSET, capacity);
+    this.index.putLong(INDEX_CHECKPOINT_OFFSET, DATA_HEADER_SIZE);
+  }
+
+  /**
+   * Add the records from a position in the data file to the index. Anything after the last complete record is cut
+   * off.
+   *
+   * @param from The position to start at
+   * @return {@code false} if the index is too small
+   */
+  private boolean replay(long from) throws IOException {
+    // After a crash, the index may point to records that never made it to the disk
+    this.recount(this.dataLength);
+    long position = from;
+    while (position < this.dataLength) {
+      final ByteBuffer buffer = this.readRaw(position);
+      if (buffer == null) {
+        break;
+      }
+      final long id = buffer.getLong(RECORD_HEADER_SIZE);
+      final byte type = buffer.get(RECORD_HEADER_SIZE + 2 * Long.BYTES);
+      if (!this.apply(id, position, type, buffer.capacity())) {
+        return false;
+      }
+      position += buffer.capacity();
+    }
+    if (position < this.dataLength) {
+      Logging.warn("Mapillary: Discarding {0} bytes of incomplete metadata records", this.dataLength - position);
+      this.data.truncate(position);
+      this.dataLength = position;
+      this.recount(position);
+    }
+    return true;
+  }
+
+  /**
+   * Recount the entries in the index, and delete the entries that point past the end of the data file
+   *
+   * @param end The end of the data file
+   */
+  private void recount(long end) {
+    final int capacity = this.getCapacity();
+    int size = 0;
+    int used = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      final long offset = this.getSlotOffset(slot);
+      if (offset >= end) {
+        // Keep the probe sequence intact
+        this.setSlotOffset(slot, DELETED);
+      } else if (offset > 0) {
+        size++;
+      }
+      if (offset != EMPTY) {
+        used++;
+      }
+    }
+    this.index.putInt(INDEX_SIZE_OFFSET, size);
+    this.index.putInt(INDEX_USED_OFFSET, used);
+    this.index.putLong(INDEX_LIVE_BYTES_OFFSET,
+      Math.max(0, Math.min(this.index.getLong(INDEX_LIVE_BYTES_OFFSET), end - DATA_HEADER_SIZE)));
+  }
+
+  /**
+   * Apply a record to the index
+   *
+   * @param id The id of the record
+   * @param offset The offset of the record in the data file
+   * @param type The type of the record
+   * @param length The length of the record in the data file
+   * @return {@code false} if the index is too full to add the record
+   */
+  private boolean apply(long id, long offset, byte type, int length) throws IOException {
+    final int existing = this.findSlot(id);
+    if (existing >= 0) {
+      final long oldOffset = this.getSlotOffset(existing);
+      if (oldOffset != offset) {
+        this.addLiveBytes(-this.readLength(oldOffset));
+        if (type == TYPE_PUT) {
+          this.setSlotOffset(existing, offset);
+          this.addLiveBytes(length);
+        } else {
+          this.setSlotOffset(existing, DELETED);
+          this.index.putInt(INDEX_SIZE_OFFSET, this.index.getInt(INDEX_SIZE_OFFSET) - 1);
+        }
+      }
+      return true;
+    } else if (type != TYPE_PUT) {
+      return true;
+    }
+    final int capacity = this.getCapacity();
+    final int used = this.index.getInt(INDEX_USED_OFFSET);
+    if (used + 1 > capacity * MAX_LOAD) {
+      return false;
+    }
+    final int mask = capacity - 1;
+    int slot = home(id) & mask;
+    while (this.getSlotOffset(slot) > 0) {
+      slot = (slot + 1) & mask;
+    }
+    if (this.getSlotOffset(slot) == EMPTY) {
+      this.index.putInt(INDEX_USED_OFFSET, used + 1);
+    }
+    this.index.putLong(getSlotPosition(slot), id);
+    this.setSlotOffset(slot, offset);
+    this.index.putInt(INDEX_SIZE_OFFSET, this.index.getInt(INDEX_SIZE_OFFSET) + 1);
+    this.addLiveBytes(length);
+    return true;
+  }
+
+  /**
+   * Find the slot for an id
+   *
+   * @param id The id to look for
+   * @return The slot, or {@code -1} if the id isn't in the index
+   */
+  private int findSlot(long id) {
+    final int capacity = this.getCapacity();
+    final int mask = capacity - 1;
+    int slot = home(id) & mask;
+    for (int i = 0; i < capacity; i++) {
+      final long offset = this.getSlotOffset(slot);
+      if (offset == EMPTY) {
+        return -1;
+      } else if (offset != DELETED && this.index.getLong(getSlotPosition(slot)) == id) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private void compactLocked() throws IOException {
+    final int capacity = this.getCapacity();
+    final long cutoff = Math.max(this.clock.getAsLong() - this.maxAge, this.getOldestKept());
+    final Path dataPath = this.getPath(DATA_FILE);
+    final Path temporary = this.getPath(DATA_FILE + TEMPORARY_SUFFIX);
+    long entries = 0;
+    try (FileChannel compacted = FileChannel.open(temporary, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      writeDataHeader(compacted, newGeneration(this.generation));
+      long position = DATA_HEADER_SIZE;
+      for (int slot = 0; slot < capacity; slot++) {
+        final long offset = this.getSlotOffset(slot);
+        final ByteBuffer buffer = offset > 0 ? this.readRaw(offset) : null;
+        if (buffer != null && buffer.getLong(RECORD_HEADER_SIZE + Long.BYTES) >= cutoff) {
+          writeFully(compacted, buffer, position);
+          position += buffer.capacity();
+          entries++;
+        }
+      }
+      compacted.force(true);
+    }
+    // The index now belongs to the old data file. If we crash before it is rebuilt, it is rebuilt when reopened.
+    this.data.close();
+    try {
+      Files.move(temporary, dataPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      // If the move failed, this is the old data file, and the index still belongs to it
+      this.data = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    this.openData();
+    int newCapacity = capacity;
+    // Leave room for the index to grow before the next compaction
+    while (entries * 2 > newCapacity * MAX_LOAD && newCapacity < MAX_CAPACITY) {
+      newCapacity *= 2;
+    }
+    this.rebuildIndex(newCapacity);
+    this.checkpoint();
+  }
+
+  /**
+   * Get the oldest store time to keep when compacting, so that at most {@link #maxEntries} entries are kept
+   *
+   * @return The oldest time to keep, in epoch milliseconds
+   */
+  private long getOldestKept() throws IOException {
+    final int size = this.index.getInt(INDEX_SIZE_OFFSET);
+    if (size <= this.maxEntries) {
+      return Long.MIN_VALUE;
+    }
+    final long[] storedAt = new long[size];
+    final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+    int count = 0;
+    for (int slot = 0, capacity = this.getCapacity(); slot < capacity && count < size; slot++) {
+      final long offset = this.getSlotOffset(slot);
+      buffer.clear();
+      if (offset > 0 && readFully(this.data, buffer, offset + RECORD_HEADER_SIZE + Long.BYTES)) {
+        storedAt[count++] = buffer.getLong(0);
+      }
+    }
+    Arrays.sort(storedAt, 0, count);
+    return count > this.maxEntries ? storedAt[count - this.maxEntries] : Long.MIN_VALUE;
+  }
+
+  /**
+   * Write the data file and index to disk, and record how much of the data file the index covers
+   */
+  private void checkpoint() throws IOException {
+    this.data.force(false);
+    this.index.putLong(INDEX_CHECKPOINT_OFFSET, this.dataLength);
+    this.index.putInt(INDEX_CLEAN_OFFSET, 0);
+    this.index.force();
+    this.writesSinceCheckpoint = 0;
+  }
+
+  /**
+   * Read a record from the data file, and check it
+   *
+   * @param position The position of the record
+   * @return The record, including its header, or {@code null} if it is incomplete or corrupt
+   */
+  @Nullable
+  private ByteBuffer readRaw(long position) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    if (position + RECORD_HEADER_SIZE > this.dataLength || !readFully(this.data, header, position)) {
+      return null;
+    }
+    final int payloadLength = header.getInt(0);
+    if (payloadLength <= 2 * Long.BYTES || payloadLength > MAX_PAYLOAD_SIZE
+      || position + RECORD_HEADER_SIZE + payloadLength > this.dataLength) {
+      return null;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadLength);
+    if (!readFully(this.data, buffer, position)) {
+      return null;
+    }
+    buffer.flip();
+    final CRC32 crc = new CRC32();
+    crc.update(buffer.array(), RECORD_HEADER_SIZE, payloadLength);
+    return (int) crc.getValue() == buffer.getInt(4) ? buffer : null;
+  }
+
+  @Nullable
+  private Entry readEntry(long position) throws IOException {
+    final ByteBuffer buffer = this.readRaw(position);
+    if (buffer == null) {
+      return null;
+    }
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer.array(),
+      RECORD_HEADER_SIZE + Long.BYTES, buffer.capacity() - RECORD_HEADER_SIZE - Long.BYTES))) {
+      final long storedAt = input.readLong();
+      final byte type = input.readByte();
+      final String key = input.readUTF();
+      if (type != TYPE_PUT) {
+        return new Entry(storedAt, key, null);
+      }
+      // The rest of the payload is the compressed record
+      final byte[] compressed = new byte[input.available()];
+      input.readFully(compressed);
+      try (DataInputStream recordInput = new DataInputStream(
+        new ByteArrayInputStream(this.compression.decompress(compressed, this.statistics)))) {
+        return new Entry(storedAt, key, MetadataRecord.readFrom(recordInput));
+      }
+    } catch (IOException e) {
+      // The checksum matched, so this was written by something else
+      Logging.trace(e);
+      return null;
+    }
+  }
+
+  private int readLength(long position) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+    return readFully(this.data, header, position) ? RECORD_HEADER_SIZE + header.getInt(0) : 0;
+  }
+
+  @Nonnull
+  private ByteBuffer encode(long id, long storedAt, byte type, @Nonnull String key, @Nullable MetadataRecord record)
+    throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      // Header placeholder
+      output.writeLong(0);
+      output.writeLong(id);
+      output.writeLong(storedAt);
+      output.writeByte(type);
+      output.writeUTF(key);
+      if (record != null) {
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        try (DataOutputStream recordOutput = new DataOutputStream(recordBytes)) {
+          record.writeTo(recordOutput);
+        }
+        output.write(this.compression.compress(recordBytes.toByteArray(), this.statistics));
+      }
+    }
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    final CRC32 crc = new CRC32();
+    crc.update(buffer.array(), RECORD_HEADER_SIZE, buffer.capacity() - RECORD_HEADER_SIZE);
+    buffer.putInt(0, buffer.capacity() - RECORD_HEADER_SIZE);
+    buffer.putInt(4, (int) crc.getValue());
+    return buffer;
+  }
+
+  private static void writeDataHeader(@Nonnull FileChannel channel, long generation) throws IOException {
+    channel.truncate(0);
+    final ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+    header.putInt(DATA_MAGIC).putInt(VERSION).putLong(generation).flip();
+    writeFully(channel, header, 0);
+  }
+
+  private static boolean readFully(@Nonnull FileChannel channel, @Nonnull ByteBuffer buffer, long position)
+    throws IOException {
+    long current = position;
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, current);
+      if (read < 0) {
+        return false;
+      }
+      current += read;
+    }
+    return true;
+  }
+
+  private static void writeFully(@Nonnull FileChannel channel, @Nonnull ByteBuffer buffer, long position)
+    throws IOException {
+    long current = position;
+    while (buffer.hasRemaining()) {
+      current += channel.write(buffer, current);
+    }
+  }
+
+  private int getCapacity() {
+    return this.index.getInt(INDEX_CAPACITY_OFFSET);
+  }
+
+  private long getSlotOffset(int slot) {
+    return this.index.getLong(getSlotPosition(slot) + Long.BYTES);
+  }
+
+  private void setSlotOffset(int slot, long offset) {
+    this.index.putLong(getSlotPosition(slot) + Long.BYTES, offset);
+  }
+
+  private void addLiveBytes(long bytes) {
+    this.index.putLong(INDEX_LIVE_BYTES_OFFSET, this.index.getLong(INDEX_LIVE_BYTES_OFFSET) + bytes);
+  }
+
+  private static int getSlotPosition(int slot) {
+    return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private static long getIndexSize(int capacity) {
+    return INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE;
+  }
+
+  /**
+   * Get the first slot to look at for an id. Image ids are close together, so they are mixed first.
+   */
+  private static int home(long id) {
+    long hash = id;
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return (int) hash;
+  }
+
+  private static long newGeneration(long previous) {
+    long generation;
+    do {
+      generation = ThreadLocalRandom.current().nextLong();
+    } while (generation == previous || generation == 0);
+    return generation;
+  }
+}
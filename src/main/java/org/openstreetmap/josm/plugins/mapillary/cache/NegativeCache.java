@@ -0,0 +1,166 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+
+/**
+ * Remembers lookups that failed recently, so that we don't keep asking Mapillary for the same missing or broken
+ * resource. Each failure is forgotten after a short, per-failure type, time.
+ */
+public final class NegativeCache {
+  /** The maximum number of failures to remember */
+  private static final int MAX_ENTRIES = 10_000;
+  /** The response code JOSM uses for downloads that failed without a response (timeouts, connection problems) */
+  static final int HTTP_CONNECTION_FAILED = 599;
+
+  /** The classes of failure that we remember */
+  public enum Failure {
+    /** The resource does not exist (HTTP 404, or a 4xx error from the API) */
+    NOT_FOUND(MapillaryProperties.NEGATIVE_CACHE_TTL_NOT_FOUND),
+    /** The server had a problem (HTTP 5xx) */
+    SERVER_ERROR(MapillaryProperties.NEGATIVE_CACHE_TTL_SERVER_ERROR),
+    /** The request timed out, or there was no response at all (JOSM reports both as HTTP 599) */
+    TIMEOUT(MapillaryProperties.NEGATIVE_CACHE_TTL_TIMEOUT);
+
+    private final IntegerProperty timeToLive;
+
+    Failure(IntegerProperty timeToLive) {
+      this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Get the time that this failure is remembered for
+     *
+     * @return The time to live, in milliseconds
+     */
+    public long getTimeToLive() {
+      return TimeUnit.SECONDS.toMillis(Math.max(0, this.timeToLive.get()));
+    }
+
+    /**
+     * Get the failure class for an HTTP response code
+     *
+     * @param responseCode The response code
+     * @return The failure class, or {@code null} if the response code is not a failure we remember
+     */
+    @Nullable
+    public static Failure forResponseCode(int responseCode) {
+      // 429 is handled by the rate limit governor
+      if (responseCode == HTTP_CONNECTION_FAILED) {
+        return TIMEOUT;
+      } else if (responseCode >= 500) {
+        return SERVER_ERROR;
+      } else if (responseCode >= 400 && responseCode != 429) {
+        return NOT_FOUND;
+      }
+      return null;
+    }
+
+    /**
+     * Get the failure class for an exception thrown by a request
+     *
+     * @param exception The exception
+     * @return The failure class, or {@code null} if the exception is not a failure we remember
+     */
+    @Nullable
+    public static Failure forException(@Nonnull Exception exception) {
+      return exception instanceof SocketTimeoutException ? TIMEOUT : null;
+    }
+  }
+
+  private static final class Entry {
+    final Failure failure;
+    final long expiresAt;
+
+    Entry(Failure failure, long expiresAt) {
+      this.failure = failure;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final WeightedLruCache<String, Entry> entries;
+  private final LongSupplier clock;
+
+  /**
+   * Create a new negative cache
+   */
+  public NegativeCache() {
+    this(MAX_ENTRIES, System::currentTimeMillis);
+  }
+
+  /**
+   * Create a new negative cache
+   *
+   * @param maxEntries The maximum number of failures to remember
+   * @param clock The clock to use (epoch milliseconds)
+   */
+  NegativeCache(int maxEntries, @Nonnull LongSupplier clock) {
+    this.entries = new WeightedLruCache<>(entry -> 1, () -> maxEntries);
+    this.clock = clock;
+  }
+
+  /**
+   * Remember a failed lookup
+   *
+   * @param key The key that failed (usually a URL)
+   * @param failure The failure class
+   */
+  public void put(@Nonnull String key, @Nonnull Failure failure) {
+    final long timeToLive = failure.getTimeToLive();
+    if (timeToLive > 0) {
+      this.entries.put(key, new Entry(failure, this.clock.getAsLong() + timeToLive));
+    }
+  }
+
+  /**
+   * Check if a lookup failed recently
+   *
+   * @param key The key to look up (usually a URL)
+   * @return The failure, or {@code null} if the lookup hasn't failed recently
+   */
+  @Nullable
+  public Failure get(@Nonnull String key) {
+    final Entry entry = this.entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (this.clock.getAsLong() - entry.expiresAt >= 0) {
+      this.entries.remove(key);
+      return null;
+    }
+    return entry.failure;
+  }
+
+  /**
+   * Forget a failure (e.g., when the resource was loaded by other means)
+   *
+   * @param key The key to forget
+   */
+  public void remove(@Nonnull String key) {
+    this.entries.remove(key);
+  }
+
+  /**
+   * Forget all failures
+   */
+  public void clear() {
+    this.entries.clear();
+  }
+
+  /**
+   * Get the number of failures currently remembered (including expired failures that haven't been removed yet)
+   *
+   * @return The number of failures
+   */
+  public int size() {
+    return this.entries.size();
+  }
+}
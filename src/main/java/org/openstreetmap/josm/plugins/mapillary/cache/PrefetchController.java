@@ -0,0 +1,287 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openstreetmap.josm.data.osm.INode;
+import org.openstreetmap.josm.plugins.mapillary.io.download.MapillaryDownloader;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryUtils;
+
+/**
+ * Prefetches the images around the selected image.
+ * <p>
+ * Every selection starts a new generation. Prefetches from older generations that haven't started downloading yet
+ * are cancelled, so that jumping around doesn't leave a queue of images nobody will look at. The prefetch window is
+ * biased toward the direction the user has been stepping in, and grows when the user steps through images quickly.
+ */
+public final class PrefetchController {
+  /** The number of images to decode ahead of and behind the current image */
+  private static final int DECODE_AHEAD_COUNT = 2;
+  /** The number of steps used to guess the direction and speed of travel */
+  private static final int STEP_HISTORY = 5;
+  /** Steps older than this are not used to guess the direction and speed of travel */
+  private static final long STEP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  /** At this time between steps, the window has its configured size */
+  private static final long REFERENCE_STEP_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  /** The smallest and largest factors for the window size */
+  private static final double MIN_WINDOW_SCALE = 0.5;
+  private static final double MAX_WINDOW_SCALE = 2;
+  /** The smallest part of the window used for the direction the user is not travelling in */
+  private static final double MIN_DIRECTION_SHARE = 0.2;
+
+  private static final PrefetchController INSTANCE = new PrefetchController(System::currentTimeMillis);
+
+  private final LongSupplier clock;
+  private final AtomicLong generation = new AtomicLong();
+  private final Deque<Step> steps = new ArrayDeque<>(STEP_HISTORY);
+  /** The image downloads started by the current generation */
+  private final Set<MapillaryCache> jobs = ConcurrentHashMap.newKeySet();
+
+  /**
+   * A step from one image to the next or previous image in the sequence
+   */
+  private static final class Step {
+    private final MapillarySequenceUtils.NextOrPrevious direction;
+    private final long time;
+
+    Step(MapillarySequenceUtils.NextOrPrevious direction, long time) {
+      this.direction = direction;
+      this.time = time;
+    }
+  }
+
+  /**
+   * The number of images to prefetch in each direction
+   */
+  static final class Window {
+    private final int next;
+    private final int previous;
+
+    Window(int next, int previous) {
+      this.next = next;
+      this.previous = previous;
+    }
+
+    /**
+     * Get the number of images to prefetch in a direction
+     *
+     * @param direction The direction
+     * @return The number of images
+     */
+    int get(@Nonnull MapillarySequenceUtils.NextOrPrevious direction) {
+      return direction == MapillarySequenceUtils.NextOrPrevious.NEXT ? this.next : this.previous;
+    }
+  }
+
+  /**
+   * Create a new controller
+   *
+   * @param clock The clock to use, in milliseconds
+   */
+  PrefetchController(@Nonnull LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Get the shared controller
+   *
+   * @return The controller
+   */
+  @Nonnull
+  public static PrefetchController getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Record that the user stepped to the next or previous image
+   *
+   * @param direction The direction of the step
+   */
+  public void recordStep(@Nonnull MapillarySequenceUtils.NextOrPrevious direction) {
+    synchronized (this.steps) {
+      if (this.steps.size() == STEP_HISTORY) {
+        this.steps.removeFirst();
+      }
+      this.steps.addLast(new Step(direction, this.clock.getAsLong()));
+    }
+  }
+
+  /**
+   * Prefetch the images around an image. Prefetches for previously selected images that haven't started yet are
+   * cancelled. The prefetching is done in a separate thread.
+   *
+   * @param currentImage The image to prefetch around
+   */
+  public void prefetch(@Nonnull INode currentImage) {
+    final long currentGeneration = this.generation.incrementAndGet();
+    this.cancelStale();
+    MapillaryUtils.getForkJoinPool(MapillaryCache.class)
+      .execute(() -> this.runnablePrefetch(currentImage, currentGeneration));
+  }
+
+  /**
+   * Cancel the prefetches that haven't started yet
+   */
+  public void cancel() {
+    this.generation.incrementAndGet();
+    this.cancelStale();
+  }
+
+  private void cancelStale() {
+    for (MapillaryCache job : this.jobs) {
+      this.jobs.remove(job);
+      // Downloads that other jobs (e.g. the image that is shown, or an export) joined are kept for them
+      job.cancelIfQueued();
+    }
+  }
+
+  private boolean isStale(long jobGeneration) {
+    return this.generation.get() != jobGeneration;
+  }
+
+  private void runnablePrefetch(final INode currentImage, final long jobGeneration) {
+    if (this.isStale(jobGeneration)) {
+      return;
+    }
+    final ForkJoinPool pool = MapillaryUtils.getForkJoinPool(MapillaryCache.class);
+    final WeightedLruCache<String, ?> memoryCache = Caches.FULL_IMAGE_MEMORY_CACHE;
+    // 3 bytes for RGB (jpg doesn't support the Alpha channel). I'm using 4 bytes instead of 3 for a buffer.
+    final long estimatedImageSize = Stream.of(MapillaryCache.Type.FULL_IMAGE, MapillaryCache.Type.THUMBNAIL)
+      .mapToLong(v -> (long) v.getHeight() * v.getWidth() * 4).sum();
+    // It doesn't make sense to try to cache images that won't be kept in memory (the current image must also fit).
+    // Most steps only get a thumbnail, so this is pessimistic.
+    final Window window = this.getWindow((int) Math.min(Integer.MAX_VALUE,
+      Math.max(0, memoryCache.getMaxWeight() / estimatedImageSize - 1)));
+
+    INode nextImage = MapillarySequenceUtils.getNextOrPrevious(currentImage,
+      MapillarySequenceUtils.NextOrPrevious.NEXT);
+    INode prevImage = MapillarySequenceUtils.getNextOrPrevious(currentImage,
+      MapillarySequenceUtils.NextOrPrevious.PREVIOUS);
+    final int count = Math.max(window.get(MapillarySequenceUtils.NextOrPrevious.NEXT),
+      window.get(MapillarySequenceUtils.NextOrPrevious.PREVIOUS));
+    for (int i = 0; i < count && !this.isStale(jobGeneration); i++) {
+      if (WeightedLruCache.isLowMemory()) {
+        break; // The memory cache is shrinking, so prefetched images would just be thrown away
+      }
+      // Download and decode full images for the closest images, so that they can be shown as soon as the user steps
+      // to them. Images further away only get a thumbnail, which is shown until the full image arrives.
+      final boolean decode = i < DECODE_AHEAD_COUNT;
+      if (nextImage != null && i < window.get(MapillarySequenceUtils.NextOrPrevious.NEXT)) {
+        if (MapillaryImageUtils.getKey(nextImage) != null) {
+          final INode current = nextImage;
+          pool.execute(() -> this.prefetchPicture(current, decode, jobGeneration));
+        }
+        nextImage = MapillarySequenceUtils.getNextOrPrevious(nextImage, MapillarySequenceUtils.NextOrPrevious.NEXT);
+      }
+      if (prevImage != null && i < window.get(MapillarySequenceUtils.NextOrPrevious.PREVIOUS)) {
+        if (MapillaryImageUtils.getKey(prevImage) != null) {
+          final INode current = prevImage;
+          pool.execute(() -> this.prefetchPicture(current, decode, jobGeneration));
+        }
+        prevImage = MapillarySequenceUtils.getNextOrPrevious(prevImage, MapillarySequenceUtils.NextOrPrevious.PREVIOUS);
+      }
+    }
+    this.prefetchImageDetails(currentImage, window, jobGeneration);
+  }
+
+  private void prefetchPicture(final INode image, final boolean decode, final long jobGeneration) {
+    if (this.isStale(jobGeneration)) {
+      return;
+    }
+    final MapillaryCache job;
+    if (decode) {
+      job = CacheUtils.downloadAndDecodePicture(image);
+    } else if (new MapillaryCache(image, MapillaryCache.Type.THUMBNAIL).get() == null) {
+      job = CacheUtils.submit(image, MapillaryCache.Type.THUMBNAIL, ImageDownloadExecutor.Priority.FAR_PREFETCH,
+        null);
+    } else {
+      job = null;
+    }
+    this.track(job, jobGeneration);
+  }
+
+  private void track(@Nullable MapillaryCache job, long jobGeneration) {
+    if (job == null) {
+      return;
+    }
+    this.jobs.add(job);
+    // The user may have moved on while the job was being submitted
+    if (this.isStale(jobGeneration) && this.jobs.remove(job)) {
+      job.cancelIfQueued();
+    }
+  }
+
+  /**
+   * Prefetch image details forward and behind (twice as far as the pictures)
+   *
+   * @param currentImage The current image
+   * @param window The picture prefetch window
+   * @param jobGeneration The generation of the prefetch
+   */
+  private void prefetchImageDetails(final INode currentImage, final Window window, final long jobGeneration) {
+    for (MapillarySequenceUtils.NextOrPrevious direction : MapillarySequenceUtils.NextOrPrevious.values()) {
+      INode image = MapillarySequenceUtils.getNextOrPrevious(currentImage, direction);
+      for (int i = 0; i < 2 * window.get(direction) && image != null && !this.isStale(jobGeneration); i++) {
+        final String key = MapillaryImageUtils.getKey(image);
+        if (key != null) {
+          // These are sent together with the other single image requests
+          MapillaryDownloader.requestImage(key);
+        }
+        image = MapillarySequenceUtils.getNextOrPrevious(image, direction);
+      }
+    }
+  }
+
+  /**
+   * Get the prefetch window from the recent steps of the user
+   *
+   * @param maximum The maximum number of images to prefetch in total
+   * @return The number of images to prefetch in each direction
+   */
+  @Nonnull
+  Window getWindow(int maximum) {
+    final long now = this.clock.getAsLong();
+    int stepCount = 0;
+    int nextCount = 0;
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    synchronized (this.steps) {
+      for (Step step : this.steps) {
+        if (now - step.time > STEP_TIMEOUT_MILLIS) {
+          continue;
+        }
+        stepCount++;
+        if (step.direction == MapillarySequenceUtils.NextOrPrevious.NEXT) {
+          nextCount++;
+        }
+        first = Math.min(first, step.time);
+        last = Math.max(last, step.time);
+      }
+    }
+    double scale = 1;
+    if (stepCount > 1) {
+      final double stepMillis = Math.max(1, (last - first) / (double) (stepCount - 1));
+      scale = Math.min(MAX_WINDOW_SCALE, Math.max(MIN_WINDOW_SCALE, REFERENCE_STEP_MILLIS / stepMillis));
+    }
+    final double nextShare = stepCount == 0 ? 0.5
+      : MIN_DIRECTION_SHARE + (1 - 2 * MIN_DIRECTION_SHARE) * nextCount / stepCount;
+    final int total = (int) Math.min(Math.max(0, maximum),
+      Math.round(2 * MapillaryProperties.PRE_FETCH_IMAGE_COUNT.get() * scale));
+    final int next = (int) Math.round(total * nextShare);
+    return new Window(next, total - next);
+  }
+}
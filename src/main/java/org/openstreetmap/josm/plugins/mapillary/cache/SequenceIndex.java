@@ -0,0 +1,315 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.jcs3.access.CacheAccess;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils.NextOrPrevious;
+
+/**
+ * An index of the images in sequences. Each sequence is kept as the ordered ids of its images, and each image id is
+ * mapped back to its sequence and its position in the sequence. Unlike sequence ways, this doesn't keep any
+ * primitives (and so the dataset) alive, and sequences can be stored on disk.
+ * <p>
+ * Recently used sequences are kept in memory. Older sequences are only kept on disk, and are read back by
+ * {@link #getImages(String)}.
+ */
+public final class SequenceIndex {
+  /** The maximum number of images to keep in memory */
+  static final int MAX_MEMORY_IMAGES = 100_000;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.7f;
+
+  @Nullable
+  private final CacheAccess<String, long[]> diskCache;
+  private final int maxImages;
+  /** The sequences in memory, least recently used first */
+  private final LinkedHashMap<String, Sequence> sequences = new LinkedHashMap<>(16, 0.75f, true);
+  /** The number of images in {@link #sequences} */
+  private int imageCount;
+
+  // The image id to sequence map. This uses linear probing, and a 0 id is an empty slot (image ids are positive).
+  private long[] slotIds;
+  private Sequence[] slotSequences;
+  private int[] slotPositions;
+  /** The number of used slots */
+  private int slotCount;
+
+  private static final class Sequence {
+    final String key;
+    final long[] images;
+
+    Sequence(String key, long[] images) {
+      this.key = key;
+      this.images = images;
+    }
+  }
+
+  /**
+   * Create a new index
+   *
+   * @param diskCache The cache to store sequences on disk in, if any
+   */
+  public SequenceIndex(@Nullable CacheAccess<String, long[]> diskCache) {
+    this(diskCache, MAX_MEMORY_IMAGES);
+  }
+
+  /**
+   * Create a new index
+   *
+   * @param diskCache The cache to store sequences on disk in, if any
+   * @param maxImages The maximum number of images to keep in memory
+   */
+  SequenceIndex(@Nullable CacheAccess<String, long[]> diskCache, int maxImages) {
+    this.diskCache = diskCache;
+    this.maxImages = maxImages;
+    this.allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Add or replace a sequence
+   *
+   * @param sequenceKey The sequence key
+   * @param images The ids of the images in the sequence, in order. Ids that are not positive are ignored.
+   */
+  public synchronized void put(@Nonnull String sequenceKey, @Nonnull long[] images) {
+    final long[] copy = Arrays.stream(images).filter(id -> id > 0).toArray();
+    this.putMemory(sequenceKey, copy);
+    if (this.diskCache != null) {
+      this.diskCache.put(sequenceKey, copy);
+    }
+  }
+
+  /**
+   * Get the images in a sequence
+   *
+   * @param sequenceKey The sequence key
+   * @return The ids of the images in the sequence, in order, or {@code null} if the sequence is not in the index
+   */
+  @Nullable
+  public synchronized long[] getImages(@Nonnull String sequenceKey) {
+    final Sequence sequence = this.getSequence(sequenceKey);
+    return sequence == null ? null : sequence.images.clone();
+  }
+
+  /**
+   * Get the key of the sequence an image is in. This only looks at the sequences in memory.
+   *
+   * @param imageId The image id
+   * @return The sequence key, or {@code null} if the image is not in a sequence in memory
+   */
+  @Nullable
+  public synchronized String getSequenceKey(long imageId) {
+    final int slot = this.find(imageId);
+    return slot < 0 ? null : this.slotSequences[slot].key;
+  }
+
+  /**
+   * Get the position of an image in its sequence. This only looks at the sequences in memory.
+   *
+   * @param imageId The image id
+   * @return The position (starting at 0), or {@code -1} if the image is not in a sequence in memory
+   */
+  public synchronized int getPosition(long imageId) {
+    final int slot = this.find(imageId);
+    return slot < 0 ? -1 : this.slotPositions[slot];
+  }
+
+  /**
+   * Get the image after or before an image in its sequence. This only looks at the sequences in memory.
+   *
+   * @param imageId The image id
+   * @param direction The direction to go in
+   * @return The id of the next or previous image, or {@code 0} if there isn't one (or the image is not in a sequence
+   *         in memory)
+   */
+  public synchronized long getNextOrPrevious(long imageId, @Nonnull NextOrPrevious direction) {
+    final int slot = this.find(imageId);
+    if (slot < 0) {
+      return 0;
+    }
+    final long[] images = this.slotSequences[slot].images;
+    final int position = this.slotPositions[slot] + (direction == NextOrPrevious.NEXT ? 1 : -1);
+    return position >= 0 && position < images.length ? images[position] : 0;
+  }
+
+  /**
+   * Remove a sequence
+   *
+   * @param sequenceKey The sequence key
+   */
+  public synchronized void remove(@Nonnull String sequenceKey) {
+    final Sequence sequence = this.sequences.remove(sequenceKey);
+    if (sequence != null) {
+      this.removeImages(sequence);
+    }
+    if (this.diskCache != null) {
+      this.diskCache.remove(sequenceKey);
+    }
+  }
+
+  /**
+   * Remove all sequences, in memory and on disk
+   */
+  public synchronized void clear() {
+    this.sequences.clear();
+    this.imageCount = 0;
+    this.allocate(INITIAL_CAPACITY);
+    if (this.diskCache != null) {
+      this.diskCache.clear();
+    }
+  }
+
+  /**
+   * Get the number of sequences in memory
+   *
+   * @return The number of sequences
+   */
+  public synchronized int size() {
+    return this.sequences.size();
+  }
+
+  /**
+   * Get the number of images in memory
+   *
+   * @return The number of images in the sequences in memory
+   */
+  public synchronized int getImageCount() {
+    return this.imageCount;
+  }
+
+  @Nullable
+  private Sequence getSequence(@Nonnull String sequenceKey) {
+    final Sequence sequence = this.sequences.get(sequenceKey);
+    if (sequence != null || this.diskCache == null) {
+      return sequence;
+    }
+    final long[] images = this.diskCache.get(sequenceKey);
+    return images == null ? null : this.putMemory(sequenceKey, images);
+  }
+
+  @Nonnull
+  private Sequence putMemory(@Nonnull String sequenceKey, @Nonnull long[] images) {
+    final Sequence old = this.sequences.remove(sequenceKey);
+    if (old != null) {
+      this.removeImages(old);
+    }
+    final Sequence sequence = new Sequence(sequenceKey, images);
+    this.sequences.put(sequenceKey, sequence);
+    this.imageCount += images.length;
+    for (int position = 0; position < images.length; position++) {
+      this.insert(images[position], sequence, position);
+    }
+    // Drop the least recently used sequences from memory. They are still on disk.
+    final Iterator<Sequence> iterator = this.sequences.values().iterator();
+    while (this.imageCount > this.maxImages && iterator.hasNext()) {
+      final Sequence eldest = iterator.next();
+      if (eldest == sequence) {
+        break;
+      }
+      iterator.remove();
+      this.removeImages(eldest);
+    }
+    return sequence;
+  }
+
+  private void removeImages(@Nonnull Sequence sequence) {
+    this.imageCount -= sequence.images.length;
+    for (long id : sequence.images) {
+      final int slot = this.find(id);
+      // The image may have been moved to a newer sequence
+      if (slot >= 0 && this.slotSequences[slot] == sequence) {
+        this.delete(slot);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    this.slotIds = new long[capacity];
+    this.slotSequences = new Sequence[capacity];
+    this.slotPositions = new int[capacity];
+    this.slotCount = 0;
+  }
+
+  private int find(long id) {
+    if (id <= 0) {
+      return -1;
+    }
+    final int mask = this.slotIds.length - 1;
+    for (int slot = hash(id) & mask; this.slotIds[slot] != 0; slot = (slot + 1) & mask) {
+      if (this.slotIds[slot] == id) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private void insert(long id, @Nonnull Sequence sequence, int position) {
+    if (this.slotCount + 1 > this.slotIds.length * LOAD_FACTOR) {
+      this.grow();
+    }
+    final int mask = this.slotIds.length - 1;
+    int slot = hash(id) & mask;
+    while (this.slotIds[slot] != 0 && this.slotIds[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    if (this.slotIds[slot] == 0) {
+      this.slotCount++;
+    }
+    this.slotIds[slot] = id;
+    this.slotSequences[slot] = sequence;
+    this.slotPositions[slot] = position;
+  }
+
+  private void grow() {
+    final long[] oldIds = this.slotIds;
+    final Sequence[] oldSequences = this.slotSequences;
+    final int[] oldPositions = this.slotPositions;
+    this.allocate(oldIds.length * 2);
+    for (int slot = 0; slot < oldIds.length; slot++) {
+      if (oldIds[slot] != 0) {
+        this.insert(oldIds[slot], oldSequences[slot], oldPositions[slot]);
+      }
+    }
+  }
+
+  /**
+   * Empty a slot. Later entries in the same run are shifted back, so that lookups don't stop early at the new hole.
+   */
+  private void delete(int slot) {
+    final int mask = this.slotIds.length - 1;
+    int hole = slot;
+    for (int current = (slot + 1) & mask; this.slotIds[current] != 0; current = (current + 1) & mask) {
+      final int home = hash(this.slotIds[current]) & mask;
+      // The entry can move back if the hole is between its home slot and its current slot
+      if (((current - home) & mask) >= ((current - hole) & mask)) {
+        this.slotIds[hole] = this.slotIds[current];
+        this.slotSequences[hole] = this.slotSequences[current];
+        this.slotPositions[hole] = this.slotPositions[current];
+        hole = current;
+      }
+    }
+    this.slotIds[hole] = 0;
+    this.slotSequences[hole] = null;
+    this.slotPositions[hole] = 0;
+    this.slotCount--;
+  }
+
+  /**
+   * Mix an id. Image ids are close together, so they would otherwise fill runs of neighbouring slots.
+   */
+  private static int hash(long id) {
+    long hash = id;
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return (int) hash;
+  }
+}
@@ -0,0 +1,229 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory LRU cache whose budget is a weight (usually bytes), not an object count.
+ * The cache also shrinks itself when the JVM is running low on heap.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class WeightedLruCache<K, V> {
+  /** If less than this fraction of a heap pool is available, we drop half of the cache */
+  private static final double LOW_MEMORY_FRACTION = 0.1;
+
+  private final LinkedHashMap<K, WeightedValue<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+  private final ToLongFunction<V> weigher;
+  private final LongSupplier maxWeight;
+  private long weight;
+  private long evictionCount;
+  @Nullable
+  private final CacheStatistics statistics;
+
+  private static final class WeightedValue<V> {
+    final V value;
+    final long weight;
+
+    WeightedValue(V value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Create a new cache
+   *
+   * @param weigher The function used to get the weight of a value. This is only called once per value.
+   * @param maxWeight The maximum weight of the cache. This is checked every time a value is added.
+   */
+  public WeightedLruCache(@Nonnull ToLongFunction<V> weigher, @Nonnull LongSupplier maxWeight) {
+    this.weigher = weigher;
+    this.maxWeight = maxWeight;
+    this.statistics = null;
+  }
+
+  /**
+   * Create a new cache that records its hits and misses in {@link CacheStatistics}
+   *
+   * @param name The name to record statistics under
+   * @param weigher The function used to get the weight of a value. This is only called once per value.
+   * @param maxWeight The maximum weight of the cache. This is checked every time a value is added.
+   */
+  public WeightedLruCache(@Nonnull String name, @Nonnull ToLongFunction<V> weigher, @Nonnull LongSupplier maxWeight) {
+    this.weigher = weigher;
+    this.maxWeight = maxWeight;
+    this.statistics = CacheStatistics.forCache(name).setSizes(this::size, this::getWeight, this::getEvictionCount);
+  }
+
+  /**
+   * Get a value, marking it as recently used
+   *
+   * @param key The key to get
+   * @return The value, or {@code null} if it is not in the cache
+   */
+  @Nullable
+  public synchronized V get(@Nonnull K key) {
+    final WeightedValue<V> value = this.map.get(key);
+    if (this.statistics != null && value != null) {
+      this.statistics.recordHit();
+    } else if (this.statistics != null) {
+      this.statistics.recordMiss();
+    }
+    return value != null ? value.value : null;
+  }
+
+  /**
+   * Check if a key is in the cache without marking it as recently used
+   *
+   * @param key The key to look for
+   * @return {@code true} if the key is in the cache
+   */
+  public synchronized boolean containsKey(@Nonnull K key) {
+    return this.map.containsKey(key);
+  }
+
+  /**
+   * Add a value to the cache, evicting the least recently used values if the cache is too heavy.
+   * Values heavier than the entire cache are not added.
+   *
+   * @param key The key
+   * @param value The value
+   */
+  public void put(@Nonnull K key, @Nonnull V value) {
+    // Weigh outside of the lock, since this may be expensive
+    final long valueWeight = Math.max(0, this.weigher.applyAsLong(value));
+    final long max = this.getMaxWeight();
+    synchronized (this) {
+      final WeightedValue<V> old = this.map.remove(key);
+      if (old != null) {
+        this.weight -= old.weight;
+      }
+      if (valueWeight > max) {
+        return;
+      }
+      this.map.put(key, new WeightedValue<>(value, valueWeight));
+      this.weight += valueWeight;
+      if (isLowMemory()) {
+        this.trimTo(this.weight / 2);
+      }
+      this.trimTo(max);
+    }
+  }
+
+  /**
+   * Remove a value from the cache
+   *
+   * @param key The key to remove
+   * @return The removed value, if any
+   */
+  @Nullable
+  public synchronized V remove(@Nonnull K key) {
+    final WeightedValue<V> old = this.map.remove(key);
+    if (old != null) {
+      this.weight -= old.weight;
+      return old.value;
+    }
+    return null;
+  }
+
+  /**
+   * Remove all values from the cache
+   */
+  public synchronized void clear() {
+    this.map.clear();
+    this.weight = 0;
+  }
+
+  /**
+   * Evict the least recently used values until the cache weighs no more than the target
+   *
+   * @param targetWeight The maximum weight to keep
+   */
+  public synchronized void trimTo(long targetWeight) {
+    final Iterator<Map.Entry<K, WeightedValue<V>>> iterator = this.map.entrySet().iterator();
+    while (this.weight > targetWeight && iterator.hasNext()) {
+      final WeightedValue<V> eldest = iterator.next().getValue();
+      iterator.remove();
+      this.weight -= eldest.weight;
+      this.evictionCount++;
+    }
+  }
+
+  /**
+   * Check if a value of the given weight can be added without evicting anything
+   *
+   * @param valueWeight The weight of the value to be added
+   * @return {@code true} if there is room, and the heap is not under pressure
+   */
+  public synchronized boolean hasRoomFor(long valueWeight) {
+    return this.weight + valueWeight <= this.getMaxWeight() && !isLowMemory();
+  }
+
+  /**
+   * Get the current weight of the cache
+   *
+   * @return The sum of the weights of all values in the cache
+   */
+  public synchronized long getWeight() {
+    return this.weight;
+  }
+
+  /**
+   * Get the maximum weight of the cache
+   *
+   * @return The maximum weight
+   */
+  public long getMaxWeight() {
+    return Math.max(0, this.maxWeight.getAsLong());
+  }
+
+  /**
+   * Get the number of values in the cache
+   *
+   * @return The number of values
+   */
+  public synchronized int size() {
+    return this.map.size();
+  }
+
+  /**
+   * Get the number of values that have been evicted from the cache
+   *
+   * @return The number of evictions
+   */
+  public synchronized long getEvictionCount() {
+    return this.evictionCount;
+  }
+
+  /**
+   * Check if the heap is under pressure. This uses the memory usage after the last garbage collection, so that
+   * garbage that has not been collected yet doesn't make us drop images.
+   *
+   * @return {@code true} if less than 10% of a heap memory pool was available after the last collection
+   */
+  public static boolean isLowMemory() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+        final MemoryUsage usage = pool.getCollectionUsage();
+        if (usage != null && usage.getMax() > 0
+          && usage.getMax() - usage.getUsed() < usage.getMax() * LOW_MEMORY_FRACTION) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -462,6 +462,30 @@ public final class MapillaryImageDisplay extends JPanel {
     repaint();
   }
 
+  /**
+   * Replaces the picture with a higher resolution version of the same picture. The detections and the zoom are kept.
+   *
+   * @param image The higher resolution picture
+   */
+  void upgradeImage(BufferedImage image) {
+    synchronized (this) {
+      final BufferedImage oldImage = this.image;
+      if (oldImage == null || image == null) {
+        return;
+      }
+      this.image = image;
+      // Panoramic images use the size of the component for the visible rectangle
+      if (!this.pano && this.visibleRect != null) {
+        final double xScale = image.getWidth(null) / (double) oldImage.getWidth(null);
+        final double yScale = image.getHeight(null) / (double) oldImage.getHeight(null);
+        this.visibleRect = new Rectangle((int) (this.visibleRect.x * xScale), (int) (this.visibleRect.y * yScale),
+          (int) (this.visibleRect.width * xScale), (int) (this.visibleRect.height * yScale));
+      }
+      this.selectedRect = null;
+    }
+    repaint();
+  }
+
   public Rectangle getDefaultVisibleRect() {
     if (image != null) {
       Rectangle visibleRectangle;
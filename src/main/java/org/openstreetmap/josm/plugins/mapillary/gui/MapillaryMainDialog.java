@@ -58,6 +58,7 @@ import org.openstreetmap.josm.plugins.mapillary.actions.WalkListener;
 import org.openstreetmap.josm.plugins.mapillary.actions.WalkThread;
 import org.openstreetmap.josm.plugins.mapillary.cache.CacheUtils;
 import org.openstreetmap.josm.plugins.mapillary.cache.MapillaryCache;
+import org.openstreetmap.josm.plugins.mapillary.cache.PrefetchController;
 import org.openstreetmap.josm.plugins.mapillary.data.mapillary.OrganizationRecord;
 import org.openstreetmap.josm.plugins.mapillary.data.mapillary.VectorDataSelectionListener;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
@@ -126,7 +127,10 @@ public final class MapillaryMainDialog extends ToggleDialog
   public final MapillaryImageDisplay imageViewer = new MapillaryImageDisplay();
 
   private MapillaryCache imageCache;
+  private MapillaryCache mediumCache;
   private MapillaryCache thumbnailCache;
+  /** The image type that is currently shown, so that a late low resolution image doesn't replace a better one */
+  private MapillaryCache.Type displayedType;
 
   private final ShowDetectionOutlinesAction showDetectionOutlinesAction = new ShowDetectionOutlinesAction();
   private final ShowSignDetectionsAction showSignDetectionsAction = new ShowSignDetectionsAction();
@@ -442,6 +446,7 @@ public final class MapillaryMainDialog extends ToggleDialog
 
       final INode currentImage = this.image;
       if (currentImage == null) {
+        PrefetchController.getInstance().cancel();
         setDisplayImage((BufferedImage) null, null, false);
         setTitle(tr(BASE_TITLE));
         disableAllButtons();
@@ -459,10 +464,10 @@ public final class MapillaryMainDialog extends ToggleDialog
           return;
         }
         // Use this to avoid race conditions
-        final MapillaryCache imageFullCache = this.cacheFullImage(currentImage);
+        final MapillaryCache imageFullCache = this.cacheImageTiers(currentImage);
 
         MapillaryCache.cacheSurroundingImages(currentImage);
-        Function<BufferedImageCacheEntry, BufferedImage> getImage = cache -> {
+        Function<MapillaryCache, BufferedImage> getImage = cache -> {
           try {
             return cache.getImage();
           } catch (IOException e) {
@@ -484,10 +489,12 @@ public final class MapillaryMainDialog extends ToggleDialog
             }
           });
         List<ImageDetection<?>> detections = ImageDetection.getDetections(MapillaryImageUtils.getKey(image), false);
-        if (imageFullCache.get() != null) {
-          setDisplayImage(() -> getImage.apply(imageFullCache.get()), detections,
+        final MapillaryCache bestCache = this.getBestCachedTier();
+        if (bestCache != null) {
+          this.displayedType = bestCache.getType();
+          setDisplayImage(() -> getImage.apply(bestCache), detections,
             MapillaryImageUtils.IS_PANORAMIC.test(currentImage));
-          pool.execute(() -> updateDetections(imageFullCache, currentImage, detections));
+          pool.execute(() -> updateDetections(bestCache, currentImage, detections));
         } else {
           this.imageViewer.paintLoadingImage();
         }
@@ -512,20 +519,72 @@ public final class MapillaryMainDialog extends ToggleDialog
     }
   }
 
-  private MapillaryCache cacheFullImage(INode currentImage) {
-    // Downloads the full resolution image.
-    final MapillaryCache imageFullCache = new MapillaryCache(currentImage);
-    // Use this variable to avoid race conditions
-    if (this.imageCache != null)
-      this.imageCache.cancelOutstandingTasks();
-    this.imageCache = imageFullCache;
-    try {
-      if (imageFullCache.getUrl() != null && imageFullCache.get() == null)
-        imageFullCache.submit(this, false);
-    } catch (IOException e) {
-      Logging.error(e);
+  /**
+   * Downloads the image tiers (thumbnail, medium, full resolution) of the image, smallest first. Each tier is shown
+   * when it arrives, unless a better tier is already shown. Tiers worse than an already cached tier are skipped.
+   *
+   * @param currentImage The image to download
+   * @return The cache for the full resolution image
+   */
+  private MapillaryCache cacheImageTiers(INode currentImage) {
+    // Use these variables to avoid race conditions. Only cancel the tiers of the previous image, since the queue
+    // also holds prefetches and exports.
+    this.getImageTiers().forEach(MapillaryCache::cancelIfQueued);
+    this.displayedType = null;
+    this.thumbnailCache = currentImage.hasKey(MapillaryCache.Type.THUMBNAIL.getKey())
+      ? new MapillaryCache(currentImage, MapillaryCache.Type.THUMBNAIL) : null;
+    this.mediumCache = currentImage.hasKey(MapillaryCache.Type.MEDIUM.getKey())
+      ? new MapillaryCache(currentImage, MapillaryCache.Type.MEDIUM) : null;
+    this.imageCache = new MapillaryCache(currentImage, MapillaryCache.Type.FULL_IMAGE);
+    final List<MapillaryCache> tiers = this.getImageTiers();
+    final MapillaryCache bestCached = this.getBestCachedTier();
+    for (MapillaryCache cache : tiers) {
+      if (cache == bestCached) {
+        break;
+      }
+      try {
+        if (cache.getUrl() != null) {
+          cache.submit((data, attributes, result) -> {
+            if (data != null && result == LoadResult.SUCCESS) {
+              GuiHelper.runInEDT(() -> realLoadingFinished(cache, data));
+            }
+          }, false);
+        }
+      } catch (IOException e) {
+        Logging.error(e);
+      }
+    }
+    return this.imageCache;
+  }
+
+  /**
+   * Get the image tiers for the current image
+   *
+   * @return The caches for the current image, worst quality first
+   */
+  private List<MapillaryCache> getImageTiers() {
+    final List<MapillaryCache> tiers = new ArrayList<>(3);
+    for (MapillaryCache cache : Arrays.asList(this.thumbnailCache, this.mediumCache, this.imageCache)) {
+      if (cache != null) {
+        tiers.add(cache);
+      }
+    }
+    return tiers;
+  }
+
+  /**
+   * Get the best image tier that is already cached
+   *
+   * @return The best cached tier, or {@code null} if none of the tiers have been downloaded yet
+   */
+  private MapillaryCache getBestCachedTier() {
+    final List<MapillaryCache> tiers = this.getImageTiers();
+    for (int i = tiers.size() - 1; i >= 0; i--) {
+      if (tiers.get(i).get() != null) {
+        return tiers.get(i);
+      }
     }
-    return imageFullCache;
+    return null;
   }
 
   /**
@@ -564,10 +623,11 @@ public final class MapillaryMainDialog extends ToggleDialog
     synchronized (syncObject) {
       if (image.equals(this.image)) {
         // Comprehensively fix Github #165
-        if (cache.get() != null) {
+        final MapillaryCache shownCache = cache.get() != null ? cache : this.getBestCachedTier();
+        if (shownCache != null) {
           this.setDisplayImage(() -> {
             try {
-              return cache.get().getImage();
+              return shownCache.getImage();
             } catch (IOException e) {
               Logging.error(e);
             }
@@ -774,16 +834,42 @@ public final class MapillaryMainDialog extends ToggleDialog
   @Override
   public void loadingFinished(final CacheEntry data, final CacheEntryAttributes attributes, final LoadResult result) {
     if (data != null && result == LoadResult.SUCCESS) {
-      GuiHelper.runInEDT(() -> realLoadingFinished(data));
+      GuiHelper.runInEDT(() -> realLoadingFinished(null, data));
     }
   }
 
-  private void realLoadingFinished(final CacheEntry data) {
-    if ((imageCache == null || data.equals(imageCache.get()) || thumbnailCache == null
-      || data.equals(thumbnailCache.get()))) {
+  /**
+   * Show a newly downloaded image
+   *
+   * @param cache The image tier that finished loading, if known
+   * @param data The downloaded image
+   */
+  private void realLoadingFinished(final MapillaryCache cache, final CacheEntry data) {
+    if (cache != null) {
+      if (cache != this.imageCache && cache != this.mediumCache && cache != this.thumbnailCache) {
+        return; // The user has moved on to another image
+      }
+      final MapillaryCache.Type shownType = this.displayedType;
+      this.displayedType = cache.getType();
+      if (shownType != null) {
+        if (shownType.getWidth() < cache.getType().getWidth()) {
+          this.upgradeDisplayImage(cache);
+        } else {
+          this.displayedType = shownType;
+        }
+        return;
+      }
+    }
+    if (cache != null || imageCache == null || data.equals(imageCache.get()) || thumbnailCache == null
+      || data.equals(thumbnailCache.get())) {
       final INode mai = getImage();
+      final MapillaryCache currentCache = cache != null ? cache : this.imageCache;
       setDisplayImage(() -> {
         try {
+          // Use the cache if possible, so that the decoded image is remembered
+          if (currentCache != null && data.equals(currentCache.get())) {
+            return currentCache.getImage();
+          }
           return data instanceof BufferedImageCacheEntry ? ((BufferedImageCacheEntry) data).getImage()
             : ImageIO.read(new ByteArrayInputStream(data.getContent()));
         } catch (IOException e) {
@@ -799,6 +885,28 @@ public final class MapillaryMainDialog extends ToggleDialog
     }
   }
 
+  /**
+   * Replace the shown image with a better tier of the same image, keeping the zoom
+   *
+   * @param cache The better tier
+   */
+  private void upgradeDisplayImage(final MapillaryCache cache) {
+    MainApplication.worker.execute(() -> {
+      try {
+        final BufferedImage bufferedImage = cache.getImage();
+        GuiHelper.runInEDT(() -> {
+          // Check again, since the user may have moved on while we were decoding
+          if (cache.getType() == this.displayedType
+            && (cache == this.imageCache || cache == this.mediumCache || cache == this.thumbnailCache)) {
+            this.imageViewer.upgradeImage(bufferedImage);
+          }
+        });
+      } catch (IOException e) {
+        Logging.error(e);
+      }
+    });
+  }
+
   /**
    * Creates the layout of the dialog.
    *
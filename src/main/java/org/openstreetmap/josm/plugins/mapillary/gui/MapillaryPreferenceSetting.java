@@ -68,6 +68,10 @@ public class MapillaryPreferenceSetting implements SubPreferenceSetting, Mapilla
     I18n.trc("Checkbox label in JOSM settings", "Use computed location information"),
     MapillaryProperties.USE_COMPUTED_LOCATIONS.get());
 
+  private final JCheckBox offline = new JCheckBox(
+    I18n.trc("Checkbox label in JOSM settings", "Work offline (only use cached Mapillary data)"),
+    MapillaryProperties.OFFLINE.get());
+
   private final SpinnerNumberModel maxDistanceForChangesetSource = new SpinnerNumberModel(
     MapillaryProperties.MAXIMUM_DISTANCE_FOR_CHANGESET_SOURCE.get().doubleValue(), 0.0,
     2 * WGS84Datum.INSTANCE.getEllipsoid().a, 0.5);
@@ -120,6 +124,8 @@ public class MapillaryPreferenceSetting implements SubPreferenceSetting, Mapilla
     mainPanel.add(colorImagesByCaptureDate, GBC.eol());
     mainPanel.add(this.useComputedLocations, GBC.eol());
     this.useComputedLocations.setToolTipText(I18n.tr("Requires JOSM restart"));
+    mainPanel.add(this.offline, GBC.eol());
+    this.offline.setToolTipText(I18n.tr("Use \"Prepare area for offline use\" to fill the cache first"));
 
     final JPanel preFetchPanel = new JPanel();
     // i18n: Spinner label in JOSM settings
@@ -154,7 +160,7 @@ public class MapillaryPreferenceSetting implements SubPreferenceSetting, Mapilla
       developer.setVisible(true);
     }
     MapillaryColorScheme.styleAsDefaultPanel(mainPanel, this.displayHour, this.moveTo, this.imageLinkToBlurEditor,
-      this.colorImagesByCaptureDate, this.useComputedLocations, this.developer, preFetchPanel,
+      this.colorImagesByCaptureDate, this.useComputedLocations, this.offline, this.developer, preFetchPanel,
       changesetSourceDistancePanel, numberOfImagesToDraw, this.requiresLogin);
     mainPanel.add(Box.createVerticalGlue(), GBC.eol().fill(GridBagConstraints.BOTH));
 
@@ -214,6 +220,7 @@ public class MapillaryPreferenceSetting implements SubPreferenceSetting, Mapilla
     MapillaryProperties.IMAGE_LINK_TO_BLUR_EDITOR.put(imageLinkToBlurEditor.isSelected());
     MapillaryProperties.PRE_FETCH_IMAGE_COUNT.put(preFetchSize.getNumber().intValue());
     MapillaryProperties.COLOR_BY_CAPTURE_DATE.put(colorImagesByCaptureDate.isSelected());
+    MapillaryProperties.OFFLINE.put(this.offline.isSelected());
 
     MapillaryProperties.MAXIMUM_DRAW_IMAGES.put(maxForImagesToDraw.getNumber().intValue());
     MapillaryProperties.MAXIMUM_DISTANCE_FOR_CHANGESET_SOURCE
@@ -0,0 +1,219 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.gui.dialog;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.swing.AbstractAction;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.AbstractTableModel;
+
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.SideButton;
+import org.openstreetmap.josm.gui.dialogs.ToggleDialog;
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheStatistics;
+import org.openstreetmap.josm.tools.ImageProvider;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Shortcut;
+
+/**
+ * Shows live statistics for the Mapillary caches (developer mode only)
+ */
+public final class MapillaryCacheStatisticsDialog extends ToggleDialog {
+  private static final long serialVersionUID = -1809618412862409186L;
+  /** The time between refreshes, in milliseconds */
+  private static final int REFRESH_INTERVAL = 1000;
+  private static MapillaryCacheStatisticsDialog instance;
+
+  private final StatisticsTableModel model = new StatisticsTableModel();
+  private final Timer refreshTimer = new Timer(REFRESH_INTERVAL, e -> this.model.refresh());
+
+  private MapillaryCacheStatisticsDialog() {
+    super(tr("Mapillary cache statistics"), "mapillary-info", tr("Shows how well the Mapillary caches work"),
+      Shortcut.registerShortcut("mapillary:cachestatistics", tr("Toggle: {0}", tr("Mapillary cache statistics")),
+        KeyEvent.CHAR_UNDEFINED, Shortcut.NONE),
+      150);
+    final JTable table = new JTable(this.model);
+    table.setAutoCreateRowSorter(true);
+    createLayout(new JScrollPane(table), false,
+      Arrays.asList(new SideButton(new ExportAction()), new SideButton(new ResetAction())));
+  }
+
+  /**
+   * Get the unique instance of the dialog
+   *
+   * @return The dialog
+   */
+  public static synchronized MapillaryCacheStatisticsDialog getInstance() {
+    if (instance == null) {
+      instance = new MapillaryCacheStatisticsDialog();
+    }
+    return instance;
+  }
+
+  @Override
+  public void showNotify() {
+    super.showNotify();
+    this.model.refresh();
+    this.refreshTimer.start();
+  }
+
+  @Override
+  public void hideNotify() {
+    this.refreshTimer.stop();
+    super.hideNotify();
+  }
+
+  @Override
+  public void destroy() {
+    this.refreshTimer.stop();
+    super.destroy();
+  }
+
+  private static final class StatisticsTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 2745318541262349720L;
+    private static final String[] COLUMNS = { marktr("Cache"), marktr("Hits"), marktr("Misses"), marktr("Hit ratio"),
+      marktr("Loads"), marktr("Failed loads"), marktr("Entries"), marktr("Bytes"), marktr("Evictions"),
+      marktr("Mean load (ms)"), marktr("p50 load (ms)"), marktr("p99 load (ms)"), marktr("Compression"),
+      marktr("Mean decode (µs)"), marktr("Mean merge (ms)"), marktr("Merge contention") };
+    private transient List<CacheStatistics> statistics = Collections.emptyList();
+
+    void refresh() {
+      this.statistics = CacheStatistics.getAll();
+      this.fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+      return this.statistics.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+      return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+      return tr(COLUMNS[column]);
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+      if (column == 0 || column == 3 || column == 9 || column >= 12) {
+        return String.class;
+      }
+      return Long.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+      final CacheStatistics stats = this.statistics.get(row);
+      switch (column) {
+      case 0:
+        return stats.getName();
+      case 1:
+        return stats.getHits();
+      case 2:
+        return stats.getMisses();
+      case 3:
+        return Double.isNaN(stats.getHitRatio()) ? ""
+          : String.format(Locale.ROOT, "%.1f%%", 100 * stats.getHitRatio());
+      case 4:
+        return stats.getLoadLatency().getCount();
+      case 5:
+        return stats.getLoadFailures();
+      case 6:
+        return unknownToNull(stats.getEntries());
+      case 7:
+        return unknownToNull(stats.getBytes());
+      case 8:
+        return unknownToNull(stats.getEvictions());
+      case 9:
+        return String.format(Locale.ROOT, "%.1f", stats.getLoadLatency().getMean());
+      case 10:
+        return stats.getLoadLatency().getPercentile(50);
+      case 11:
+        return stats.getLoadLatency().getPercentile(99);
+      case 12:
+        return Double.isNaN(stats.getCompressionRatio()) ? ""
+          : String.format(Locale.ROOT, "%.2f", stats.getCompressionRatio());
+      case 13:
+        return Double.isNaN(stats.getDecodeMean()) ? "" : String.format(Locale.ROOT, "%.1f", stats.getDecodeMean());
+      case 14:
+        return stats.getMergeLatency().getCount() == 0 ? ""
+          : String.format(Locale.ROOT, "%.1f", stats.getMergeLatency().getMean());
+      case 15:
+        return Double.isNaN(stats.getMergeContention()) ? ""
+          : String.format(Locale.ROOT, "%.1f%%", 100 * stats.getMergeContention());
+      default:
+        throw new IllegalArgumentException("Unknown column: " + column);
+      }
+    }
+
+    private static Long unknownToNull(long value) {
+      return value < 0 ? null : value;
+    }
+  }
+
+  private static class ExportAction extends AbstractAction {
+    private static final long serialVersionUID = -4172387497405163470L;
+
+    ExportAction() {
+      super(tr("Export"));
+      putValue(SHORT_DESCRIPTION, tr("Export the cache statistics as CSV"));
+      new ImageProvider("dialogs", "save").getResource().attachImageIcon(this, true);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      final JFileChooser chooser = new JFileChooser();
+      chooser.setFileFilter(new FileNameExtensionFilter(tr("CSV files"), "csv"));
+      chooser.setSelectedFile(new File("mapillary-cache-statistics.csv"));
+      if (chooser.showSaveDialog(MainApplication.getMainFrame()) != JFileChooser.APPROVE_OPTION) {
+        return;
+      }
+      try (Writer writer = Files.newBufferedWriter(chooser.getSelectedFile().toPath(), StandardCharsets.UTF_8)) {
+        CacheStatistics.writeCsv(writer);
+      } catch (IOException exception) {
+        Logging.error(exception);
+        JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+          tr("Could not export the cache statistics: {0}", exception.getMessage()), tr("Error"),
+          JOptionPane.ERROR_MESSAGE);
+      }
+    }
+  }
+
+  private class ResetAction extends AbstractAction {
+    private static final long serialVersionUID = 5473002125473914862L;
+
+    ResetAction() {
+      super(tr("Reset"));
+      putValue(SHORT_DESCRIPTION, tr("Reset the cache statistics"));
+      new ImageProvider("dialogs", "delete").getResource().attachImageIcon(this, true);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      CacheStatistics.resetAll();
+      model.refresh();
+    }
+  }
+}
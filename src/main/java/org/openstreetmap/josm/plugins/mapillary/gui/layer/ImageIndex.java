@@ -0,0 +1,260 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.gui.layer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.SimplePrimitiveId;
+import org.openstreetmap.josm.data.vector.VectorDataSet;
+import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.data.vector.VectorPrimitive;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+
+/**
+ * An index of the images in the {@link MapillaryLayer} by image id. Images are added as tiles are loaded. Images
+ * leave the layer data with their tiles, so images that are no longer in the data are dropped when they are looked up.
+ * The index only holds weak references to the images, so it doesn't keep the images of tiles that have left the data,
+ * and the entries for those images are dropped as more images are added.
+ * <p>
+ * Like {@link org.openstreetmap.josm.plugins.mapillary.cache.SequenceIndex}, the ids are kept in an open addressing
+ * table, so ids are not boxed. Each image still needs its own weak reference, since the images of a tile are only
+ * released together when nothing else uses them.
+ * <p>
+ * Known limitation: the index is not told when a tile leaves the tile cache. The entries for its images are only
+ * dropped once the images have been garbage collected (or when they are looked up and are no longer in the data).
+ */
+public final class ImageIndex {
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.7f;
+
+  @Nonnull
+  private final VectorDataSet data;
+  /** The references to images that are no longer used anywhere */
+  private final ReferenceQueue<VectorNode> released = new ReferenceQueue<>();
+
+  // The image id to image map. This uses linear probing, and a 0 id is an empty slot (image ids are positive).
+  private long[] slotIds;
+  private ImageReference[] slotImages;
+  /** The number of used slots */
+  private int slotCount;
+
+  /**
+   * A weak reference to an image, which remembers the image id for when the image is gone
+   */
+  private static final class ImageReference extends WeakReference<VectorNode> {
+    final long id;
+
+    ImageReference(long id, VectorNode node, ReferenceQueue<VectorNode> queue) {
+      super(node, queue);
+      this.id = id;
+    }
+  }
+
+  /**
+   * Create a new index
+   *
+   * @param data The data the images are in
+   */
+  ImageIndex(@Nonnull VectorDataSet data) {
+    this.data = data;
+    this.allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Add an image to the index. Nodes without a numeric image id are ignored.
+   *
+   * @param node The image to add
+   */
+  synchronized void add(@Nonnull VectorNode node) {
+    this.expunge();
+    final long id = MapillaryImageUtils.getId(node);
+    if (id > 0) {
+      this.insert(new ImageReference(id, node, this.released));
+    }
+  }
+
+  /**
+   * Add images to the index
+   *
+   * @param nodes The images to add
+   */
+  void addAll(@Nonnull Collection<VectorNode> nodes) {
+    nodes.forEach(this::add);
+  }
+
+  /**
+   * Get an image
+   *
+   * @param id The image id
+   * @return The image, or {@code null} if it is not in the index
+   */
+  @Nullable
+  public synchronized VectorNode get(long id) {
+    final int slot = this.find(id);
+    if (slot < 0) {
+      return null;
+    }
+    final VectorNode node = this.slotImages[slot].get();
+    if (node == null || !this.data.containsNode(node)) {
+      this.delete(slot);
+      return null;
+    }
+    return node;
+  }
+
+  /**
+   * Get the number of images in the index
+   *
+   * @return The number of images (some of which may have left the layer data)
+   */
+  public synchronized int size() {
+    return this.slotCount;
+  }
+
+  /**
+   * Remove all images from the index
+   */
+  synchronized void clear() {
+    this.allocate(INITIAL_CAPACITY);
+    this.expunge();
+  }
+
+  /**
+   * Remove the entries for images that are no longer used anywhere
+   */
+  private void expunge() {
+    for (Reference<? extends VectorNode> reference = this.released.poll(); reference != null;
+      reference = this.released.poll()) {
+      final int slot = this.find(((ImageReference) reference).id);
+      // The image may have been replaced by a newer node for the same id
+      if (slot >= 0 && this.slotImages[slot] == reference) {
+        this.delete(slot);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    this.slotIds = new long[capacity];
+    this.slotImages = new ImageReference[capacity];
+    this.slotCount = 0;
+  }
+
+  private int find(long id) {
+    if (id <= 0) {
+      return -1;
+    }
+    final int mask = this.slotIds.length - 1;
+    for (int slot = hash(id) & mask; this.slotIds[slot] != 0; slot = (slot + 1) & mask) {
+      if (this.slotIds[slot] == id) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private void insert(@Nonnull ImageReference reference) {
+    if (this.slotCount + 1 > this.slotIds.length * LOAD_FACTOR) {
+      this.grow();
+    }
+    final int mask = this.slotIds.length - 1;
+    int slot = hash(reference.id) & mask;
+    while (this.slotIds[slot] != 0 && this.slotIds[slot] != reference.id) {
+      slot = (slot + 1) & mask;
+    }
+    if (this.slotIds[slot] == 0) {
+      this.slotCount++;
+    }
+    this.slotIds[slot] = reference.id;
+    this.slotImages[slot] = reference;
+  }
+
+  private void grow() {
+    final ImageReference[] oldImages = this.slotImages;
+    this.allocate(oldImages.length * 2);
+    for (ImageReference reference : oldImages) {
+      if (reference != null) {
+        this.insert(reference);
+      }
+    }
+  }
+
+  /**
+   * Empty a slot. Later entries in the same run are shifted back, so that lookups don't stop early at the new hole.
+   */
+  private void delete(int slot) {
+    final int mask = this.slotIds.length - 1;
+    int hole = slot;
+    for (int current = (slot + 1) & mask; this.slotIds[current] != 0; current = (current + 1) & mask) {
+      final int home = hash(this.slotIds[current]) & mask;
+      // The entry can move back if the hole is between its home slot and its current slot
+      if (((current - home) & mask) >= ((current - hole) & mask)) {
+        this.slotIds[hole] = this.slotIds[current];
+        this.slotImages[hole] = this.slotImages[current];
+        hole = current;
+      }
+    }
+    this.slotIds[hole] = 0;
+    this.slotImages[hole] = null;
+    this.slotCount--;
+  }
+
+  /**
+   * Mix an id. Image ids are close together, so they would otherwise fill runs of neighbouring slots.
+   */
+  private static int hash(long id) {
+    long hash = id;
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return (int) hash;
+  }
+
+  /**
+   * Get an image from a dataset. If the dataset is the data of the {@link MapillaryLayer}, the layer index is used.
+   *
+   * @param data The data to look in
+   * @param id The image id
+   * @return The image, or {@code null} if it is not in the data
+   */
+  @Nullable
+  public static VectorNode getImage(@Nullable VectorDataSet data, long id) {
+    if (data == null || id <= 0) {
+      return null;
+    }
+    final ImageIndex index = MapillaryLayer.getImageIndex(data);
+    final VectorNode indexed = index != null ? index.get(id) : null;
+    if (indexed != null) {
+      return indexed;
+    }
+    // Image nodes use the image id as their id (see MapillaryVectorTileWorkarounds#setNodeIds)
+    final VectorPrimitive primitive = data.getPrimitiveById(new SimplePrimitiveId(id, OsmPrimitiveType.NODE));
+    if (primitive instanceof VectorNode && MapillaryImageUtils.IS_IMAGE.test((VectorNode) primitive)) {
+      if (index != null) {
+        index.add((VectorNode) primitive);
+      }
+      return (VectorNode) primitive;
+    }
+    return null;
+  }
+
+  /**
+   * Get an image from a dataset
+   *
+   * @param data The data to look in
+   * @param key The image key
+   * @return The image, or {@code null} if it is not in the data
+   * @see #getImage(VectorDataSet, long)
+   */
+  @Nullable
+  public static VectorNode getImage(@Nullable VectorDataSet data, @Nullable String key) {
+    return getImage(data, MapillaryImageUtils.parseId(key));
+  }
+}
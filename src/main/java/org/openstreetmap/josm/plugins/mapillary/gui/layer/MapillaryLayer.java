@@ -33,6 +33,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.swing.Action;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
@@ -41,6 +42,7 @@ import javax.swing.SwingUtilities;
 import org.openstreetmap.gui.jmapviewer.Tile;
 import org.openstreetmap.gui.jmapviewer.TileXY;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
 import org.openstreetmap.josm.actions.UploadAction;
 import org.openstreetmap.josm.actions.upload.UploadHook;
 import org.openstreetmap.josm.data.Bounds;
@@ -81,6 +83,7 @@ import org.openstreetmap.josm.plugins.mapillary.data.mapillary.OrganizationRecor
 import org.openstreetmap.josm.plugins.mapillary.gui.MapillaryMainDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.dialog.MapillaryFilterDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.dialog.OldVersionDialog;
+import org.openstreetmap.josm.plugins.mapillary.io.download.MapillaryTileLoader;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapViewGeometryUtil;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryColorScheme;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
@@ -160,6 +163,8 @@ public final class MapillaryLayer extends MVTLayer
     MapillaryProperties.UNSELECTED_OPACITY.get().floatValue());
   private static Point2D standardImageCentroid = null;
   private final ListenerList<MVTTile.TileListener> tileListeners = ListenerList.create();
+  /** The images in {@link #getData()} by image id */
+  private final ImageIndex imageIndex = new ImageIndex(this.getData());
 
   private MapillaryLayer() {
     super(MapillaryKeys.MAPILLARY_IMAGES);
@@ -222,6 +227,18 @@ public final class MapillaryLayer extends MVTLayer
     return instance != null;
   }
 
+  /**
+   * Get the image index for a dataset
+   *
+   * @param data The dataset
+   * @return The image index, or {@code null} if the dataset is not the data of the Mapillary layer
+   */
+  @Nullable
+  public static ImageIndex getImageIndex(@Nullable VectorDataSet data) {
+    final MapillaryLayer layer = instance;
+    return layer != null && data != null && layer.getData() == data ? layer.imageIndex : null;
+  }
+
   /**
    * Returns the n-nearest image, for n=1 the nearest one is returned, for n=2 the second nearest one and so on.
    * The "n-nearest image" is picked from the list of one image from every sequence that is nearest to the currently
@@ -260,6 +277,8 @@ public final class MapillaryLayer extends MVTLayer
       }
       this.getData().clearSelection();
       clearInstance();
+      MapillarySequenceUtils.clearTileSequences();
+      this.imageIndex.clear();
       if (MapillaryMainDialog.hasInstance()) {
         MapillaryMainDialog.getInstance().setImage(null);
         MapillaryMainDialog.getInstance().updateImage();
@@ -720,14 +739,21 @@ public final class MapillaryLayer extends MVTLayer
       return CompletableFuture.completedFuture(null);
     }
     TileXY tileXY = this.tileSource.latLonToTileXY(location.lat(), location.lon(), this.getZoomLevel());
+    return this.loadTile(tileXY.getXIndex(), tileXY.getYIndex(), this.getZoomLevel());
+  }
+
+  @Override
+  public Future<Tile> loadTile(int x, int y, int zoom) {
+    if (this.tileSource == null) {
+      return CompletableFuture.completedFuture(null);
+    }
     final MVTTile tile;
     final boolean first;
-    if (this.tileCache.getTile(this.tileSource, tileXY.getXIndex(), tileXY.getYIndex(), this.getZoomLevel()) != null) {
-      tile = (MVTTile) this.tileCache.getTile(this.tileSource, tileXY.getXIndex(), tileXY.getYIndex(),
-        this.getZoomLevel());
+    if (this.tileCache.getTile(this.tileSource, x, y, zoom) != null) {
+      tile = (MVTTile) this.tileCache.getTile(this.tileSource, x, y, zoom);
       first = false;
     } else {
-      tile = (MVTTile) this.createTile(this.tileSource, tileXY.getXIndex(), tileXY.getYIndex(), this.getZoomLevel());
+      tile = (MVTTile) this.createTile(this.tileSource, x, y, zoom);
       first = true;
     }
     TileJob job = this.tileLoader.createTileLoaderJob(tile);
@@ -750,12 +776,22 @@ public final class MapillaryLayer extends MVTLayer
     return futureTile;
   }
 
+  @Override
+  protected Class<? extends TileLoader> getTileLoaderClass() {
+    // Tile requests count against the same rate limit as the other Mapillary requests
+    return MapillaryTileLoader.class;
+  }
+
   @Override
   public void finishedLoading(final MVTTile tile) {
     super.finishedLoading(tile);
     this.tileListeners.fireEvent(l -> l.finishedLoading(tile));
-    this.setNodeIds(MapillaryImageUtils.ImageProperties.ID.toString(),
-      tile.getData().getAllPrimitives().stream().filter(VectorNode.class::isInstance).map(VectorNode.class::cast));
+    final List<VectorNode> nodes = tile.getData().getAllPrimitives().stream().filter(VectorNode.class::isInstance)
+      .map(VectorNode.class::cast).collect(Collectors.toList());
+    this.setNodeIds(MapillaryImageUtils.ImageProperties.ID.toString(), nodes.stream());
+    this.imageIndex.addAll(nodes);
+    MapillarySequenceUtils.indexTileSequences(tile.getKey(), tile.getData().getAllPrimitives().stream()
+      .filter(VectorWay.class::isInstance).map(VectorWay.class::cast).collect(Collectors.toList()));
   }
 
   /**
@@ -2,9 +2,11 @@ package org.openstreetmap.josm.plugins.mapillary.gui.layer;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
+import org.openstreetmap.gui.jmapviewer.Tile;
 import org.openstreetmap.josm.data.osm.INode;
 import org.openstreetmap.josm.data.vector.VectorDataSet;
 import org.openstreetmap.josm.data.vector.VectorNode;
@@ -48,6 +50,16 @@ public interface MapillaryVectorTileWorkarounds {
    */
   Stream<INode> getSelected();
 
+  /**
+   * Load a tile (from the tile cache if possible) and add it to the layer
+   *
+   * @param x The x index of the tile
+   * @param y The y index of the tile
+   * @param zoom The zoom of the tile
+   * @return A future with the loaded tile. The tile is {@code null} if the layer isn't ready to load tiles yet.
+   */
+  Future<Tile> loadTile(int x, int y, int zoom);
+
   /**
    * Set the node ids (map features/images have integer ids, sequences have a string id)
    *
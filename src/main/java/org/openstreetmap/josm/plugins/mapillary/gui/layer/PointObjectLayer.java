@@ -27,6 +27,8 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
@@ -53,6 +55,8 @@ import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
 import org.openstreetmap.josm.actions.RenameLayerAction;
 import org.openstreetmap.josm.command.AddPrimitivesCommand;
 import org.openstreetmap.josm.command.Command;
@@ -109,6 +113,7 @@ import org.openstreetmap.josm.plugins.mapillary.gui.MapillaryMainDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.dialog.MapillaryExpertFilterDialog;
 import org.openstreetmap.josm.plugins.mapillary.gui.dialog.MapillaryFilterDialog;
 import org.openstreetmap.josm.plugins.mapillary.io.download.MapillaryDownloader;
+import org.openstreetmap.josm.plugins.mapillary.io.download.MapillaryTileLoader;
 import org.openstreetmap.josm.plugins.mapillary.io.download.TileAddEventSource;
 import org.openstreetmap.josm.plugins.mapillary.io.download.TileAddListener;
 import org.openstreetmap.josm.plugins.mapillary.model.ImageDetection;
@@ -180,6 +185,33 @@ public class PointObjectLayer extends MVTLayer implements Listener, HighlightUpd
     this.listeners.fireEvent(listener -> listener.tileAdded(tile));
   }
 
+  @Override
+  public Future<Tile> loadTile(int x, int y, int zoom) {
+    if (this.tileSource == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final Tile cached = this.tileCache.getTile(this.tileSource, x, y, zoom);
+    if (cached != null && cached.isLoaded()) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    final MVTTile tile = (MVTTile) this.createTile(this.tileSource, x, y, zoom);
+    final CompletableFuture<Tile> futureTile = new CompletableFuture<>();
+    tile.addTileLoaderFinisher(t -> {
+      this.tileLoadingFinished(tile, tile.isLoaded());
+      this.getData().addTileData(tile);
+      this.tileCache.addTile(tile);
+      futureTile.complete(tile);
+    });
+    this.tileLoader.createTileLoaderJob(tile).submit();
+    return futureTile;
+  }
+
+  @Override
+  protected Class<? extends TileLoader> getTileLoaderClass() {
+    // Tile requests count against the same rate limit as the other Mapillary requests
+    return MapillaryTileLoader.class;
+  }
+
   @Override
   public Icon getIcon() {
     return MapillaryPlugin.LOGO.setSize(ImageSizes.LAYER).get();
@@ -656,16 +688,12 @@ public class PointObjectLayer extends MVTLayer implements Listener, HighlightUpd
   private static List<INode> getImagesForDetections(VectorDataSet data, List<Map<String, String>> detections) {
     List<String> keys = detections.stream().filter(m -> m.containsKey(MapillaryKeys.IMAGE_KEY))
       .map(m -> m.get(MapillaryKeys.IMAGE_KEY)).collect(Collectors.toList());
-    Set<String> keySet = data.getNodes().stream().map(MapillaryImageUtils::getKey).filter(Objects::nonNull)
-      .collect(Collectors.toSet());
-    String[] missing = keys.stream().filter(key -> !keySet.contains(key)).toArray(String[]::new);
+    String[] missing = keys.stream().filter(key -> ImageIndex.getImage(data, key) == null).toArray(String[]::new);
     if (keys.isEmpty())
       MapillaryDownloader.downloadImages(missing);
     else
       MapillaryUtils.getForkJoinPool(MapillaryCache.class).execute(() -> MapillaryDownloader.downloadImages(missing));
-    Map<String, INode> nodeMap = data.getNodes().stream().filter(img -> MapillaryImageUtils.getKey(img) != null)
-      .collect(Collectors.toMap(MapillaryImageUtils::getKey, i -> i));
-    return keys.stream().map(nodeMap::get).collect(Collectors.toList());
+    return keys.stream().map(key -> ImageIndex.getImage(data, key)).collect(Collectors.<INode>toList());
   }
 
   @Override
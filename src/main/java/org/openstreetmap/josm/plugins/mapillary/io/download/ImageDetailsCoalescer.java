@@ -0,0 +1,142 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openstreetmap.josm.data.vector.VectorDataSet;
+import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryUtils;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Gathers requests for the details of single images, and sends them as one request for several images. A batch is
+ * sent when it is full, or when the oldest request in it has waited for a few milliseconds.
+ */
+public final class ImageDetailsCoalescer {
+  /** The longest time a request waits for other requests before it is sent */
+  private static final long WINDOW_MILLIS = 5;
+  /** The most images to ask for at once (the same as the offline area downloader) */
+  private static final int MAX_BATCH_SIZE = 50;
+
+  private static final ImageDetailsCoalescer INSTANCE = new ImageDetailsCoalescer(WINDOW_MILLIS, MAX_BATCH_SIZE,
+    MapillaryDownloader::realDownloadImages);
+
+  private final long windowMillis;
+  private final int maxBatchSize;
+  private final BiFunction<VectorDataSet, String[], Map<String, Collection<VectorNode>>> loader;
+  private final ScheduledThreadPoolExecutor scheduler;
+  /** The batches that are still gathering requests, by dataset. Guarded by {@code this}. */
+  private final Map<VectorDataSet, Batch> pending = new HashMap<>();
+
+  private static final class Batch {
+    final VectorDataSet data;
+    final Map<String, CompletableFuture<VectorNode>> requests = new LinkedHashMap<>();
+    ScheduledFuture<?> flush;
+
+    Batch(@Nonnull VectorDataSet data) {
+      this.data = data;
+    }
+  }
+
+  /**
+   * Get the coalescer for the image details
+   *
+   * @return The shared coalescer
+   */
+  public static ImageDetailsCoalescer getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Create a new coalescer
+   *
+   * @param windowMillis The longest time to wait for more requests
+   * @param maxBatchSize The most images to send in one request
+   * @param loader The function that downloads the images, returning them by sequence key
+   */
+  ImageDetailsCoalescer(final long windowMillis, final int maxBatchSize,
+    @Nonnull final BiFunction<VectorDataSet, String[], Map<String, Collection<VectorNode>>> loader) {
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.loader = loader;
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+      Utils.newThreadFactory("mapillary-image-details-%d", Thread.NORM_PRIORITY));
+    this.scheduler.setKeepAliveTime(1, TimeUnit.SECONDS);
+    this.scheduler.allowCoreThreadTimeOut(true);
+    this.scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Request the details for an image. Requests for the same image that are waiting share the same future.
+   *
+   * @param data The data to add the image to
+   * @param key The image key
+   * @return A future with the image, which is {@code null} if it could not be downloaded
+   */
+  @Nonnull
+  public CompletableFuture<VectorNode> request(@Nullable final VectorDataSet data, @Nullable final String key) {
+    if (data == null || key == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final CompletableFuture<VectorNode> future;
+    Batch full = null;
+    synchronized (this) {
+      final Batch batch = this.pending.computeIfAbsent(data, Batch::new);
+      future = batch.requests.computeIfAbsent(key, k -> new CompletableFuture<>());
+      if (batch.requests.size() >= this.maxBatchSize) {
+        this.pending.remove(data);
+        if (batch.flush != null) {
+          batch.flush.cancel(false);
+        }
+        full = batch;
+      } else if (batch.flush == null) {
+        batch.flush = this.scheduler.schedule(() -> this.flush(batch), this.windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      final Batch toSend = full;
+      MapillaryUtils.getForkJoinPool(MapillaryDownloader.class).execute(() -> this.send(toSend));
+    }
+    return future;
+  }
+
+  private void flush(@Nonnull final Batch batch) {
+    synchronized (this) {
+      if (this.pending.get(batch.data) != batch) {
+        // Already sent, since it filled up
+        return;
+      }
+      this.pending.remove(batch.data);
+    }
+    MapillaryUtils.getForkJoinPool(MapillaryDownloader.class).execute(() -> this.send(batch));
+  }
+
+  private void send(@Nonnull final Batch batch) {
+    final Map<String, VectorNode> images = new HashMap<>(batch.requests.size());
+    try {
+      for (Collection<VectorNode> sequence : this.loader
+        .apply(batch.data, batch.requests.keySet().toArray(new String[0])).values()) {
+        for (VectorNode image : sequence) {
+          images.put(MapillaryImageUtils.getKey(image), image);
+        }
+      }
+    } catch (RuntimeException e) {
+      // Treat the images as missing, like a failed single image request
+      Logging.error(e);
+    }
+    batch.requests.forEach((key, future) -> future.complete(images.get(key)));
+  }
+}
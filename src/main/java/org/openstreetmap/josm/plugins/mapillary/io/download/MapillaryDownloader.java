@@ -5,37 +5,34 @@ import org.openstreetmap.josm.data.vector.VectorDataSet;
 import org.openstreetmap.josm.data.vector.VectorNode;
 import org.openstreetmap.josm.data.vector.VectorWay;
 import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataCacheAccess;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
-import org.openstreetmap.josm.plugins.mapillary.oauth.OAuthUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonDecoder;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonImageDetailsDecoder;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonSequencesDecoder;
 import org.openstreetmap.josm.tools.Logging;
 
-import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonString;
 import javax.json.JsonValue;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -47,6 +44,11 @@ import java.util.stream.Stream;
  * @author nokutu
  */
 public final class MapillaryDownloader {
+  /** The most images to ask for in one request, so that the URL doesn't get too long */
+  private static final int MAX_IMAGES_PER_REQUEST = 50;
+  /** The most requests for one download call to have open at once */
+  private static final int MAX_CONCURRENT_REQUESTS = 4;
+
   private MapillaryDownloader() {
     // Private constructor to avoid instantiation
   }
@@ -76,30 +78,107 @@ public final class MapillaryDownloader {
     }
   }
 
-  private static Map<String, Collection<VectorNode>> realDownloadImages(final VectorDataSet dataSet,
+  /**
+   * Download the details for a single image. Requests made at about the same time are sent together (see
+   * {@link ImageDetailsCoalescer}).
+   *
+   * @param image The image to download
+   * @return A future with the downloaded image, which is {@code null} if it could not be downloaded
+   */
+  public static CompletableFuture<VectorNode> requestImage(String image) {
+    return ImageDetailsCoalescer.getInstance().request(MapillaryLayer.getInstance().getData(), image);
+  }
+
+  /**
+   * Download a (long) list of images in chunks. Several chunks are downloaded at once, and each chunk is added to the
+   * data as soon as it arrives, so the images at the start of the list are usually available first.
+   *
+   * @param dataSet The data to add the images to
+   * @param images The images to download
+   */
+  public static void downloadImagesInChunks(final VectorDataSet dataSet, final List<String> images) {
+    if (images.size() <= MAX_IMAGES_PER_REQUEST) {
+      realDownloadImages(dataSet, images.toArray(new String[0]));
+      return;
+    }
+    final List<Supplier<Map<String, Collection<VectorNode>>>> chunks = new ArrayList<>();
+    for (int i = 0; i < images.size(); i += MAX_IMAGES_PER_REQUEST) {
+      final String[] chunk = images.subList(i, Math.min(images.size(), i + MAX_IMAGES_PER_REQUEST))
+        .toArray(new String[0]);
+      chunks.add(() -> realDownloadImages(dataSet, chunk));
+    }
+    final List<CompletableFuture<Map<String, Collection<VectorNode>>>> downloads = runBounded(chunks);
+    CompletableFuture.allOf(downloads.toArray(new CompletableFuture[0])).join();
+  }
+
+  /**
+   * Run tasks on the downloader pool, with at most {@link #MAX_CONCURRENT_REQUESTS} running at once. The tasks are
+   * started in order, and this returns once the last task has been started. Failed tasks are logged, and complete
+   * with {@code null}.
+   *
+   * @param tasks The tasks to run
+   * @param <T> The result type
+   * @return The futures for the tasks, in the order of the tasks
+   */
+  private static <T> List<CompletableFuture<T>> runBounded(final List<Supplier<T>> tasks) {
+    final ForkJoinPool pool = MapillaryUtils.getForkJoinPool(MapillaryDownloader.class);
+    final List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+    final List<CompletableFuture<T>> inFlight = new ArrayList<>(MAX_CONCURRENT_REQUESTS);
+    for (Supplier<T> task : tasks) {
+      // Wait with joins instead of a semaphore, since callers may already be on a fork join pool
+      while (inFlight.size() >= MAX_CONCURRENT_REQUESTS) {
+        CompletableFuture.anyOf(inFlight.toArray(new CompletableFuture[0])).join();
+        inFlight.removeIf(CompletableFuture::isDone);
+      }
+      final CompletableFuture<T> future = CompletableFuture.supplyAsync(task, pool).handle((value, e) -> {
+        if (e != null) {
+          Logging.error(e);
+        }
+        return value;
+      });
+      inFlight.add(future);
+      futures.add(future);
+    }
+    return futures;
+  }
+
+  static Map<String, Collection<VectorNode>> realDownloadImages(final VectorDataSet dataSet,
     final String... images) {
     if (images.length == 0) {
       return Collections.emptyMap();
     }
-    final Caches.MapillaryCacheAccess<String> metaDataCache = Caches.metaDataCache;
-    String url = MapillaryURL.APIv4.getImageInformation(images);
-    String stringJson = metaDataCache.get(url, () -> {
-      final JsonObject jsonObject = getUrlResponse(url);
-      return jsonObject != null ? jsonObject.toString() : null;
-    });
-    final Collection<VectorNode> nodes;
-    if (stringJson != null) {
-      try (JsonReader jsonReader = Json
-        .createReader(new ByteArrayInputStream(stringJson.getBytes(StandardCharsets.UTF_8)))) {
-        final JsonObject jsonObject = jsonReader.readObject();
-        nodes = JsonDecoder.decodeData(jsonObject, json -> JsonImageDetailsDecoder.decodeImageInfos(json, dataSet));
-        // OK. Cache each image separately as well.
-        if (images.length > 1) {
-          separatelyCacheDownloadedImages(jsonObject);
+    final Collection<VectorNode> nodes = new ArrayList<>(images.length);
+    String[] toGet = images;
+    if (images.length > 1) {
+      // Only ask for the images that aren't cached separately
+      final List<String> missing = new ArrayList<>(images.length);
+      for (String image : images) {
+        final MetadataRecord cached = Caches.metaDataCache.getCachedImageRecord(image);
+        if (cached != null) {
+          nodes.addAll(JsonDecoder.decodeRecord(cached, record -> JsonImageDetailsDecoder.decodeImageRecord(record,
+            dataSet)));
+        } else {
+          missing.add(image);
         }
       }
+      toGet = missing.toArray(new String[0]);
+    }
+    final MetadataRecord downloaded;
+    if (toGet.length == 0) {
+      downloaded = null;
+    } else if (toGet.length == 1) {
+      downloaded = Caches.metaDataCache.getImageRecord(toGet[0]);
     } else {
-      nodes = Collections.emptyList();
+      // This set of images is unlikely to be requested again, so only the images are cached (below)
+      downloaded = Caches.metaDataCache.fetchRecord(MapillaryURL.APIv4.getImageInformation(toGet));
+    }
+    if (downloaded != null) {
+      nodes.addAll(
+        JsonDecoder.decodeRecord(downloaded, record -> JsonImageDetailsDecoder.decodeImageRecord(record, dataSet)));
+      // OK. Cache each image separately as well.
+      if (toGet.length > 1) {
+        separatelyCacheDownloadedImages(downloaded);
+      }
     }
     return nodes.stream().sorted(Comparator.comparingLong(image -> MapillaryImageUtils.getDate(image).toEpochMilli()))
       .collect(Collector.of(
@@ -111,12 +190,16 @@ public final class MapillaryDownloader {
         }));
   }
 
-  private static void separatelyCacheDownloadedImages(final JsonObject jsonObject) {
-    final String dataString = "data";
-    if (jsonObject.containsKey(dataString) && jsonObject.get(dataString).getValueType() == JsonValue.ValueType.ARRAY) {
-      for (JsonObject entry : jsonObject.get(dataString).asJsonArray().getValuesAs(JsonObject.class)) {
-        final String entryUrl = MapillaryURL.APIv4.getImageInformation(entry.getString("id"));
-        Caches.metaDataCache.getICacheAccess().put(entryUrl, entry.toString());
+  private static void separatelyCacheDownloadedImages(final MetadataRecord record) {
+    // Only the data array is read back as JSON, since each image gets its own record
+    final JsonValue data = record.get("data");
+    if (data != null && data.getValueType() == JsonValue.ValueType.ARRAY) {
+      for (JsonValue entry : data.asJsonArray()) {
+        if (entry.getValueType() == JsonValue.ValueType.OBJECT
+          && entry.asJsonObject().get("id") instanceof JsonString) {
+          Caches.metaDataCache.putImageInformation(entry.asJsonObject().getString("id"), entry.asJsonObject(),
+            MapillaryURL.APIv4.getDefaultImageInformation());
+        }
       }
     }
   }
@@ -155,36 +238,30 @@ public final class MapillaryDownloader {
         .collect(Collectors.toSet());
       toGet = Stream.of(toGet).filter(seq -> !previousSequences.contains(seq)).toArray(String[]::new);
     }
-    if (toGet.length > 0) {
-      return Stream.of(toGet).map(MapillaryURL.APIv4::getImagesBySequences)
-        .map(url -> Caches.metaDataCache.get(url, () -> getUrlResponse(url).toString())).map(string -> {
-          try (
-            JsonReader reader = Json.createReader(new ByteArrayInputStream(string.getBytes(StandardCharsets.UTF_8)))) {
-            return reader.readObject();
-          }
-        }).flatMap(jsonObject -> JsonDecoder.decodeData(jsonObject, JsonSequencesDecoder::decodeSequence).stream())
-        .collect(Collectors.toSet());
-    }
-    return Collections.emptyList();
-  }
-
-  @Nullable
-  private static JsonObject getUrlResponse(@Nonnull URL url) {
-    try {
-      return OAuthUtils.getWithHeader(url);
-    } catch (IOException e) {
-      Logging.trace(e);
-      return null;
+    if (toGet.length == 0) {
+      return Collections.emptyList();
     }
-  }
-
-  @Nullable
-  private static JsonObject getUrlResponse(@Nonnull String url) {
-    try {
-      return getUrlResponse(new URL(url));
-    } catch (MalformedURLException e) {
-      Logging.error(e);
+    // Fetch the sequences in parallel, but decode them here, one after the other. Decoding writes to the layer data,
+    // and the recursion check above needs the decoding to happen on this thread.
+    final List<CompletableFuture<MetadataRecord>> fetches = runBounded(
+      Stream.of(toGet).map(MapillaryURL.APIv4::getImagesBySequences).<Supplier<MetadataRecord>>map(
+        url -> () -> Caches.metaDataCache.getRecord(url, MetadataCacheAccess.Endpoint.SEQUENCES))
+        .collect(Collectors.toList()));
+    final Set<VectorWay> downloaded = new HashSet<>(toGet.length);
+    for (int i = 0; i < toGet.length; i++) {
+      final MetadataRecord record = fetches.get(i).join();
+      if (record == null) {
+        Logging.warn("Mapillary: Could not download sequence {0}", toGet[i]);
+        continue;
+      }
+      try {
+        downloaded.addAll(JsonDecoder.decodeRecord(record, JsonSequencesDecoder::decodeSequenceRecord));
+      } catch (RuntimeException e) {
+        // Don't lose the other sequences
+        Logging.warn("Mapillary: Could not decode sequence {0}", toGet[i]);
+        Logging.warn(e);
+      }
     }
-    return null;
+    return downloaded;
   }
 }
@@ -0,0 +1,186 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheStatistics;
+import org.openstreetmap.josm.tools.HttpClient;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Response handling and metrics for requests to the Mapillary API. Responses are released by reading them to the end
+ * instead of disconnecting, so that the client implementation can keep the connection (and its TLS session) alive for
+ * the next request to the same host. Connection setup and pooling are left to the client from
+ * {@link HttpClient#create(URL, String)}.
+ * <p>
+ * The time to the response headers and, for compressed responses, the compression of the response bodies are
+ * recorded per host in {@link CacheStatistics} ({@code mapillary:http:<host>}).
+ */
+public final class MapillaryHttpTransport {
+  /** The statistics name prefix, followed by the host */
+  static final String STATISTICS_PREFIX = "mapillary:http:";
+  /**
+   * The most bytes to read from a response that is released before its end. Anything larger is cheaper to drop
+   * along with its connection.
+   */
+  private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+  private MapillaryHttpTransport() {
+    // Hide constructor
+  }
+
+  /**
+   * Send a request, and record the time it took to get the response headers. This includes opening the connection
+   * (and the TLS handshake), unless a kept-alive connection was reused.
+   *
+   * @param client The client to send the request with
+   * @return The response
+   * @throws IOException If the request could not be sent
+   */
+  @Nonnull
+  public static HttpClient.Response connect(@Nonnull HttpClient client) throws IOException {
+    final CacheStatistics statistics = getStatistics(client.getURL());
+    final long start = System.nanoTime();
+    boolean success = false;
+    try {
+      client.connect();
+      final HttpClient.Response response = client.getResponse();
+      success = response.getResponseCode() < 400;
+      return response;
+    } finally {
+      final long nanos = System.nanoTime() - start;
+      statistics.recordLoad(nanos, success);
+      Logging.trace("Mapillary: {0} {1} headers in {2} ms", client.getRequestMethod(), client.getURL(),
+        TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+  }
+
+  /**
+   * Get the (decompressed) body of a response. Closing the stream reads the rest of the body, so that the
+   * connection can be reused.
+   *
+   * @param client The client that got the response (see {@link #connect(HttpClient)})
+   * @return The body
+   * @throws IOException If the body could not be read
+   */
+  @Nonnull
+  public static InputStream getContent(@Nonnull HttpClient client) throws IOException {
+    final HttpClient.Response response = client.getResponse();
+    final CacheStatistics statistics = getStatistics(client.getURL());
+    final long compressedLength = "gzip".equalsIgnoreCase(response.getContentEncoding())
+      ? response.getContentLength() : -1;
+    return new ReleasingInputStream(response.getContent(), length -> {
+      if (compressedLength > 0) {
+        statistics.recordCompression(length, compressedLength);
+      }
+    });
+  }
+
+  /**
+   * Release a response whose body is not needed. The connection is kept for reuse if the body is small. Bodies that
+   * were read with {@link #getContent(HttpClient)} are released by closing the stream instead.
+   *
+   * @param response The response to release, may be {@code null}
+   */
+  public static void release(@Nullable HttpClient.Response response) {
+    if (response == null) {
+      return;
+    }
+    try (InputStream content = response.getContent()) {
+      drain(content);
+    } catch (IOException e) {
+      // The connection is closed instead of being reused
+      Logging.trace(e);
+      response.disconnect();
+    }
+  }
+
+  @Nonnull
+  private static CacheStatistics getStatistics(@Nonnull URL url) {
+    return CacheStatistics.forCache(STATISTICS_PREFIX + url.getHost());
+  }
+
+  /**
+   * Read (up to {@link #MAX_DRAIN_BYTES} of) the rest of a stream
+   *
+   * @param stream The stream to read
+   * @return The number of bytes read
+   * @throws IOException If the stream could not be read
+   */
+  static long drain(@Nonnull InputStream stream) throws IOException {
+    final byte[] buffer = new byte[8192];
+    long drained = 0;
+    int read;
+    while (drained < MAX_DRAIN_BYTES && (read = stream.read(buffer)) >= 0) {
+      drained += read;
+    }
+    return drained;
+  }
+
+  /**
+   * A response body that counts the bytes read, and reads the rest of the body when it is closed
+   */
+  static final class ReleasingInputStream extends FilterInputStream {
+    private final LongConsumer onClose;
+    private long length;
+    private boolean closed;
+
+    /**
+     * Create a new stream
+     *
+     * @param in The response body
+     * @param onClose Called with the length of the body when the stream is closed
+     */
+    ReleasingInputStream(@Nonnull InputStream in, @Nonnull LongConsumer onClose) {
+      super(in);
+      this.onClose = onClose;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int read = super.read();
+      if (read >= 0) {
+        this.length++;
+      }
+      return read;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int read = super.read(b, off, len);
+      if (read > 0) {
+        this.length += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(n);
+      this.length += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      try {
+        this.length += drain(this.in);
+      } finally {
+        super.close();
+        this.onClose.accept(this.length);
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.apache.commons.jcs3.access.behavior.ICacheAccess;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.josm.data.cache.BufferedImageCacheEntry;
+import org.openstreetmap.josm.data.imagery.TileJobOptions;
+import org.openstreetmap.josm.data.imagery.vectortile.mapbox.MapboxVectorCachedTileLoader;
+import org.openstreetmap.josm.data.imagery.vectortile.mapbox.MapboxVectorCachedTileLoaderJob;
+
+/**
+ * A vector tile loader that tells the {@link RateLimitGovernor} about the responses from the tile server, since tile
+ * requests count against the same rate limit as the other Mapillary requests.
+ */
+public class MapillaryTileLoader extends MapboxVectorCachedTileLoader {
+  private final TileLoaderListener listener;
+  private final ICacheAccess<String, BufferedImageCacheEntry> cache;
+  private final TileJobOptions options;
+
+  /**
+   * Create a new tile loader. This is called by the tile loader factory of the layer.
+   *
+   * @param listener The listener to notify when a tile has been loaded
+   * @param cache The cache for the tiles
+   * @param options The options for the tile jobs
+   */
+  public MapillaryTileLoader(TileLoaderListener listener, ICacheAccess<String, BufferedImageCacheEntry> cache,
+    TileJobOptions options) {
+    super(listener, cache, options);
+    this.listener = listener;
+    this.cache = cache;
+    this.options = options;
+  }
+
+  @Override
+  public TileJob createTileLoaderJob(Tile tile) {
+    return new MapillaryTileLoaderJob(this.listener, tile, this.cache, this.options, this.getDownloadExecutor());
+  }
+
+  private static final class MapillaryTileLoaderJob extends MapboxVectorCachedTileLoaderJob {
+    MapillaryTileLoaderJob(TileLoaderListener listener, Tile tile,
+      ICacheAccess<String, BufferedImageCacheEntry> cache, TileJobOptions options,
+      ThreadPoolExecutor downloadExecutor) {
+      super(listener, tile, cache, options, downloadExecutor);
+    }
+
+    @Override
+    protected boolean isResponseLoadable(Map<String, List<String>> headerFields, int responseCode, byte[] raw) {
+      // Only called for network responses, so tiles from the cache don't count as successful requests
+      RateLimitGovernor.getInstance().reportResponse(responseCode, headerFields);
+      return super.isResponseLoadable(headerFields, responseCode, raw);
+    }
+  }
+}
@@ -0,0 +1,492 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.TileXY;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.imagery.vectortile.mapbox.MVTTile;
+import org.openstreetmap.josm.data.osm.INode;
+import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.progress.swing.PleaseWaitProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheUtils;
+import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
+import org.openstreetmap.josm.plugins.mapillary.cache.ImageDownloadExecutor;
+import org.openstreetmap.josm.plugins.mapillary.cache.MapillaryCache;
+import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
+import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryVectorTileWorkarounds;
+import org.openstreetmap.josm.plugins.mapillary.gui.layer.PointObjectLayer;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryKeys;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Fills the caches for an area, so that it can be used offline (see {@link MapillaryProperties#OFFLINE}). This loads
+ * the image (and point object) vector tiles, the image and sequence metadata, the thumbnails and (optionally) the
+ * full size images.
+ * <p>
+ * Anything that is already cached is skipped, so an interrupted download is resumed by running it again. The area of
+ * an unfinished download is kept in {@link MapillaryProperties#OFFLINE_AREA_PENDING}.
+ */
+public class OfflineAreaDownloader extends PleaseWaitRunnable {
+  /** The (rough) average size of a vector tile */
+  static final long TILE_SIZE = 50_000;
+  /** The (rough) average size of the metadata for an image and its sequence */
+  static final long METADATA_SIZE = 3_000;
+  /** The (rough) average size of a thumbnail */
+  static final long THUMBNAIL_SIZE = 20_000;
+  /** The (rough) average size of a full size image */
+  static final long FULL_IMAGE_SIZE = 200_000;
+  /** The highest zoom that Mapillary has vector tiles for (the layers overzoom these tiles) */
+  public static final int MAX_TILE_ZOOM = 14;
+  /** The zoom that Mapillary has point object tiles for */
+  private static final int POINT_OBJECT_TILE_ZOOM = 14;
+  /** The maximum number of tiles for one area */
+  public static final int MAX_TILES = 5_000;
+  /** The number of images to get metadata for in one request */
+  private static final int METADATA_BATCH_SIZE = 50;
+  /** The number of image downloads to have in flight */
+  private static final int PARALLEL_IMAGE_DOWNLOADS = 4;
+  /** The time to wait for a tile */
+  private static final long TILE_TIMEOUT_SECONDS = 60;
+
+  private final Area area;
+  private final Set<MapillaryCache> imageJobs = ConcurrentHashMap.newKeySet();
+  private volatile boolean canceled;
+  /** Set by the download threads as well */
+  private volatile boolean failed;
+
+  /**
+   * An area to download
+   */
+  public static final class Area {
+    private static final String SEPARATOR = ",";
+    private final Bounds bounds;
+    private final int minZoom;
+    private final int maxZoom;
+    private final boolean fullImages;
+
+    /**
+     * Create a new area
+     *
+     * @param bounds The bounds of the area
+     * @param minZoom The minimum zoom to load tiles for (at most {@link #MAX_TILE_ZOOM})
+     * @param maxZoom The maximum zoom to load tiles for (at most {@link #MAX_TILE_ZOOM})
+     * @param fullImages {@code true} to download full size images as well as thumbnails
+     */
+    public Area(@Nonnull Bounds bounds, int minZoom, int maxZoom, boolean fullImages) {
+      this.bounds = bounds;
+      this.minZoom = Math.max(0, Math.min(MAX_TILE_ZOOM, Math.min(minZoom, maxZoom)));
+      this.maxZoom = Math.max(0, Math.min(MAX_TILE_ZOOM, Math.max(minZoom, maxZoom)));
+      this.fullImages = fullImages;
+    }
+
+    /**
+     * Read an area written by {@link #toString()}
+     *
+     * @param area The area string
+     * @return The area, or {@code null} if the string isn't a valid area
+     */
+    @Nullable
+    public static Area parse(@Nullable String area) {
+      if (area == null) {
+        return null;
+      }
+      final String[] parts = area.split(SEPARATOR, -1);
+      if (parts.length != 7) {
+        return null;
+      }
+      try {
+        return new Area(
+          new Bounds(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+            Double.parseDouble(parts[3])),
+          Integer.parseInt(parts[4]), Integer.parseInt(parts[5]), Boolean.parseBoolean(parts[6]));
+      } catch (IllegalArgumentException e) {
+        Logging.trace(e);
+        return null;
+      }
+    }
+
+    /**
+     * Get the bounds of the area
+     *
+     * @return The bounds
+     */
+    @Nonnull
+    public Bounds getBounds() {
+      return this.bounds;
+    }
+
+    /**
+     * Check if full size images should be downloaded
+     *
+     * @return {@code true} if full size images are downloaded as well as thumbnails
+     */
+    public boolean isFullImages() {
+      return this.fullImages;
+    }
+
+    /**
+     * Get the tiles covering the area for a zoom level (standard web mercator tiles)
+     *
+     * @param zoom The zoom level
+     * @return The tiles
+     */
+    @Nonnull
+    public List<TileXY> getTiles(int zoom) {
+      final int maxIndex = (1 << zoom) - 1;
+      final int minX = getTileX(this.bounds.getMinLon(), zoom, maxIndex);
+      final int maxX = getTileX(this.bounds.getMaxLon(), zoom, maxIndex);
+      // Tile y indexes grow to the south
+      final int minY = getTileY(this.bounds.getMaxLat(), zoom, maxIndex);
+      final int maxY = getTileY(this.bounds.getMinLat(), zoom, maxIndex);
+      final List<TileXY> tiles = new ArrayList<>((maxX - minX + 1) * (maxY - minY + 1));
+      for (int x = minX; x <= maxX; x++) {
+        for (int y = minY; y <= maxY; y++) {
+          tiles.add(new TileXY(x, y));
+        }
+      }
+      return tiles;
+    }
+
+    /**
+     * Get the number of image tiles covering the area
+     *
+     * @return The number of tiles for all zoom levels
+     */
+    public long getTileCount() {
+      long count = 0;
+      for (int zoom = this.minZoom; zoom <= this.maxZoom; zoom++) {
+        final int maxIndex = (1 << zoom) - 1;
+        count += (long) (getTileX(this.bounds.getMaxLon(), zoom, maxIndex)
+          - getTileX(this.bounds.getMinLon(), zoom, maxIndex) + 1)
+          * (getTileY(this.bounds.getMinLat(), zoom, maxIndex) - getTileY(this.bounds.getMaxLat(), zoom, maxIndex)
+            + 1);
+      }
+      return count;
+    }
+
+    private static int getTileX(double lon, int zoom, int maxIndex) {
+      return Math.max(0, Math.min(maxIndex, (int) Math.floor((lon + 180) / 360 * (1 << zoom))));
+    }
+
+    private static int getTileY(double lat, int zoom, int maxIndex) {
+      final double latRad = Math.toRadians(lat);
+      final double y = (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * (1 << zoom);
+      return Math.max(0, Math.min(maxIndex, (int) Math.floor(y)));
+    }
+
+    @Override
+    public String toString() {
+      return String.join(SEPARATOR, Double.toString(this.bounds.getMinLat()),
+        Double.toString(this.bounds.getMinLon()), Double.toString(this.bounds.getMaxLat()),
+        Double.toString(this.bounds.getMaxLon()), Integer.toString(this.minZoom), Integer.toString(this.maxZoom),
+        Boolean.toString(this.fullImages));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (other == null || this.getClass() != other.getClass()) {
+        return false;
+      }
+      final Area otherArea = (Area) other;
+      return this.minZoom == otherArea.minZoom && this.maxZoom == otherArea.maxZoom
+        && this.fullImages == otherArea.fullImages && this.bounds.equals(otherArea.bounds);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.bounds, this.minZoom, this.maxZoom, this.fullImages);
+    }
+  }
+
+  /**
+   * Create a new downloader
+   *
+   * @param area The area to download
+   */
+  public OfflineAreaDownloader(@Nonnull Area area) {
+    super(tr("Preparing Mapillary area for offline use"),
+      new PleaseWaitProgressMonitor(tr("Preparing Mapillary area for offline use")), false);
+    this.area = area;
+  }
+
+  /**
+   * Get the unfinished download, if any
+   *
+   * @return The area of the unfinished download
+   */
+  @Nullable
+  public static Area getPendingArea() {
+    return Area.parse(MapillaryProperties.OFFLINE_AREA_PENDING.get());
+  }
+
+  /**
+   * Estimate the size of the cached data for an area
+   *
+   * @param tiles The number of tiles
+   * @param images The number of images
+   * @param fullImages {@code true} if full size images are downloaded
+   * @return The estimated size in bytes
+   */
+  public static long estimateSize(long tiles, long images, boolean fullImages) {
+    return tiles * TILE_SIZE + images * (METADATA_SIZE + THUMBNAIL_SIZE + (fullImages ? FULL_IMAGE_SIZE : 0));
+  }
+
+  @Override
+  protected void cancel() {
+    this.canceled = true;
+    this.imageJobs.forEach(MapillaryCache::cancelIfQueued);
+  }
+
+  @Override
+  protected void realRun() {
+    if (!MapillaryLayer.hasInstance()) {
+      return;
+    }
+    MapillaryProperties.OFFLINE_AREA_PENDING.put(this.area.toString());
+    final Set<String> imageKeys = this.loadTiles();
+    if (this.canceled) {
+      return;
+    }
+    if (!this.confirmSize(imageKeys.size())) {
+      MapillaryProperties.OFFLINE_AREA_PENDING.put(null);
+      return;
+    }
+    final List<INode> images = this.loadMetadata(imageKeys);
+    if (this.canceled) {
+      return;
+    }
+    this.loadImages(images);
+    if (!this.canceled && !this.failed) {
+      MapillaryProperties.OFFLINE_AREA_PENDING.put(null);
+    }
+  }
+
+  @Override
+  protected void finish() {
+    // Nothing to clean up, the data is in the caches
+  }
+
+  /**
+   * Load the image tiles (and the point object tiles, if the point object layer is open)
+   *
+   * @return The keys of the images in the tiles
+   */
+  private Set<String> loadTiles() {
+    final Map<MapillaryVectorTileWorkarounds, int[]> layers = new LinkedHashMap<>(2);
+    layers.put(MapillaryLayer.getInstance(), new int[] { this.area.minZoom, this.area.maxZoom });
+    MainApplication.getLayerManager().getLayersOfType(PointObjectLayer.class).stream()
+      .filter(layer -> MapillaryKeys.MAPILLARY_POINT_OBJECTS.getUrl().equals(layer.getInfo().getUrl())).findFirst()
+      .ifPresent(layer -> layers.put(layer, new int[] { POINT_OBJECT_TILE_ZOOM, POINT_OBJECT_TILE_ZOOM }));
+    int tileCount = 0;
+    for (int[] zooms : layers.values()) {
+      for (int zoom = zooms[0]; zoom <= zooms[1]; zoom++) {
+        tileCount += this.area.getTiles(zoom).size();
+      }
+    }
+    this.progressMonitor.setTicksCount(tileCount);
+    this.progressMonitor.setTicks(0);
+    this.progressMonitor.subTask(trn("Loading {0} tile", "Loading {0} tiles", tileCount, tileCount));
+    final Set<String> imageKeys = new LinkedHashSet<>();
+    for (Map.Entry<MapillaryVectorTileWorkarounds, int[]> entry : layers.entrySet()) {
+      for (int zoom = entry.getValue()[0]; zoom <= entry.getValue()[1]; zoom++) {
+        for (TileXY tileXY : this.area.getTiles(zoom)) {
+          if (this.canceled) {
+            return imageKeys;
+          }
+          final Tile tile = this.getTile(entry.getKey().loadTile(tileXY.getXIndex(), tileXY.getYIndex(), zoom));
+          if (tile instanceof MVTTile && entry.getKey() instanceof MapillaryLayer) {
+            ((MVTTile) tile).getData().getAllPrimitives().stream().filter(INode.class::isInstance)
+              .map(INode.class::cast).filter(MapillaryImageUtils.IS_IMAGE).map(MapillaryImageUtils::getKey)
+              .filter(Objects::nonNull).forEach(imageKeys::add);
+          }
+          this.progressMonitor.worked(1);
+        }
+      }
+    }
+    return imageKeys;
+  }
+
+  @Nullable
+  private Tile getTile(@Nonnull Future<Tile> future) {
+    try {
+      final Tile tile = future.get(TILE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (tile == null || tile.hasError()) {
+        this.failed = true;
+      }
+      return tile;
+    } catch (ExecutionException | TimeoutException e) {
+      Logging.error(e);
+    } catch (InterruptedException e) {
+      Logging.error(e);
+      Thread.currentThread().interrupt();
+      this.canceled = true;
+    }
+    this.failed = true;
+    return null;
+  }
+
+  /**
+   * Show the size estimate, and ask the user if the download should continue
+   *
+   * @param imageCount The number of images in the area
+   * @return {@code true} if the download should continue
+   */
+  private boolean confirmSize(int imageCount) {
+    final long estimate = estimateSize(this.area.getTileCount(), imageCount, this.area.isFullImages());
+    final long imageEstimate = imageCount * (THUMBNAIL_SIZE + (this.area.isFullImages() ? FULL_IMAGE_SIZE : 0));
+    Logging.info("Mapillary: {0} images in the offline area, about {1} bytes", imageCount, estimate);
+    if (GraphicsEnvironment.isHeadless()) {
+      return true;
+    }
+    final StringBuilder message = new StringBuilder(
+      trn("The area has {0} image. This needs about {1} of disk space.",
+        "The area has {0} images. This needs about {1} of disk space.", imageCount, imageCount,
+        Utils.getSizeString(estimate, Locale.getDefault())));
+    if (imageEstimate > Caches.getImageDiskCacheSize()) {
+      message.append("\n\n").append(tr("The image cache only holds {0}, so some images will not be available offline.",
+        Utils.getSizeString(Caches.getImageDiskCacheSize(), Locale.getDefault())));
+    }
+    message.append("\n\n").append(tr("Continue?"));
+    final Integer answer = GuiHelper.runInEDTAndWaitAndReturn(() -> JOptionPane.showConfirmDialog(
+      MainApplication.getMainFrame(), message.toString(), tr("Prepare area for offline use"),
+      JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE));
+    return answer != null && answer == JOptionPane.YES_OPTION;
+  }
+
+  /**
+   * Load the image and sequence metadata in batches
+   *
+   * @param imageKeys The images to load metadata for
+   * @return The images with metadata
+   */
+  private List<INode> loadMetadata(@Nonnull Collection<String> imageKeys) {
+    final List<String> keys = new ArrayList<>(imageKeys);
+    this.progressMonitor.setTicksCount(keys.size());
+    this.progressMonitor.setTicks(0);
+    this.progressMonitor.subTask(tr("Loading image information"));
+    final List<INode> images = new ArrayList<>(keys.size());
+    final Set<String> sequenceKeys = new LinkedHashSet<>();
+    for (int i = 0; i < keys.size() && !this.canceled; i += METADATA_BATCH_SIZE) {
+      final String[] batch = keys.subList(i, Math.min(keys.size(), i + METADATA_BATCH_SIZE)).toArray(new String[0]);
+      final Map<String, Collection<VectorNode>> downloaded = MapillaryDownloader.downloadImages(batch);
+      downloaded.keySet().stream().filter(Objects::nonNull).forEach(sequenceKeys::add);
+      downloaded.values().forEach(images::addAll);
+      if (downloaded.values().stream().mapToInt(Collection::size).sum() < batch.length) {
+        this.failed = true;
+      }
+      this.progressMonitor.worked(batch.length);
+    }
+    this.progressMonitor.subTask(tr("Loading sequences"));
+    for (String sequenceKey : sequenceKeys) {
+      if (this.canceled) {
+        break;
+      }
+      // This caches the sequence metadata, which is needed to step through the sequence
+      if (MapillarySequenceUtils.getSequence(sequenceKey) == null) {
+        this.failed = true;
+      }
+    }
+    return images;
+  }
+
+  /**
+   * Download the thumbnails (and full size images) of the images
+   *
+   * @param images The images to download
+   */
+  private void loadImages(@Nonnull List<INode> images) {
+    final List<MapillaryCache.Type> types = this.area.isFullImages()
+      ? Arrays.asList(MapillaryCache.Type.THUMBNAIL, MapillaryCache.Type.FULL_IMAGE)
+      : Arrays.asList(MapillaryCache.Type.THUMBNAIL);
+    this.progressMonitor.setTicksCount(images.size() * types.size());
+    this.progressMonitor.setTicks(0);
+    this.progressMonitor.subTask(tr("Downloading images"));
+    final Semaphore permits = new Semaphore(PARALLEL_IMAGE_DOWNLOADS);
+    try {
+      for (INode image : images) {
+        for (MapillaryCache.Type type : types) {
+          if (this.canceled) {
+            return;
+          }
+          if (new MapillaryCache(image, type).get() != null) {
+            this.progressMonitor.worked(1);
+            continue;
+          }
+          permits.acquire();
+          // The listener runs on a download thread, possibly before submit returns
+          final AtomicReference<MapillaryCache> job = new AtomicReference<>();
+          final AtomicBoolean finished = new AtomicBoolean();
+          final MapillaryCache submitted = CacheUtils.submit(image, type, ImageDownloadExecutor.Priority.BULK,
+            (data, attributes, result) -> {
+              if (data == null || data.getContent() == null || data.getContent().length == 0) {
+                this.failed = true;
+              }
+              finished.set(true);
+              final MapillaryCache finishedJob = job.get();
+              if (finishedJob != null) {
+                this.imageJobs.remove(finishedJob);
+              }
+              this.progressMonitor.worked(1);
+              permits.release();
+            });
+          if (submitted == null) {
+            // Not downloaded (e.g. it failed recently)
+            this.failed = true;
+            this.progressMonitor.worked(1);
+            permits.release();
+          } else {
+            this.imageJobs.add(submitted);
+            job.set(submitted);
+            if (finished.get()) {
+              // The download finished before the job was set
+              this.imageJobs.remove(submitted);
+            }
+          }
+        }
+      }
+      // Wait for the last downloads
+      permits.acquire(PARALLEL_IMAGE_DOWNLOADS);
+    } catch (InterruptedException e) {
+      Logging.error(e);
+      Thread.currentThread().interrupt();
+      this.canceled = true;
+    }
+  }
+}
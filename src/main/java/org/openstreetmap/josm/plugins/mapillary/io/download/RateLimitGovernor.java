@@ -0,0 +1,252 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nullable;
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.gui.Notification;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A token bucket shared by all Mapillary HTTP traffic. When Mapillary tells us that we are rate limited, the bucket
+ * stops handing out tokens for a (jittered, exponentially growing) backoff period and then slowly ramps the request
+ * rate back up (additive increase, multiplicative decrease).
+ */
+public final class RateLimitGovernor {
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  /** The smallest fraction of the configured rate we will drop to */
+  private static final double MIN_RATE_FACTOR = 1d / 32;
+  /** The fraction of the configured rate we add back for each successful request */
+  private static final double RATE_FACTOR_STEP = 1d / 64;
+  /** The initial backoff after being rate limited */
+  private static final long BASE_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(5);
+  /** The maximum backoff after being rate limited several times in a row */
+  private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private static final RateLimitGovernor INSTANCE = new RateLimitGovernor(
+    Math.max(1, MapillaryProperties.MAXIMUM_REQUESTS_PER_SECOND.get()),
+    Math.max(1, MapillaryProperties.MAXIMUM_REQUESTS_PER_SECOND.get()), System::nanoTime);
+
+  private final double requestsPerSecond;
+  private final double capacity;
+  private final LongSupplier nanoClock;
+
+  private double tokens;
+  private long lastRefill;
+  private double rateFactor = 1;
+  private long backoffUntil;
+  private int consecutiveRateLimits;
+
+  /**
+   * Get the governor for all Mapillary traffic
+   *
+   * @return The shared governor
+   */
+  public static RateLimitGovernor getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Create a new governor
+   *
+   * @param requestsPerSecond The maximum sustained request rate
+   * @param burst The maximum number of requests that may be made at once
+   * @param nanoClock The clock to use (see {@link System#nanoTime()})
+   */
+  RateLimitGovernor(final int requestsPerSecond, final int burst, final LongSupplier nanoClock) {
+    this.requestsPerSecond = requestsPerSecond;
+    this.capacity = burst;
+    this.nanoClock = nanoClock;
+    this.tokens = burst;
+    this.lastRefill = nanoClock.getAsLong();
+    this.backoffUntil = this.lastRefill;
+  }
+
+  /**
+   * Take a token, waiting for it only if it will be available soon. This never waits through a backoff period, so
+   * callers that can reschedule their work should use {@link #tryAcquire()} and {@link #getNanosUntilAvailable()}.
+   *
+   * @param maxWaitNanos The longest time to wait for a token
+   * @return {@code true} if a request may be made. {@code false} if no token was available in time, or if the thread
+   *   was interrupted while waiting (the interrupt flag is then set).
+   */
+  public synchronized boolean acquire(final long maxWaitNanos) {
+    final long deadline = this.nanoClock.getAsLong() + maxWaitNanos;
+    long waitNanos;
+    while ((waitNanos = this.nanosUntilNextToken()) > 0) {
+      if (waitNanos > deadline - this.nanoClock.getAsLong()) {
+        return false;
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+      } catch (InterruptedException e) {
+        Logging.trace(e);
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    this.tokens -= 1;
+    return true;
+  }
+
+  /**
+   * Take a token if one is available right now
+   *
+   * @return {@code true} if a request may be made
+   */
+  public synchronized boolean tryAcquire() {
+    if (this.nanosUntilNextToken() > 0) {
+      return false;
+    }
+    this.tokens -= 1;
+    return true;
+  }
+
+  /**
+   * Get the time until a token is available, for callers that would rather reschedule their work than wait in
+   * {@link #acquire(long)}
+   *
+   * @return The nanoseconds to wait, or {@code 0} if a token is available now
+   */
+  public synchronized long getNanosUntilAvailable() {
+    return this.nanosUntilNextToken();
+  }
+
+  /**
+   * Check if we are currently waiting out a rate limit
+   *
+   * @return {@code true} if no requests should be made right now
+   */
+  public synchronized boolean isBackingOff() {
+    return this.nanoClock.getAsLong() - this.backoffUntil < 0;
+  }
+
+  /**
+   * Tell the governor that a request succeeded. This slowly ramps the request rate back up.
+   */
+  public synchronized void reportSuccess() {
+    this.consecutiveRateLimits = 0;
+    if (this.rateFactor < 1) {
+      this.rateFactor = Math.min(1, this.rateFactor + RATE_FACTOR_STEP);
+    }
+  }
+
+  /**
+   * Tell the governor that Mapillary rate limited a request
+   *
+   * @param retryAfterSeconds The {@code Retry-After} value sent by the server, or a value {@code <= 0} if unknown
+   * @return {@code true} if this started a new backoff period
+   */
+  public synchronized boolean reportRateLimited(final long retryAfterSeconds) {
+    final long now = this.nanoClock.getAsLong();
+    final boolean newBackoff = now - this.backoffUntil >= 0;
+    if (!newBackoff) {
+      // Requests that were already in flight when we started backing off
+      return false;
+    }
+    this.refill(now);
+    this.rateFactor = Math.max(MIN_RATE_FACTOR, this.rateFactor / 2);
+    this.tokens = 0;
+    final long backoff;
+    if (retryAfterSeconds > 0) {
+      backoff = TimeUnit.SECONDS.toNanos(retryAfterSeconds);
+    } else {
+      // "Equal jitter": wait at least half of the exponential backoff, so that all threads don't retry at once
+      final long exponential = Math.min(MAX_BACKOFF_NANOS,
+        BASE_BACKOFF_NANOS << Math.min(this.consecutiveRateLimits, 16));
+      backoff = exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+    }
+    this.backoffUntil = now + backoff;
+    Logging.info("Mapillary: Rate limited, backing off for {0} seconds", TimeUnit.NANOSECONDS.toSeconds(backoff));
+    // Only tell the user about the first backoff in a row
+    if (this.consecutiveRateLimits++ == 0) {
+      GuiHelper.runInEDT(() -> {
+        Notification notification = new Notification();
+        notification.setContent(tr("We have reached the Mapillary API limit. Mapillary networking will slow down and "
+          + "resume automatically.\nLogging in after the rate limit subsides may help prevent this in the future."));
+        notification.setDuration(Notification.TIME_LONG);
+        notification.setIcon(JOptionPane.WARNING_MESSAGE);
+        notification.show();
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Tell the governor about an HTTP response that was not read through {@code OAuthUtils} (e.g. images and tiles)
+   *
+   * @param responseCode The HTTP response code
+   * @param headerFields The response headers, for {@code Retry-After}
+   */
+  public void reportResponse(final int responseCode, @Nullable final Map<String, List<String>> headerFields) {
+    if (responseCode == HTTP_TOO_MANY_REQUESTS) {
+      final List<String> retryAfter = headerFields != null ? headerFields.get("Retry-After") : null;
+      long seconds = 0;
+      if (retryAfter != null && !retryAfter.isEmpty()) {
+        try {
+          seconds = Long.parseLong(retryAfter.get(0).trim());
+        } catch (NumberFormatException e) {
+          Logging.trace(e);
+        }
+      }
+      this.reportRateLimited(seconds);
+    } else if (responseCode > 0 && responseCode < 400) {
+      this.reportSuccess();
+    }
+  }
+
+  /**
+   * Reset the governor to full speed (e.g., after logging in, since users have a separate limit)
+   */
+  public synchronized void reset() {
+    final long now = this.nanoClock.getAsLong();
+    this.rateFactor = 1;
+    this.consecutiveRateLimits = 0;
+    this.backoffUntil = now;
+    this.tokens = this.capacity;
+    this.lastRefill = now;
+    this.notifyAll();
+  }
+
+  /**
+   * Get the nanoseconds until a token is available. Must be called while holding the lock.
+   *
+   * @return The nanoseconds to wait, or {@code 0} if a token is available
+   */
+  private long nanosUntilNextToken() {
+    final long now = this.nanoClock.getAsLong();
+    if (now - this.backoffUntil < 0) {
+      return this.backoffUntil - now;
+    }
+    this.refill(now);
+    if (this.tokens >= 1) {
+      return 0;
+    }
+    return Math.max(1, (long) ((1 - this.tokens) / this.currentRate() * TimeUnit.SECONDS.toNanos(1)));
+  }
+
+  private void refill(final long now) {
+    // Tokens do not accumulate while we are backing off
+    final long start = this.backoffUntil - this.lastRefill > 0 ? this.backoffUntil : this.lastRefill;
+    if (now - start > 0) {
+      final double elapsedSeconds = (now - start) / (double) TimeUnit.SECONDS.toNanos(1);
+      this.tokens = Math.min(Math.max(1, this.capacity * this.rateFactor),
+        this.tokens + elapsedSeconds * this.currentRate());
+    }
+    this.lastRefill = now;
+  }
+
+  private double currentRate() {
+    return this.requestsPerSecond * this.rateFactor;
+  }
+}
@@ -15,6 +15,8 @@ import org.openstreetmap.josm.data.cache.CacheEntryAttributes;
 import org.openstreetmap.josm.data.cache.ICachedLoaderListener;
 import org.openstreetmap.josm.data.osm.INode;
 import org.openstreetmap.josm.plugins.mapillary.cache.CacheUtils;
+import org.openstreetmap.josm.plugins.mapillary.cache.ImageDownloadExecutor;
+import org.openstreetmap.josm.plugins.mapillary.cache.MapillaryCache;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
 import org.openstreetmap.josm.tools.Logging;
 
@@ -29,6 +31,11 @@ import static org.openstreetmap.josm.tools.I18n.tr;
  * @see MapillaryExportWriterThread
  */
 public class MapillaryExportDownloadThread implements Runnable, ICachedLoaderListener {
+  /**
+   * Put in the queue instead of an image that could not be downloaded, so that the
+   * {@link MapillaryExportWriterThread} doesn't wait for it
+   */
+  static final BufferedImage FAILED = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
 
   private final ArrayBlockingQueue<BufferedImage> queue;
   private final ArrayBlockingQueue<INode> queueImages;
@@ -57,7 +64,7 @@ public class MapillaryExportDownloadThread implements Runnable, ICachedLoaderLis
   @Override
   public void run() {
     if (MapillaryImageUtils.getKey(this.image) != null) {
-      CacheUtils.submit(this.image, this);
+      CacheUtils.submit(this.image, MapillaryCache.Type.FULL_IMAGE, ImageDownloadExecutor.Priority.BULK, this);
     } else if (this.image.hasKey(MapillaryImageUtils.IMPORTED_KEY)) {
       synchronized (MapillaryExportDownloadThread.class) {
         try {
@@ -78,17 +85,27 @@ public class MapillaryExportDownloadThread implements Runnable, ICachedLoaderLis
 
   @Override
   public synchronized void loadingFinished(CacheEntry data, CacheEntryAttributes attributes, LoadResult result) {
+    BufferedImage image = null;
+    if (result == LoadResult.SUCCESS && data != null && data.getContent() != null) {
+      try {
+        image = ImageIO.read(new ByteArrayInputStream(data.getContent()));
+      } catch (IOException e) {
+        Logging.error(e);
+      }
+    }
+    if (image == null) {
+      Logging.warn("Mapillary: Could not download {0} for the export ({1})", MapillaryImageUtils.getKey(this.image),
+        result);
+    }
     try {
       synchronized (this.queue) {
-        this.queue.put(ImageIO.read(new ByteArrayInputStream(data.getContent())));
+        this.queue.put(image != null ? image : FAILED);
         this.queueImages.put(this.image);
         this.queue.notifyAll();
       }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       Logging.error(e);
-    } catch (IOException e) {
-      Logging.error(e);
     }
   }
 }
@@ -81,7 +81,10 @@ public class MapillaryExportWriterThread extends Thread {
       try {
         img = this.queue.take();
         mimg = this.queueImages.take();
-        if (this.path == null && mimg.hasKey(MapillaryImageUtils.IMPORTED_KEY)) {
+        if (img == MapillaryExportDownloadThread.FAILED) {
+          // The download failed, and was logged
+          finalPath = null;
+        } else if (this.path == null && mimg.hasKey(MapillaryImageUtils.IMPORTED_KEY)) {
           String runPath = new File(mimg.get(MapillaryImageUtils.IMPORTED_KEY)).getPath();
           finalPath = runPath.substring(0, runPath.lastIndexOf('.'));
         } else if (MapillaryImageUtils.getKey(mimg) != null && !Utils.isStripEmpty(MapillaryImageUtils.getKey(mimg))) {
@@ -90,6 +93,9 @@ public class MapillaryExportWriterThread extends Thread {
         } else if (mimg.hasKey(MapillaryImageUtils.IMPORTED_KEY)) {
           finalPath = Paths.get(this.path, mimg.get(MapillaryImageUtils.IMPORTED_KEY)).toString();
         } else {
+          finalPath = null;
+        }
+        if (finalPath == null) {
           // Increases the progress bar.
           this.monitor.worked(PleaseWaitProgressMonitor.PROGRESS_BAR_MAX / this.amount);
           this.monitor.setCustomText("Downloaded " + (i + 1) + "/" + this.amount);
@@ -3,10 +3,6 @@ package org.openstreetmap.josm.plugins.mapillary.model;
 
 import java.awt.Color;
 import java.awt.Shape;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -18,11 +14,12 @@ import java.util.function.BiConsumer;
 import org.apache.commons.jcs3.access.CacheAccess;
 import org.openstreetmap.josm.data.cache.JCSCacheManager;
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheStatistics;
 import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataCacheAccess;
 import org.openstreetmap.josm.plugins.mapillary.data.mapillary.DetectionType;
 import org.openstreetmap.josm.plugins.mapillary.data.mapillary.ObjectDetections;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.PointObjectLayer;
-import org.openstreetmap.josm.plugins.mapillary.oauth.OAuthUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.DetectionVerification;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryColorScheme;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryMapFeatureUtils;
@@ -31,12 +28,9 @@ import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonDecoder;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonImageDetectionDecoder;
-import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Pair;
 
-import javax.json.Json;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
 
 /**
  * A store for ImageDetection information
@@ -71,7 +65,13 @@ public class ImageDetection<T extends Shape> extends SpecialImageArea<T> {
     protected boolean exec() {
       if (!this.isCancelled()) {
         List<ImageDetection<?>> detections = new ArrayList<>();
-        final List<ImageDetection<?>> layerDetections = DETECTION_CACHE.get(key, () -> getDetections(key));
+        List<ImageDetection<?>> layerDetections = DETECTION_CACHE.get(key);
+        if (layerDetections != null) {
+          DETECTION_CACHE_STATISTICS.recordHit();
+        } else {
+          DETECTION_CACHE_STATISTICS.recordMiss();
+          layerDetections = DETECTION_CACHE.get(key, () -> DETECTION_CACHE_STATISTICS.load(() -> getDetections(key)));
+        }
         detections.addAll(layerDetections);
         if (listener != null) {
           listener.accept(key, detections);
@@ -90,25 +90,14 @@ public class ImageDetection<T extends Shape> extends SpecialImageArea<T> {
      */
     private static List<ImageDetection<?>> getDetections(String key) {
       final String urlString = MapillaryURL.APIv4.getDetectionInformation(key);
-      final String jsonString = Caches.metaDataCache.get(urlString, () -> {
-        try {
-          final JsonObject jsonObject = OAuthUtils.getWithHeader(new URL(urlString));
-          return jsonObject != null ? jsonObject.toString() : null;
-        } catch (IOException e) {
-          Logging.error(e);
-        }
-        return null;
-      });
-      if (jsonString != null) {
-        try (JsonReader reader = Json
-          .createReader(new ByteArrayInputStream(jsonString.getBytes(StandardCharsets.UTF_8)))) {
-          final Collection<ImageDetection<?>> detections = JsonDecoder.decodeData(reader.readObject(),
-            JsonImageDetectionDecoder::decodeImageDetection);
-          if (detections instanceof List) {
-            return (List<ImageDetection<?>>) detections;
-          }
-          return new ArrayList<>(detections);
+      final JsonObject json = Caches.metaDataCache.getJson(urlString, MetadataCacheAccess.Endpoint.DETECTIONS);
+      if (json != null) {
+        final Collection<ImageDetection<?>> detections = JsonDecoder.decodeData(json,
+          JsonImageDetectionDecoder::decodeImageDetection);
+        if (detections instanceof List) {
+          return (List<ImageDetection<?>>) detections;
         }
+        return new ArrayList<>(detections);
       }
       return Collections.emptyList();
     }
@@ -122,6 +111,8 @@ public class ImageDetection<T extends Shape> extends SpecialImageArea<T> {
   /** Detections (on a per-image basis) */
   private static final CacheAccess<String, List<ImageDetection<?>>> DETECTION_CACHE = JCSCacheManager
     .getCache(CACHE_NAME_PREFIX + DETECTIONS);
+  private static final CacheStatistics DETECTION_CACHE_STATISTICS = CacheStatistics
+    .forCache(CACHE_NAME_PREFIX + DETECTIONS).setSizes(() -> DETECTION_CACHE.getCacheControl().getSize(), null, null);
   private static final String PACKAGE_TRAFFIC_SIGNS = "trafficsign";
 
   /**
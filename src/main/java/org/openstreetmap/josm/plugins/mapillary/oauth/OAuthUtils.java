@@ -6,6 +6,7 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
@@ -13,17 +14,23 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
 import javax.json.Json;
 import javax.json.JsonException;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
-import javax.json.JsonStructure;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
 import javax.swing.JOptionPane;
 
 import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.io.CachedFile;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
+import org.openstreetmap.josm.plugins.mapillary.io.download.MapillaryHttpTransport;
+import org.openstreetmap.josm.plugins.mapillary.io.download.RateLimitGovernor;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL;
 import org.openstreetmap.josm.tools.HttpClient;
@@ -42,6 +49,95 @@ public final class OAuthUtils {
 
   private static final String AUTHORIZATION = "Authorization";
   private static final String BEARER = "OAuth ";
+  private static final String RATE_LIMIT_MESSAGE = "Application request limit reached";
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  private static final int HTTP_NOT_MODIFIED = 304;
+  /**
+   * The longest time a request waits for a rate limit token. Requests are made on the caller's thread, so they don't
+   * wait through a backoff (they fail instead).
+   */
+  private static final long MAX_TOKEN_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * The response to a conditional GET request
+   */
+  public static final class ConditionalResponse {
+    private final int responseCode;
+    private final JsonObject json;
+    private final MetadataRecord record;
+    private final String eTag;
+    private final String lastModified;
+
+    ConditionalResponse(int responseCode, @Nullable JsonObject json, @Nullable MetadataRecord record,
+      @Nullable String eTag, @Nullable String lastModified) {
+      this.responseCode = responseCode;
+      this.json = json;
+      this.record = record;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+    }
+
+    /**
+     * Check if the server told us that our copy is still current
+     *
+     * @return {@code true} if the resource has not been modified (HTTP 304)
+     */
+    public boolean isNotModified() {
+      return this.responseCode == HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * Get the HTTP response code
+     *
+     * @return The response code
+     */
+    public int getResponseCode() {
+      return this.responseCode;
+    }
+
+    /**
+     * Get the response body
+     *
+     * @return The response, or {@code null} if the resource was not modified or the server sent an error that is not
+     *         JSON
+     */
+    @Nullable
+    public JsonObject getJson() {
+      return this.json != null || this.record == null ? this.json : this.record.toJson();
+    }
+
+    /**
+     * Get the response body as a metadata record. This is only set for responses that were read straight into a
+     * record (see {@link OAuthUtils#getWithHeader(URL, String, String)}).
+     *
+     * @return The response, or {@code null} if the resource was not modified or the server sent an error that is not
+     *         JSON
+     */
+    @Nullable
+    public MetadataRecord getRecord() {
+      return this.record;
+    }
+
+    /**
+     * Get the {@code ETag} header
+     *
+     * @return The ETag, if the server sent one
+     */
+    @Nullable
+    public String getETag() {
+      return this.eTag;
+    }
+
+    /**
+     * Get the {@code Last-Modified} header
+     *
+     * @return The last modified date, if the server sent one
+     */
+    @Nullable
+    public String getLastModified() {
+      return this.lastModified;
+    }
+  }
 
   private OAuthUtils() {
     // Private constructor to avoid instantiation
@@ -72,33 +168,144 @@ public final class OAuthUtils {
    *         Errors relating to the connection.
    */
   public static JsonObject getWithHeader(HttpClient client) throws IOException {
+    final ConditionalResponse response = getWithHeader(client, null, null, false);
+    if (response.getJson() == null) {
+      throw new IOException("Mapillary: HTTP " + response.getResponseCode() + " with no JSON response");
+    }
+    return response.getJson();
+  }
+
+  /**
+   * Make a conditional GET request with the authorization header. Servers that don't support conditional requests
+   * will just send the full response. The body is read straight into a {@link MetadataRecord}, so no
+   * {@link JsonObject} is built unless {@link ConditionalResponse#getJson()} is called.
+   *
+   * @param url The {@link URL} where the request must be made
+   * @param eTag The {@code ETag} of our copy ({@code If-None-Match}), may be {@code null}
+   * @param lastModified The {@code Last-Modified} date of our copy ({@code If-Modified-Since}), may be {@code null}
+   * @return The response. HTTP errors without a JSON body are returned with a {@code null} body.
+   * @throws IOException Errors relating to the connection
+   */
+  public static ConditionalResponse getWithHeader(URL url, @Nullable String eTag, @Nullable String lastModified)
+    throws IOException {
+    return getWithHeader(HttpClient.create(url, "GET"), eTag, lastModified, true);
+  }
+
+  private static ConditionalResponse getWithHeader(HttpClient client, @Nullable String eTag,
+    @Nullable String lastModified, boolean asRecord) throws IOException {
     addAuthenticationHeader(client);
-    client.connect();
-    final HttpClient.Response response = client.getResponse();
-    final String appUsage = response.getHeaderField("x-app-usage");
-    final int percentageUsed;
-    if (appUsage != null && !Utils.isStripEmpty(appUsage)) {
-      try (JsonReader reader = Json.createReader(new ByteArrayInputStream(appUsage.getBytes(StandardCharsets.UTF_8)))) {
-        final JsonObject appUsageJson = reader.readObject();
-        percentageUsed = appUsageJson.getInt("call_volume", appUsageJson.getInt("call_count", 0));
+    if (eTag != null) {
+      client.setHeader("If-None-Match", eTag);
+    }
+    if (lastModified != null) {
+      client.setHeader("If-Modified-Since", lastModified);
+    }
+    final RateLimitGovernor governor = RateLimitGovernor.getInstance();
+    if (!governor.acquire(MAX_TOKEN_WAIT_NANOS)) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Mapillary: Interrupted while waiting to request " + client.getURL());
       }
-    } else {
-      percentageUsed = 0;
+      throw new IOException("Mapillary: Rate limited, not requesting " + client.getURL() + " for another "
+        + TimeUnit.NANOSECONDS.toMillis(governor.getNanosUntilAvailable()) + " ms");
     }
-
-    try (InputStream inputStream = response.getContent(); final JsonReader reader = Json.createReader(inputStream)) {
-      final JsonStructure structure = reader.read();
+    final HttpClient.Response response = MapillaryHttpTransport.connect(client);
+    if (response.getResponseCode() == HTTP_TOO_MANY_REQUESTS) {
+      MapillaryHttpTransport.release(response);
+      governor.reportRateLimited(getRetryAfter(response));
+      throw new IOException("API Limits reached");
+    }
+    if (response.getResponseCode() == HTTP_NOT_MODIFIED && (eTag != null || lastModified != null)) {
+      MapillaryHttpTransport.release(response);
+      governor.reportSuccess();
+      return new ConditionalResponse(HTTP_NOT_MODIFIED, null, null, eTag, lastModified);
+    }
+    final String responseETag = response.getHeaderField("ETag");
+    final String responseLastModified = response.getHeaderField("Last-Modified");
+    // Closing the stream (instead of disconnecting) lets the connection be reused
+    try (InputStream inputStream = MapillaryHttpTransport.getContent(client)) {
+      final int percentageUsed = getPercentageUsed(response);
+      final JsonObject jsonObject;
+      final MetadataRecord record;
+      if (asRecord) {
+        try (JsonParser parser = Json.createParser(inputStream)) {
+          jsonObject = null;
+          record = MetadataRecord.read(parser, System.currentTimeMillis(), responseETag, responseLastModified);
+        }
+      } else {
+        try (JsonReader reader = Json.createReader(inputStream)) {
+          jsonObject = reader.read().asJsonObject();
+          record = null;
+        }
+      }
       if (percentageUsed > 95) {
+        governor.reportRateLimited(getRetryAfter(response));
         throw new IOException("API Limits reached");
       }
-      return structure.asJsonObject();
+      if (isRateLimitError(jsonObject != null ? jsonObject.get("error") : record.get("error"))) {
+        governor.reportRateLimited(getRetryAfter(response));
+      } else if (response.getResponseCode() < 400) {
+        governor.reportSuccess();
+      }
+      return new ConditionalResponse(response.getResponseCode(), jsonObject, record, responseETag,
+        responseLastModified);
     } catch (JsonException e) {
+      if (response.getResponseCode() >= 400) {
+        // Error pages (e.g. from a proxy) are often HTML
+        Logging.trace(e);
+        return new ConditionalResponse(response.getResponseCode(), null, null, null, null);
+      }
       throw new IOException(e);
-    } finally {
-      client.disconnect();
     }
   }
 
+  /**
+   * Get the percentage of the application request limit that has been used
+   *
+   * @param response The response with the {@code x-app-usage} header
+   * @return The percentage used, or {@code 0} if the server didn't tell us
+   */
+  private static int getPercentageUsed(final HttpClient.Response response) {
+    final String appUsage = response.getHeaderField("x-app-usage");
+    if (appUsage == null || Utils.isStripEmpty(appUsage)) {
+      return 0;
+    }
+    try (JsonReader reader = Json.createReader(new ByteArrayInputStream(appUsage.getBytes(StandardCharsets.UTF_8)))) {
+      final JsonObject appUsageJson = reader.readObject();
+      return appUsageJson.getInt("call_volume", appUsageJson.getInt("call_count", 0));
+    }
+  }
+
+  /**
+   * Check if a response is the Mapillary "Application request limit reached" error
+   *
+   * @param error The {@code error} value of the response to check
+   * @return {@code true} if we have been rate limited
+   */
+  private static boolean isRateLimitError(@Nullable final JsonValue error) {
+    if (error != null && error.getValueType() == JsonValue.ValueType.OBJECT) {
+      return RATE_LIMIT_MESSAGE.equals(error.asJsonObject().getString("message", null));
+    }
+    return false;
+  }
+
+  /**
+   * Get the {@code Retry-After} header value
+   *
+   * @param response The response to get the header from
+   * @return The seconds to wait, or {@code 0} if the server didn't tell us (or used a date)
+   */
+  private static long getRetryAfter(final HttpClient.Response response) {
+    final String retryAfter = response.getHeaderField("Retry-After");
+    if (retryAfter != null) {
+      try {
+        return Long.parseLong(retryAfter.trim());
+      } catch (NumberFormatException e) {
+        Logging.trace(e);
+      }
+    }
+    return 0;
+  }
+
   /**
    * Returns a URLConnection with an authorization header for use when making user
    * specific API calls
@@ -203,6 +410,8 @@ public final class OAuthUtils {
     }
 
     MapillaryUser.setTokenValid(true);
+    // Logged in users have their own limits
+    RateLimitGovernor.getInstance().reset();
     MapillaryProperties.ACCESS_TOKEN.put(accessToken);
     MapillaryProperties.ACCESS_TOKEN_EXPIRES_AT.put(Instant.now().getEpochSecond() + expiresIn);
     final int amount;
@@ -6,8 +6,8 @@ import org.openstreetmap.josm.data.vector.VectorNode;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.plugins.mapillary.cache.CacheUtils;
 import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
 import org.openstreetmap.josm.plugins.mapillary.data.mapillary.OrganizationRecord;
-import org.openstreetmap.josm.plugins.mapillary.oauth.OAuthUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonDecoder;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonImageDetailsDecoder;
 import org.openstreetmap.josm.tools.Logging;
@@ -17,14 +17,11 @@ import org.openstreetmap.josm.tools.date.DateUtils;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.imageio.ImageIO;
-import javax.json.Json;
-import javax.json.JsonReader;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.Collection;
 import java.util.Locale;
@@ -157,6 +154,8 @@ public final class MapillaryImageUtils {
    */
   @Deprecated
   private static final Pattern NUMBERS = Pattern.compile("\\d+");
+  /** Image ids that fit in a long */
+  private static final Pattern NUMERIC_ID = Pattern.compile("[0-9]{1,18}");
 
   /**
    * Get the sequence for an image
@@ -252,8 +251,7 @@ public final class MapillaryImageUtils {
           completableFuture.complete(realImage);
         } catch (IOException e) {
           // Remove the key from the metadata cache -- this way we can try again later if the image URL became stale.
-          Caches.metaDataCache.getICacheAccess()
-            .remove(MapillaryURL.APIv4.getImageInformation(new String[] { MapillaryImageUtils.getKey(image) }));
+          Caches.metaDataCache.removeImageInformation(MapillaryImageUtils.getKey(image));
           Logging.error(e);
           completableFuture.complete(null);
         }
@@ -303,6 +301,26 @@ public final class MapillaryImageUtils {
     return null;
   }
 
+  /**
+   * Get the numeric id for a node
+   *
+   * @param image The image
+   * @return The id, or {@code 0} if the image doesn't have a numeric id
+   */
+  public static long getId(@Nullable INode image) {
+    return parseId(getKey(image));
+  }
+
+  /**
+   * Parse an image key
+   *
+   * @param key The image key
+   * @return The id, or {@code 0} if the key isn't numeric
+   */
+  public static long parseId(@Nullable String key) {
+    return key != null && NUMERIC_ID.matcher(key).matches() ? Long.parseLong(key) : 0;
+  }
+
   /**
    * Get the sequence key
    *
@@ -351,18 +369,9 @@ public final class MapillaryImageUtils {
   private static void downloadImageDetails(@Nonnull String... keys) {
     Objects.requireNonNull(keys, "Image keys cannot be null");
     for (String key : keys) {
-      final String imageUrl = MapillaryURL.APIv4.getImageInformation(key);
-      final String cacheData = Caches.metaDataCache.get(imageUrl, () -> {
-        try {
-          return OAuthUtils.getWithHeader(new URL(imageUrl)).toString();
-        } catch (IOException e) {
-          Logging.error(e);
-          return null;
-        }
-      });
-      try (
-        JsonReader reader = Json.createReader(new ByteArrayInputStream(cacheData.getBytes(StandardCharsets.UTF_8)))) {
-        JsonDecoder.decodeData(reader.readObject(), JsonImageDetailsDecoder::decodeImageInfos);
+      final MetadataRecord cacheData = Caches.metaDataCache.getImageRecord(key);
+      if (cacheData != null) {
+        JsonDecoder.decodeRecord(cacheData, JsonImageDetailsDecoder::decodeImageRecord);
       }
     }
   }
@@ -1,9 +1,5 @@
 package org.openstreetmap.josm.plugins.mapillary.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.Locale;
 import java.util.regex.Matcher;
@@ -12,16 +8,14 @@ import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.json.Json;
-import javax.json.JsonReader;
+import javax.json.JsonObject;
 
 import org.openstreetmap.josm.data.osm.IPrimitive;
 import org.openstreetmap.josm.data.vector.VectorPrimitive;
 import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
-import org.openstreetmap.josm.plugins.mapillary.oauth.OAuthUtils;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataCacheAccess;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonDecoder;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonMapObjectDecoder;
-import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.date.DateUtils;
 
 /**
@@ -195,19 +189,9 @@ public class MapillaryMapFeatureUtils {
   private static void updateMapFeature(@Nonnull final IPrimitive primitive) {
     final String url = MapillaryURL.APIv4.getMapFeatureInformation(getId(primitive), MapFeatureProperties.GEOMETRY,
       MapFeatureProperties.IMAGES);
-    final String json = Caches.metaDataCache.get(url, () -> {
-      try {
-        return OAuthUtils.getWithHeader(new URL(url)).toString();
-      } catch (IOException e) {
-        Logging.error(e);
-        return null;
-      }
-    });
+    final JsonObject json = Caches.metaDataCache.getJson(url, MetadataCacheAccess.Endpoint.MAP_FEATURES);
     if (json != null) {
-      try (JsonReader reader = Json.createReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
-        JsonDecoder.decodeData(reader.readObject(),
-          tjson -> JsonMapObjectDecoder.decodeMapFeatureObject(tjson, primitive));
-      }
+      JsonDecoder.decodeData(json, tjson -> JsonMapObjectDecoder.decodeMapFeatureObject(tjson, primitive));
     }
   }
 }
@@ -1,6 +1,8 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.mapillary.utils;
 
+import java.util.concurrent.TimeUnit;
+
 import org.openstreetmap.josm.data.preferences.BooleanProperty;
 import org.openstreetmap.josm.data.preferences.DoubleProperty;
 import org.openstreetmap.josm.data.preferences.IntegerProperty;
@@ -52,6 +54,12 @@ public final class MapillaryProperties {
    */
   public static final IntegerProperty PRE_FETCH_IMAGE_COUNT = new IntegerProperty("mapillary.prefetch-image-count", 4);
 
+  /**
+   * The fraction of the maximum heap that the in-memory image cache may use
+   */
+  public static final DoubleProperty IMAGE_MEMORY_CACHE_HEAP_FRACTION = new DoubleProperty(
+    "mapillary.image-cache.heap-fraction", 0.15);
+
   /**
    * Download point features (fire hydrants, trees, and so on)
    */
@@ -92,6 +100,41 @@ public final class MapillaryProperties {
    */
   public static final IntegerProperty MAXIMUM_DRAW_IMAGES = new IntegerProperty("mapillary.images.max_draw", 10_000);
 
+  /**
+   * The maximum number of requests per second made to Mapillary (this is slowed down automatically when we are rate
+   * limited)
+   */
+  public static final IntegerProperty MAXIMUM_REQUESTS_PER_SECOND = new IntegerProperty(
+    "mapillary.network.max-requests-per-second", 10);
+
+  /** The time (in seconds) that cached image information is considered fresh (image geometry rarely changes) */
+  public static final LongProperty METADATA_MAX_AGE_IMAGES = new LongProperty("mapillary.metadata.max-age.images",
+    TimeUnit.DAYS.toSeconds(14));
+  /** The time (in seconds) that cached sequence information is considered fresh */
+  public static final LongProperty METADATA_MAX_AGE_SEQUENCES = new LongProperty(
+    "mapillary.metadata.max-age.sequences", TimeUnit.DAYS.toSeconds(7));
+  /** The time (in seconds) that cached detections are considered fresh (detections change often) */
+  public static final LongProperty METADATA_MAX_AGE_DETECTIONS = new LongProperty(
+    "mapillary.metadata.max-age.detections", TimeUnit.DAYS.toSeconds(1));
+  /** The time (in seconds) that cached map feature information is considered fresh */
+  public static final LongProperty METADATA_MAX_AGE_MAP_FEATURES = new LongProperty(
+    "mapillary.metadata.max-age.map-features", TimeUnit.DAYS.toSeconds(3));
+
+  /** The time (in seconds) that we remember that a resource does not exist */
+  public static final IntegerProperty NEGATIVE_CACHE_TTL_NOT_FOUND = new IntegerProperty(
+    "mapillary.negative-cache.ttl.not-found", (int) TimeUnit.HOURS.toSeconds(1));
+  /** The time (in seconds) that we remember that the server failed to give us a resource */
+  public static final IntegerProperty NEGATIVE_CACHE_TTL_SERVER_ERROR = new IntegerProperty(
+    "mapillary.negative-cache.ttl.server-error", (int) TimeUnit.MINUTES.toSeconds(2));
+  /** The time (in seconds) that we remember that a request for a resource timed out */
+  public static final IntegerProperty NEGATIVE_CACHE_TTL_TIMEOUT = new IntegerProperty(
+    "mapillary.negative-cache.ttl.timeout", 30);
+
+  /** Only use cached Mapillary data (metadata and images), see the offline area download */
+  public static final BooleanProperty OFFLINE = new BooleanProperty("mapillary.offline", false);
+  /** The offline area download that has not finished yet (so that it can be resumed) */
+  public static final StringProperty OFFLINE_AREA_PENDING = new StringProperty("mapillary.offline.pending", null);
+
   private MapillaryProperties() {
     // Private constructor to avoid instantiation
   }
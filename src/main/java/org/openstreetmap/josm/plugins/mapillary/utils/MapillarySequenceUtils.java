@@ -1,30 +1,29 @@
 package org.openstreetmap.josm.plugins.mapillary.utils;
 
-import org.apache.commons.jcs3.access.CacheAccess;
-import org.openstreetmap.josm.data.cache.JCSCacheManager;
 import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.INode;
+import org.openstreetmap.josm.data.osm.IPrimitive;
 import org.openstreetmap.josm.data.osm.IWay;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.SimplePrimitiveId;
+import org.openstreetmap.josm.data.vector.VectorDataSet;
+import org.openstreetmap.josm.data.vector.VectorNode;
 import org.openstreetmap.josm.data.vector.VectorWay;
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheStatistics;
 import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataCacheAccess;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
+import org.openstreetmap.josm.plugins.mapillary.gui.layer.ImageIndex;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
-import org.openstreetmap.josm.plugins.mapillary.oauth.OAuthUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonDecoder;
 import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonSequencesDecoder;
-import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Utils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -40,7 +39,10 @@ public class MapillarySequenceUtils {
     PREVIOUS;
   }
 
-  private static final CacheAccess<String, IWay<?>> SEQUENCE_CACHE = JCSCacheManager.getCache("mapillary:sequences");
+  /** The sequences in the loaded tiles */
+  private static final SequenceStitcher TILE_SEQUENCES = new SequenceStitcher();
+  private static final CacheStatistics SEQUENCE_CACHE_STATISTICS = CacheStatistics.forCache("mapillary:sequences")
+    .setSizes(() -> Caches.SEQUENCE_INDEX.size(), null, null);
 
   /** The unique identifier for the sequence */
   public static final String KEY = "id";
@@ -60,6 +62,51 @@ public class MapillarySequenceUtils {
    */
   @Nullable
   public static INode getNextOrPrevious(@Nonnull INode node, @Nullable NextOrPrevious next) {
+    final INode linked = getLinkedNextOrPrevious(node, next);
+    return linked != null ? linked : getNextOrPreviousFromWays(node, next);
+  }
+
+  /**
+   * Get the next or previous picture from the sequence indexes. This is a couple of hash lookups, so it is much
+   * cheaper than {@link #getNextOrPreviousFromWays(INode, NextOrPrevious)}.
+   *
+   * @param node The node
+   * @param next The direction
+   * @return The next or previous image, or {@code null} if it isn't indexed (or not in the node's dataset)
+   */
+  @Nullable
+  static INode getLinkedNextOrPrevious(@Nonnull INode node, @Nullable NextOrPrevious next) {
+    // Image nodes use the image id as their id (see MapillaryVectorTileWorkarounds#setNodeIds)
+    final long id = node.getUniqueId();
+    if (next == null || id <= 0 || node.getDataSet() == null) {
+      return null;
+    }
+    // The loaded tiles come first, since the images in them are in the dataset
+    long linkedId = TILE_SEQUENCES.getNextOrPrevious(id, next);
+    if (linkedId == 0) {
+      linkedId = Caches.SEQUENCE_INDEX.getNextOrPrevious(id, next);
+    }
+    if (linkedId != 0 && node.getDataSet() instanceof VectorDataSet) {
+      return ImageIndex.getImage((VectorDataSet) node.getDataSet(), linkedId);
+    } else if (linkedId != 0) {
+      final IPrimitive linked = node.getDataSet()
+        .getPrimitiveById(new SimplePrimitiveId(linkedId, OsmPrimitiveType.NODE));
+      if (linked instanceof INode && MapillaryImageUtils.IS_IMAGE.test((INode) linked)) {
+        return (INode) linked;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the next or previous picture by walking the sequence ways the node is in
+   *
+   * @param node The node
+   * @param next The direction
+   * @return The expected node, if it exists
+   */
+  @Nullable
+  static INode getNextOrPreviousFromWays(@Nonnull INode node, @Nullable NextOrPrevious next) {
     Collection<IWay<?>> connectedWays = node.getReferrers().stream().filter(IWay.class::isInstance)
       .map(IWay.class::cast).map(way -> (IWay<?>) way).distinct().collect(Collectors.toList());
     if (connectedWays.isEmpty() || connectedWays.size() > 2) {
@@ -102,7 +149,8 @@ public class MapillarySequenceUtils {
     }
     if (nodeOnCurrentSequence != null && !MapillaryImageUtils.IS_IMAGE.test(nodeOnCurrentSequence) && way != null
       && way.isFirstLastNode(nodeOnCurrentSequence)) {
-      // We are probably on a tile boundary.
+      // We are probably on a tile boundary. The tiles are normally stitched when they are loaded (see
+      // SequenceStitcher), so this is only needed for sequences that weren't indexed.
       final BBox searchBBox = new BBox();
       searchBBox.addLatLon(nodeOnCurrentSequence.getCoor(), 0.001);
       List<IWay<?>> ways = new ArrayList<>(node.getDataSet().searchWays(searchBBox));
@@ -128,6 +176,25 @@ public class MapillarySequenceUtils {
     return nodeOnCurrentSequence;
   }
 
+  /**
+   * Index the parts of sequences in a tile, so that {@link #getNextOrPrevious(INode, NextOrPrevious)} can go from an
+   * image to the next image without looking at the sequence ways. The parts are joined to the parts in the
+   * neighbouring tiles that have been loaded, so this also works across tile edges.
+   *
+   * @param tileKey A key that is unique to the tile
+   * @param ways The ways in the tile
+   */
+  public static void indexTileSequences(@Nonnull String tileKey, @Nonnull Collection<? extends IWay<?>> ways) {
+    TILE_SEQUENCES.addTile(tileKey, ways);
+  }
+
+  /**
+   * Remove all of the indexed tile sequences (e.g., when the layer is removed)
+   */
+  public static void clearTileSequences() {
+    TILE_SEQUENCES.clear();
+  }
+
   /**
    * Get the key for a sequence
    *
@@ -164,19 +231,71 @@ public class MapillarySequenceUtils {
       return null;
     }
     // There should be a method to get a sequence in v4
-    IWay<?> sequence = SEQUENCE_CACHE.get(key);
+    final long[] images = Caches.SEQUENCE_INDEX.getImages(key);
+    IWay<?> sequence = images == null ? null : findSequence(key, images);
     if (sequence == null) {
-      sequence = downloadSequence(key);
-      // Ensure that we don't cache a null sequence -- this will throw an InvalidArgumentException if the sequence is
-      // null
-      // which is why we cannot use {@link CacheAccess#get(Object, Supplier)}
-      if (sequence != null) {
-        SEQUENCE_CACHE.put(key, sequence);
+      SEQUENCE_CACHE_STATISTICS.recordMiss();
+      sequence = SEQUENCE_CACHE_STATISTICS.load(() -> downloadSequence(key));
+    } else {
+      SEQUENCE_CACHE_STATISTICS.recordHit();
+    }
+    return sequence;
+  }
+
+  /**
+   * Find an indexed sequence in the layer. If the layer only has the parts of the sequence in each tile (e.g. after
+   * the tiles were reloaded), the parts are joined again.
+   *
+   * @param key The sequence key
+   * @param images The image ids from {@link Caches#SEQUENCE_INDEX}
+   * @return The sequence, or {@code null} if some of the images are not in the layer
+   */
+  @Nullable
+  private static IWay<?> findSequence(@Nonnull String key, @Nonnull long[] images) {
+    if (!MapillaryLayer.hasInstance() || images.length == 0) {
+      return null;
+    }
+    final VectorDataSet data = MapillaryLayer.getInstance().getData();
+    final List<VectorNode> nodes = new ArrayList<>(images.length);
+    for (long image : images) {
+      final VectorNode node = ImageIndex.getImage(data, image);
+      if (node == null) {
+        return null;
+      }
+      nodes.add(node);
+    }
+    final VectorNode last = nodes.get(nodes.size() - 1);
+    for (IPrimitive referrer : nodes.get(0).getReferrers()) {
+      if (referrer instanceof VectorWay && ((VectorWay) referrer).getNodesCount() == nodes.size()
+        && last.equals(((VectorWay) referrer).lastNode())) {
+        return (VectorWay) referrer;
       }
     }
+    final VectorWay sequence = JsonSequencesDecoder.joinSequence(nodes);
+    sequence.put(KEY, key);
+    addToLayer(sequence);
     return sequence;
   }
 
+  /**
+   * Get the ids of the images in a sequence
+   *
+   * @param sequence The sequence
+   * @return The image ids, in order. Images without a numeric id are skipped.
+   */
+  @Nonnull
+  static long[] getImageIds(@Nonnull IWay<?> sequence) {
+    final long[] ids = new long[sequence.getNodesCount()];
+    int count = 0;
+    for (INode node : sequence.getNodes()) {
+      final long id = MapillaryImageUtils.getId(node);
+      if (id > 0) {
+        ids[count++] = id;
+      }
+    }
+    return Arrays.copyOf(ids, count);
+  }
+
   /**
    * Download a specific sequence
    *
@@ -186,30 +305,37 @@ public class MapillarySequenceUtils {
    */
   private static synchronized IWay<?> downloadSequence(final String key) {
     final String sequenceUrl = MapillaryURL.APIv4.getImagesBySequences(key);
-    final String data = Caches.metaDataCache.get(sequenceUrl, () -> {
-      try {
-        return OAuthUtils.getWithHeader(new URL(sequenceUrl)).toString();
-      } catch (IOException e) {
-        Logging.error(e);
-        return null;
-      }
-    });
-    if (data == null) {
+    final MetadataRecord record = Caches.metaDataCache.getRecord(sequenceUrl, MetadataCacheAccess.Endpoint.SEQUENCES);
+    if (record == null) {
       return null;
     }
 
-    try (JsonReader jsonReader = Json.createReader(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)))) {
-      JsonObject json = jsonReader.readObject();
-      Collection<VectorWay> seq = JsonDecoder.decodeData(json, JsonSequencesDecoder::decodeSequence);
-      VectorWay sequence = seq.stream().findFirst().orElse(null);
-      if (sequence != null && MapillaryLayer.hasInstance()) {
+    Collection<VectorWay> seq = JsonDecoder.decodeRecord(record, JsonSequencesDecoder::decodeSequenceRecord);
+    VectorWay sequence = seq.stream().findFirst().orElse(null);
+    if (sequence != null) {
+      if (!sequence.hasKey(KEY)) {
+        sequence.put(KEY, key);
+      }
+      addToLayer(sequence);
+      Caches.SEQUENCE_INDEX.put(key, getImageIds(sequence));
+    }
+    return sequence;
+  }
+
+  /**
+   * Add a sequence (and its images) to the layer
+   *
+   * @param sequence The sequence to add
+   */
+  private static void addToLayer(@Nonnull VectorWay sequence) {
+    if (MapillaryLayer.hasInstance()) {
+      if (sequence.getDataSet() == null) {
         MapillaryLayer.getInstance().getData().addPrimitive(sequence);
-        if (sequence.getDataSet() != null) {
-          sequence.getNodes().stream().filter(node -> node.getDataSet() == null)
-            .forEach(node -> sequence.getDataSet().addPrimitive(node));
-        }
       }
-      return sequence;
+      if (sequence.getDataSet() != null) {
+        sequence.getNodes().stream().filter(node -> node.getDataSet() == null)
+          .forEach(node -> sequence.getDataSet().addPrimitive(node));
+      }
     }
   }
 
@@ -145,7 +145,7 @@ public final class MapillaryURL {
      *
      * @return The default image properties to get
      */
-    private static MapillaryImageUtils.ImageProperties[] getDefaultImageInformation() {
+    public static MapillaryImageUtils.ImageProperties[] getDefaultImageInformation() {
       return new MapillaryImageUtils.ImageProperties[] { MapillaryImageUtils.ImageProperties.ALTITUDE,
         MapillaryImageUtils.ImageProperties.BEST_IMAGE, MapillaryImageUtils.ImageProperties.CAPTURED_AT,
         MapillaryImageUtils.ImageProperties.COMPASS_ANGLE, MapillaryImageUtils.ImageProperties.COMPUTED_ALTITUDE,
@@ -153,7 +153,8 @@ public final class MapillaryURL {
         MapillaryImageUtils.ImageProperties.COMPUTED_GEOMETRY, MapillaryImageUtils.ImageProperties.COMPUTED_ROTATION,
         MapillaryImageUtils.ImageProperties.EXIF_ORIENTATION, MapillaryImageUtils.ImageProperties.GEOMETRY,
         MapillaryImageUtils.ImageProperties.ID, MapillaryImageUtils.ImageProperties.QUALITY_SCORE,
-        MapillaryImageUtils.ImageProperties.SEQUENCE, MapillaryImageUtils.ImageProperties.WORST_IMAGE };
+        MapillaryImageUtils.ImageProperties.SEQUENCE, MapillaryImageUtils.ImageProperties.THUMB_1024_URL,
+        MapillaryImageUtils.ImageProperties.WORST_IMAGE };
     }
 
     /**
@@ -0,0 +1,278 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.INode;
+import org.openstreetmap.josm.data.osm.IWay;
+import org.openstreetmap.josm.plugins.mapillary.cache.SequenceIndex;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils.NextOrPrevious;
+
+/**
+ * Join the parts of sequences in vector tiles. Sequences are cut at tile edges, where both tiles have a (non-image)
+ * node at the same location. As each tile arrives, its parts are joined to the chains of parts in the neighbouring
+ * tiles, and the images of the changed chains are indexed in order.
+ * <p>
+ * The ends of the parts are kept in maps keyed by their location (rounded to the OSM precision), so joining a part
+ * only looks at its own ends, and doesn't need to look at the other parts of the sequence.
+ */
+final class SequenceStitcher {
+  /** The maximum number of sequences to keep parts for */
+  private static final int MAX_SEQUENCES = 10_000;
+
+  private final SequenceIndex index = new SequenceIndex(null);
+  /** The parts of each sequence, least recently added to first */
+  private final LinkedHashMap<String, Sequence> sequences = new LinkedHashMap<>(16, 0.75f, true);
+  /** The keys of the sequences with parts in each tile */
+  private final Map<String, Set<String>> tileSequences = new HashMap<>();
+
+  private static final class Part {
+    final String tileKey;
+    final long[] images;
+    /** The location of the cut at the start of the part, or {@code null} if the part starts with an image */
+    @Nullable
+    final LatLon start;
+    /** The location of the cut at the end of the part, or {@code null} if the part ends with an image */
+    @Nullable
+    final LatLon end;
+    /** The chain the part is in, or {@code null} if it hasn't been joined yet */
+    @Nullable
+    Chain chain;
+
+    Part(String tileKey, IWay<?> way) {
+      this.tileKey = tileKey;
+      this.images = MapillarySequenceUtils.getImageIds(way);
+      this.start = getCut(way.firstNode());
+      this.end = getCut(way.lastNode());
+    }
+
+    @Nullable
+    private static LatLon getCut(INode node) {
+      return node == null || MapillaryImageUtils.IS_IMAGE.test(node) || !node.isLatLonKnown() ? null
+        : node.getCoor().getRoundedToOsmPrecision();
+    }
+  }
+
+  /**
+   * Parts that follow each other, and are indexed as one sequence
+   */
+  private static final class Chain {
+    final String key;
+    final List<Part> parts = new ArrayList<>();
+
+    Chain(String key) {
+      this.key = key;
+    }
+
+    boolean isHead(@Nonnull Part part) {
+      return this.parts.get(0) == part;
+    }
+
+    boolean isTail(@Nonnull Part part) {
+      return this.parts.get(this.parts.size() - 1) == part;
+    }
+
+    long[] getImages() {
+      int count = 0;
+      for (Part part : this.parts) {
+        count += part.images.length;
+      }
+      final long[] images = new long[count];
+      int position = 0;
+      for (Part part : this.parts) {
+        System.arraycopy(part.images, 0, images, position, part.images.length);
+        position += part.images.length;
+      }
+      return images;
+    }
+  }
+
+  private static final class Sequence {
+    final List<Part> parts = new ArrayList<>();
+    /** The parts by the location of their start cut */
+    final Map<LatLon, Part> starts = new HashMap<>();
+    /** The parts by the location of their end cut */
+    final Map<LatLon, Part> ends = new HashMap<>();
+    /** The number for the key of the next chain */
+    int nextChain;
+
+    void addEnds(@Nonnull Part part) {
+      if (part.start != null) {
+        this.starts.putIfAbsent(part.start, part);
+      }
+      if (part.end != null) {
+        this.ends.putIfAbsent(part.end, part);
+      }
+    }
+
+    void removeEnds(@Nonnull Part part) {
+      if (part.start != null) {
+        this.starts.remove(part.start, part);
+      }
+      if (part.end != null) {
+        this.ends.remove(part.end, part);
+      }
+    }
+  }
+
+  /**
+   * Add the sequence parts in a tile. Parts from an earlier load of the same tile are replaced, including the parts
+   * of sequences that are no longer in the tile.
+   *
+   * @param tileKey The key of the tile
+   * @param ways The ways in the tile
+   */
+  synchronized void addTile(@Nonnull String tileKey, @Nonnull Collection<? extends IWay<?>> ways) {
+    final Map<String, List<Part>> added = new HashMap<>();
+    for (IWay<?> way : ways) {
+      if (way.getNodesCount() > 1 && MapillarySequenceUtils.hasKey(way)) {
+        added.computeIfAbsent(MapillarySequenceUtils.getKey(way), k -> new ArrayList<>())
+          .add(new Part(tileKey, way));
+      }
+    }
+    final Set<String> previous = this.tileSequences.remove(tileKey);
+    if (previous != null) {
+      previous.removeAll(added.keySet());
+      for (String sequenceKey : previous) {
+        final Sequence sequence = this.sequences.get(sequenceKey);
+        if (sequence != null) {
+          this.removeTile(sequenceKey, sequence, tileKey);
+          if (sequence.parts.isEmpty()) {
+            this.sequences.remove(sequenceKey);
+          }
+        }
+      }
+    }
+    if (!added.isEmpty()) {
+      this.tileSequences.put(tileKey, new HashSet<>(added.keySet()));
+    }
+    for (Map.Entry<String, List<Part>> entry : added.entrySet()) {
+      final Sequence sequence = this.sequences.computeIfAbsent(entry.getKey(), k -> new Sequence());
+      this.removeTile(entry.getKey(), sequence, tileKey);
+      for (Part part : entry.getValue()) {
+        sequence.parts.add(part);
+        sequence.addEnds(part);
+      }
+      for (Part part : entry.getValue()) {
+        this.join(entry.getKey(), sequence, part);
+      }
+    }
+    final Iterator<Map.Entry<String, Sequence>> iterator = this.sequences.entrySet().iterator();
+    while (this.sequences.size() > MAX_SEQUENCES && iterator.hasNext()) {
+      final Map.Entry<String, Sequence> eldest = iterator.next();
+      iterator.remove();
+      this.removeChains(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  /**
+   * Get the image after or before an image in the joined sequences
+   *
+   * @param imageId The image id
+   * @param direction The direction to go in
+   * @return The id of the next or previous image, or {@code 0} if it is not known
+   */
+  long getNextOrPrevious(long imageId, @Nonnull NextOrPrevious direction) {
+    return this.index.getNextOrPrevious(imageId, direction);
+  }
+
+  /**
+   * Remove all sequence parts
+   */
+  synchronized void clear() {
+    this.sequences.clear();
+    this.tileSequences.clear();
+    this.index.clear();
+  }
+
+  /**
+   * Join a part to the chains of the parts before and after it, and index the images of the new chain. Parts are
+   * only joined when the neighbouring tile has been loaded, so a sequence may have several chains.
+   */
+  private void join(@Nonnull String sequenceKey, @Nonnull Sequence sequence, @Nonnull Part part) {
+    final Part previous = part.start == null ? null : sequence.ends.get(part.start);
+    final Part next = part.end == null ? null : sequence.starts.get(part.end);
+    final Chain before = previous != null && previous != part && previous.chain != null
+      && previous.chain.isTail(previous) ? previous.chain : null;
+    final Chain after = next != null && next != part && next.chain != null && next.chain.isHead(next) ? next.chain
+      : null;
+    final Chain chain = new Chain(sequenceKey + '#' + sequence.nextChain++);
+    if (before != null) {
+      this.index.remove(before.key);
+      chain.parts.addAll(before.parts);
+    }
+    chain.parts.add(part);
+    // If both are the same chain, the part closes a loop
+    if (after != null && after != before) {
+      this.index.remove(after.key);
+      chain.parts.addAll(after.parts);
+    }
+    for (Part chained : chain.parts) {
+      chained.chain = chain;
+    }
+    this.index.put(chain.key, chain.getImages());
+  }
+
+  /**
+   * Remove the parts of an earlier load of a tile. The chains they were in are split, and the other parts of those
+   * chains are joined again.
+   */
+  private void removeTile(@Nonnull String sequenceKey, @Nonnull Sequence sequence, @Nonnull String tileKey) {
+    final Set<Chain> split = new LinkedHashSet<>();
+    for (Iterator<Part> iterator = sequence.parts.iterator(); iterator.hasNext();) {
+      final Part part = iterator.next();
+      if (tileKey.equals(part.tileKey)) {
+        iterator.remove();
+        sequence.removeEnds(part);
+        if (part.chain != null) {
+          split.add(part.chain);
+        }
+      }
+    }
+    final List<Part> rejoin = new ArrayList<>();
+    for (Chain chain : split) {
+      this.index.remove(chain.key);
+      for (Part part : chain.parts) {
+        part.chain = null;
+        if (!tileKey.equals(part.tileKey)) {
+          rejoin.add(part);
+        }
+      }
+    }
+    for (Part part : rejoin) {
+      // An end may have been hidden by a removed part at the same location
+      sequence.addEnds(part);
+    }
+    for (Part part : rejoin) {
+      this.join(sequenceKey, sequence, part);
+    }
+  }
+
+  /**
+   * Remove the chains of an evicted sequence, and forget which tiles it was in
+   */
+  private void removeChains(@Nonnull String sequenceKey, @Nonnull Sequence sequence) {
+    for (Part part : sequence.parts) {
+      if (part.chain != null) {
+        this.index.remove(part.chain.key);
+      }
+      final Set<String> inTile = this.tileSequences.get(part.tileKey);
+      if (inTile != null && inTile.remove(sequenceKey) && inTile.isEmpty()) {
+        this.tileSequences.remove(part.tileKey);
+      }
+    }
+  }
+}
@@ -18,6 +18,7 @@ import javax.json.JsonValue;
 
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
 import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.bugreport.BugReport;
 import org.openstreetmap.josm.tools.bugreport.ReportedException;
@@ -103,6 +104,41 @@ public final class JsonDecoder {
     return Collections.emptyList();
   }
 
+  /**
+   * Decodes a cached response into a {@link Collection} of the desired Java objects, without converting the response
+   * back to JSON. This is the {@link MetadataRecord} version of {@link #decodeData(JsonObject, Function)}: the decoder
+   * is responsible for reading the {@code data} value (see {@link MetadataRecord#getImages()} and
+   * {@link MetadataRecord#getDataIds()}).
+   *
+   * @param <T> feature type
+   * @param record the response to decode
+   * @param recordDecoder decoder which transforms the record to Java objects
+   * @return a {@link Collection} of the decoded objects. The return value will not be <code>null</code>.
+   */
+  @Nonnull
+  public static <T> Collection<T> decodeRecord(@Nonnull final MetadataRecord record,
+    @Nonnull final Function<MetadataRecord, Collection<T>> recordDecoder) {
+    Objects.requireNonNull(record, "The record cannot be null");
+    Objects.requireNonNull(recordDecoder, "The record must be decoded into something.");
+    // Check if there was an error -- this could be due to API key limits, or some other issue.
+    final JsonValue error = record.get("error");
+    if (error != null) {
+      Logging.error("Mapillary API error: {0}", error);
+      return Collections.emptyList();
+    }
+    try {
+      return Collections.unmodifiableCollection(recordDecoder.apply(record));
+    } catch (Exception e) {
+      Logging.error(e);
+      GuiHelper.runInEDT(() -> {
+        final ReportedException bugReport = BugReport.intercept(e);
+        bugReport.put("json", record.toJson());
+        bugReport.warn();
+      });
+    }
+    return Collections.emptyList();
+  }
+
   /**
    * Decodes a {@link JsonArray} of exactly size 2 to a {@link LatLon} instance.
    * The first value in the {@link JsonArray} is treated as longitude, the second one as latitude.
@@ -2,10 +2,16 @@
 package org.openstreetmap.josm.plugins.mapillary.utils.api;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
@@ -16,17 +22,20 @@ import javax.json.JsonString;
 import javax.json.JsonValue;
 
 import org.openstreetmap.josm.data.coor.LatLon;
-import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.Tag;
 import org.openstreetmap.josm.data.osm.TagMap;
 import org.openstreetmap.josm.data.vector.VectorDataSet;
 import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheStatistics;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
+import org.openstreetmap.josm.plugins.mapillary.gui.layer.ImageIndex;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryVectorTileWorkarounds;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryKeys;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL.APIv4;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryUtils;
 import org.openstreetmap.josm.tools.Pair;
 import org.openstreetmap.josm.tools.Utils;
 
@@ -36,6 +45,34 @@ import org.openstreetmap.josm.tools.Utils;
  * tries to add the timestamps.
  */
 public final class JsonImageDetailsDecoder {
+  /** Arrays with fewer images than this are decoded on the calling thread */
+  private static final int PARALLEL_THRESHOLD = 16;
+  /** The maximum number of images to merge into a dataset while holding the merge lock */
+  private static final int MERGE_BATCH_SIZE = 100;
+  /** The merge locks, one per dataset, so that decoding into different datasets never waits */
+  private static final Map<VectorDataSet, Lock> MERGE_LOCKS = Collections.synchronizedMap(new WeakHashMap<>());
+  private static final CacheStatistics MERGE_STATISTICS = CacheStatistics.forCache("mapillary:images:merge");
+
+  /**
+   * An image that has been decoded, but not yet merged into a dataset
+   */
+  private static final class DecodedImage {
+    /** Gets the value of an image property as it is stored on a new image node, or {@code null} */
+    final Function<String, String> values;
+    final String key;
+    @Nullable
+    final LatLon coordinates;
+    final Map<String, String> tags;
+
+    DecodedImage(@Nonnull Function<String, String> values, @Nonnull String key, @Nullable LatLon coordinates,
+      @Nonnull Map<String, String> tags) {
+      this.values = values;
+      this.key = key;
+      this.coordinates = coordinates;
+      this.tags = tags;
+    }
+  }
+
   private JsonImageDetailsDecoder() {
     // Private constructor to avoid instantiation
   }
@@ -52,7 +89,8 @@ public final class JsonImageDetailsDecoder {
   }
 
   /**
-   * Decode a json of image information
+   * Decode a json of image information. The images are decoded in parallel, and then merged into the data in
+   * batches.
    *
    * @param json The JSON to decode
    * @param data The data to add the information to
@@ -68,13 +106,58 @@ public final class JsonImageDetailsDecoder {
         }
         return Collections.singletonList(pair.b);
       } else if (json instanceof JsonArray) {
-        return ((JsonArray) json).getValuesAs(JsonObject.class).stream().map(j -> decodeImageInfo(j, data))
-          .filter(Objects::nonNull).map(pair -> pair.b).collect(Collectors.toList());
+        final List<JsonObject> objects = ((JsonArray) json).getValuesAs(JsonObject.class);
+        final List<DecodedImage> decoded;
+        if (objects.size() < PARALLEL_THRESHOLD) {
+          decoded = objects.stream().map(JsonImageDetailsDecoder::decode).filter(Objects::nonNull)
+            .collect(Collectors.toList());
+        } else {
+          decoded = MapillaryUtils.getForkJoinPool().submit(() -> objects.parallelStream()
+            .map(JsonImageDetailsDecoder::decode).filter(Objects::nonNull).collect(Collectors.toList())).join();
+        }
+        return mergeAll(data, decoded);
       }
     }
     return Collections.emptyList();
   }
 
+  /**
+   * Decode a cached response of image information, without converting it back to JSON
+   *
+   * @param record The response for one image, or for several images in its {@code data} value
+   * @return The added or modified images
+   * @see JsonDecoder#decodeRecord(MetadataRecord, Function)
+   */
+  @Nonnull
+  public static Collection<VectorNode> decodeImageRecord(final MetadataRecord record) {
+    return decodeImageRecord(record, MapillaryLayer.getInstance().getData());
+  }
+
+  /**
+   * Decode a cached response of image information, without converting it back to JSON. The values are read from the
+   * record in one pass, so there is nothing left to decode in parallel; the images are merged into the data in
+   * batches.
+   *
+   * @param record The response for one image, or for several images in its {@code data} value
+   * @param data The data to add the information to
+   * @return The added or modified images
+   */
+  @Nonnull
+  public static Collection<VectorNode> decodeImageRecord(final MetadataRecord record, final VectorDataSet data) {
+    if (record == null || data == null) {
+      return Collections.emptyList();
+    }
+    final boolean useComputedData = Boolean.TRUE.equals(MapillaryProperties.USE_COMPUTED_LOCATIONS.get());
+    final List<DecodedImage> decoded = new ArrayList<>();
+    for (MetadataRecord.ImageValues values : record.getImages()) {
+      if (values.getId() != null) {
+        decoded.add(new DecodedImage(values::getValue, values.getId(), values.getGeometry(useComputedData),
+          values.getTags()));
+      }
+    }
+    return mergeAll(data, decoded);
+  }
+
   /**
    * Decode a single image info
    *
@@ -83,71 +166,153 @@ public final class JsonImageDetailsDecoder {
    * @return The MapillaryAbstractImage that was added/modified
    */
   @Nullable
-  private static synchronized Pair<String, VectorNode> decodeImageInfo(@Nullable final JsonObject json,
+  private static Pair<String, VectorNode> decodeImageInfo(@Nullable final JsonObject json,
     @Nullable final VectorDataSet data) {
     if (json != null && data != null) {
-      final boolean useComputedData = Boolean.TRUE.equals(MapillaryProperties.USE_COMPUTED_LOCATIONS.get());
-      final String key = json.getString(MapillaryImageUtils.ImageProperties.ID.toString(), null);
-      if (key == null) {
-        return null;
-      }
-      final LatLon coordinates = JsonDecoder.decodeLatLon(
-        json.getJsonObject(useComputedData ? MapillaryImageUtils.ImageProperties.COMPUTED_GEOMETRY.toString()
-          : MapillaryImageUtils.ImageProperties.GEOMETRY.toString()).getJsonArray("coordinates"));
-      final BBox searchBBox = new BBox(coordinates);
-      searchBBox.addLatLon(coordinates, 0.001);
-      VectorNode image = data.searchNodes(searchBBox).stream()
-        .filter(node -> key.equals(MapillaryImageUtils.getKey(node))).findAny().orElseGet(() -> {
-          VectorNode tImage = createNewImage(json, coordinates);
-          data.addPrimitive(tImage);
-          return tImage;
-        });
-      if (coordinates != null) {
-        image.setCoor(coordinates);
+      final DecodedImage decoded = decode(json);
+      if (decoded != null) {
+        return merge(data, Collections.singletonList(decoded)).get(0);
       }
-      for (Map.Entry<String, String> entry : JsonTagMapDecoder.getTagMap(json).entrySet()) {
-        image.put(entry.getKey(), entry.getValue());
+    }
+    return null;
+  }
+
+  /**
+   * Decode a single image info, without touching any dataset. This may be called from several threads at once.
+   *
+   * @param json The data json
+   * @return The decoded image, or {@code null} if the json has no image id
+   */
+  @Nullable
+  private static DecodedImage decode(@Nullable final JsonObject json) {
+    if (json == null) {
+      return null;
+    }
+    final boolean useComputedData = Boolean.TRUE.equals(MapillaryProperties.USE_COMPUTED_LOCATIONS.get());
+    final String key = json.getString(MapillaryImageUtils.ImageProperties.ID.toString(), null);
+    if (key == null) {
+      return null;
+    }
+    final LatLon coordinates = JsonDecoder.decodeLatLon(
+      json.getJsonObject(useComputedData ? MapillaryImageUtils.ImageProperties.COMPUTED_GEOMETRY.toString()
+        : MapillaryImageUtils.ImageProperties.GEOMETRY.toString()).getJsonArray("coordinates"));
+    return new DecodedImage(propertyKey -> getValue(json, propertyKey), key, coordinates,
+      JsonTagMapDecoder.getTagMap(json));
+  }
+
+  /**
+   * Get a value as it is stored on a new image node
+   *
+   * @param json The image json
+   * @param propertyKey The key of the value
+   * @return The value, or {@code null} if the json doesn't have it
+   */
+  @Nullable
+  private static String getValue(@Nonnull final JsonObject json, @Nonnull final String propertyKey) {
+    final JsonValue value = json.get(propertyKey);
+    if (value == null) {
+      return null;
+    } else if (value.getValueType() == JsonValue.ValueType.STRING) {
+      return ((JsonString) value).getString();
+    }
+    return value.toString();
+  }
+
+  /**
+   * Merge decoded images into a dataset, in batches
+   *
+   * @param data The data to add the images to
+   * @param decoded The decoded images
+   * @return The added or modified images
+   */
+  @Nonnull
+  private static List<VectorNode> mergeAll(@Nonnull final VectorDataSet data,
+    @Nonnull final List<DecodedImage> decoded) {
+    final List<VectorNode> images = new ArrayList<>(decoded.size());
+    for (int i = 0; i < decoded.size(); i += MERGE_BATCH_SIZE) {
+      merge(data, decoded.subList(i, Math.min(decoded.size(), i + MERGE_BATCH_SIZE)))
+        .forEach(pair -> images.add(pair.b));
+    }
+    return images;
+  }
+
+  /**
+   * Merge decoded images into a dataset. Merges into the same dataset are done one batch at a time, and the time
+   * spent waiting for (and holding) the merge lock is recorded.
+   *
+   * @param data The data to add the images to
+   * @param batch The decoded images
+   * @return The sequence key and the added or modified image, for each decoded image
+   */
+  @Nonnull
+  private static List<Pair<String, VectorNode>> merge(@Nonnull final VectorDataSet data,
+    @Nonnull final List<DecodedImage> batch) {
+    final List<Pair<String, VectorNode>> merged = new ArrayList<>(batch.size());
+    final Lock lock = MERGE_LOCKS.computeIfAbsent(data, d -> new ReentrantLock());
+    final long start = System.nanoTime();
+    final boolean contended = !lock.tryLock();
+    if (contended) {
+      lock.lock();
+    }
+    final long locked = System.nanoTime();
+    try {
+      for (DecodedImage decoded : batch) {
+        merged.add(merge(data, decoded));
       }
-      TagMap map = image.getKeys();
-      // Clean up bad key value combinations
-      // Using for loop to (hopefully) fix JOSM #21070 and #21072
-      for (Tag tag : map.getTags()) {
-        // Tag#getKey and Tag#getValue are never null. According to docs.
-        if (Utils.isStripEmpty(tag.getKey()) || Utils.isStripEmpty(tag.getValue())) {
-          image.put(tag.getKey(), null);
-        }
+    } finally {
+      lock.unlock();
+      MERGE_STATISTICS.recordMerge(locked - start, System.nanoTime() - locked, contended);
+    }
+    return merged;
+  }
+
+  @Nonnull
+  private static Pair<String, VectorNode> merge(@Nonnull final VectorDataSet data,
+    @Nonnull final DecodedImage decoded) {
+    VectorNode image = ImageIndex.getImage(data, decoded.key);
+    if (image == null) {
+      image = createNewImage(decoded.values, decoded.coordinates);
+      data.addPrimitive(image);
+    }
+    if (decoded.coordinates != null) {
+      image.setCoor(decoded.coordinates);
+    }
+    for (Map.Entry<String, String> entry : decoded.tags.entrySet()) {
+      image.put(entry.getKey(), entry.getValue());
+    }
+    TagMap map = image.getKeys();
+    // Clean up bad key value combinations
+    // Using for loop to (hopefully) fix JOSM #21070 and #21072
+    for (Tag tag : map.getTags()) {
+      // Tag#getKey and Tag#getValue are never null. According to docs.
+      if (Utils.isStripEmpty(tag.getKey()) || Utils.isStripEmpty(tag.getValue())) {
+        image.put(tag.getKey(), null);
       }
-      final String sequence = MapillaryImageUtils.getSequenceKey(image);
-      // Reset the instant
-      image.setInstant(Instant.EPOCH);
-      // Re-cache the instant
-      MapillaryImageUtils.getDate(image);
-      return Pair.create(sequence, image);
     }
-    return null;
+    final String sequence = MapillaryImageUtils.getSequenceKey(image);
+    // Reset the instant
+    image.setInstant(Instant.EPOCH);
+    // Re-cache the instant
+    MapillaryImageUtils.getDate(image);
+    return Pair.create(sequence, image);
   }
 
   /**
-   * Create a new image from a json
+   * Create a new image from decoded values
    *
-   * @param json The json with the data
+   * @param values Gets the value for a property key
    * @param coordinates The coordinates of the image
    * @return A new image
    */
   @Nonnull
-  private static VectorNode createNewImage(@Nonnull final JsonObject json, @Nullable final LatLon coordinates) {
+  private static VectorNode createNewImage(@Nonnull final Function<String, String> values,
+    @Nullable final LatLon coordinates) {
     VectorNode tImage = new VectorNode(MapillaryKeys.IMAGE_LAYER);
     for (final MapillaryImageUtils.ImageProperties property : MapillaryImageUtils.ImageProperties.values()) {
       final String propertyKey = property.toString();
-      if (json.containsKey(propertyKey)) {
-        JsonValue value = json.get(propertyKey);
-        if (value.getValueType() == JsonValue.ValueType.NUMBER) {
-          tImage.put(propertyKey, value.toString());
-        } else if (value.getValueType() == JsonValue.ValueType.STRING) {
-          tImage.put(propertyKey, ((JsonString) value).getString());
-        } else {
-          tImage.put(propertyKey, value.toString());
-        }
+      final String value = values.apply(propertyKey);
+      if (value != null) {
+        tImage.put(propertyKey, value);
       }
     }
     if (coordinates != null) {
@@ -2,8 +2,11 @@
 package org.openstreetmap.josm.plugins.mapillary.utils.api;
 
 import org.openstreetmap.josm.data.osm.IWay;
+import org.openstreetmap.josm.data.vector.VectorDataSet;
 import org.openstreetmap.josm.data.vector.VectorNode;
 import org.openstreetmap.josm.data.vector.VectorWay;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
+import org.openstreetmap.josm.plugins.mapillary.gui.layer.ImageIndex;
 import org.openstreetmap.josm.plugins.mapillary.gui.layer.MapillaryLayer;
 import org.openstreetmap.josm.plugins.mapillary.io.download.MapillaryDownloader;
 import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
@@ -14,6 +17,7 @@ import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonString;
 import javax.json.JsonValue;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -56,18 +60,72 @@ public final class JsonSequencesDecoder {
       .filter(jsonObject -> jsonObject instanceof JsonString || jsonObject instanceof JsonNumber)
       .map(value -> value instanceof JsonString ? ((JsonString) value).getString() : ((JsonNumber) value).toString())
       .collect(Collectors.toList());
-    final Collection<String> currentImageIds = MapillaryLayer.getInstance().getData().getNodes().stream()
-      .map(MapillaryImageUtils::getKey).filter(imageIds::contains).collect(Collectors.toSet());
-    MapillaryDownloader
-      .downloadImages(imageIds.stream().filter(id -> !currentImageIds.contains(id)).toArray(String[]::new));
-    final List<VectorNode> nodes = MapillaryLayer.getInstance().getData().getNodes().stream()
-      .filter(node -> imageIds.contains(MapillaryImageUtils.getKey(node)))
-      .sorted(Comparator.comparingInt(node -> imageIds.indexOf(MapillaryImageUtils.getKey(node))))
-      .collect(Collectors.toList());
+    return decodeSequence(imageIds);
+  }
+
+  /**
+   * Parses a cached sequence response into a {@link IWay}, without converting the response back to JSON
+   *
+   * @param record the response, with the image identifiers in its {@code data} array
+   * @return a singleton list of the sequence way, or an empty list if the response does not have any images
+   * @see JsonDecoder#decodeRecord(MetadataRecord, java.util.function.Function)
+   */
+  public static List<VectorWay> decodeSequenceRecord(final MetadataRecord record) {
+    return decodeSequence(record.getDataIds());
+  }
+
+  /**
+   * Download the images of a sequence, and join them into a sequence way
+   *
+   * @param imageIds The image identifiers, in sequence order
+   * @return a singleton list of the sequence way, or an empty list if none of the images could be loaded
+   */
+  private static List<VectorWay> decodeSequence(final List<String> imageIds) {
+    final MapillaryLayer layer = MapillaryLayer.getInstance();
+    final VectorDataSet data = layer.getData();
+    // Get the images nearest the selected image first, since those are the ones the user will look at next
+    final int selected = layer.getSelected().map(MapillaryImageUtils::getKey).mapToInt(imageIds::indexOf)
+      .filter(index -> index >= 0).findFirst().orElse(0);
+    MapillaryDownloader.downloadImagesInChunks(data, orderFrom(imageIds, selected).stream()
+      .filter(id -> ImageIndex.getImage(data, id) == null).collect(Collectors.toList()));
+    final List<VectorNode> nodes = imageIds.stream().map(id -> ImageIndex.getImage(data, id))
+      .filter(Objects::nonNull).distinct().collect(Collectors.toList());
     if (nodes.isEmpty()) {
       Logging.error("Mapillary: The sequence does not have any nodes");
       return Collections.emptyList();
     }
+    return Collections.singletonList(joinSequence(nodes));
+  }
+
+  /**
+   * Order items by their distance from a position
+   *
+   * @param items The items
+   * @param start The position to start from
+   * @param <T> The item type
+   * @return The items, nearest to {@code start} first (the later item first for equal distances)
+   */
+  static <T> List<T> orderFrom(final List<T> items, final int start) {
+    final List<T> ordered = new ArrayList<>(items.size());
+    for (int offset = 0; ordered.size() < items.size(); offset++) {
+      if (start + offset < items.size()) {
+        ordered.add(items.get(start + offset));
+      }
+      if (offset > 0 && start - offset >= 0) {
+        ordered.add(items.get(start - offset));
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Join images back into a single sequence way. The ways the images were in (usually the parts of the sequence in
+   * each tile) are emptied, and the longest of them is reused.
+   *
+   * @param nodes The images, in sequence order
+   * @return The sequence way
+   */
+  public static VectorWay joinSequence(final List<VectorNode> nodes) {
     final VectorWay sequence = nodes.stream().map(MapillaryImageUtils::getSequence).filter(VectorWay.class::isInstance)
       .map(VectorWay.class::cast).max(Comparator.comparingInt(IWay::getNodesCount))
       .orElseGet(() -> new VectorWay("mapillary-sequences"));
@@ -76,6 +134,6 @@ public final class JsonSequencesDecoder {
         .map(VectorWay.class::cast).distinct().forEach(way -> way.setNodes(Collections.emptyList()));
       sequence.setNodes(nodes);
     }
-    return Collections.singletonList(sequence);
+    return sequence;
   }
 }
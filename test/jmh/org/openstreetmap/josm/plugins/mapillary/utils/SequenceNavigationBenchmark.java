@@ -0,0 +1,84 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.INode;
+import org.openstreetmap.josm.data.vector.VectorDataSet;
+import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.data.vector.VectorWay;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils.NextOrPrevious;
+
+/**
+ * Compare going to the next image with the sequence indexes and with the sequence ways.
+ * Run with {@code ./gradlew jmh}, which writes the results to {@code build/reports/jmh/results.json}.
+ * <p>
+ * Incomplete: this benchmark has not been run yet, so there are no before/after numbers for the sequence indexes.
+ * Record the results for each {@link #length} here once it has been run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceNavigationBenchmark {
+  /** The number of images in the sequence */
+  @Param({ "50", "500", "5000" })
+  public int length;
+
+  private INode middle;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final VectorDataSet dataSet = new VectorDataSet();
+    final List<VectorNode> images = new ArrayList<>(this.length);
+    for (int i = 1; i <= this.length; i++) {
+      final VectorNode image = new VectorNode("mapillary-images");
+      image.put(MapillaryImageUtils.ImageProperties.ID.toString(), Integer.toString(i));
+      image.setCoor(new LatLon(39 + i / 100_000d, -108.5));
+      image.setOsmId(i, 1);
+      dataSet.addPrimitive(image);
+      images.add(image);
+    }
+    final VectorWay sequence = new VectorWay("mapillary-sequences");
+    sequence.put(MapillarySequenceUtils.KEY, "sequence");
+    sequence.setNodes(images);
+    dataSet.addPrimitive(sequence);
+    MapillarySequenceUtils.indexTileSequences("benchmark", Collections.singleton(sequence));
+    this.middle = images.get(this.length / 2);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    MapillarySequenceUtils.clearTileSequences();
+  }
+
+  @Benchmark
+  public INode linked() {
+    return MapillarySequenceUtils.getLinkedNextOrPrevious(this.middle, NextOrPrevious.NEXT);
+  }
+
+  @Benchmark
+  public INode ways() {
+    return MapillarySequenceUtils.getNextOrPreviousFromWays(this.middle, NextOrPrevious.NEXT);
+  }
+}
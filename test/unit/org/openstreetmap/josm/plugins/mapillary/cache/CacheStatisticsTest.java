@@ -0,0 +1,89 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class CacheStatisticsTest {
+  @Test
+  void testCounters() {
+    final CacheStatistics statistics = CacheStatistics.forCache("test:counters");
+    statistics.reset();
+    assertSame(statistics, CacheStatistics.forCache("test:counters"));
+    assertTrue(Double.isNaN(statistics.getHitRatio()));
+    statistics.recordHit();
+    statistics.recordHit();
+    statistics.recordHit();
+    statistics.recordMiss();
+    assertEquals(0.75, statistics.getHitRatio());
+    assertEquals("value", statistics.load(() -> "value"));
+    assertNull(statistics.load(() -> null));
+    assertEquals(2, statistics.getLoadLatency().getCount());
+    assertEquals(1, statistics.getLoadFailures());
+    statistics.reset();
+    assertEquals(0, statistics.getHits());
+    assertEquals(0, statistics.getLoadLatency().getCount());
+  }
+
+  @Test
+  void testLatencyHistogram() {
+    final CacheStatistics.LatencyHistogram histogram = new CacheStatistics.LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(50));
+    for (int i = 0; i < 98; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(100, histogram.getCount());
+    assertEquals(1, histogram.getPercentile(50));
+    assertEquals(4, histogram.getPercentile(99));
+    assertEquals(128, histogram.getPercentile(100));
+    assertEquals((98 * 0.5 + 3 + 100) / 100, histogram.getMean(), 1e-9);
+  }
+
+  @Test
+  void testMerges() {
+    final CacheStatistics statistics = CacheStatistics.forCache("test:merges");
+    statistics.reset();
+    assertTrue(Double.isNaN(statistics.getMergeContention()));
+    statistics.recordMerge(0, TimeUnit.MILLISECONDS.toNanos(1), false);
+    statistics.recordMerge(TimeUnit.MILLISECONDS.toNanos(4), TimeUnit.MILLISECONDS.toNanos(3), true);
+    assertEquals(2, statistics.getMergeLatency().getCount());
+    assertEquals(0.5, statistics.getMergeContention());
+    assertEquals(2, statistics.getMergeWaitMean(), 1e-9);
+    statistics.reset();
+    assertTrue(Double.isNaN(statistics.getMergeWaitMean()));
+  }
+
+  @Test
+  void testCsv() throws IOException {
+    final WeightedLruCache<String, String> cache = new WeightedLruCache<>("test:csv", String::length, () -> 10);
+    final CacheStatistics statistics = CacheStatistics.forCache("test:csv");
+    statistics.reset();
+    cache.put("a", "12345");
+    cache.put("b", "123456");
+    assertNull(cache.get("a"));
+    assertEquals("123456", cache.get("b"));
+
+    final StringWriter writer = new StringWriter();
+    CacheStatistics.writeCsv(writer);
+    final String[] lines = writer.toString().split("\n", -1);
+    assertEquals(CacheStatistics.CSV_HEADER, lines[0]);
+    boolean found = false;
+    for (String line : lines) {
+      if (line.startsWith("test:csv,")) {
+        assertTrue(line.startsWith("test:csv,1,1,0.5000,0,0,1,6,1,"), line);
+        found = true;
+      }
+    }
+    assertTrue(found);
+  }
+}
@@ -0,0 +1,142 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+class ImageDownloadExecutorTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private final CountDownLatch blocker = new CountDownLatch(1);
+  private ImageDownloadExecutor executor;
+
+  @AfterEach
+  void tearDown() {
+    this.blocker.countDown();
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void testPriorityOrder() throws InterruptedException {
+    this.executor = new ImageDownloadExecutor("test-downloader-%d", 1);
+    final List<ImageDownloadExecutor.Priority> order = new CopyOnWriteArrayList<>();
+    this.executor.execute(this::block, ImageDownloadExecutor.Priority.VISIBLE);
+    await().atMost(5, TimeUnit.SECONDS)
+      .until(() -> this.executor.getRunningCount(ImageDownloadExecutor.Priority.VISIBLE) == 1);
+    for (ImageDownloadExecutor.Priority priority : Arrays.asList(ImageDownloadExecutor.Priority.BULK,
+      ImageDownloadExecutor.Priority.FAR_PREFETCH, ImageDownloadExecutor.Priority.VISIBLE,
+      ImageDownloadExecutor.Priority.NEAR_PREFETCH)) {
+      this.executor.execute(() -> order.add(priority), priority);
+    }
+    assertEquals(1, this.executor.getQueuedCount(ImageDownloadExecutor.Priority.BULK));
+
+    this.blocker.countDown();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> order.size() == 4);
+    assertEquals(Arrays.asList(ImageDownloadExecutor.Priority.VISIBLE, ImageDownloadExecutor.Priority.NEAR_PREFETCH,
+      ImageDownloadExecutor.Priority.FAR_PREFETCH, ImageDownloadExecutor.Priority.BULK), order);
+  }
+
+  @Test
+  void testThreadLimits() {
+    this.executor = new ImageDownloadExecutor("test-downloader-%d", 4);
+    for (int i = 0; i < 4; i++) {
+      this.executor.execute(this::block, ImageDownloadExecutor.Priority.BULK);
+    }
+    await().atMost(5, TimeUnit.SECONDS)
+      .until(() -> this.executor.getRunningCount(ImageDownloadExecutor.Priority.BULK) == 2);
+    assertEquals(2, this.executor.getQueuedCount(ImageDownloadExecutor.Priority.BULK));
+
+    // Bulk downloads must leave room for the image the user is looking at
+    this.executor.execute(this::block, ImageDownloadExecutor.Priority.VISIBLE);
+    await().atMost(5, TimeUnit.SECONDS)
+      .until(() -> this.executor.getRunningCount(ImageDownloadExecutor.Priority.VISIBLE) == 1);
+    assertEquals(2, this.executor.getRunningCount(ImageDownloadExecutor.Priority.BULK));
+
+    this.blocker.countDown();
+    await().atMost(5, TimeUnit.SECONDS)
+      .until(() -> this.executor.getQueuedCount(ImageDownloadExecutor.Priority.BULK) == 0);
+    assertTrue(this.executor.getRunningCount(ImageDownloadExecutor.Priority.BULK) <= 2);
+  }
+
+  @Test
+  void testVisibleThreadIsReserved() {
+    this.executor = new ImageDownloadExecutor("test-downloader-%d", 4);
+    // Each of these classes fits its own limit, but together they would take every thread
+    for (ImageDownloadExecutor.Priority priority : Arrays.asList(ImageDownloadExecutor.Priority.NEAR_PREFETCH,
+      ImageDownloadExecutor.Priority.FAR_PREFETCH, ImageDownloadExecutor.Priority.BULK)) {
+      for (int i = 0; i < 4; i++) {
+        this.executor.execute(this::block, priority);
+      }
+    }
+    await().atMost(5, TimeUnit.SECONDS).until(() -> this.executor.getBackgroundRunningCount() == 3);
+    assertEquals(3, this.executor.getRunningCount(ImageDownloadExecutor.Priority.NEAR_PREFETCH));
+    assertEquals(0, this.executor.getRunningCount(ImageDownloadExecutor.Priority.FAR_PREFETCH));
+    assertEquals(0, this.executor.getRunningCount(ImageDownloadExecutor.Priority.BULK));
+
+    // The visible image still gets a thread
+    this.executor.execute(this::block, ImageDownloadExecutor.Priority.VISIBLE);
+    await().atMost(5, TimeUnit.SECONDS)
+      .until(() -> this.executor.getRunningCount(ImageDownloadExecutor.Priority.VISIBLE) == 1);
+    assertEquals(3, this.executor.getBackgroundRunningCount());
+  }
+
+  @Test
+  void testReprioritize() {
+    this.executor = new ImageDownloadExecutor("test-downloader-%d", 1);
+    this.executor.execute(this::block, ImageDownloadExecutor.Priority.VISIBLE);
+    await().atMost(5, TimeUnit.SECONDS)
+      .until(() -> this.executor.getRunningCount(ImageDownloadExecutor.Priority.VISIBLE) == 1);
+    final MapillaryCache job = new MapillaryCache(null).setPriority(ImageDownloadExecutor.Priority.NEAR_PREFETCH);
+    this.executor.execute(job);
+    assertEquals(1, this.executor.getQueuedCount(ImageDownloadExecutor.Priority.NEAR_PREFETCH));
+
+    // Only an export still wants the image
+    this.executor.reprioritize(job, ImageDownloadExecutor.Priority.BULK);
+    assertEquals(0, this.executor.getQueuedCount(ImageDownloadExecutor.Priority.NEAR_PREFETCH));
+    assertEquals(1, this.executor.getQueuedCount(ImageDownloadExecutor.Priority.BULK));
+    assertEquals(ImageDownloadExecutor.Priority.BULK, job.getPriority());
+  }
+
+  @Test
+  void testRequeue() {
+    this.executor = new ImageDownloadExecutor("test-downloader-%d", 1);
+    final List<String> ran = new CopyOnWriteArrayList<>();
+    final Runnable removed = () -> ran.add("removed");
+    this.executor.requeue(removed, TimeUnit.MILLISECONDS.toNanos(100));
+    this.executor.requeue(() -> ran.add("requeued"), TimeUnit.MILLISECONDS.toNanos(100));
+    // Waiting jobs don't hold a thread, and can still be cancelled
+    assertEquals(2, this.executor.getRequeuedCount());
+    assertEquals(2, this.executor.getQueue().size());
+    assertEquals(0, this.executor.getRunningCount(ImageDownloadExecutor.Priority.VISIBLE));
+    assertTrue(this.executor.remove(removed));
+    await().atMost(5, TimeUnit.SECONDS).until(() -> ran.size() == 1);
+    assertEquals(Collections.singletonList("requeued"), ran);
+    assertEquals(0, this.executor.getRequeuedCount());
+  }
+
+  private void block() {
+    try {
+      this.blocker.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -1,9 +1,11 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.mapillary.cache;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.ArrayList;
@@ -59,6 +61,29 @@ class MapillaryCacheTest {
     assertNull(cache.getUrl());
   }
 
+  @Test
+  void testImageTiersAreCachedSeparately() {
+    VectorNode image = new VectorNode("mapillary-images");
+    image.setCoor(new LatLon(39.068354972222, -108.57081597222));
+    VectorDataSet vectorDataSet = new VectorDataSet();
+    vectorDataSet.addPrimitive(image);
+    image.put(MapillaryImageUtils.ImageProperties.ID.toString(), "135511895288847");
+    final List<String> keys = new ArrayList<>();
+    final List<String> urls = new ArrayList<>();
+    for (MapillaryCache.Type type : MapillaryCache.Type.values()) {
+      MapillaryCache cache = new MapillaryCache(image, type);
+      assertSame(type, cache.getType());
+      assertNotNull(cache.getUrl());
+      assertEquals(image.get(type.getKey()), cache.getUrl().toExternalForm());
+      keys.add(cache.getCacheKey());
+      urls.add(cache.getUrl().toExternalForm());
+    }
+    assertEquals(MapillaryCache.Type.values().length, keys.stream().distinct().count());
+    assertEquals(MapillaryCache.Type.values().length, urls.stream().distinct().count());
+    assertEquals(new MapillaryCache(image, MapillaryCache.Type.FULL_IMAGE).getCacheKey(),
+      new MapillaryCache(image).getCacheKey());
+  }
+
   /**
    * Non-regression test for JOSM #21035: IAE due to API request limit reached
    * IAE: No url returned at {@link CacheUtils#submit(INode, ICachedLoaderListener)}
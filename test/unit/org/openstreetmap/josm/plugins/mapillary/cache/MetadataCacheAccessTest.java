@@ -0,0 +1,132 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.awaitility.Awaitility;
+import org.awaitility.Durations;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.plugins.mapillary.testutils.annotations.MapillaryCaches;
+import org.openstreetmap.josm.plugins.mapillary.testutils.annotations.MapillaryURLWireMock;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+@MapillaryURLWireMock
+@MapillaryCaches
+class MetadataCacheAccessTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private final AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toMillis(365));
+
+  @AfterEach
+  void tearDown() {
+    Caches.metaDataCache.setClock(System::currentTimeMillis);
+  }
+
+  @Test
+  void testStaleWhileRevalidate() {
+    Caches.metaDataCache.setClock(this.clock::get);
+    final String url = MapillaryURL.APIv4.getImageInformation("135511895288847");
+    final JsonObject original = Caches.metaDataCache.getJson(url, MetadataCacheAccess.Endpoint.IMAGES);
+    assertNotNull(original);
+    assertEquals(this.clock.get(), Caches.metaDataCache.getCached(url).getFetchedAt());
+
+    // Still fresh
+    final long maxAge = MetadataCacheAccess.Endpoint.IMAGES.getMaxAge();
+    final long fetchedAt = this.clock.get();
+    this.clock.addAndGet(maxAge / 2);
+    assertEquals(original, Caches.metaDataCache.getJson(url, MetadataCacheAccess.Endpoint.IMAGES));
+    assertEquals(fetchedAt, Caches.metaDataCache.getCached(url).getFetchedAt());
+
+    // Stale: the cached response is returned, and revalidated in the background
+    this.clock.addAndGet(maxAge);
+    assertEquals(original, Caches.metaDataCache.getJson(url, MetadataCacheAccess.Endpoint.IMAGES));
+    Awaitility.await().atMost(Durations.FIVE_SECONDS)
+      .until(() -> Caches.metaDataCache.getCached(url).getFetchedAt() == this.clock.get());
+    assertEquals(original, Caches.metaDataCache.getJson(url, MetadataCacheAccess.Endpoint.IMAGES));
+  }
+
+  @Test
+  void testOldRecordsAreRevalidated() {
+    final String url = MapillaryURL.APIv4.getImageInformation("135511895288847");
+    final JsonObject original = Caches.metaDataCache.getJson(url, MetadataCacheAccess.Endpoint.IMAGES);
+    assertNotNull(original);
+    // Records from before we tracked the fetch time
+    Caches.metaDataCache.putCached(url, MetadataRecord.of(original, 0, null, null));
+    assertEquals(original, Caches.metaDataCache.getJson(url, MetadataCacheAccess.Endpoint.DETECTIONS));
+    Awaitility.await().atMost(Durations.FIVE_SECONDS)
+      .until(() -> Caches.metaDataCache.getCached(url).getFetchedAt() > 0);
+  }
+
+  @Test
+  void testFetchRecordIsNotCached() {
+    final String url = MapillaryURL.APIv4.getImageInformation("135511895288847");
+    final MetadataRecord record = Caches.metaDataCache.fetchRecord(url);
+    assertNotNull(record);
+    assertEquals(Collections.singletonList("135511895288847"),
+      record.getImages().stream().map(MetadataRecord.ImageValues::getId).collect(Collectors.toList()));
+    assertNull(Caches.metaDataCache.getCached(url));
+  }
+
+  @Test
+  void testImageInformationFieldProjection() {
+    final String id = "135511895288847";
+    final JsonObject partial = Json.createObjectBuilder().add("id", id).add("captured_at", 1).build();
+    Caches.metaDataCache.putImageInformation(id, partial, MapillaryImageUtils.ImageProperties.CAPTURED_AT,
+      MapillaryImageUtils.ImageProperties.IS_PANO);
+
+    // The cached fields cover the request, so the cached entry is used
+    assertEquals(partial,
+      Caches.metaDataCache.getImageInformation(id, MapillaryImageUtils.ImageProperties.CAPTURED_AT));
+    assertEquals(partial,
+      Caches.metaDataCache.getImageInformation(id, MapillaryImageUtils.ImageProperties.IS_PANO));
+
+    // Missing fields are fetched and merged with the cached fields
+    final JsonObject merged = Caches.metaDataCache.getImageInformation(id,
+      MapillaryImageUtils.ImageProperties.CAPTURED_AT, MapillaryImageUtils.ImageProperties.GEOMETRY);
+    assertNotNull(merged);
+    assertTrue(merged.containsKey("geometry"));
+    assertEquals(new HashSet<>(Arrays.asList("captured_at", "geometry", "id", "is_pano")),
+      Caches.metaDataCache.getCached("image:" + id).getFields());
+
+    // A request for a subset of the merged fields is answered from the cache
+    assertEquals(merged,
+      Caches.metaDataCache.getImageInformation(id, MapillaryImageUtils.ImageProperties.GEOMETRY));
+  }
+
+  @Test
+  void testPutImageInformationClearsFailure() {
+    final String id = "135511895288847";
+    final String url = MapillaryURL.APIv4.getImageInformation(id,
+      EnumSet.of(MapillaryImageUtils.ImageProperties.ID, MapillaryImageUtils.ImageProperties.CAPTURED_AT)
+        .toArray(new MapillaryImageUtils.ImageProperties[0]));
+    Caches.metaDataCache.getNegativeCache().put(url, NegativeCache.Failure.NOT_FOUND);
+    assertNull(Caches.metaDataCache.getImageInformation(id, MapillaryImageUtils.ImageProperties.CAPTURED_AT));
+
+    // Information from another response replaces the failure for the same fields
+    final JsonObject json = Json.createObjectBuilder().add("id", id).add("captured_at", 1).build();
+    Caches.metaDataCache.putImageInformation(id, json, MapillaryImageUtils.ImageProperties.CAPTURED_AT);
+    assertNull(Caches.metaDataCache.getNegativeCache().get(url));
+    assertEquals(json, Caches.metaDataCache.getImageInformation(id, MapillaryImageUtils.ImageProperties.CAPTURED_AT));
+  }
+}
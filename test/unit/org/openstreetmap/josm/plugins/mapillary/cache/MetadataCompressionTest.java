@@ -0,0 +1,151 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link MetadataCompression}
+ */
+class MetadataCompressionTest {
+  private final CacheStatistics statistics = CacheStatistics.forCache("test:metadataCompression");
+  private final MetadataCompression compression = new MetadataCompression();
+
+  @BeforeEach
+  void setUp() {
+    this.statistics.reset();
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.compression.end();
+  }
+
+  private static byte[] detections() throws IOException, URISyntaxException {
+    return encode("/__files/api/v4/responses/graph/135511895288847/detections.json");
+  }
+
+  private static byte[] encode(String resource) throws IOException, URISyntaxException {
+    final String json = new String(Files.readAllBytes(Paths.get(MetadataCompressionTest.class
+      .getResource(resource).toURI())), StandardCharsets.UTF_8);
+    final JsonObject object;
+    try (JsonReader reader = Json.createReader(new StringReader(json))) {
+      object = reader.readObject();
+    }
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (DataOutputStream dataOutput = new DataOutputStream(output)) {
+      MetadataRecord.of(object).writeTo(dataOutput);
+    }
+    return output.toByteArray();
+  }
+
+  @Test
+  void testRoundTrip() throws IOException, URISyntaxException {
+    final byte[] data = detections();
+    final byte[] compressed = this.compression.compress(data, this.statistics);
+    assertEquals(MetadataCompression.DEFLATE_DICTIONARY_1, compressed[0]);
+    assertTrue(compressed.length < data.length);
+    final byte[] decompressed = this.compression.decompress(compressed, this.statistics);
+    assertArrayEquals(data, decompressed);
+    final MetadataRecord record = MetadataRecord.readFrom(new DataInputStream(new ByteArrayInputStream(decompressed)));
+    assertTrue(record.toJson().containsKey("data"));
+
+    assertEquals(data.length / (double) compressed.length, this.statistics.getCompressionRatio(), 1e-9);
+    assertTrue(this.statistics.getDecodeMean() >= 0);
+  }
+
+  @Test
+  void testDictionaryHelps() throws IOException, URISyntaxException {
+    final byte[] data = detections();
+    final Deflater deflater = new Deflater(6, true);
+    deflater.setInput(data);
+    deflater.finish();
+    final byte[] buffer = new byte[data.length];
+    final int plain = deflater.deflate(buffer);
+    deflater.end();
+    assertTrue(this.compression.compress(data, null).length < plain + 1);
+  }
+
+  @Test
+  void testImageCompressionRatio() throws IOException, URISyntaxException {
+    // Not one of the samples the dictionary was made from
+    final byte[] data = encode("/__files/api/v4/responses/graph/148137757289079.json");
+    final byte[] compressed = this.compression.compress(data, this.statistics);
+    assertArrayEquals(data, this.compression.decompress(compressed, null));
+    // The dictionary has the keys and common values in their encoded form
+    assertTrue(this.statistics.getCompressionRatio() > 2.5, Double.toString(this.statistics.getCompressionRatio()));
+  }
+
+  @Test
+  void testDictionary() throws IOException {
+    // Records that were compressed with a different dictionary would be read as garbage, so it must never change
+    final byte[] dictionary = MetadataCompression.getDictionary();
+    final CRC32 crc = new CRC32();
+    crc.update(dictionary);
+    assertEquals(1943, dictionary.length);
+    assertEquals(3_516_977_344L, crc.getValue());
+    // The dictionary is made of records
+    final DataInputStream input = new DataInputStream(new ByteArrayInputStream(dictionary));
+    int records = 0;
+    while (input.available() > 0) {
+      assertNotNull(MetadataRecord.readFrom(input).toJson());
+      records++;
+    }
+    assertEquals(5, records);
+  }
+
+  @Test
+  void testReuse() throws IOException, URISyntaxException {
+    final byte[] first = detections();
+    final byte[] second = encode("/__files/api/v4/responses/graph/148137757289079.json");
+    // The deflater and inflater of the thread are reset between uses
+    final byte[] compressed = this.compression.compress(first, null);
+    assertArrayEquals(second, this.compression.decompress(this.compression.compress(second, null), null));
+    assertArrayEquals(compressed, this.compression.compress(first, null));
+    assertThrows(IOException.class, () -> this.compression.decompress(Arrays.copyOf(compressed, 10), null));
+    assertArrayEquals(first, this.compression.decompress(compressed, null));
+  }
+
+  @Test
+  void testSmallData() throws IOException {
+    final byte[] data = "{}".getBytes(StandardCharsets.UTF_8);
+    final byte[] compressed = this.compression.compress(data, null);
+    assertEquals(MetadataCompression.UNCOMPRESSED, compressed[0]);
+    assertEquals(data.length + 1, compressed.length);
+    assertArrayEquals(data, this.compression.decompress(compressed, null));
+  }
+
+  @Test
+  void testCorrupt() throws IOException, URISyntaxException {
+    assertThrows(IOException.class, () -> this.compression.decompress(new byte[0], null));
+    assertThrows(IOException.class, () -> this.compression.decompress(new byte[] {42, 1, 2}, null));
+    final byte[] compressed = this.compression.compress(detections(), null);
+    final byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+    assertThrows(IOException.class, () -> this.compression.decompress(truncated, null));
+  }
+}
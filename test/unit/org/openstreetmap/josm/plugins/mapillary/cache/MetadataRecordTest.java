@@ -0,0 +1,169 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.mapillary.utils.api.JsonTagMapDecoder;
+
+class MetadataRecordTest {
+  private static JsonObject parse(String json) {
+    try (JsonReader reader = Json.createReader(new StringReader(json))) {
+      return reader.readObject();
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = { "{}", "{\"id\":\"135511895288847\",\"captured_at\":1563721072184}",
+    "{\"geometry\":{\"type\":\"Point\",\"coordinates\":[-108.57081597222,39.068354972222]}}",
+    "{\"camera_parameters\":[0.85136388143343,-6.6499673206348e-05,-3.8067681992196e-05]}",
+    "{\"leading_zero\":\"0123\",\"too_long\":\"123456789012345678901234\",\"negative\":-1,\"zero\":\"0\"}",
+    "{\"created_at\":\"2021-07-21T14:57:52.184Z\",\"not_a_date\":\"2021-07-21T14:57:52.184123Z\"}",
+    "{\"big\":123456789012345678901234567890,\"exponent\":1E+3,\"max\":9223372036854775807,"
+      + "\"min\":-9223372036854775808}",
+    "{\"null\":null,\"true\":true,\"false\":false,\"unicode\":\"\u00e9\u4e2d\",\"empty\":\"\"}",
+    "{\"data\":[{\"id\":\"1\",\"value\":\"a\"},{\"id\":\"2\",\"value\":\"b\"}],\"nested\":[[1,2],[],[{\"id\":3}]]}" })
+  void testRoundTrip(String json) {
+    final JsonObject original = parse(json);
+    assertEquals(original, MetadataRecord.of(original).toJson());
+    // Reading the response straight into a record gives the same record
+    try (JsonParser parser = Json.createParser(new StringReader(json))) {
+      assertTrue(MetadataRecord.read(parser, 0, null, null).hasSameContent(MetadataRecord.of(original)));
+    }
+  }
+
+  @Test
+  void testReadLargeArrays() {
+    // Sizes of 128 and more don't fit in the byte that was reserved for them
+    final StringBuilder json = new StringBuilder("{\"outer\":[");
+    for (int i = 0; i < 200; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"inner\":[");
+      for (int j = 0; j < (i == 100 ? 20000 : 3); j++) {
+        json.append(j == 0 ? "" : ",").append(j);
+      }
+      json.append("]}");
+    }
+    json.append("],\"after\":\"end\"}");
+    final JsonObject original = parse(json.toString());
+    try (JsonParser parser = Json.createParser(new StringReader(json.toString()))) {
+      final MetadataRecord record = MetadataRecord.read(parser, 0, null, null);
+      assertTrue(record.hasSameContent(MetadataRecord.of(original)));
+      assertEquals(original, record.toJson());
+    }
+  }
+
+  @Test
+  void testReadNotAnObject() {
+    try (JsonParser parser = Json.createParser(new StringReader("[1,2]"))) {
+      assertThrows(JsonException.class, () -> MetadataRecord.read(parser, 0, null, null));
+    }
+  }
+
+  @Test
+  void testGet() {
+    final MetadataRecord record = MetadataRecord
+      .of(parse("{\"first\":{\"key\":1,\"other\":[{\"deep\":true}]},\"second\":{\"deep\":2,\"key\":3}}"));
+    // The keys in the skipped value are used by the value that is read
+    assertEquals(parse("{\"deep\":2,\"key\":3}"), record.get("second"));
+    assertEquals(Json.createValue(1), record.get("first").asJsonObject().get("key"));
+    assertNull(record.get("third"));
+    assertEquals(Arrays.asList("first", "second"), record.getKeys());
+  }
+
+  @Test
+  void testGetImages() throws IOException, URISyntaxException {
+    final JsonObject original = parse(new String(Files.readAllBytes(Paths.get(
+      MetadataRecordTest.class.getResource("/__files/api/v4/responses/graph/135511895288847.json").toURI())),
+      StandardCharsets.UTF_8));
+    final List<MetadataRecord.ImageValues> images = MetadataRecord.of(original).getImages();
+    assertEquals(1, images.size());
+    final MetadataRecord.ImageValues image = images.get(0);
+    assertEquals("135511895288847", image.getId());
+    // The same values as the JSON decoders use
+    assertEquals(JsonTagMapDecoder.getTagMap(original), image.getTags());
+    assertEquals(original.get("geometry").toString(), image.getValue("geometry"));
+    final JsonArray coordinates = original.getJsonObject("geometry").getJsonArray("coordinates");
+    assertEquals(new LatLon(coordinates.getJsonNumber(1).doubleValue(), coordinates.getJsonNumber(0).doubleValue()),
+      image.getGeometry(false));
+  }
+
+  @Test
+  void testGetDataImages() {
+    final MetadataRecord record = MetadataRecord.of(parse("{\"data\":[{\"id\":\"1\",\"height\":1.5},{\"id\":2},"
+      + "{\"other\":{\"id\":\"3\"}},{\"id\":null},4],\"id\":\"5\"}"));
+    assertEquals(Arrays.asList("1", "2"), record.getDataIds());
+    final List<MetadataRecord.ImageValues> images = record.getImages();
+    assertEquals(4, images.size());
+    assertEquals("1", images.get(0).getId());
+    assertEquals("1.5", images.get(0).getTags().get("height"));
+    // Only string ids are image ids
+    assertNull(images.get(1).getId());
+    assertEquals("2", images.get(1).getTags().get("id"));
+    assertNull(images.get(2).getId());
+    assertEquals("{\"id\":\"3\"}", images.get(2).getValue("other"));
+    assertNull(images.get(3).getGeometry(true));
+    assertTrue(MetadataRecord.of(parse("{\"data\":{\"id\":\"1\"}}")).getDataIds().isEmpty());
+  }
+
+  @Test
+  void testRealResponse() throws IOException, URISyntaxException {
+    final String json = new String(Files.readAllBytes(Paths.get(
+      MetadataRecordTest.class.getResource("/__files/api/v4/responses/graph/135511895288847.json").toURI())),
+      StandardCharsets.UTF_8);
+    final JsonObject original = parse(json);
+    final MetadataRecord record = MetadataRecord.of(original);
+    assertEquals(original, record.toJson());
+    // Keys and ids should be stored compactly
+    assertTrue(record.size() < original.toString().getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  @Test
+  void testSerializable() throws IOException, ClassNotFoundException {
+    final JsonObject original = parse("{\"data\":[{\"id\":\"148137757289079\",\"captured_at\":1563721072184}]}");
+    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (ObjectOutputStream outputStream = new ObjectOutputStream(byteArrayOutputStream)) {
+      outputStream.writeObject(MetadataRecord.of(original));
+    }
+    try (ObjectInputStream inputStream = new ObjectInputStream(
+      new ByteArrayInputStream(byteArrayOutputStream.toByteArray()))) {
+      assertEquals(original, ((MetadataRecord) inputStream.readObject()).toJson());
+    }
+  }
+
+  @Test
+  void testOtherVersion() throws ReflectiveOperationException {
+    final MetadataRecord record = MetadataRecord.of(parse("{\"id\":\"1\"}"));
+    final Field data = MetadataRecord.class.getDeclaredField("data");
+    data.setAccessible(true);
+    ((byte[]) data.get(record))[0] = MetadataRecord.FORMAT_VERSION + 1;
+    assertNull(record.toJson());
+  }
+}
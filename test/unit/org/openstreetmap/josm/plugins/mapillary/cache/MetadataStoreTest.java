@@ -0,0 +1,217 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link MetadataStore}
+ */
+class MetadataStoreTest {
+  private static final long MAX_AGE = TimeUnit.DAYS.toMillis(90);
+  @TempDir
+  Path directory;
+  private final AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toMillis(365));
+
+  private MetadataStore open(Path path, int capacity, int maxEntries) throws IOException {
+    return new MetadataStore(path.toFile(), capacity, maxEntries, MAX_AGE, this.clock::get,
+      CacheStatistics.forCache("test:metadataStore"));
+  }
+
+  private static MetadataRecord record(long id) {
+    return MetadataRecord.of(Json.createObjectBuilder().add("id", Long.toString(id)).add("is_pano", false).build(),
+      12_345, "\"etag\"", null).withFields(Collections.singleton("is_pano"));
+  }
+
+  @Test
+  void testPutGetRemove() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      assertNull(store.get("image:1"));
+      store.put("image:1", record(1));
+      store.put("https://example.org/sequence", record(2));
+      final MetadataRecord read = store.get("image:1");
+      assertNotNull(read);
+      assertEquals(record(1).toJson(), read.toJson());
+      assertEquals(12_345, read.getFetchedAt());
+      assertEquals("\"etag\"", read.getETag());
+      assertEquals(Collections.singleton("is_pano"), read.getFields());
+      assertEquals(record(2).toJson(), store.get("https://example.org/sequence").toJson());
+      assertEquals(2, store.size());
+
+      store.remove("image:1");
+      assertNull(store.get("image:1"));
+      assertEquals(1, store.size());
+      store.clear();
+      assertEquals(0, store.size());
+      assertNull(store.get("https://example.org/sequence"));
+    }
+  }
+
+  @Test
+  void testReopen() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      store.put("image:1", record(1));
+      store.put("image:2", record(2));
+      store.remove("image:2");
+    }
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      assertEquals(record(1).toJson(), store.get("image:1").toJson());
+      assertNull(store.get("image:2"));
+      assertEquals(1, store.size());
+    }
+  }
+
+  @Test
+  void testLocked() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      store.put("image:1", record(1));
+      // Another JOSM instance with the same cache directory falls back to the JCS cache
+      assertNull(MetadataStore.open(this.directory.toFile(), 100, MAX_AGE, null));
+    }
+    final MetadataStore store = MetadataStore.open(this.directory.toFile(), 100, MAX_AGE, null);
+    assertNotNull(store);
+    try {
+      assertEquals(record(1).toJson(), store.get("image:1").toJson());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void testCrashRecovery() throws IOException {
+    final Path crashed = this.directory.resolve("crashed");
+    Files.createDirectories(crashed);
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      store.put("image:1", record(1));
+      store.put("image:2", record(2));
+      // Copy the files as they would be if JOSM crashed now
+      for (String file : new String[] {MetadataStore.DATA_FILE, MetadataStore.INDEX_FILE}) {
+        Files.copy(this.directory.resolve(file), crashed.resolve(file));
+      }
+    }
+    // Simulate a record that was only partially written
+    final long validLength = Files.size(crashed.resolve(MetadataStore.DATA_FILE));
+    Files.write(crashed.resolve(MetadataStore.DATA_FILE), new byte[] {0, 0, 1, 0, 42, 42},
+      StandardOpenOption.APPEND);
+    try (MetadataStore store = this.open(crashed, 16, 100)) {
+      assertEquals(record(1).toJson(), store.get("image:1").toJson());
+      assertEquals(record(2).toJson(), store.get("image:2").toJson());
+      assertEquals(validLength, store.getDataSize());
+      store.put("image:3", record(3));
+      assertEquals(record(3).toJson(), store.get("image:3").toJson());
+    }
+  }
+
+  @Test
+  void testRebuildIndex() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      store.put("image:1", record(1));
+    }
+    Files.delete(this.directory.resolve(MetadataStore.INDEX_FILE));
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      assertEquals(record(1).toJson(), store.get("image:1").toJson());
+    }
+  }
+
+  @Test
+  void testCorruptIndexHeader() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      store.put("image:1", record(1));
+    }
+    final Random random = new Random(42);
+    for (int i = 0; i < 20; i++) {
+      final byte[] header = new byte[64];
+      random.nextBytes(header);
+      if (i % 2 == 0) {
+        // A huge capacity, like the one in a garbage header
+        ByteBuffer.wrap(header).putInt(16, Integer.MAX_VALUE);
+      }
+      try (FileChannel channel = FileChannel.open(this.directory.resolve(MetadataStore.INDEX_FILE),
+        StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.wrap(header), 0);
+      }
+      // The index is rebuilt from the data file
+      final MetadataStore store = MetadataStore.open(this.directory.toFile(), 100, MAX_AGE, null);
+      assertNotNull(store);
+      try {
+        assertEquals(record(1).toJson(), store.get("image:1").toJson());
+      } finally {
+        store.close();
+      }
+    }
+  }
+
+  @Test
+  void testGrow() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 4, 1000)) {
+      for (long i = 0; i < 100; i++) {
+        store.put("image:" + i, record(i));
+      }
+      assertEquals(100, store.size());
+      for (long i = 0; i < 100; i++) {
+        assertEquals(record(i).toJson(), store.get("image:" + i).toJson());
+      }
+    }
+  }
+
+  @Test
+  void testCompaction() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 16, 2)) {
+      for (long i = 0; i < 10; i++) {
+        store.put("image:1", record(i));
+        this.clock.incrementAndGet();
+      }
+      store.put("image:2", record(2));
+      this.clock.incrementAndGet();
+      store.put("image:3", record(3));
+      final long size = store.getDataSize();
+      store.compact();
+      assertTrue(store.getDataSize() < size);
+      // Only the newest records are kept
+      assertEquals(2, store.size());
+      assertNull(store.get("image:1"));
+      assertEquals(record(3).toJson(), store.get("image:3").toJson());
+    }
+    try (MetadataStore store = this.open(this.directory, 16, 2)) {
+      assertEquals(record(2).toJson(), store.get("image:2").toJson());
+      assertFalse(Files.exists(this.directory.resolve(MetadataStore.DATA_FILE + ".tmp")));
+    }
+  }
+
+  @Test
+  void testExpiry() throws IOException {
+    try (MetadataStore store = this.open(this.directory, 16, 100)) {
+      store.put("image:1", record(1));
+      this.clock.addAndGet(MAX_AGE + 1);
+      assertNull(store.get("image:1"));
+      store.compact();
+      assertEquals(0, store.size());
+    }
+  }
+
+  @Test
+  void testGetId() {
+    assertEquals(135_511_895_288_847L, MetadataStore.getId("image:135511895288847"));
+    assertEquals(MetadataStore.getId("https://example.org/a"), MetadataStore.getId("https://example.org/a"));
+    assertTrue(MetadataStore.getId("https://example.org/a") != MetadataStore.getId("https://example.org/b"));
+  }
+}
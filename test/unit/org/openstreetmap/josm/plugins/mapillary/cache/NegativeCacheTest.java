@@ -0,0 +1,76 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+class NegativeCacheTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+
+  @Test
+  void testExpiry() {
+    final NegativeCache cache = new NegativeCache(10, this.clock::get);
+    cache.put("missing", NegativeCache.Failure.NOT_FOUND);
+    cache.put("timeout", NegativeCache.Failure.TIMEOUT);
+    assertEquals(NegativeCache.Failure.NOT_FOUND, cache.get("missing"));
+    assertEquals(NegativeCache.Failure.TIMEOUT, cache.get("timeout"));
+
+    this.clock.addAndGet(NegativeCache.Failure.TIMEOUT.getTimeToLive());
+    assertNull(cache.get("timeout"));
+    assertEquals(NegativeCache.Failure.NOT_FOUND, cache.get("missing"));
+    assertEquals(1, cache.size());
+
+    this.clock.addAndGet(NegativeCache.Failure.NOT_FOUND.getTimeToLive());
+    assertNull(cache.get("missing"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void testDisabled() {
+    MapillaryProperties.NEGATIVE_CACHE_TTL_SERVER_ERROR.put(0);
+    final NegativeCache cache = new NegativeCache(10, this.clock::get);
+    cache.put("error", NegativeCache.Failure.SERVER_ERROR);
+    assertNull(cache.get("error"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void testBounded() {
+    final NegativeCache cache = new NegativeCache(10, this.clock::get);
+    for (int i = 0; i < 20; i++) {
+      cache.put(Integer.toString(i), NegativeCache.Failure.NOT_FOUND);
+    }
+    assertEquals(10, cache.size());
+    assertNull(cache.get("0"));
+    assertEquals(NegativeCache.Failure.NOT_FOUND, cache.get("19"));
+  }
+
+  @ParameterizedTest
+  @CsvSource({ "200,", "304,", "400,NOT_FOUND", "404,NOT_FOUND", "429,", "500,SERVER_ERROR", "503,SERVER_ERROR",
+    "599,TIMEOUT" })
+  void testForResponseCode(int responseCode, NegativeCache.Failure expected) {
+    assertEquals(expected, NegativeCache.Failure.forResponseCode(responseCode));
+  }
+
+  @Test
+  void testForException() {
+    assertEquals(NegativeCache.Failure.TIMEOUT, NegativeCache.Failure.forException(new SocketTimeoutException()));
+    assertNull(NegativeCache.Failure.forException(new IOException()));
+  }
+}
@@ -0,0 +1,93 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils.NextOrPrevious;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+class PrefetchControllerTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private PrefetchController controller;
+
+  @BeforeEach
+  void setUp() {
+    MapillaryProperties.PRE_FETCH_IMAGE_COUNT.put(4);
+    this.controller = new PrefetchController(this.clock::get);
+  }
+
+  @Test
+  void testNoHistory() {
+    final PrefetchController.Window window = this.controller.getWindow(100);
+    assertEquals(4, window.get(NextOrPrevious.NEXT));
+    assertEquals(4, window.get(NextOrPrevious.PREVIOUS));
+  }
+
+  @Test
+  void testMemoryLimit() {
+    final PrefetchController.Window window = this.controller.getWindow(3);
+    assertEquals(3, window.get(NextOrPrevious.NEXT) + window.get(NextOrPrevious.PREVIOUS));
+  }
+
+  @Test
+  void testDirectionBias() {
+    for (int i = 0; i < 5; i++) {
+      this.controller.recordStep(NextOrPrevious.PREVIOUS);
+      this.clock.addAndGet(1000);
+    }
+    PrefetchController.Window window = this.controller.getWindow(100);
+    assertTrue(window.get(NextOrPrevious.PREVIOUS) > window.get(NextOrPrevious.NEXT));
+    assertTrue(window.get(NextOrPrevious.NEXT) > 0, "Images behind the user should still be prefetched");
+    assertEquals(8, window.get(NextOrPrevious.NEXT) + window.get(NextOrPrevious.PREVIOUS));
+
+    // Only the last few steps count
+    for (int i = 0; i < 5; i++) {
+      this.controller.recordStep(NextOrPrevious.NEXT);
+      this.clock.addAndGet(1000);
+    }
+    window = this.controller.getWindow(100);
+    assertTrue(window.get(NextOrPrevious.NEXT) > window.get(NextOrPrevious.PREVIOUS));
+  }
+
+  @Test
+  void testSpeed() {
+    for (int i = 0; i < 5; i++) {
+      this.controller.recordStep(NextOrPrevious.NEXT);
+      this.clock.addAndGet(100);
+    }
+    final PrefetchController.Window fast = this.controller.getWindow(100);
+    assertEquals(16, fast.get(NextOrPrevious.NEXT) + fast.get(NextOrPrevious.PREVIOUS));
+
+    final PrefetchController slowController = new PrefetchController(this.clock::get);
+    for (int i = 0; i < 5; i++) {
+      slowController.recordStep(NextOrPrevious.NEXT);
+      this.clock.addAndGet(5000);
+    }
+    final PrefetchController.Window slow = slowController.getWindow(100);
+    assertEquals(4, slow.get(NextOrPrevious.NEXT) + slow.get(NextOrPrevious.PREVIOUS));
+  }
+
+  @Test
+  void testOldStepsIgnored() {
+    for (int i = 0; i < 5; i++) {
+      this.controller.recordStep(NextOrPrevious.NEXT);
+      this.clock.addAndGet(100);
+    }
+    this.clock.addAndGet(60_000);
+    final PrefetchController.Window window = this.controller.getWindow(100);
+    assertEquals(4, window.get(NextOrPrevious.NEXT));
+    assertEquals(4, window.get(NextOrPrevious.PREVIOUS));
+  }
+}
@@ -0,0 +1,81 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.stream.LongStream;
+
+import org.junit.jupiter.api.Test;
+
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils.NextOrPrevious;
+
+/**
+ * Test class for {@link SequenceIndex}
+ */
+class SequenceIndexTest {
+  @Test
+  void testNextOrPrevious() {
+    final SequenceIndex index = new SequenceIndex(null);
+    index.put("sequence", new long[] {3, 1, 2});
+    assertArrayEquals(new long[] {3, 1, 2}, index.getImages("sequence"));
+    assertEquals("sequence", index.getSequenceKey(1));
+    assertEquals(1, index.getPosition(1));
+    assertEquals(2, index.getNextOrPrevious(1, NextOrPrevious.NEXT));
+    assertEquals(3, index.getNextOrPrevious(1, NextOrPrevious.PREVIOUS));
+    assertEquals(0, index.getNextOrPrevious(3, NextOrPrevious.PREVIOUS));
+    assertEquals(0, index.getNextOrPrevious(2, NextOrPrevious.NEXT));
+    assertEquals(0, index.getNextOrPrevious(4, NextOrPrevious.NEXT));
+    assertNull(index.getImages("other"));
+  }
+
+  @Test
+  void testReplace() {
+    final SequenceIndex index = new SequenceIndex(null);
+    index.put("first", new long[] {1, 2, 3});
+    index.put("second", new long[] {3, 4});
+    // Image 3 moved to the second sequence, and removing the first sequence shouldn't remove it
+    assertEquals("second", index.getSequenceKey(3));
+    index.put("first", new long[] {1, 2});
+    assertEquals(4, index.getImageCount());
+    index.remove("first");
+    assertNull(index.getSequenceKey(1));
+    assertEquals(4, index.getNextOrPrevious(3, NextOrPrevious.NEXT));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  void testManyImages() {
+    final SequenceIndex index = new SequenceIndex(null);
+    for (long sequence = 0; sequence < 100; sequence++) {
+      final long first = sequence * 1000 + 1;
+      index.put(Long.toString(sequence), LongStream.range(first, first + 100).toArray());
+    }
+    assertEquals(10_000, index.getImageCount());
+    for (long sequence = 0; sequence < 100; sequence += 2) {
+      index.remove(Long.toString(sequence));
+    }
+    for (long sequence = 0; sequence < 100; sequence++) {
+      for (long position = 0; position < 100; position++) {
+        final long image = sequence * 1000 + 1 + position;
+        assertEquals(sequence % 2 == 0 ? -1 : position, index.getPosition(image));
+      }
+    }
+    index.clear();
+    assertEquals(0, index.getImageCount());
+    assertEquals(-1, index.getPosition(1001));
+  }
+
+  @Test
+  void testEviction() {
+    final SequenceIndex index = new SequenceIndex(null, 5);
+    index.put("first", new long[] {1, 2, 3});
+    index.put("second", new long[] {4, 5, 6});
+    // The first sequence is no longer in memory, and there is no disk cache
+    assertNull(index.getSequenceKey(1));
+    assertNull(index.getImages("first"));
+    assertEquals("second", index.getSequenceKey(4));
+    assertEquals(3, index.getImageCount());
+  }
+}
@@ -0,0 +1,53 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link WeightedLruCache}
+ */
+class WeightedLruCacheTest {
+  @Test
+  void testEvictionByWeight() {
+    final WeightedLruCache<String, byte[]> cache = new WeightedLruCache<>(bytes -> bytes.length, () -> 10);
+    cache.put("a", new byte[4]);
+    cache.put("b", new byte[4]);
+    assertEquals(8, cache.getWeight());
+    // Use "a" so that "b" is the least recently used
+    assertNotNull(cache.get("a"));
+    cache.put("c", new byte[4]);
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertEquals(8, cache.getWeight());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  void testTooHeavy() {
+    final WeightedLruCache<String, byte[]> cache = new WeightedLruCache<>(bytes -> bytes.length, () -> 10);
+    cache.put("a", new byte[4]);
+    cache.put("b", new byte[11]);
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertFalse(cache.hasRoomFor(7));
+  }
+
+  @Test
+  void testReplaceAndRemove() {
+    final WeightedLruCache<String, byte[]> cache = new WeightedLruCache<>(bytes -> bytes.length, () -> 10);
+    cache.put("a", new byte[4]);
+    cache.put("a", new byte[2]);
+    assertEquals(2, cache.getWeight());
+    assertEquals(1, cache.size());
+    assertNotNull(cache.remove("a"));
+    assertEquals(0, cache.getWeight());
+    assertTrue(cache.hasRoomFor(10));
+  }
+}
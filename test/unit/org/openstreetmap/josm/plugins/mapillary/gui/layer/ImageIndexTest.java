@@ -0,0 +1,110 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.gui.layer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.vector.VectorDataSet;
+import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+/**
+ * Test class for {@link ImageIndex}
+ */
+class ImageIndexTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private static VectorNode createImage(VectorDataSet data, long id) {
+    final VectorNode image = new VectorNode("mapillary-images");
+    image.put(MapillaryImageUtils.ImageProperties.ID.toString(), Long.toString(id));
+    image.setCoor(new LatLon(39.0, -108.5));
+    image.setOsmId(id, 1);
+    data.addPrimitive(image);
+    return image;
+  }
+
+  @Test
+  void testGet() {
+    final VectorDataSet data = new VectorDataSet();
+    final ImageIndex index = new ImageIndex(data);
+    final VectorNode image = createImage(data, 135_511_895_288_847L);
+    index.add(image);
+    assertEquals(1, index.size());
+    assertSame(image, index.get(135_511_895_288_847L));
+    assertNull(index.get(1));
+    // Images that have left the data are dropped
+    data.removePrimitive(image);
+    assertNull(index.get(135_511_895_288_847L));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  void testManyImages() {
+    final VectorDataSet data = new VectorDataSet();
+    final ImageIndex index = new ImageIndex(data);
+    final List<VectorNode> images = new ArrayList<>();
+    // Image ids are close together
+    for (long id = 135_511_895_288_000L; id < 135_511_895_290_000L; id++) {
+      images.add(createImage(data, id));
+    }
+    index.addAll(images);
+    assertEquals(images.size(), index.size());
+    for (int i = 0; i < images.size(); i += 2) {
+      data.removePrimitive(images.get(i));
+    }
+    // Removing entries must not hide the entries after them
+    for (int i = 0; i < images.size(); i++) {
+      final VectorNode image = images.get(i);
+      assertSame(i % 2 == 0 ? null : image, index.get(MapillaryImageUtils.getId(image)));
+    }
+    assertEquals(images.size() / 2, index.size());
+    for (int i = 1; i < images.size(); i += 2) {
+      assertSame(images.get(i), index.get(MapillaryImageUtils.getId(images.get(i))));
+    }
+  }
+
+  @Test
+  void testReleasedImages() throws InterruptedException {
+    final VectorDataSet data = new VectorDataSet();
+    final ImageIndex index = new ImageIndex(data);
+    addUnused(index, 1);
+    final VectorNode image = createImage(data, 2);
+    index.add(image);
+    assertEquals(2, index.size());
+    // The index doesn't keep images that are gone from the data, and drops their entries when images are added
+    for (int i = 0; i < 50 && index.size() > 1; i++) {
+      System.gc();
+      Thread.sleep(10);
+      index.add(image);
+    }
+    assertEquals(1, index.size());
+    assertSame(image, index.get(2));
+  }
+
+  private static void addUnused(ImageIndex index, long id) {
+    // Only the index refers to this image
+    index.add(createImage(new VectorDataSet(), id));
+  }
+
+  @Test
+  void testGetImage() {
+    final VectorDataSet data = new VectorDataSet();
+    final VectorNode image = createImage(data, 42);
+    // Not the layer data, so the dataset is searched by id
+    assertSame(image, ImageIndex.getImage(data, 42));
+    assertSame(image, ImageIndex.getImage(data, "42"));
+    assertNull(ImageIndex.getImage(data, "not a number"));
+    assertNull(ImageIndex.getImage(null, 42));
+  }
+}
@@ -0,0 +1,85 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.data.vector.VectorDataSet;
+import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryImageUtils;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+/**
+ * Test class for {@link ImageDetailsCoalescer}
+ */
+class ImageDetailsCoalescerTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private final List<String[]> requests = new CopyOnWriteArrayList<>();
+  /** Returns every image except "missing" */
+  private final BiFunction<VectorDataSet, String[], Map<String, Collection<VectorNode>>> loader = (data, keys) -> {
+    this.requests.add(keys);
+    return Collections.singletonMap("sequence", Stream.of(keys).filter(key -> !"missing".equals(key)).map(key -> {
+      final VectorNode image = new VectorNode("test");
+      image.put(MapillaryImageUtils.ImageProperties.ID.toString(), key);
+      return image;
+    }).collect(Collectors.toList()));
+  };
+
+  @Test
+  void testWindow() {
+    final ImageDetailsCoalescer coalescer = new ImageDetailsCoalescer(50, 10, this.loader);
+    final VectorDataSet data = new VectorDataSet();
+    final List<CompletableFuture<VectorNode>> futures = new ArrayList<>();
+    for (String key : new String[] {"1", "2", "missing", "2"}) {
+      futures.add(coalescer.request(data, key));
+    }
+    assertEquals("1", MapillaryImageUtils.getKey(futures.get(0).join()));
+    assertEquals("2", MapillaryImageUtils.getKey(futures.get(1).join()));
+    assertNull(futures.get(2).join());
+    // Duplicate requests share the future
+    assertSame(futures.get(1), futures.get(3));
+    assertEquals(1, this.requests.size());
+    assertArrayEquals(new String[] {"1", "2", "missing"}, this.requests.get(0));
+  }
+
+  @Test
+  void testFullBatch() {
+    // The window is long enough that only full batches are sent during the test
+    final ImageDetailsCoalescer coalescer = new ImageDetailsCoalescer(60_000, 2, this.loader);
+    final VectorDataSet data = new VectorDataSet();
+    final CompletableFuture<VectorNode> first = coalescer.request(data, "1");
+    final CompletableFuture<VectorNode> second = coalescer.request(data, "2");
+    assertEquals("1", MapillaryImageUtils.getKey(first.join()));
+    assertEquals("2", MapillaryImageUtils.getKey(second.join()));
+    assertEquals(1, this.requests.size());
+    assertNull(coalescer.request(null, "1").join());
+    assertNull(coalescer.request(data, null).join());
+  }
+
+  @Test
+  void testFailedLoad() {
+    final ImageDetailsCoalescer coalescer = new ImageDetailsCoalescer(1, 10, (data, keys) -> {
+      throw new IllegalStateException("Expected failure");
+    });
+    assertNull(coalescer.request(new VectorDataSet(), "1").join());
+  }
+}
@@ -0,0 +1,72 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheStatistics;
+import org.openstreetmap.josm.plugins.mapillary.testutils.annotations.MapillaryURLWireMock;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+import org.openstreetmap.josm.tools.HttpClient;
+
+/**
+ * Test class for {@link MapillaryHttpTransport}
+ */
+@MapillaryURLWireMock
+class MapillaryHttpTransportTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  @Test
+  void testStatistics() throws IOException {
+    final URL url = new URL(MapillaryURL.APIv4.getImageInformation("135511895288847"));
+    final CacheStatistics statistics = CacheStatistics
+      .forCache(MapillaryHttpTransport.STATISTICS_PREFIX + url.getHost());
+    statistics.reset();
+    for (int i = 0; i < 2; i++) {
+      final HttpClient client = HttpClient.create(url, "GET");
+      assertEquals(200, MapillaryHttpTransport.connect(client).getResponseCode());
+      try (InputStream content = MapillaryHttpTransport.getContent(client)) {
+        assertTrue(content.read() >= 0);
+      }
+    }
+    // Both requests are timed, whether or not the second one reused the connection
+    assertEquals(2, statistics.getLoadLatency().getCount());
+    assertEquals(0, statistics.getLoadFailures());
+    assertTrue(statistics.getLoadLatency().getMean() > 0);
+  }
+
+  @Test
+  void testReleasingInputStream() throws IOException {
+    final ByteArrayInputStream body = new ByteArrayInputStream(new byte[1000]);
+    final AtomicLong length = new AtomicLong(-1);
+    try (InputStream stream = new MapillaryHttpTransport.ReleasingInputStream(body, length::set)) {
+      assertEquals(0, stream.read());
+      assertEquals(99, stream.read(new byte[99]));
+      assertEquals(100, stream.skip(100));
+    }
+    // The rest of the body is read when the stream is closed
+    assertEquals(0, body.available());
+    assertEquals(1000, length.get());
+  }
+
+  @Test
+  void testDrainLimit() throws IOException {
+    final ByteArrayInputStream body = new ByteArrayInputStream(new byte[1024 * 1024]);
+    final long drained = MapillaryHttpTransport.drain(body);
+    // Large bodies are not read to the end, the connection is dropped instead
+    assertTrue(drained >= 64 * 1024);
+    assertTrue(body.available() > 0);
+  }
+}
@@ -0,0 +1,82 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.gui.jmapviewer.TileXY;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryProperties;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+/**
+ * Test class for {@link OfflineAreaDownloader}
+ */
+class OfflineAreaDownloaderTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  @Test
+  void testAreaRoundTrip() {
+    final OfflineAreaDownloader.Area area = new OfflineAreaDownloader.Area(new Bounds(39.0, -108.5, 39.1, -108.4), 12,
+      14, true);
+    assertEquals(area, OfflineAreaDownloader.Area.parse(area.toString()));
+    assertTrue(OfflineAreaDownloader.Area.parse(area.toString()).isFullImages());
+  }
+
+  @Test
+  void testInvalidArea() {
+    assertNull(OfflineAreaDownloader.Area.parse(null));
+    assertNull(OfflineAreaDownloader.Area.parse(""));
+    assertNull(OfflineAreaDownloader.Area.parse("1,2,3,4,12,14"));
+    assertNull(OfflineAreaDownloader.Area.parse("a,2,3,4,12,14,false"));
+  }
+
+  @Test
+  void testPendingArea() {
+    assertNull(OfflineAreaDownloader.getPendingArea());
+    final OfflineAreaDownloader.Area area = new OfflineAreaDownloader.Area(new Bounds(0, 0, 0.01, 0.01), 14, 14,
+      false);
+    MapillaryProperties.OFFLINE_AREA_PENDING.put(area.toString());
+    assertEquals(area, OfflineAreaDownloader.getPendingArea());
+    MapillaryProperties.OFFLINE_AREA_PENDING.put(null);
+  }
+
+  @Test
+  void testTiles() {
+    final OfflineAreaDownloader.Area area = new OfflineAreaDownloader.Area(new Bounds(0, 0, 0.01, 0.01), 14, 14,
+      false);
+    final List<TileXY> tiles = area.getTiles(14);
+    assertEquals(2, tiles.size());
+    assertEquals(8192, tiles.get(0).getXIndex());
+    assertEquals(8191, tiles.get(0).getYIndex());
+    assertEquals(8192, tiles.get(1).getYIndex());
+    assertEquals(2, area.getTileCount());
+    assertEquals(1, area.getTiles(0).size());
+  }
+
+  @Test
+  void testZoomClamping() {
+    final Bounds bounds = new Bounds(0, 0, 0.01, 0.01);
+    // Zooms above the highest tile zoom are clamped, and swapped zooms are reordered
+    assertEquals(new OfflineAreaDownloader.Area(bounds, 13, 14, false),
+      new OfflineAreaDownloader.Area(bounds, 18, 13, false));
+    assertEquals(new OfflineAreaDownloader.Area(bounds, 0, 14, false),
+      new OfflineAreaDownloader.Area(bounds, -1, 20, false));
+  }
+
+  @Test
+  void testEstimateSize() {
+    assertEquals(0, OfflineAreaDownloader.estimateSize(0, 0, true));
+    assertEquals(OfflineAreaDownloader.TILE_SIZE, OfflineAreaDownloader.estimateSize(1, 0, false));
+    assertEquals(OfflineAreaDownloader.FULL_IMAGE_SIZE,
+      OfflineAreaDownloader.estimateSize(0, 1, true) - OfflineAreaDownloader.estimateSize(0, 1, false));
+  }
+}
@@ -0,0 +1,96 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.io.download;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryTestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+/**
+ * Test class for {@link RateLimitGovernor}
+ */
+class RateLimitGovernorTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private final AtomicLong clock = new AtomicLong();
+
+  @Test
+  void testBurstAndRefill() {
+    final RateLimitGovernor governor = new RateLimitGovernor(2, 2, clock::get);
+    assertTrue(governor.tryAcquire());
+    assertTrue(governor.tryAcquire());
+    assertFalse(governor.tryAcquire());
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+    assertTrue(governor.tryAcquire());
+    assertFalse(governor.tryAcquire());
+  }
+
+  @Test
+  void testBackoffAndRecovery() {
+    final RateLimitGovernor governor = new RateLimitGovernor(2, 2, clock::get);
+    assertTrue(governor.reportRateLimited(10));
+    assertTrue(governor.isBackingOff());
+    assertEquals(TimeUnit.SECONDS.toNanos(10), governor.getNanosUntilAvailable());
+    // Requests that were in flight should not extend the backoff
+    assertFalse(governor.reportRateLimited(10));
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(9));
+    assertFalse(governor.tryAcquire());
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertFalse(governor.isBackingOff());
+    // No tokens accumulate during the backoff, and the rate is halved (1 request/second)
+    assertFalse(governor.tryAcquire());
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertTrue(governor.tryAcquire());
+    assertFalse(governor.tryAcquire());
+  }
+
+  @Test
+  void testJitteredBackoff() {
+    final RateLimitGovernor governor = new RateLimitGovernor(2, 2, clock::get);
+    assertTrue(governor.reportRateLimited(0));
+    // Equal jitter on a 5 second backoff means we wait between 2.5 and 5 seconds
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(2_400));
+    assertTrue(governor.isBackingOff());
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(2_700));
+    assertFalse(governor.isBackingOff());
+  }
+
+  @Test
+  void testReset() {
+    final RateLimitGovernor governor = new RateLimitGovernor(2, 2, clock::get);
+    governor.reportRateLimited(100);
+    assertTrue(governor.isBackingOff());
+    governor.reset();
+    assertFalse(governor.isBackingOff());
+    assertTrue(governor.tryAcquire());
+    assertTrue(governor.tryAcquire());
+  }
+
+  @Test
+  void testAcquire() {
+    final RateLimitGovernor governor = new RateLimitGovernor(2, 2, clock::get);
+    final long maxWait = TimeUnit.SECONDS.toNanos(1);
+    assertTrue(governor.acquire(maxWait));
+    assertTrue(governor.acquire(maxWait));
+    // The next token is 500 ms away
+    assertFalse(governor.acquire(TimeUnit.MILLISECONDS.toNanos(100)));
+    // An interrupted wait doesn't take a token
+    Thread.currentThread().interrupt();
+    assertFalse(governor.acquire(maxWait));
+    assertTrue(Thread.interrupted());
+    // Backoff periods are not waited out
+    governor.reportRateLimited(10);
+    assertFalse(governor.acquire(maxWait));
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(12));
+    assertTrue(governor.acquire(maxWait));
+  }
+}
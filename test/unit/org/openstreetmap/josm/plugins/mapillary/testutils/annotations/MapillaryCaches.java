@@ -8,7 +8,12 @@ import java.lang.annotation.Target;
 import java.lang.reflect.Field;
 import java.util.List;
 
+import org.openstreetmap.josm.plugins.mapillary.cache.CacheUtils;
 import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataCacheAccess;
+import org.openstreetmap.josm.plugins.mapillary.cache.SequenceIndex;
+import org.openstreetmap.josm.plugins.mapillary.cache.WeightedLruCache;
+import org.openstreetmap.josm.plugins.mapillary.io.download.RateLimitGovernor;
 import org.openstreetmap.josm.plugins.mapillary.model.ImageDetection;
 
 import org.apache.commons.jcs3.access.CacheAccess;
@@ -26,14 +31,20 @@ public @interface MapillaryCaches {
     @Override
     public void afterEach(ExtensionContext context) throws Exception {
       for (Field field : Caches.class.getDeclaredFields()) {
-        if (field.getType().equals(Caches.MapillaryCacheAccess.class)) {
+        if (Caches.MapillaryCacheAccess.class.isAssignableFrom(field.getType())) {
           final Caches.MapillaryCacheAccess mapillaryCacheAccess = ((Caches.MapillaryCacheAccess) field.get(null));
-          mapillaryCacheAccess.getICacheAccess().clear();
-          final Field rateLimited = Caches.MapillaryCacheAccess.class.getDeclaredField("rateLimited");
-          rateLimited.setAccessible(true);
-          rateLimited.setBoolean(mapillaryCacheAccess, false);
+          mapillaryCacheAccess.clear();
+          if (mapillaryCacheAccess instanceof MetadataCacheAccess) {
+            ((MetadataCacheAccess) mapillaryCacheAccess).getNegativeCache().clear();
+          }
+        } else if (field.getType().equals(WeightedLruCache.class)) {
+          ((WeightedLruCache<?, ?>) field.get(null)).clear();
+        } else if (field.getType().equals(SequenceIndex.class)) {
+          ((SequenceIndex) field.get(null)).clear();
         }
       }
+      RateLimitGovernor.getInstance().reset();
+      CacheUtils.getFailedDownloads().clear();
       // Clear image detection cache
       final Field imageDetectionCache = ImageDetection.class.getDeclaredField("DETECTION_CACHE");
       imageDetectionCache.setAccessible(true);
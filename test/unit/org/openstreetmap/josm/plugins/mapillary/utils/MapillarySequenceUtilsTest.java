@@ -0,0 +1,135 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapillary.utils;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.vector.VectorDataSet;
+import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.data.vector.VectorWay;
+import org.openstreetmap.josm.plugins.mapillary.cache.Caches;
+import org.openstreetmap.josm.plugins.mapillary.testutils.annotations.MapillaryCaches;
+import org.openstreetmap.josm.plugins.mapillary.utils.MapillarySequenceUtils.NextOrPrevious;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+/**
+ * Test class for {@link MapillarySequenceUtils}
+ */
+@MapillaryCaches
+class MapillarySequenceUtilsTest {
+  @RegisterExtension
+  static JOSMTestRules rules = new MapillaryTestRules().preferences();
+
+  private final VectorDataSet dataSet = new VectorDataSet();
+
+  @AfterEach
+  void tearDown() {
+    MapillarySequenceUtils.clearTileSequences();
+  }
+
+  private List<VectorNode> createImages(long... ids) {
+    final List<VectorNode> images = new ArrayList<>(ids.length);
+    for (long id : ids) {
+      final VectorNode image = new VectorNode("mapillary-images");
+      image.put(MapillaryImageUtils.ImageProperties.ID.toString(), Long.toString(id));
+      image.put(MapillaryImageUtils.ImageProperties.SEQUENCE_ID.toString(), "sequence");
+      image.setCoor(new LatLon(39.0 + id / 10_000d, -108.5));
+      image.setOsmId(id, 1);
+      this.dataSet.addPrimitive(image);
+      images.add(image);
+    }
+    return images;
+  }
+
+  private VectorWay createSequence(List<VectorNode> images) {
+    final VectorWay sequence = new VectorWay("mapillary-sequences");
+    sequence.put(MapillarySequenceUtils.KEY, "sequence");
+    sequence.setNodes(images);
+    this.dataSet.addPrimitive(sequence);
+    return sequence;
+  }
+
+  @Test
+  void testTileSequences() {
+    final List<VectorNode> images = this.createImages(1, 2, 3);
+    final VectorWay sequence = this.createSequence(images);
+    // Not indexed yet, so the ways are used
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+    assertSame(images.get(2), MapillarySequenceUtils.getNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+
+    MapillarySequenceUtils.indexTileSequences("tile", Collections.singleton(sequence));
+    assertSame(images.get(2), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+    assertSame(images.get(0),
+      MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.PREVIOUS));
+    assertNull(MapillarySequenceUtils.getNextOrPrevious(images.get(0), NextOrPrevious.PREVIOUS));
+    assertNull(MapillarySequenceUtils.getNextOrPrevious(images.get(2), NextOrPrevious.NEXT));
+    assertNull(MapillarySequenceUtils.getNextOrPrevious(images.get(1), null));
+  }
+
+  @Test
+  void testStitchTiles() {
+    final List<VectorNode> images = this.createImages(1, 2, 3, 4, 5, 6);
+    // The tiles cut the sequence between images 2 and 3, and between images 4 and 5
+    final VectorNode[] cuts = new VectorNode[4];
+    for (int i = 0; i < cuts.length; i++) {
+      cuts[i] = new VectorNode("mapillary-sequences");
+      cuts[i].setCoor(new LatLon(39.00025 + i / 2 * 0.0002, -108.5));
+      this.dataSet.addPrimitive(cuts[i]);
+    }
+    final VectorWay first = this.createSequence(Arrays.asList(images.get(0), images.get(1), cuts[0]));
+    final VectorWay second = this.createSequence(Arrays.asList(cuts[1], images.get(2), images.get(3), cuts[2]));
+    final VectorWay third = this.createSequence(Arrays.asList(cuts[3], images.get(4), images.get(5)));
+    MapillarySequenceUtils.indexTileSequences("first", Collections.singleton(first));
+    MapillarySequenceUtils.indexTileSequences("third", Collections.singleton(third));
+    // The middle tile hasn't been loaded, so nothing is joined yet
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+    MapillarySequenceUtils.indexTileSequences("second", Collections.singleton(second));
+    for (int i = 0; i < images.size() - 1; i++) {
+      assertSame(images.get(i + 1), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(i), NextOrPrevious.NEXT));
+      assertSame(images.get(i),
+        MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(i + 1), NextOrPrevious.PREVIOUS));
+    }
+    // Reloading a tile replaces its parts
+    MapillarySequenceUtils.indexTileSequences("second", Collections.singleton(second));
+    assertSame(images.get(3), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(4), NextOrPrevious.PREVIOUS));
+    // Only the joins at the ends of the replaced part change
+    final VectorWay shorter = this.createSequence(Arrays.asList(cuts[1], images.get(2), images.get(3)));
+    MapillarySequenceUtils.indexTileSequences("second", Collections.singleton(shorter));
+    assertSame(images.get(2), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+    assertSame(images.get(3), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(2), NextOrPrevious.NEXT));
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(3), NextOrPrevious.NEXT));
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(4), NextOrPrevious.PREVIOUS));
+    assertSame(images.get(5), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(4), NextOrPrevious.NEXT));
+    // A reload without the sequence removes its part, even though nothing else for the sequence was loaded
+    MapillarySequenceUtils.indexTileSequences("second", Collections.emptyList());
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(2), NextOrPrevious.NEXT));
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(3), NextOrPrevious.PREVIOUS));
+    assertSame(images.get(1), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(0), NextOrPrevious.NEXT));
+    assertSame(images.get(5), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(4), NextOrPrevious.NEXT));
+  }
+
+  @Test
+  void testSequenceIndex() {
+    final List<VectorNode> images = this.createImages(1, 2, 3, 4);
+    final VectorWay first = this.createSequence(images.subList(0, 2));
+    final VectorWay second = this.createSequence(images.subList(2, 4));
+    MapillarySequenceUtils.indexTileSequences("tile", Arrays.asList(first, second));
+    // The parts don't know about each other, but the whole sequence does
+    assertNull(MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+    Caches.SEQUENCE_INDEX.put("sequence", new long[] {1, 2, 3, 4});
+    assertSame(images.get(2), MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(1), NextOrPrevious.NEXT));
+    assertSame(images.get(1),
+      MapillarySequenceUtils.getLinkedNextOrPrevious(images.get(2), NextOrPrevious.PREVIOUS));
+  }
+}
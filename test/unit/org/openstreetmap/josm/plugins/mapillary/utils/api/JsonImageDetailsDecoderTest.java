@@ -8,6 +8,7 @@ import org.junit.jupiter.params.provider.ValueSource;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.vector.VectorDataSet;
 import org.openstreetmap.josm.data.vector.VectorNode;
+import org.openstreetmap.josm.plugins.mapillary.cache.MetadataRecord;
 import org.openstreetmap.josm.plugins.mapillary.oauth.OAuthUtils;
 import org.openstreetmap.josm.plugins.mapillary.testutils.annotations.MapillaryURLWireMock;
 import org.openstreetmap.josm.plugins.mapillary.testutils.annotations.MapillaryURLWireMockErrors;
@@ -20,13 +21,18 @@ import org.openstreetmap.josm.plugins.mapillary.utils.MapillaryURL;
 import org.openstreetmap.josm.plugins.mapillary.utils.TestUtil;
 import org.openstreetmap.josm.testutils.JOSMTestRules;
 
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
@@ -84,6 +90,28 @@ public class JsonImageDetailsDecoderTest {
     }
   }
 
+  @ParameterizedTest(name = "{index}: using computed locations: {0}")
+  @ValueSource(booleans = { true, false })
+  void testDecodeImageRecord(boolean computedLocations) throws IOException {
+    MapillaryProperties.USE_COMPUTED_LOCATIONS.put(computedLocations);
+    final URL url = new URL(
+      MapillaryURL.APIv4.getImageInformation("135511895288847", MapillaryImageUtils.ImageProperties.values()));
+    final JsonObject json = OAuthUtils.getWithHeader(url);
+    final VectorDataSet fromJson = new VectorDataMock();
+    final VectorDataSet fromRecord = new VectorDataMock();
+    JsonDecoder.decodeData(json, value -> JsonImageDetailsDecoder.decodeImageInfos(value, fromJson));
+    JsonDecoder.decodeRecord(MetadataRecord.of(json),
+      record -> JsonImageDetailsDecoder.decodeImageRecord(record, fromRecord));
+
+    // The record gives the same image as the JSON
+    assertEquals(1, fromRecord.getNodes().size());
+    final VectorNode expected = fromJson.getNodes().iterator().next();
+    final VectorNode actual = fromRecord.getNodes().iterator().next();
+    assertEquals(expected.getKeys(), actual.getKeys());
+    assertEquals(expected.getCoor(), actual.getCoor());
+    assertEquals(expected.getUniqueId(), actual.getUniqueId());
+  }
+
   @Test
   @MapillaryURLWireMockErrors(MapillaryURLWireMockErrors.Type.APPLICATION_REQUEST_LIMIT_REACHED)
   void testDecodeImageInfosWithFetchErrorsApplicationRequestLimitReached() throws IOException {
@@ -101,6 +129,30 @@ public class JsonImageDetailsDecoderTest {
     }
   }
 
+  @Test
+  void testDecodeManyImageInfos() {
+    final JsonArrayBuilder builder = Json.createArrayBuilder();
+    for (int i = 1; i <= 250; i++) {
+      builder.add(Json.createObjectBuilder().add(MapillaryImageUtils.ImageProperties.ID.toString(), Integer.toString(i))
+        .add(MapillaryImageUtils.ImageProperties.GEOMETRY.toString(),
+          Json.createObjectBuilder().add("type", "Point")
+            .add("coordinates", Json.createArrayBuilder().add(-108.5).add(39 + i / 10_000d)))
+        .add(MapillaryImageUtils.ImageProperties.COMPUTED_GEOMETRY.toString(),
+          Json.createObjectBuilder().add("type", "Point")
+            .add("coordinates", Json.createArrayBuilder().add(-108.5).add(39 + i / 10_000d))));
+    }
+    final JsonArray json = builder.build();
+    final VectorDataMock data = new VectorDataMock();
+    final List<VectorNode> decoded = new ArrayList<>(JsonImageDetailsDecoder.decodeImageInfos(json, data));
+    assertEquals(250, decoded.size());
+    for (int i = 0; i < decoded.size(); i++) {
+      assertEquals(Integer.toString(i + 1), MapillaryImageUtils.getKey(decoded.get(i)));
+    }
+    // Decoding again updates the existing images
+    assertEquals(decoded, new ArrayList<>(JsonImageDetailsDecoder.decodeImageInfos(json, data)));
+    assertEquals(250, data.getNodes().size());
+  }
+
   public static VectorNode createDownloadedImage(String key, LatLon latLon, double cameraAngle, boolean pano) {
     VectorNode image = new VectorNode("test");
     image.put(MapillaryImageUtils.ImageProperties.ID.toString(), key);
@@ -27,7 +27,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -130,6 +132,15 @@ class JsonSequencesDecoderTest {
       .map(MapillaryImageUtils::getKey).collect(Collectors.joining(",")));
   }
 
+  @Test
+  void testOrderFrom() {
+    final List<Integer> items = Arrays.asList(0, 1, 2, 3, 4, 5);
+    assertEquals(Arrays.asList(2, 3, 1, 4, 0, 5), JsonSequencesDecoder.orderFrom(items, 2));
+    assertEquals(items, JsonSequencesDecoder.orderFrom(items, 0));
+    assertEquals(Arrays.asList(5, 4, 3, 2, 1, 0), JsonSequencesDecoder.orderFrom(items, 5));
+    assertTrue(JsonSequencesDecoder.orderFrom(Collections.emptyList(), 0).isEmpty());
+  }
+
   @Test
   void testUtilityClass() {
     TestUtil.testUtilityClass(JsonSequencesDecoder.class);